@@ -0,0 +1,243 @@
+package com.envisioniot.hive.benchmark;
+
+import com.envisioniot.hive.udfs.CalcProdUDAF;
+import org.apache.hadoop.hive.ql.exec.MapredContext;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator.AggregationBuffer;
+import org.apache.hadoop.hive.serde2.io.DoubleWritable;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.StructField;
+import org.apache.hadoop.hive.serde2.objectinspector.StructObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.BinaryObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfoFactory;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.JobConf;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * calc_prod各阶段的吞吐量：map端iterate+terminatePartial、PARTIAL2合并、FINAL合并+terminate，以及三者串联。
+ * 数据由MeterDataGenerator生成，按行数连续切分给各map，模拟按时间写入的文件。
+ *
+ * 运行方式（先在项目根目录执行mvn install）：
+ * <pre>
+ * cd benchmarks && mvn package
+ * java -jar target/benchmarks.jar CalcProdBenchmark -prof gc
+ * </pre>
+ * -prof gc输出每次操作的分配字节数(gc.alloc.rate.norm)；bufferBytes、partialBytes为最后一次map端聚合缓冲的估算大小及部分聚合结果的字节数。
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+@State(Scope.Benchmark)
+public class CalcProdBenchmark {
+
+    // 采集周期
+    @Param({"1s", "1m", "15m"})
+    public String cadence;
+
+    @Param({"yyyy-MM-dd", "yyyy-MM", "yyyy"})
+    public String dateFormat;
+
+    // clean：只有正常递增的读数和重复时间；noisy：另有跳变、停滞区间及乱序的行
+    @Param({"noisy", "clean"})
+    public String shape;
+
+    @Param({CalcProdUDAF.PARTIAL_FORMAT_RAW, CalcProdUDAF.PARTIAL_FORMAT_SUMMARY})
+    public String partialFormat;
+
+    @Param({"100000"})
+    public int rows;
+
+    @Param({"4"})
+    public int mappers;
+
+    private static final double SLOPE = 5000d;
+
+    private MapredContext context;
+    private ObjectInspector[] inputOIs;
+    private ObjectInspector partialOI;
+    // 各map的输入行
+    private Object[][][] splits;
+    // 预先计算的各阶段输入，供单独测量合并阶段
+    private Object[] mapPartials;
+    private Object reducedPartial;
+
+    @Setup(Level.Trial)
+    public void setup() throws HiveException {
+        JobConf conf = new JobConf();
+        conf.set(CalcProdUDAF.PARTIAL_FORMAT, partialFormat);
+        context = MapredContext.init(true, conf);
+
+        MeterDataGenerator generator = new MeterDataGenerator(42L);
+        if ("clean".equals(shape)) {
+            generator.setJumpRate(0d).setDeadRate(0d).setOutOfOrderRate(0d);
+        }
+        MeterDataGenerator.Readings readings = generator.generate(rows, stepMillis(cadence));
+        String[] times = readings.formatTimes();
+
+        DoubleWritable slope = new DoubleWritable(SLOPE);
+        Text format = new Text(dateFormat);
+        inputOIs = new ObjectInspector[]{
+                PrimitiveObjectInspectorFactory.writableStringObjectInspector,
+                PrimitiveObjectInspectorFactory.writableDoubleObjectInspector,
+                PrimitiveObjectInspectorFactory.getPrimitiveWritableConstantObjectInspector(TypeInfoFactory.doubleTypeInfo, slope),
+                PrimitiveObjectInspectorFactory.getPrimitiveWritableConstantObjectInspector(TypeInfoFactory.stringTypeInfo, format)};
+        // 在乱序窗口的边界切分，各map的数据在时间上不重叠，summary格式可以合并
+        splits = new Object[mappers][][];
+        for (int m = 0; m < mappers; m++) {
+            int from = splitPoint(m);
+            int to = splitPoint(m + 1);
+            splits[m] = new Object[to - from][];
+            for (int i = from; i < to; i++) {
+                splits[m][i - from] = new Object[]{new Text(times[i]), new DoubleWritable(readings.getValue(i)), slope, format};
+            }
+        }
+
+        partialOI = evaluator().init(GenericUDAFEvaluator.Mode.PARTIAL1, inputOIs);
+        mapPartials = mapSide(null);
+        reducedPartial = merge(mapPartials);
+    }
+
+    /**
+     * map端：逐行iterate后输出部分聚合结果
+     */
+    @Benchmark
+    public Object[] iterate(Footprint footprint) throws HiveException {
+        return mapSide(footprint);
+    }
+
+    /**
+     * combiner/PARTIAL2：合并各map的部分聚合结果
+     */
+    @Benchmark
+    public Object merge() throws HiveException {
+        return merge(mapPartials);
+    }
+
+    /**
+     * reduce端：合并后计算最终结果
+     */
+    @Benchmark
+    public Object terminate() throws HiveException {
+        return finalSide(reducedPartial);
+    }
+
+    /**
+     * PARTIAL1 -> PARTIAL2 -> FINAL
+     */
+    @Benchmark
+    public Object endToEnd() throws HiveException {
+        return finalSide(merge(mapSide(null)));
+    }
+
+    private Object[] mapSide(Footprint footprint) throws HiveException {
+        Object[] partials = new Object[mappers];
+        for (int m = 0; m < mappers; m++) {
+            GenericUDAFEvaluator evaluator = evaluator();
+            evaluator.init(GenericUDAFEvaluator.Mode.PARTIAL1, inputOIs);
+            AggregationBuffer buffer = evaluator.getNewAggregationBuffer();
+            for (Object[] row : splits[m]) {
+                evaluator.iterate(buffer, row);
+            }
+            partials[m] = evaluator.terminatePartial(buffer);
+            if (footprint != null) {
+                footprint.bufferBytes = ((GenericUDAFEvaluator.AbstractAggregationBuffer) buffer).estimate();
+                footprint.partialBytes = binaryBytes(partials[m]);
+            }
+        }
+        return partials;
+    }
+
+    private Object merge(Object[] partials) throws HiveException {
+        GenericUDAFEvaluator evaluator = evaluator();
+        evaluator.init(GenericUDAFEvaluator.Mode.PARTIAL2, new ObjectInspector[]{partialOI});
+        AggregationBuffer buffer = evaluator.getNewAggregationBuffer();
+        for (Object partial : partials) {
+            evaluator.merge(buffer, partial);
+        }
+        return evaluator.terminatePartial(buffer);
+    }
+
+    private Object finalSide(Object partial) throws HiveException {
+        GenericUDAFEvaluator evaluator = evaluator();
+        evaluator.init(GenericUDAFEvaluator.Mode.FINAL, new ObjectInspector[]{partialOI});
+        AggregationBuffer buffer = evaluator.getNewAggregationBuffer();
+        evaluator.merge(buffer, partial);
+        return evaluator.terminate(buffer);
+    }
+
+    private int splitPoint(int mapper) {
+        if (mapper == mappers) {
+            return rows;
+        }
+        int window = MeterDataGenerator.OUT_OF_ORDER_WINDOW;
+        return (int) ((long) rows * mapper / mappers) / window * window;
+    }
+
+    private GenericUDAFEvaluator evaluator() {
+        GenericUDAFEvaluator evaluator = new CalcProdUDAF.CalcProdUDAFEvaluator();
+        evaluator.configure(context);
+        return evaluator;
+    }
+
+    // 部分聚合结果中二进制字段的总字节数
+    private long binaryBytes(Object partial) {
+        StructObjectInspector structOI = (StructObjectInspector) partialOI;
+        long bytes = 0;
+        for (StructField field : structOI.getAllStructFieldRefs()) {
+            Object data = structOI.getStructFieldData(partial, field);
+            if (data != null && field.getFieldObjectInspector() instanceof BinaryObjectInspector) {
+                bytes += ((BinaryObjectInspector) field.getFieldObjectInspector()).getPrimitiveJavaObject(data).length;
+            }
+        }
+        return bytes;
+    }
+
+    private static long stepMillis(String cadence) {
+        if ("1s".equals(cadence)) {
+            return MeterDataGenerator.SECOND;
+        }
+        if ("1m".equals(cadence)) {
+            return MeterDataGenerator.MINUTE;
+        }
+        if ("15m".equals(cadence)) {
+            return MeterDataGenerator.FIFTEEN_MINUTES;
+        }
+        throw new IllegalArgumentException("Unknown cadence: " + cadence);
+    }
+
+    /**
+     * map端缓冲占用，按原值输出
+     */
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Footprint {
+        public long bufferBytes;
+        public long partialBytes;
+
+        @Setup(Level.Iteration)
+        public void clear() {
+            bufferBytes = 0;
+            partialBytes = 0;
+        }
+    }
+}
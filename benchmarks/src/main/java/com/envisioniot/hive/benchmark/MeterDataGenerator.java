@@ -0,0 +1,140 @@
+package com.envisioniot.hive.benchmark;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Random;
+
+/**
+ * 生成模拟的电表读数：按固定采集周期递增的累计电量，注入跳变、负跳变、停滞（读数不变）的区间、
+ * 重复时间以及乱序的行。相同的种子生成相同的数据。
+ *
+ */
+public class MeterDataGenerator {
+
+    public static final long SECOND = 1000L;
+    public static final long MINUTE = 60 * SECOND;
+    public static final long FIFTEEN_MINUTES = 15 * MINUTE;
+    // 乱序只发生在连续的窗口内，按窗口边界切分的各段数据在时间上不重叠
+    public static final int OUT_OF_ORDER_WINDOW = 50;
+
+    // 2016-01-01 00:00:00 UTC
+    private static final long START = 1451606400000L;
+
+    private final Random random;
+    // 每个采集周期的正常发电量上限(kWh)
+    private double maxDelta = 2d;
+    private double jumpRate = 0.002;
+    private double negativeRate = 0.001;
+    private double deadRate = 0.005;
+    private int maxDeadLength = 120;
+    private double duplicateRate = 0.002;
+    private double outOfOrderRate = 0.01;
+
+    public MeterDataGenerator(long seed) {
+        this.random = new Random(seed);
+    }
+
+    public MeterDataGenerator setJumpRate(double jumpRate) {
+        this.jumpRate = jumpRate;
+        return this;
+    }
+
+    public MeterDataGenerator setDeadRate(double deadRate) {
+        this.deadRate = deadRate;
+        return this;
+    }
+
+    public MeterDataGenerator setOutOfOrderRate(double outOfOrderRate) {
+        this.outOfOrderRate = outOfOrderRate;
+        return this;
+    }
+
+    /**
+     * 生成rows行读数
+     *
+     * @param rows       行数（含重复时间的行）
+     * @param stepMillis 采集周期
+     */
+    public Readings generate(int rows, long stepMillis) {
+        long[] times = new long[rows];
+        double[] values = new double[rows];
+        double value = 1000 + random.nextInt(1000);
+        long time = START;
+        int dead = 0;
+        int i = 0;
+        while (i < rows) {
+            time += stepMillis;
+            if (dead > 0) {
+                dead--;
+            } else if (random.nextDouble() < deadRate) {
+                dead = 1 + random.nextInt(maxDeadLength);
+            } else if (random.nextDouble() < jumpRate) {
+                value += 1000 + random.nextInt(10000);
+            } else if (random.nextDouble() < negativeRate) {
+                value -= random.nextInt(500);
+            } else {
+                value += random.nextDouble() * maxDelta;
+            }
+            times[i] = time;
+            values[i] = Math.round(value * 1000) / 1000.0;
+            i++;
+            // 重复时间的行不跨越乱序窗口
+            if (i < rows && i % OUT_OF_ORDER_WINDOW != 0 && random.nextDouble() < duplicateRate) {
+                times[i] = time;
+                values[i] = values[i - 1] + random.nextDouble();
+                i++;
+            }
+        }
+        // 乱序：与同一窗口内之后的某一行交换
+        for (int j = 0; j < rows; j++) {
+            int windowEnd = Math.min(rows, (j / OUT_OF_ORDER_WINDOW + 1) * OUT_OF_ORDER_WINDOW);
+            if (j + 1 < windowEnd && random.nextDouble() < outOfOrderRate) {
+                int k = j + 1 + random.nextInt(windowEnd - j - 1);
+                long t = times[j];
+                times[j] = times[k];
+                times[k] = t;
+                double v = values[j];
+                values[j] = values[k];
+                values[k] = v;
+            }
+        }
+        return new Readings(times, values);
+    }
+
+    /**
+     * 一组读数，时间为epoch毫秒
+     */
+    public static class Readings {
+        private final long[] times;
+        private final double[] values;
+
+        Readings(long[] times, double[] values) {
+            this.times = times;
+            this.values = values;
+        }
+
+        public int size() {
+            return times.length;
+        }
+
+        public long getTime(int index) {
+            return times[index];
+        }
+
+        public double getValue(int index) {
+            return values[index];
+        }
+
+        /**
+         * 时间格式化为calc_prod的文本格式yyyy-MM-dd HH:mm:ss
+         */
+        public String[] formatTimes() {
+            SimpleDateFormat formatter = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+            String[] texts = new String[times.length];
+            for (int i = 0; i < times.length; i++) {
+                texts[i] = formatter.format(new Date(times[i]));
+            }
+            return texts;
+        }
+    }
+}
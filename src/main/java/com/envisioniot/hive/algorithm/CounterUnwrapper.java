@@ -0,0 +1,142 @@
+package com.envisioniot.hive.algorithm;
+
+import java.util.Arrays;
+
+/**
+ * 累计量表计（电量、燃气、水量等）读数的展开：把计数器溢出回绕及表计清零后的读数接续为单调的累计值，
+ * 之后按原有的斜率规则计算（ProdKernel、StreamingProdCalculator等），溢出及清零前后的电量不再记为跳变而丢失。
+ * 1. 溢出：读数下降，按寄存器上限回绕后的差值（上限 - 前值 + 后值）斜率正常时，之后的读数加上上限
+ * 2. 清零：读数下降且不是溢出，新读数接近0（小于下降的幅度，即不到前值的一半）且从0开始的差值（后值）斜率不超过上限时，
+ *    之后的读数接续前值；小幅下降（如200降到199.5）不论间隔多长都不视为清零，仍按原有规则计为跳变
+ * 展开值 = 读数 + 偏移，偏移只在溢出、清零时变化，记录变化的时间，输出时换算回读数。
+ * 清零判断会把偶发的读数归零当作表计清零，只对确有清零的表计开启。非线程安全。
+ *
+ */
+public class CounterUnwrapper {
+
+    private final double rollover;
+    private final boolean detectReset;
+    private final double slopeLimit;
+
+    private boolean started;
+    private long prevTime;
+    private double prevRaw;
+    private double offset;
+    // 偏移变化的时间及变化后的偏移，按时间升序
+    private long[] changeTimes = new long[4];
+    private double[] changeOffsets = new double[4];
+    private int changeCount;
+    private int rollovers;
+    private int resets;
+
+    /**
+     * @param rollover    计数器回绕的读数（寄存器上限），小于等于0时不判断溢出
+     * @param detectReset 是否判断表计清零
+     * @param slopeLimit  正常斜率的上限
+     */
+    public CounterUnwrapper(double rollover, boolean detectReset, double slopeLimit) {
+        this.rollover = rollover;
+        this.detectReset = detectReset;
+        this.slopeLimit = slopeLimit;
+    }
+
+    /**
+     * 是否需要展开，不判断溢出及清零时读数即为展开值
+     */
+    public boolean isEnabled() {
+        return rollover > 0 || detectReset;
+    }
+
+    /**
+     * 开始一个点序列，上一组的有效点作为起点，其展开值即为读数
+     */
+    public void start(boolean hasCarry, long carryTime, double carryValue) {
+        started = hasCarry;
+        prevTime = hasCarry ? carryTime : Long.MIN_VALUE;
+        prevRaw = carryValue;
+        offset = 0d;
+        changeCount = 0;
+        rollovers = 0;
+        resets = 0;
+    }
+
+    /**
+     * 按时间顺序传入下一个读数，返回展开值；时间与前一个读数相同时不判断溢出及清零
+     */
+    public double next(long time, double raw) {
+        if (!started) {
+            started = true;
+        } else if (time > prevTime && raw < prevRaw) {
+            double hours = (time - prevTime) * 1.0 / ProdKernel.MILLIS_PER_HOUR;
+            if (rollover > 0 && prevRaw <= rollover && ProdKernel.isNormal((rollover - prevRaw + raw) / hours, slopeLimit)) {
+                shift(time, rollover);
+                rollovers++;
+            } else if (detectReset && raw >= 0d && raw < prevRaw - raw && raw / hours < slopeLimit) {
+                shift(time, prevRaw);
+                resets++;
+            }
+        }
+        // 早于上一组有效点的读数不作为之后判断的前值
+        if (time >= prevTime) {
+            prevTime = time;
+            prevRaw = raw;
+        }
+        return raw + offset;
+    }
+
+    /**
+     * 就地展开按时间升序的数组中[from, to)的读数
+     */
+    public void unwrap(long[] times, double[] values, int from, int to) {
+        for (int i = from; i < to; i++) {
+            values[i] = next(times[i], values[i]);
+        }
+    }
+
+    /**
+     * 把时间为time的点的展开值换算回读数
+     */
+    public double raw(long time, double unwrapped) {
+        int low = 0;
+        int high = changeCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (changeTimes[mid] <= time) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return high < 0 ? unwrapped : unwrapped - changeOffsets[high];
+    }
+
+    /**
+     * 自start()以来判断为溢出的次数
+     */
+    public int getRollovers() {
+        return rollovers;
+    }
+
+    /**
+     * 自start()以来判断为清零的次数
+     */
+    public int getResets() {
+        return resets;
+    }
+
+    private void shift(long time, double amount) {
+        offset += amount;
+        if (changeCount == changeTimes.length) {
+            changeTimes = Arrays.copyOf(changeTimes, changeCount * 2);
+            changeOffsets = Arrays.copyOf(changeOffsets, changeCount * 2);
+        }
+        changeTimes[changeCount] = time;
+        changeOffsets[changeCount++] = offset;
+    }
+
+    @Override
+    public String toString() {
+        return "CounterUnwrapper [rollover=" + rollover + ", detectReset=" + detectReset
+                + ", rollovers=" + rollovers + ", resets=" + resets + "]";
+    }
+}
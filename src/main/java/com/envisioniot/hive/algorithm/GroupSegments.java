@@ -0,0 +1,203 @@
+package com.envisioniot.hive.algorithm;
+
+/**
+ * 一个时间分组内部的分段，不依赖上一组的有效点
+ * 上一组的有效点早于分组的第一个点时只影响分组的第一段（首段）：与首段类型相同时首段向前延长，否则在首段之前多出一段。
+ * 因此只单独保留首段，其后各段按ProdKernel的累加顺序保存电量差，接入有效点时按同样的顺序重新累加，结果与ProdKernel.calc()完全一致。
+ *
+ */
+class GroupSegments {
+
+    private static final byte NONE = 0;
+    private static final byte SOLID = 1;//实线
+    private static final byte DOTTED = 2;//虚线
+    private static final double[] EMPTY = new double[0];
+
+    private int from;
+    private int to;
+    // 首段的类型及结束点下标，只有一个点时没有首段
+    private byte headType;
+    private int headEnd;
+    // 首段之后的实线段、有效虚线段的电量差，按时间顺序
+    private double[] solid = EMPTY;
+    private int solidCount;
+    private double[] dotted = EMPTY;
+    private int dottedCount;
+    private int jumpCount;
+    private int deadCount;
+    // 首段之后最后一个有效点的下标
+    private int lastValid = -1;
+
+    /**
+     * 分析按时间升序且无重复的点序列中[from, to)的分段
+     */
+    void analyze(long[] times, double[] values, int from, int to, double slopeLimit) {
+        analyze(times, values, null, from, to, slopeLimit);
+    }
+
+    /**
+     * 分析按时间升序且无重复的点序列中[from, to)的分段，可重复使用
+     *
+     * @param normals 预先判断的相邻两点斜率，normals[i]为第i个点与第i+1个点的斜率是否正常，为null时逐对计算
+     */
+    void analyze(long[] times, double[] values, boolean[] normals, int from, int to, double slopeLimit) {
+        this.from = from;
+        this.to = to;
+        headType = NONE;
+        headEnd = 0;
+        solidCount = 0;
+        dottedCount = 0;
+        jumpCount = 0;
+        deadCount = 0;
+        lastValid = -1;
+        int runStart = from;
+        byte runType = NONE;
+        for (int i = from; i < to - 1; i++) {
+            byte type = normals != null ? (normals[i] ? SOLID : DOTTED)
+                    : pairType(times[i], values[i], times[i + 1], values[i + 1], slopeLimit);
+            if (runType != NONE && type != runType) {
+                closeRun(times, values, runType, runStart, i, slopeLimit);
+                runStart = i;
+            }
+            runType = type;
+        }
+        if (runType != NONE) {
+            closeRun(times, values, runType, runStart, to - 1, slopeLimit);
+        }
+    }
+
+    int getFrom() {
+        return from;
+    }
+
+    int getTo() {
+        return to;
+    }
+
+    /**
+     * 接入上一组的有效点，计算分组的发电量及最后一个有效点
+     *
+     * @param hasCarry   是否存在上一组的最后一个有效点
+     * @param carryTime  上一组最后一个有效点的时间，需早于分组的第一个点
+     * @param carryValue 上一组最后一个有效点的电量
+     */
+    void finish(long[] times, double[] values, boolean hasCarry, long carryTime, double carryValue,
+                double slopeLimit, ProdResult result) {
+        result.reset();
+        // 接入有效点后的前一段或两段：类型、起点、终点
+        byte type1 = NONE;
+        long start1Time = 0L;
+        double start1Value = 0d;
+        int end1 = -1;
+        byte type2 = NONE;
+        if (!hasCarry) {
+            if (headType != NONE) {
+                type1 = headType;
+                start1Time = times[from];
+                start1Value = values[from];
+                end1 = headEnd;
+            }
+        } else {
+            byte carryType = pairType(carryTime, carryValue, times[from], values[from], slopeLimit);
+            start1Time = carryTime;
+            start1Value = carryValue;
+            if (carryType == headType) {
+                type1 = headType;
+                end1 = headEnd;
+            } else {
+                type1 = carryType;
+                end1 = from;
+                type2 = headType;
+            }
+        }
+
+        // 与ProdKernel相同的累加顺序：先按顺序累加所有实线段，再累加有效的虚线段
+        double prod = 0d;
+        if (type1 == SOLID) {
+            prod += values[end1] - start1Value;
+        }
+        if (type2 == SOLID) {
+            prod += values[headEnd] - values[from];
+        }
+        for (int i = 0; i < solidCount; i++) {
+            prod += solid[i];
+        }
+        int jumps = jumpCount;
+        int deads = deadCount;
+        boolean valid1 = type1 == SOLID;
+        boolean valid2 = type2 == SOLID;
+        if (type1 == DOTTED) {
+            double slope = ProdKernel.slope(start1Time, start1Value, times[end1], values[end1]);
+            if (ProdKernel.isNormal(slope, slopeLimit)) {
+                prod += values[end1] - start1Value;
+                valid1 = true;
+            } else if (slope == 0d) {
+                deads++;
+            } else {
+                jumps++;
+            }
+        }
+        if (type2 == DOTTED) {
+            double slope = ProdKernel.slope(times[from], values[from], times[headEnd], values[headEnd]);
+            if (ProdKernel.isNormal(slope, slopeLimit)) {
+                prod += values[headEnd] - values[from];
+                valid2 = true;
+            } else if (slope == 0d) {
+                deads++;
+            } else {
+                jumps++;
+            }
+        }
+        for (int i = 0; i < dottedCount; i++) {
+            prod += dotted[i];
+        }
+
+        result.setProduction(prod);
+        result.setJumpCount(jumps);
+        result.setDeadCount(deads);
+        int lastValidPos = lastValid >= 0 ? lastValid : valid2 ? headEnd : valid1 ? end1 : -1;
+        if (lastValidPos >= 0) {
+            result.setLastValid(times[lastValidPos], values[lastValidPos]);
+        } else if (hasCarry) {
+            result.setLastValid(carryTime, carryValue);
+        }
+    }
+
+    private void closeRun(long[] times, double[] values, byte type, int start, int end, double slopeLimit) {
+        if (headType == NONE) {
+            headType = type;
+            headEnd = end;
+            return;
+        }
+        if (type == SOLID) {
+            if (solidCount == solid.length) {
+                solid = grow(solid);
+            }
+            solid[solidCount++] = values[end] - values[start];
+            lastValid = end;
+            return;
+        }
+        double slope = ProdKernel.slope(times[start], values[start], times[end], values[end]);
+        if (ProdKernel.isNormal(slope, slopeLimit)) {//斜率正常
+            if (dottedCount == dotted.length) {
+                dotted = grow(dotted);
+            }
+            dotted[dottedCount++] = values[end] - values[start];
+            lastValid = end;
+        } else if (slope == 0d) {//死数
+            deadCount++;
+        } else {//跳变
+            jumpCount++;
+        }
+    }
+
+    private static double[] grow(double[] array) {
+        double[] grown = new double[Math.max(4, array.length * 2)];
+        System.arraycopy(array, 0, grown, 0, array.length);
+        return grown;
+    }
+
+    private static byte pairType(long time1, double value1, long time2, double value2, double slopeLimit) {
+        return ProdKernel.isNormal(ProdKernel.slope(time1, value1, time2, value2), slopeLimit) ? SOLID : DOTTED;
+    }
+}
@@ -0,0 +1,153 @@
+package com.envisioniot.hive.algorithm;
+
+import com.envisioniot.hive.util.TimeGrouper;
+
+import java.util.Arrays;
+
+/**
+ * 在同一个按时间排序的点序列上计算多个时间粒度（如yyyy-MM-dd、yyyy-MM、yyyy）的发电量
+ * 相邻两点的斜率是否正常只判断一次，各粒度共用；一个粒度的分组嵌套在另一个粒度的分组中时（如yyyy-MM与yyyy-MM-dd），
+ * 较粗粒度的分组只在较细粒度的分组起点判断，不再逐点格式化时间。
+ * 每个粒度的结果与单独按该粒度逐组调用ProdKernel.calc()完全一致。非线程安全。
+ *
+ */
+public class MultiLevelProdCalculator {
+
+    private final String[] dateFormats;
+    private final double slopeLimit;
+    private final GroupSegments segment = new GroupSegments();
+
+    private long[] times;
+    private double[] values;
+    private int size;
+    private boolean[] normals;
+    // 已切分的各粒度的分组起点（末尾为size）及标签
+    // nested[i][j]：第j个粒度的分组嵌套在第i个粒度的分组中
+    private final boolean[][] nested;
+    private final int[][] levelStarts;
+    private final String[][] levelLabels;
+    private int level = -1;
+
+    public MultiLevelProdCalculator(String[] dateFormats, double slopeLimit) {
+        this.dateFormats = dateFormats;
+        this.slopeLimit = slopeLimit;
+        this.levelStarts = new int[dateFormats.length][];
+        this.levelLabels = new String[dateFormats.length][];
+        this.nested = new boolean[dateFormats.length][dateFormats.length];
+        for (int i = 0; i < dateFormats.length; i++) {
+            for (int j = 0; j < dateFormats.length; j++) {
+                nested[i][j] = i != j && nests(dateFormats[i], dateFormats[j]);
+            }
+        }
+    }
+
+    /**
+     * 开始计算一个点序列：判断所有相邻两点的斜率
+     *
+     * @param times  按时间升序且无重复的时间（epoch毫秒）
+     * @param values 与times对应的电量
+     * @param size   点数
+     */
+    public void start(long[] times, double[] values, int size) {
+        this.times = times;
+        this.values = values;
+        this.size = size;
+        if (normals == null || normals.length < size) {
+            normals = new boolean[size];
+        }
+        for (int i = 0; i < size - 1; i++) {
+            normals[i] = ProdKernel.isNormal(ProdKernel.slope(times[i], values[i], times[i + 1], values[i + 1]), slopeLimit);
+        }
+        Arrays.fill(levelStarts, null);
+        Arrays.fill(levelLabels, null);
+        level = -1;
+    }
+
+    /**
+     * 切分第level个粒度的时间分组，返回分组数；之后可对该粒度调用label()、finish()
+     */
+    public int groups(int level) {
+        split(level);
+        this.level = level;
+        return levelLabels[level].length;
+    }
+
+    private void split(int level) {
+        if (levelStarts[level] != null) {
+            return;
+        }
+        // 在包含本粒度的各较细粒度中选格式最短的，先切分该粒度
+        int finer = -1;
+        for (int j = 0; j < dateFormats.length; j++) {
+            if (dateFormats[j].length() > dateFormats[level].length() && nested[level][j]
+                    && (finer < 0 || dateFormats[j].length() < dateFormats[finer].length())) {
+                finer = j;
+            }
+        }
+        if (finer >= 0) {
+            split(finer);
+        }
+        TimeGrouper grouper = new TimeGrouper(dateFormats[level]);
+        int[] starts = new int[16];
+        String[] labels = new String[16];
+        int count = 0;
+        if (finer >= 0) {
+            // 较细粒度的同一分组必然属于较粗粒度的同一分组
+            int[] fineStarts = levelStarts[finer];
+            for (int g = 0; g < fineStarts.length - 1; g++) {
+                if (grouper.startsGroup(times[fineStarts[g]])) {
+                    if (count == starts.length) {
+                        starts = Arrays.copyOf(starts, count * 2);
+                        labels = Arrays.copyOf(labels, count * 2);
+                    }
+                    starts[count] = fineStarts[g];
+                    labels[count++] = grouper.label();
+                }
+            }
+        } else {
+            int groupStart = 0;
+            while (groupStart < size) {
+                int groupEnd = grouper.groupEnd(times, groupStart, size);
+                if (count == starts.length) {
+                    starts = Arrays.copyOf(starts, count * 2);
+                    labels = Arrays.copyOf(labels, count * 2);
+                }
+                starts[count] = groupStart;
+                labels[count++] = grouper.label();
+                groupStart = groupEnd;
+            }
+        }
+        starts = Arrays.copyOf(starts, count + 1);
+        starts[count] = size;
+        levelStarts[level] = starts;
+        levelLabels[level] = Arrays.copyOf(labels, count);
+    }
+
+    /**
+     * 当前粒度第group个分组的标签
+     */
+    public String label(int group) {
+        return levelLabels[level][group];
+    }
+
+    /**
+     * 接入上一组的有效点，计算当前粒度第group个分组的发电量及最后一个有效点
+     */
+    public void finish(int group, boolean hasCarry, long carryTime, double carryValue, ProdResult result) {
+        int from = levelStarts[level][group];
+        int to = levelStarts[level][group + 1];
+        if (hasCarry && carryTime >= times[from]) {
+            ProdKernel.calc(times, values, from, to, true, carryTime, carryValue, slopeLimit, result);
+            return;
+        }
+        segment.analyze(times, values, normals, from, to, slopeLimit);
+        segment.finish(times, values, hasCarry, carryTime, carryValue, slopeLimit, result);
+    }
+
+    /**
+     * fine的同一分组是否必然属于coarse的同一分组
+     */
+    public static boolean nests(String coarse, String fine) {
+        return TimeGrouper.nests(coarse, fine);
+    }
+}
@@ -0,0 +1,178 @@
+package com.envisioniot.hive.algorithm;
+
+import com.envisioniot.hive.util.TimeGrouper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * 分两阶段计算按时间排序的点序列中各时间分组的发电量，单个设备的长序列（如按天分组重算一整年）可以利用多个核
+ * 1. analyze()：在fork-join线程池中并行切分时间分组，并在不知道上一组有效点的情况下分析每个分组内部的分段；
+ * 2. finish()：按分组顺序依次接入上一组的最后一个有效点，只需重新判断每个分组的第一段。
+ * 结果与逐组调用ProdKernel.calc()完全一致（包括发电量的浮点累加顺序）。analyze()之后finish()可按顺序调用，非线程安全。
+ *
+ */
+public class ParallelProdCalculator {
+
+    // 每个任务至少处理的点数，点数更少的序列不拆分
+    public static final int MIN_TASK_POINTS = 1 << 14;
+
+    private final ForkJoinPool pool;
+    private final String dateFormat;
+    private final double slopeLimit;
+
+    private long[] times;
+    private double[] values;
+    private int[] starts;
+    private String[] labels;
+    private GroupSegments[] segments;
+
+    public ParallelProdCalculator(ForkJoinPool pool, String dateFormat, double slopeLimit) {
+        this.pool = pool;
+        this.dateFormat = dateFormat;
+        this.slopeLimit = slopeLimit;
+    }
+
+    /**
+     * 切分时间分组并分析各分组的分段，返回分组数
+     *
+     * @param times  按时间升序且无重复的时间（epoch毫秒）
+     * @param values 与times对应的电量
+     * @param size   点数
+     */
+    public int analyze(long[] times, double[] values, int size) {
+        this.times = times;
+        this.values = values;
+        if (size == 0) {
+            starts = new int[]{0};
+            labels = new String[0];
+            segments = new GroupSegments[0];
+            return 0;
+        }
+        int chunks = (int) Math.min(pool.getParallelism() * 4L, Math.max(1, size / MIN_TASK_POINTS));
+        Boundaries[] boundaries = new Boundaries[chunks];
+        pool.invoke(new SplitTask(boundaries, size, 0, chunks));
+        joinBoundaries(boundaries, size);
+
+        int groups = labels.length;
+        segments = new GroupSegments[groups];
+        pool.invoke(new AnalyzeTask(0, groups));
+        return groups;
+    }
+
+    /**
+     * 第group个分组的标签
+     */
+    public String label(int group) {
+        return labels[group];
+    }
+
+    /**
+     * 接入上一组的有效点，计算第group个分组的发电量及最后一个有效点
+     */
+    public void finish(int group, boolean hasCarry, long carryTime, double carryValue, ProdResult result) {
+        GroupSegments segment = segments[group];
+        if (hasCarry && carryTime >= times[segment.getFrom()]) {
+            // 有效点不早于分组的第一个点（只可能是传入的上一个有效点），插入到分组的点之间逐点计算
+            ProdKernel.calc(times, values, segment.getFrom(), segment.getTo(), true, carryTime, carryValue, slopeLimit, result);
+            return;
+        }
+        segment.finish(times, values, hasCarry, carryTime, carryValue, slopeLimit, result);
+    }
+
+    // 合并各块的分组边界：块的第一个分组与上一块的最后一个分组标签相同时属于同一分组
+    private void joinBoundaries(Boundaries[] boundaries, int size) {
+        List<Integer> startList = new ArrayList<Integer>();
+        List<String> labelList = new ArrayList<String>();
+        for (Boundaries chunk : boundaries) {
+            for (int i = 0; i < chunk.starts.size(); i++) {
+                String label = chunk.labels.get(i);
+                if (i == 0 && !labelList.isEmpty() && labelList.get(labelList.size() - 1).equals(label)) {
+                    continue;
+                }
+                startList.add(chunk.starts.get(i));
+                labelList.add(label);
+            }
+        }
+        starts = new int[startList.size() + 1];
+        for (int i = 0; i < startList.size(); i++) {
+            starts[i] = startList.get(i);
+        }
+        starts[startList.size()] = size;
+        labels = labelList.toArray(new String[labelList.size()]);
+    }
+
+    // 一块点中各分组的起始下标及标签
+    private static final class Boundaries {
+        private final List<Integer> starts = new ArrayList<Integer>();
+        private final List<String> labels = new ArrayList<String>();
+    }
+
+    // 按块二分的任务，每块用各自的TimeGrouper切分时间分组
+    private final class SplitTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Boundaries[] boundaries;
+        private final int size;
+        private final int from;
+        private final int to;
+
+        SplitTask(Boundaries[] boundaries, int size, int from, int to) {
+            this.boundaries = boundaries;
+            this.size = size;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new SplitTask(boundaries, size, from, mid), new SplitTask(boundaries, size, mid, to));
+                return;
+            }
+            int chunks = boundaries.length;
+            int start = (int) ((long) size * from / chunks);
+            int end = (int) ((long) size * to / chunks);
+            Boundaries chunk = new Boundaries();
+            TimeGrouper grouper = new TimeGrouper(dateFormat);
+            int groupStart = start;
+            while (groupStart < end) {
+                int groupEnd = grouper.groupEnd(times, groupStart, end);
+                chunk.starts.add(groupStart);
+                chunk.labels.add(grouper.label());
+                groupStart = groupEnd;
+            }
+            boundaries[from] = chunk;
+        }
+    }
+
+    // 按分组二分的任务，点数较少时在当前线程依次分析
+    private final class AnalyzeTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int from;
+        private final int to;
+
+        AnalyzeTask(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1 && starts[to] - starts[from] > MIN_TASK_POINTS) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new AnalyzeTask(from, mid), new AnalyzeTask(mid, to));
+                return;
+            }
+            for (int g = from; g < to; g++) {
+                GroupSegments segment = new GroupSegments();
+                segment.analyze(times, values, starts[g], starts[g + 1], slopeLimit);
+                segments[g] = segment;
+            }
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package com.envisioniot.hive.algorithm;
+
+/**
+ * 发电量计算核心算法，直接在按时间排序的原始类型数组上计算，不为每个点分配对象
+ * 1. 按相邻两点斜率分出实线段（斜率正常）和虚线段（跳变或死数）
+ * 2. 虚线段首尾两点斜率正常的，标识为实线
+ * 3. 累加实线段的电量差，输出最后一个有效点
+ *
+ */
+public final class ProdKernel {
+
+    public static final long MILLIS_PER_HOUR = 3600000L;
+
+    private ProdKernel() {
+    }
+
+    /**
+     * 计算发电量两点之间的斜率:电量差（kWh）/时间差(h)，时间相同时返回-1
+     */
+    public static double slope(long time1, double value1, long time2, double value2) {
+        if (time1 == time2) {
+            return -1d;
+        }
+        return (value2 - value1) / ((time2 - time1) * 1.0 / MILLIS_PER_HOUR);
+    }
+
+    /**
+     * 斜率是否正常
+     */
+    public static boolean isNormal(double slope, double slopeLimit) {
+        return slope > 0 && slope < slopeLimit;
+    }
+
+    /**
+     * 计算一个时间分组的发电量及最后一个有效点
+     *
+     * @param times      按时间升序且无重复的时间（epoch毫秒）
+     * @param values     与times对应的电量
+     * @param from       分组起始下标（包含）
+     * @param to         分组结束下标（不包含）
+     * @param hasCarry   是否存在上一组的最后一个有效点
+     * @param carryTime  上一组最后一个有效点的时间，按时间插入到本组的点之间
+     * @param carryValue 上一组最后一个有效点的电量
+     * @param slopeLimit 正常斜率的上限
+     * @param result     存放计算结果
+     */
+    public static void calc(long[] times, double[] values, int from, int to,
+                            boolean hasCarry, long carryTime, double carryValue,
+                            double slopeLimit, ProdResult result) {
+        result.reset();
+        // 上一组的有效点在序列中的位置，与原先按时间稳定排序的结果一致（排在同一时间的点之后）
+        int carryPos = -1;
+        if (hasCarry) {
+            carryPos = 0;
+            while (from + carryPos < to && times[from + carryPos] <= carryTime) {
+                carryPos++;
+            }
+        }
+        int n = to - from + (hasCarry ? 1 : 0);
+        double prod = 0d;
+        int lastValidPos = -1;
+        int dottedCount = 0;
+
+        // 1. 分出虚实线，按顺序累加实线段的电量
+        int runStart = 0;
+        boolean runSolid = false;
+        for (int i = 0; i < n - 1; i++) {
+            boolean normal = isNormal(pairSlope(times, values, from, carryPos, carryTime, carryValue, i), slopeLimit);
+            if (i > 0 && normal != runSolid) {
+                if (runSolid) {
+                    prod += value(values, from, carryPos, carryValue, i) - value(values, from, carryPos, carryValue, runStart);
+                    lastValidPos = i;
+                } else {
+                    dottedCount++;
+                }
+                runStart = i;
+            }
+            runSolid = normal;
+        }
+        if (n > 1) {
+            if (runSolid) {
+                prod += value(values, from, carryPos, carryValue, n - 1) - value(values, from, carryPos, carryValue, runStart);
+                lastValidPos = n - 1;
+            } else {
+                dottedCount++;
+            }
+        }
+
+        // 2. 连接有效虚线 (判断连续跳突连接的首尾虚线斜率是否正常，正常的话标识为实线)
+        //    虚线段的电量在所有实线段之后按顺序累加，与原先的累加顺序一致
+        if (dottedCount > 0) {
+            int jumpCount = 0;
+            int deadCount = 0;
+            runStart = 0;
+            boolean normal = isNormal(pairSlope(times, values, from, carryPos, carryTime, carryValue, 0), slopeLimit);
+            for (int i = 0; i < n - 1; i++) {
+                boolean nextNormal = i < n - 2
+                        && isNormal(pairSlope(times, values, from, carryPos, carryTime, carryValue, i + 1), slopeLimit);
+                boolean runEnd = normal || i == n - 2 || nextNormal;
+                if (!normal && runEnd) {
+                    double startValue = value(values, from, carryPos, carryValue, runStart);
+                    double endValue = value(values, from, carryPos, carryValue, i + 1);
+                    double slope = slope(time(times, from, carryPos, carryTime, runStart), startValue,
+                            time(times, from, carryPos, carryTime, i + 1), endValue);
+                    if (isNormal(slope, slopeLimit)) {//斜率正常
+                        prod += endValue - startValue;
+                        if (i + 1 > lastValidPos) {
+                            lastValidPos = i + 1;
+                        }
+                    } else if (slope == 0d) {//死数
+                        deadCount++;
+                    } else {//跳变
+                        jumpCount++;
+                    }
+                }
+                if (runEnd) {
+                    runStart = i + 1;
+                }
+                normal = nextNormal;
+            }
+            result.setJumpCount(jumpCount);
+            result.setDeadCount(deadCount);
+        }
+
+        // 3. 存在有效点,输出最后一个有效点，否则沿用上一组的有效点
+        result.setProduction(prod);
+        if (lastValidPos >= 0) {
+            result.setLastValid(time(times, from, carryPos, carryTime, lastValidPos),
+                    value(values, from, carryPos, carryValue, lastValidPos));
+        } else if (hasCarry) {
+            result.setLastValid(carryTime, carryValue);
+        }
+    }
+
+    // 序列中第i个点与第i+1个点的斜率
+    private static double pairSlope(long[] times, double[] values, int from, int carryPos, long carryTime, double carryValue, int i) {
+        return slope(time(times, from, carryPos, carryTime, i), value(values, from, carryPos, carryValue, i),
+                time(times, from, carryPos, carryTime, i + 1), value(values, from, carryPos, carryValue, i + 1));
+    }
+
+    // 序列中第i个点的时间，carryPos位置为上一组的有效点
+    private static long time(long[] times, int from, int carryPos, long carryTime, int i) {
+        if (carryPos < 0 || i < carryPos) {
+            return times[from + i];
+        }
+        return i == carryPos ? carryTime : times[from + i - 1];
+    }
+
+    // 序列中第i个点的电量
+    private static double value(double[] values, int from, int carryPos, double carryValue, int i) {
+        if (carryPos < 0 || i < carryPos) {
+            return values[from + i];
+        }
+        return i == carryPos ? carryValue : values[from + i - 1];
+    }
+}
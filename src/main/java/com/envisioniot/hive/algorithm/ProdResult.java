@@ -0,0 +1,72 @@
+package com.envisioniot.hive.algorithm;
+
+/**
+ * 一个时间分组的发电量计算结果，可重复使用以避免每组分配对象
+ *
+ */
+public class ProdResult {
+
+    private double production;
+    private boolean hasLastValid;
+    private long lastValidTime;
+    private double lastValidValue;
+    private int jumpCount;//跳变虚线段数
+    private int deadCount;//死数虚线段数
+
+    public void reset() {
+        production = 0d;
+        hasLastValid = false;
+        lastValidTime = 0L;
+        lastValidValue = 0d;
+        jumpCount = 0;
+        deadCount = 0;
+    }
+
+    public double getProduction() {
+        return production;
+    }
+
+    public void setProduction(double production) {
+        this.production = production;
+    }
+
+    public boolean hasLastValid() {
+        return hasLastValid;
+    }
+
+    public long getLastValidTime() {
+        return lastValidTime;
+    }
+
+    public double getLastValidValue() {
+        return lastValidValue;
+    }
+
+    public void setLastValid(long time, double value) {
+        this.hasLastValid = true;
+        this.lastValidTime = time;
+        this.lastValidValue = value;
+    }
+
+    public int getJumpCount() {
+        return jumpCount;
+    }
+
+    public void setJumpCount(int jumpCount) {
+        this.jumpCount = jumpCount;
+    }
+
+    public int getDeadCount() {
+        return deadCount;
+    }
+
+    public void setDeadCount(int deadCount) {
+        this.deadCount = deadCount;
+    }
+
+    @Override
+    public String toString() {
+        return "ProdResult [production=" + production + ", lastValid="
+                + (hasLastValid ? lastValidTime + "," + lastValidValue : "null") + "]";
+    }
+}
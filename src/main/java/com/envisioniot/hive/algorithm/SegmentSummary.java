@@ -0,0 +1,371 @@
+package com.envisioniot.hive.algorithm;
+
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * 一段连续时间范围内电量点的分段摘要，不依赖上一组的有效点
+ * 只保留边界点、两端未结束的实线/虚线段以及内部已确定的发电量，相邻时间范围的摘要可以按顺序合并，
+ * 与把两段的原始点放在一起计算的结果一致（发电量的累加顺序不同，只有浮点舍入上的差别）。
+ * 上一组的有效点需早于本段的第一个点，否则被忽略。
+ *
+ */
+public class SegmentSummary implements Writable {
+
+    public static final byte NONE = 0;
+    public static final byte SOLID = 1;//实线
+    public static final byte DOTTED = 2;//虚线
+
+    private static final int FLAG_HEAD_CLOSED = 1;
+    private static final int FLAG_LAST_VALID = 2;
+
+    private long pointCount;
+    private long firstTime;
+    private double firstValue;
+    private long lastTime;
+    private double lastValue;
+
+    // 首段：从第一个点开始的线段，结束之后才记录，与前一段合并时可能向前延长
+    private boolean headClosed;
+    private byte headType;
+    private long headEndTime;
+    private double headEndValue;
+
+    // 尾段：以最后一个点结束、尚未结束的线段，与后一段合并时可能向后延长；没有首段时即为整段
+    private byte tailType;
+    private long tailStartTime;
+    private double tailStartValue;
+
+    // 首尾之间已确定的线段
+    private double solidProd;
+    private double dottedProd;
+    private int jumpCount;
+    private int deadCount;
+    private boolean hasLastValid;
+    private long lastValidTime;
+    private double lastValidValue;
+
+    private SegmentSummary scratch;
+
+    public void reset() {
+        pointCount = 0;
+        firstTime = 0L;
+        firstValue = 0d;
+        lastTime = 0L;
+        lastValue = 0d;
+        headClosed = false;
+        headType = NONE;
+        headEndTime = 0L;
+        headEndValue = 0d;
+        tailType = NONE;
+        tailStartTime = 0L;
+        tailStartValue = 0d;
+        solidProd = 0d;
+        dottedProd = 0d;
+        jumpCount = 0;
+        deadCount = 0;
+        hasLastValid = false;
+        lastValidTime = 0L;
+        lastValidValue = 0d;
+    }
+
+    public long getPointCount() {
+        return pointCount;
+    }
+
+    public boolean isEmpty() {
+        return pointCount == 0;
+    }
+
+    public long getFirstTime() {
+        return firstTime;
+    }
+
+    public double getFirstValue() {
+        return firstValue;
+    }
+
+    public long getLastTime() {
+        return lastTime;
+    }
+
+    public double getLastValue() {
+        return lastValue;
+    }
+
+    /**
+     * 在末尾追加一个点，时间需晚于当前最后一个点
+     */
+    public void append(long time, double value, double slopeLimit) {
+        if (pointCount == 0) {
+            firstTime = time;
+            firstValue = value;
+            lastTime = time;
+            lastValue = value;
+            pointCount = 1;
+            return;
+        }
+        checkOrder(time);
+        byte type = pairType(lastTime, lastValue, time, value, slopeLimit);
+        if (tailType == NONE) {
+            tailType = type;
+            tailStartTime = firstTime;
+            tailStartValue = firstValue;
+        } else if (type != tailType) {
+            closeTail(lastTime, lastValue, slopeLimit);
+            tailType = type;
+            tailStartTime = lastTime;
+            tailStartValue = lastValue;
+        }
+        lastTime = time;
+        lastValue = value;
+        pointCount++;
+    }
+
+    /**
+     * 按顺序追加数组中[from, to)的点
+     */
+    public void append(long[] times, double[] values, int from, int to, double slopeLimit) {
+        for (int i = from; i < to; i++) {
+            append(times[i], values[i], slopeLimit);
+        }
+    }
+
+    /**
+     * 合并紧随其后的一段摘要，right的第一个点需晚于当前最后一个点
+     */
+    public void merge(SegmentSummary right, double slopeLimit) {
+        if (right.pointCount == 0) {
+            return;
+        }
+        if (pointCount == 0) {
+            copyFrom(right);
+            return;
+        }
+        checkOrder(right.firstTime);
+        // 1. 两段之间的衔接线段
+        byte bridgeType = pairType(lastTime, lastValue, right.firstTime, right.firstValue, slopeLimit);
+        if (tailType == NONE) {
+            tailType = bridgeType;
+            tailStartTime = firstTime;
+            tailStartValue = firstValue;
+        } else if (bridgeType != tailType) {
+            closeTail(lastTime, lastValue, slopeLimit);
+            tailType = bridgeType;
+            tailStartTime = lastTime;
+            tailStartValue = lastValue;
+        }
+        // 2. 后一段的首段
+        if (right.tailType != NONE) {
+            byte rightHeadType = right.headClosed ? right.headType : right.tailType;
+            if (rightHeadType != tailType) {
+                closeTail(right.firstTime, right.firstValue, slopeLimit);
+                tailType = rightHeadType;
+                tailStartTime = right.firstTime;
+                tailStartValue = right.firstValue;
+            }
+            // 3. 后一段内部已确定的线段及尾段
+            if (right.headClosed) {
+                closeTail(right.headEndTime, right.headEndValue, slopeLimit);
+                solidProd += right.solidProd;
+                dottedProd += right.dottedProd;
+                jumpCount += right.jumpCount;
+                deadCount += right.deadCount;
+                if (right.hasLastValid) {
+                    setLastValid(right.lastValidTime, right.lastValidValue);
+                }
+                tailType = right.tailType;
+                tailStartTime = right.tailStartTime;
+                tailStartValue = right.tailStartValue;
+            }
+        }
+        lastTime = right.lastTime;
+        lastValue = right.lastValue;
+        pointCount += right.pointCount;
+    }
+
+    /**
+     * 结束两端的线段，计算发电量及最后一个有效点
+     *
+     * @param hasCarry   是否存在上一组的最后一个有效点
+     * @param carryTime  上一组最后一个有效点的时间，需早于本段第一个点
+     * @param carryValue 上一组最后一个有效点的电量
+     * @param slopeLimit 正常斜率的上限
+     * @param result     存放计算结果
+     */
+    public void finish(boolean hasCarry, long carryTime, double carryValue, double slopeLimit, ProdResult result) {
+        if (scratch == null) {
+            scratch = new SegmentSummary();
+        }
+        SegmentSummary s = scratch;
+        s.reset();
+        if (hasCarry && (pointCount == 0 || carryTime < firstTime)) {
+            s.append(carryTime, carryValue, slopeLimit);
+        }
+        s.merge(this, slopeLimit);
+        if (s.tailType != NONE) {
+            if (s.headClosed) {
+                s.closeTail(s.lastTime, s.lastValue, slopeLimit);
+                s.closeRun(s.headType, s.firstTime, s.firstValue, s.headEndTime, s.headEndValue, slopeLimit);
+            } else {
+                s.closeRun(s.tailType, s.firstTime, s.firstValue, s.lastTime, s.lastValue, slopeLimit);
+            }
+        }
+        result.reset();
+        result.setProduction(s.solidProd + s.dottedProd);
+        result.setJumpCount(s.jumpCount);
+        result.setDeadCount(s.deadCount);
+        if (s.hasLastValid) {
+            result.setLastValid(s.lastValidTime, s.lastValidValue);
+        } else if (hasCarry) {
+            result.setLastValid(carryTime, carryValue);
+        }
+    }
+
+    public void copyFrom(SegmentSummary other) {
+        pointCount = other.pointCount;
+        firstTime = other.firstTime;
+        firstValue = other.firstValue;
+        lastTime = other.lastTime;
+        lastValue = other.lastValue;
+        headClosed = other.headClosed;
+        headType = other.headType;
+        headEndTime = other.headEndTime;
+        headEndValue = other.headEndValue;
+        tailType = other.tailType;
+        tailStartTime = other.tailStartTime;
+        tailStartValue = other.tailStartValue;
+        solidProd = other.solidProd;
+        dottedProd = other.dottedProd;
+        jumpCount = other.jumpCount;
+        deadCount = other.deadCount;
+        hasLastValid = other.hasLastValid;
+        lastValidTime = other.lastValidTime;
+        lastValidValue = other.lastValidValue;
+    }
+
+    // 结束尾段：没有首段时成为首段，否则计入内部
+    private void closeTail(long endTime, double endValue, double slopeLimit) {
+        if (!headClosed) {
+            headClosed = true;
+            headType = tailType;
+            headEndTime = endTime;
+            headEndValue = endValue;
+        } else {
+            closeRun(tailType, tailStartTime, tailStartValue, endTime, endValue, slopeLimit);
+        }
+    }
+
+    // 实线段计入发电量；虚线段首尾斜率正常的标识为实线，否则记为死数或跳变
+    private void closeRun(byte type, long startTime, double startValue, long endTime, double endValue, double slopeLimit) {
+        if (type == SOLID) {
+            solidProd += endValue - startValue;
+            setLastValid(endTime, endValue);
+            return;
+        }
+        double slope = ProdKernel.slope(startTime, startValue, endTime, endValue);
+        if (ProdKernel.isNormal(slope, slopeLimit)) {//斜率正常
+            dottedProd += endValue - startValue;
+            setLastValid(endTime, endValue);
+        } else if (slope == 0d) {//死数
+            deadCount++;
+        } else {//跳变
+            jumpCount++;
+        }
+    }
+
+    private void setLastValid(long time, double value) {
+        if (!hasLastValid || time > lastValidTime) {
+            hasLastValid = true;
+            lastValidTime = time;
+            lastValidValue = value;
+        }
+    }
+
+    private void checkOrder(long time) {
+        if (time <= lastTime) {
+            throw new IllegalArgumentException("Point at " + time + " does not follow segment ending at " + lastTime);
+        }
+    }
+
+    private static byte pairType(long time1, double value1, long time2, double value2, double slopeLimit) {
+        return ProdKernel.isNormal(ProdKernel.slope(time1, value1, time2, value2), slopeLimit) ? SOLID : DOTTED;
+    }
+
+    public void write(DataOutput out) throws IOException {
+        WritableUtils.writeVLong(out, pointCount);
+        if (pointCount == 0) {
+            return;
+        }
+        out.writeLong(firstTime);
+        out.writeDouble(firstValue);
+        if (pointCount == 1) {
+            return;
+        }
+        out.writeLong(lastTime);
+        out.writeDouble(lastValue);
+        out.writeByte((headClosed ? FLAG_HEAD_CLOSED : 0) | (hasLastValid ? FLAG_LAST_VALID : 0));
+        out.writeByte(tailType);
+        out.writeLong(tailStartTime);
+        out.writeDouble(tailStartValue);
+        if (headClosed) {
+            out.writeByte(headType);
+            out.writeLong(headEndTime);
+            out.writeDouble(headEndValue);
+            out.writeDouble(solidProd);
+            out.writeDouble(dottedProd);
+            WritableUtils.writeVInt(out, jumpCount);
+            WritableUtils.writeVInt(out, deadCount);
+        }
+        if (hasLastValid) {
+            out.writeLong(lastValidTime);
+            out.writeDouble(lastValidValue);
+        }
+    }
+
+    public void readFields(DataInput in) throws IOException {
+        reset();
+        pointCount = WritableUtils.readVLong(in);
+        if (pointCount == 0) {
+            return;
+        }
+        firstTime = in.readLong();
+        firstValue = in.readDouble();
+        lastTime = firstTime;
+        lastValue = firstValue;
+        if (pointCount == 1) {
+            return;
+        }
+        lastTime = in.readLong();
+        lastValue = in.readDouble();
+        int flags = in.readByte();
+        headClosed = (flags & FLAG_HEAD_CLOSED) != 0;
+        hasLastValid = (flags & FLAG_LAST_VALID) != 0;
+        tailType = in.readByte();
+        tailStartTime = in.readLong();
+        tailStartValue = in.readDouble();
+        if (headClosed) {
+            headType = in.readByte();
+            headEndTime = in.readLong();
+            headEndValue = in.readDouble();
+            solidProd = in.readDouble();
+            dottedProd = in.readDouble();
+            jumpCount = WritableUtils.readVInt(in);
+            deadCount = WritableUtils.readVInt(in);
+        }
+        if (hasLastValid) {
+            lastValidTime = in.readLong();
+            lastValidValue = in.readDouble();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "SegmentSummary [points=" + pointCount + ", first=" + firstTime + "," + firstValue
+                + ", last=" + lastTime + "," + lastValue + "]";
+    }
+}
@@ -0,0 +1,285 @@
+package com.envisioniot.hive.algorithm;
+
+import com.envisioniot.hive.util.TimeGrouper;
+
+import java.util.Arrays;
+
+/**
+ * 按时间顺序逐点计算各时间分组的发电量，只保留当前分组正在延伸的虚实线段及有效虚线段的电量差，内存占用与点数基本无关
+ * 同一时间的点保留最后传入的值；上一个有效点插入到时间不晚于它的点之后，与ProdKernel一致。
+ * 实线段的电量按顺序累加，有效虚线段的电量在分组结束时按顺序累加在其后，结果（含浮点舍入）与ProdKernel完全一致。非线程安全。
+ *
+ */
+public class StreamingProdCalculator {
+
+    private static final int INITIAL_DOTTED = 8;
+
+    private final TimeGrouper grouper;
+    private final double slopeLimit;
+    private final Runs runs = new Runs();
+    // current()中临时结束当前分组的副本
+    private final Runs running = new Runs();
+    private final ProdResult result = new ProdResult();
+    // 有效虚线段的电量差，按结束顺序存放；runs只读取前runs.dottedSize个，running在其后追加
+    private double[] dottedDeltas = new double[INITIAL_DOTTED];
+
+    // 上一个有效点，每个分组结束后更新为该分组的最后一个有效点
+    private boolean hasCarry;
+    private long carryTime;
+    private double carryValue;
+    private boolean carryPending;
+
+    // 等待计入线段的最后一个点，用于合并同一时间的点
+    private boolean hasPending;
+    private long pendingTime;
+    private double pendingValue;
+
+    private String timeGroup;
+    private String closedGroup;
+
+    public StreamingProdCalculator(String dateFormat, double slopeLimit) {
+        this.grouper = new TimeGrouper(dateFormat);
+        this.slopeLimit = slopeLimit;
+    }
+
+    /**
+     * 开始一个新的点序列（如新的设备）
+     *
+     * @param hasCarry   是否存在上一个有效点
+     * @param carryTime  上一个有效点的时间
+     * @param carryValue 上一个有效点的电量
+     */
+    public void start(boolean hasCarry, long carryTime, double carryValue) {
+        this.hasCarry = hasCarry;
+        this.carryTime = carryTime;
+        this.carryValue = carryValue;
+        this.carryPending = false;
+        this.hasPending = false;
+        this.timeGroup = null;
+        this.closedGroup = null;
+        grouper.reset();
+    }
+
+    /**
+     * 传入下一个点，时间不能早于上一个点。上一个时间分组因此结束时返回true，结果通过closedGroup()、result()取得
+     */
+    public boolean add(long time, double value) {
+        if (hasPending) {
+            if (time == pendingTime) {
+                pendingValue = value;
+                return false;
+            }
+            if (time < pendingTime) {
+                throw new IllegalArgumentException("Point at " + time + " is earlier than the previous point at " + pendingTime);
+            }
+        }
+        boolean closed = false;
+        if (grouper.startsGroup(time)) {
+            if (timeGroup != null) {
+                push(runs, pendingTime, pendingValue);
+                closeGroup();
+                closed = true;
+            }
+            timeGroup = grouper.label();
+            runs.reset();
+            carryPending = hasCarry;
+        } else {
+            push(runs, pendingTime, pendingValue);
+        }
+        hasPending = true;
+        pendingTime = time;
+        pendingValue = value;
+        return closed;
+    }
+
+    /**
+     * 结束最后一个时间分组，存在分组时返回true，结果通过closedGroup()、result()取得
+     */
+    public boolean finish() {
+        if (timeGroup == null) {
+            return false;
+        }
+        push(runs, pendingTime, pendingValue);
+        hasPending = false;
+        closeGroup();
+        timeGroup = null;
+        return true;
+    }
+
+    /**
+     * 当前未结束的时间分组到目前为止（含最后传入的点）的计算结果，不结束分组，只复制当前分组的线段状态。
+     * 没有分组时返回false
+     */
+    public boolean current(ProdResult out) {
+        if (timeGroup == null) {
+            return false;
+        }
+        running.copyFrom(runs);
+        boolean runningCarry = carryPending;
+        if (runningCarry && pendingTime > carryTime) {
+            running.push(carryTime, carryValue);
+            runningCarry = false;
+        }
+        running.push(pendingTime, pendingValue);
+        if (runningCarry) {
+            running.push(carryTime, carryValue);
+        }
+        running.finish(hasCarry, carryTime, carryValue, out);
+        return true;
+    }
+
+    /**
+     * 当前未结束的时间分组的标签
+     */
+    public String currentGroup() {
+        return timeGroup;
+    }
+
+    /**
+     * 最近结束的时间分组的标签
+     */
+    public String closedGroup() {
+        return closedGroup;
+    }
+
+    /**
+     * 最近结束的时间分组的计算结果，下一次add()或finish()之前有效
+     */
+    public ProdResult result() {
+        return result;
+    }
+
+    // 上一个有效点排在时间不晚于它的点之后，遇到第一个更晚的点时先计入
+    private void push(Runs target, long time, double value) {
+        if (carryPending && time > carryTime) {
+            target.push(carryTime, carryValue);
+            carryPending = false;
+        }
+        target.push(time, value);
+    }
+
+    // 结束当前分组：上一个有效点不早于分组内所有点时排在末尾；没有有效点时沿用上一个有效点
+    private void closeGroup() {
+        if (carryPending) {
+            runs.push(carryTime, carryValue);
+            carryPending = false;
+        }
+        runs.finish(hasCarry, carryTime, carryValue, result);
+        if (result.hasLastValid()) {
+            hasCarry = true;
+            carryTime = result.getLastValidTime();
+            carryValue = result.getLastValidValue();
+        }
+        closedGroup = timeGroup;
+    }
+
+    /**
+     * 一个时间分组的线段状态：正在延伸的虚实线段、已结束实线段的电量累加、有效虚线段的个数（电量差存放在dottedDeltas中）
+     */
+    private final class Runs {
+        private int count;
+        private long prevTime;
+        private double prevValue;
+        private boolean runSolid;
+        private long runStartTime;
+        private double runStartValue;
+        private double solidProd;
+        private int dottedSize;
+        private boolean hasLastValid;
+        private long lastValidTime;
+        private double lastValidValue;
+        private int jumpCount;
+        private int deadCount;
+
+        void reset() {
+            count = 0;
+            solidProd = 0d;
+            dottedSize = 0;
+            hasLastValid = false;
+            jumpCount = 0;
+            deadCount = 0;
+        }
+
+        void copyFrom(Runs other) {
+            count = other.count;
+            prevTime = other.prevTime;
+            prevValue = other.prevValue;
+            runSolid = other.runSolid;
+            runStartTime = other.runStartTime;
+            runStartValue = other.runStartValue;
+            solidProd = other.solidProd;
+            dottedSize = other.dottedSize;
+            hasLastValid = other.hasLastValid;
+            lastValidTime = other.lastValidTime;
+            lastValidValue = other.lastValidValue;
+            jumpCount = other.jumpCount;
+            deadCount = other.deadCount;
+        }
+
+        // 传入序列中的下一个点（含插入的上一个有效点），与前一点的斜率正常与否改变时结束前一条线段
+        void push(long time, double value) {
+            if (count > 0) {
+                boolean normal = ProdKernel.isNormal(ProdKernel.slope(prevTime, prevValue, time, value), slopeLimit);
+                if (count == 1) {
+                    runStartTime = prevTime;
+                    runStartValue = prevValue;
+                } else if (normal != runSolid) {
+                    closeRun();
+                    runStartTime = prevTime;
+                    runStartValue = prevValue;
+                }
+                runSolid = normal;
+            }
+            count++;
+            prevTime = time;
+            prevValue = value;
+        }
+
+        // 结束以前一点为终点的线段：实线段累加电量；虚线段首尾斜率正常时记为有效，否则计为死数或跳变
+        private void closeRun() {
+            if (runSolid) {
+                solidProd += prevValue - runStartValue;
+                setLastValid(prevTime, prevValue);
+                return;
+            }
+            double slope = ProdKernel.slope(runStartTime, runStartValue, prevTime, prevValue);
+            if (ProdKernel.isNormal(slope, slopeLimit)) {
+                if (dottedSize == dottedDeltas.length) {
+                    dottedDeltas = Arrays.copyOf(dottedDeltas, dottedSize * 2);
+                }
+                dottedDeltas[dottedSize++] = prevValue - runStartValue;
+                setLastValid(prevTime, prevValue);
+            } else if (slope == 0d) {
+                deadCount++;
+            } else {
+                jumpCount++;
+            }
+        }
+
+        private void setLastValid(long time, double value) {
+            hasLastValid = true;
+            lastValidTime = time;
+            lastValidValue = value;
+        }
+
+        // 结束最后一条线段并输出结果，实线段的电量之后按顺序累加有效虚线段的电量
+        void finish(boolean hasCarry, long carryTime, double carryValue, ProdResult out) {
+            if (count > 1) {
+                closeRun();
+            }
+            out.reset();
+            double prod = solidProd;
+            for (int i = 0; i < dottedSize; i++) {
+                prod += dottedDeltas[i];
+            }
+            out.setProduction(prod);
+            out.setJumpCount(jumpCount);
+            out.setDeadCount(deadCount);
+            if (hasLastValid) {
+                out.setLastValid(lastValidTime, lastValidValue);
+            } else if (hasCarry) {
+                out.setLastValid(carryTime, carryValue);
+            }
+        }
+    }
+}
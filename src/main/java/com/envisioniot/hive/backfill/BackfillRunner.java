@@ -0,0 +1,381 @@
+package com.envisioniot.hive.backfill;
+
+import com.envisioniot.hive.algorithm.ProdKernel;
+import com.envisioniot.hive.algorithm.ProdResult;
+import com.envisioniot.hive.entity.PointBuffer;
+import com.envisioniot.hive.util.TimeGrouper;
+import com.envisioniot.hive.util.TimestampParser;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.log4j.Logger;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 在Hive之外批量重算历史发电量：读取本地按设备分区的CSV或ORC文件（同一设备的数据只在一个文件中），
+ * 在fork-join线程池中按文件、再按设备并行计算，计算规则与calc_prod的terminate()相同。
+ * 每个输入文件输出一个CSV文件，每行为device,timeGroup,production,lastValidTime,lastValidValue，
+ * 各字段的文本与calc_prod结果map中的值一致，可以直接与Hive的结果对比。
+ *
+ * 用法：
+ * <pre>
+ * java -cp solar-hive-udfs.jar:$(hadoop classpath) com.envisioniot.hive.backfill.BackfillRunner \
+ *     --input dir --output dir --slope 5000 --dateFormat yyyy-MM-dd \
+ *     [--lastValid file.csv] [--threads n] [--deviceColumn device --timeColumn ts --kwhColumn kwh]
+ * </pre>
+ * --lastValid为device,lastValidTime,lastValidValue格式的CSV文件，指定各设备的上一个有效点；ORC文件按列名读取。
+ *
+ */
+public class BackfillRunner {
+    public static final Logger LOG = Logger.getLogger(BackfillRunner.class);
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String HEADER = "device,timeGroup,production,lastValidTime,lastValidValue";
+
+    private final double slope;
+    private final String dateFormat;
+    private final Map<String, LastValid> lastValid;
+    private final ForkJoinPool pool;
+    private String deviceColumn = "device";
+    private String timeColumn = "ts";
+    private String kwhColumn = "kwh";
+    private final AtomicLong parseFailures = new AtomicLong();
+    private final AtomicLong devices = new AtomicLong();
+
+    /**
+     * @param lastValid   各设备的上一个有效点，可以为null
+     * @param parallelism 并行线程数
+     */
+    public BackfillRunner(double slope, String dateFormat, Map<String, LastValid> lastValid, int parallelism) {
+        // 校验日期分组格式
+        new TimeGrouper(dateFormat);
+        this.slope = slope;
+        this.dateFormat = dateFormat;
+        this.lastValid = lastValid;
+        this.pool = new ForkJoinPool(parallelism);
+    }
+
+    public void setColumns(String deviceColumn, String timeColumn, String kwhColumn) {
+        this.deviceColumn = deviceColumn;
+        this.timeColumn = timeColumn;
+        this.kwhColumn = kwhColumn;
+    }
+
+    /**
+     * 计算input（文件或目录）下所有.csv与.orc文件，结果写入output目录
+     */
+    public void run(File input, File output) throws IOException {
+        List<File> files = new ArrayList<File>();
+        collect(input, files);
+        Collections.sort(files);
+        if (!output.isDirectory() && !output.mkdirs()) {
+            throw new IOException("Cannot create output directory " + output);
+        }
+        long start = System.currentTimeMillis();
+        try {
+            pool.invoke(new FilesTask(files, 0, files.size(), output));
+        } catch (BackfillException e) {
+            throw e.getCause();
+        } finally {
+            pool.shutdown();
+        }
+        LOG.info("Calculated " + devices.get() + " devices in " + files.size() + " files in "
+                + (System.currentTimeMillis() - start) + " ms");
+        if (parseFailures.get() > 0) {
+            LOG.warn(parseFailures.get() + " timestamps could not be parsed as " + TimestampParser.PATTERN + " and were skipped");
+        }
+    }
+
+    private static void collect(File file, List<File> files) {
+        if (file.isDirectory()) {
+            File[] children = file.listFiles();
+            if (children != null) {
+                for (File child : children) {
+                    collect(child, files);
+                }
+            }
+        } else if (file.getName().endsWith(".csv") || file.getName().endsWith(".orc")) {
+            files.add(file);
+        }
+    }
+
+    // 读取一个文件中各设备的点，同一设备的点保持文件中的顺序
+    private Map<String, PointBuffer> read(File file) throws IOException {
+        TimestampParser timeParser = new TimestampParser();
+        MeterSource source = file.getName().endsWith(".orc")
+                ? new OrcMeterSource(file, new Configuration(), deviceColumn, timeColumn, kwhColumn, timeParser)
+                : new CsvMeterSource(file, timeParser);
+        Map<String, PointBuffer> points = new LinkedHashMap<String, PointBuffer>();
+        try {
+            String lastDevice = null;
+            PointBuffer buffer = null;
+            while (source.next()) {
+                if (!source.device().equals(lastDevice)) {
+                    lastDevice = source.device();
+                    buffer = points.get(lastDevice);
+                    if (buffer == null) {
+                        buffer = new PointBuffer();
+                        points.put(lastDevice, buffer);
+                    }
+                }
+                if (source.time() != TimestampParser.INVALID) {
+                    buffer.add(source.time(), source.value());
+                }
+            }
+        } finally {
+            source.close();
+        }
+        parseFailures.addAndGet(timeParser.getFailures());
+        return points;
+    }
+
+    // 计算一个设备的各时间分组，输出与terminate()相同的字段
+    private void calc(String device, PointBuffer points, StringBuilder out) {
+        SimpleDateFormat timeFormatter = new SimpleDateFormat(TimestampParser.PATTERN);
+        LastValid carry = lastValid == null ? null : lastValid.get(device);
+        boolean hasCarry = carry != null;
+        long carryTime = hasCarry ? carry.time : 0L;
+        double carryValue = hasCarry ? carry.value : 0d;
+        ProdResult result = new ProdResult();
+        TimeGrouper grouper = new TimeGrouper(dateFormat);
+
+        points.sort();
+        long[] times = points.getTimes();
+        double[] values = points.getValues();
+        int size = points.size();
+        int groupStart = 0;
+        while (groupStart < size) {
+            int groupEnd = grouper.groupEnd(times, groupStart, size);
+            ProdKernel.calc(times, values, groupStart, groupEnd, hasCarry, carryTime, carryValue, slope, result);
+            if (result.hasLastValid()) {
+                hasCarry = true;
+                carryTime = result.getLastValidTime();
+                carryValue = result.getLastValidValue();
+            }
+            out.append(device).append(',').append(grouper.label()).append(',').append(Double.toString(result.getProduction())).append(',');
+            if (result.hasLastValid()) {
+                out.append(timeFormatter.format(new Date(result.getLastValidTime()))).append(',')
+                        .append(Double.toString(result.getLastValidValue()));
+            } else {
+                out.append(',');
+            }
+            out.append('\n');
+            groupStart = groupEnd;
+        }
+    }
+
+    // 按文件二分的任务，每个文件读取后再按设备并行计算
+    private final class FilesTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final List<File> files;
+        private final int from;
+        private final int to;
+        private final File output;
+
+        FilesTask(List<File> files, int from, int to, File output) {
+            this.files = files;
+            this.from = from;
+            this.to = to;
+            this.output = output;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new FilesTask(files, from, mid, output), new FilesTask(files, mid, to, output));
+                return;
+            }
+            if (to == from) {
+                return;
+            }
+            File file = files.get(from);
+            try {
+                Map<String, PointBuffer> points = read(file);
+                String[] names = points.keySet().toArray(new String[points.size()]);
+                Arrays.sort(names);
+                PointBuffer[] buffers = new PointBuffer[names.length];
+                for (int i = 0; i < names.length; i++) {
+                    buffers[i] = points.get(names[i]);
+                }
+                StringBuilder[] results = new StringBuilder[names.length];
+                invokeAll(new DevicesTask(names, buffers, results, 0, names.length));
+                write(new File(output, "part-" + file.getName().replaceAll("\\.(csv|orc)$", "") + ".csv"), results);
+                devices.addAndGet(names.length);
+            } catch (IOException e) {
+                throw new BackfillException("Failed to process " + file, e);
+            }
+        }
+
+        private void write(File file, StringBuilder[] results) throws IOException {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), UTF8), 1 << 16);
+            try {
+                writer.write(HEADER);
+                writer.write('\n');
+                for (StringBuilder result : results) {
+                    writer.append(result);
+                }
+            } finally {
+                writer.close();
+            }
+        }
+    }
+
+    // 按设备二分的任务，计算完成后释放设备的点序列
+    private final class DevicesTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final String[] names;
+        private final PointBuffer[] buffers;
+        private final StringBuilder[] results;
+        private final int from;
+        private final int to;
+
+        DevicesTask(String[] names, PointBuffer[] buffers, StringBuilder[] results, int from, int to) {
+            this.names = names;
+            this.buffers = buffers;
+            this.results = results;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new DevicesTask(names, buffers, results, from, mid), new DevicesTask(names, buffers, results, mid, to));
+                return;
+            }
+            for (int i = from; i < to; i++) {
+                results[i] = new StringBuilder();
+                calc(names[i], buffers[i], results[i]);
+                buffers[i] = null;
+            }
+        }
+    }
+
+    /**
+     * 设备的上一个有效点
+     */
+    public static final class LastValid {
+        private final long time;
+        private final double value;
+
+        public LastValid(long time, double value) {
+            this.time = time;
+            this.value = value;
+        }
+    }
+
+    // 在fork-join任务中传递IOException
+    private static final class BackfillException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        BackfillException(String message, IOException cause) {
+            super(message, cause);
+        }
+
+        @Override
+        public synchronized IOException getCause() {
+            return (IOException) super.getCause();
+        }
+    }
+
+    /**
+     * 读取device,lastValidTime,lastValidValue格式的CSV文件，首行无法解析时视为表头
+     */
+    public static Map<String, LastValid> readLastValid(File file) throws IOException {
+        Map<String, LastValid> lastValid = new HashMap<String, LastValid>();
+        TimestampParser timeParser = new TimestampParser();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF8));
+        try {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                String[] fields = line.split(",");
+                if (fields.length < 3) {
+                    continue;
+                }
+                long time = timeParser.parse(fields[1].trim());
+                double value;
+                try {
+                    value = Double.parseDouble(fields[2].trim());
+                } catch (NumberFormatException e) {
+                    value = Double.NaN;
+                }
+                if (time == TimestampParser.INVALID || Double.isNaN(value)) {
+                    if (lineNumber > 1) {
+                        LOG.warn(file + ":" + lineNumber + ": invalid last valid point, ignored");
+                    }
+                    continue;
+                }
+                lastValid.put(fields[0], new LastValid(time, value));
+            }
+        } finally {
+            reader.close();
+        }
+        return lastValid;
+    }
+
+    public static void main(String[] args) throws IOException {
+        Map<String, String> options = new HashMap<String, String>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (!args[i].startsWith("--")) {
+                usage("Unexpected argument " + args[i]);
+            }
+            options.put(args[i].substring(2), args[i + 1]);
+        }
+        if (args.length % 2 != 0) {
+            usage("Missing value for " + args[args.length - 1]);
+        }
+        String input = options.get("input");
+        String output = options.get("output");
+        String slope = options.get("slope");
+        String dateFormat = options.get("dateFormat");
+        if (input == null || output == null || slope == null || dateFormat == null) {
+            usage("--input, --output, --slope and --dateFormat are required");
+        }
+        Map<String, LastValid> lastValid = options.containsKey("lastValid")
+                ? readLastValid(new File(options.get("lastValid"))) : null;
+        int threads = options.containsKey("threads") ? Integer.parseInt(options.get("threads"))
+                : Runtime.getRuntime().availableProcessors();
+        BackfillRunner runner = new BackfillRunner(Double.parseDouble(slope), dateFormat, lastValid, threads);
+        runner.setColumns(value(options, "deviceColumn", "device"), value(options, "timeColumn", "ts"),
+                value(options, "kwhColumn", "kwh"));
+        runner.run(new File(input), new File(output));
+    }
+
+    private static String value(Map<String, String> options, String name, String defaultValue) {
+        String value = options.get(name);
+        return value == null ? defaultValue : value;
+    }
+
+    private static void usage(String message) {
+        System.err.println(message);
+        System.err.println("Usage: BackfillRunner --input <dir> --output <dir> --slope <double> --dateFormat <format>"
+                + " [--lastValid <csv>] [--threads <n>] [--deviceColumn <name>] [--timeColumn <name>] [--kwhColumn <name>]");
+        System.exit(1);
+    }
+}
@@ -0,0 +1,78 @@
+package com.envisioniot.hive.backfill;
+
+import com.envisioniot.hive.util.TimestampParser;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+
+/**
+ * 读取device,timestamp,kwh格式的CSV文件，时间为yyyy-MM-dd HH:mm:ss，首行无法解析电量时视为表头跳过
+ *
+ */
+public class CsvMeterSource implements MeterSource {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final File file;
+    private final BufferedReader reader;
+    private final TimestampParser timeParser;
+    private long lineNumber;
+    private String device;
+    private long time;
+    private double value;
+
+    public CsvMeterSource(File file, TimestampParser timeParser) throws IOException {
+        this.file = file;
+        this.reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF8), 1 << 16);
+        this.timeParser = timeParser;
+    }
+
+    public boolean next() throws IOException {
+        String line;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            if (line.isEmpty()) {
+                continue;
+            }
+            int first = line.indexOf(',');
+            int second = first < 0 ? -1 : line.indexOf(',', first + 1);
+            if (second < 0) {
+                throw new IOException(file + ":" + lineNumber + ": expected device,timestamp,kwh");
+            }
+            int third = line.indexOf(',', second + 1);
+            String kwh = line.substring(second + 1, third < 0 ? line.length() : third).trim();
+            try {
+                value = Double.parseDouble(kwh);
+            } catch (NumberFormatException e) {
+                if (lineNumber == 1) {
+                    continue;
+                }
+                throw new IOException(file + ":" + lineNumber + ": invalid kwh '" + kwh + "'");
+            }
+            device = line.substring(0, first);
+            time = timeParser.parse(line.subSequence(first + 1, second));
+            return true;
+        }
+        return false;
+    }
+
+    public String device() {
+        return device;
+    }
+
+    public long time() {
+        return time;
+    }
+
+    public double value() {
+        return value;
+    }
+
+    public void close() throws IOException {
+        reader.close();
+    }
+}
@@ -0,0 +1,25 @@
+package com.envisioniot.hive.backfill;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * 逐行读取一个文件中的电表读数
+ *
+ */
+public interface MeterSource extends Closeable {
+
+    /**
+     * 移到下一行，没有更多行时返回false
+     */
+    boolean next() throws IOException;
+
+    String device();
+
+    /**
+     * 读数时间（epoch毫秒），无法解析时为TimestampParser.INVALID
+     */
+    long time();
+
+    double value();
+}
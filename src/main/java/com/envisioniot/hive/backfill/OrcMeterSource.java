@@ -0,0 +1,97 @@
+package com.envisioniot.hive.backfill;
+
+import com.envisioniot.hive.udfs.CalcProdUDAF;
+import com.envisioniot.hive.util.TimestampParser;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hive.ql.io.orc.OrcFile;
+import org.apache.hadoop.hive.ql.io.orc.Reader;
+import org.apache.hadoop.hive.ql.io.orc.RecordReader;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.StructField;
+import org.apache.hadoop.hive.serde2.objectinspector.StructObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorUtils;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * 按列名读取本地ORC文件中的设备、时间、电量列，时间列可以是字符串、TIMESTAMP或epoch毫秒BIGINT，含空值的行跳过
+ *
+ */
+public class OrcMeterSource implements MeterSource {
+
+    private final File file;
+    private final RecordReader rows;
+    private final StructObjectInspector rowOI;
+    private final StructField deviceField;
+    private final StructField timeField;
+    private final StructField valueField;
+    private final PrimitiveObjectInspector deviceOI;
+    private final PrimitiveObjectInspector timeOI;
+    private final PrimitiveObjectInspector valueOI;
+    private final TimestampParser timeParser;
+    private Object row;
+    private String device;
+    private long time;
+    private double value;
+
+    public OrcMeterSource(File file, Configuration conf, String deviceColumn, String timeColumn, String valueColumn,
+                          TimestampParser timeParser) throws IOException {
+        this.file = file;
+        this.timeParser = timeParser;
+        Reader reader = OrcFile.createReader(new Path(file.getAbsolutePath()),
+                OrcFile.readerOptions(conf).filesystem(FileSystem.getLocal(conf)));
+        rowOI = (StructObjectInspector) reader.getObjectInspector();
+        deviceField = rowOI.getStructFieldRef(deviceColumn);
+        timeField = rowOI.getStructFieldRef(timeColumn);
+        valueField = rowOI.getStructFieldRef(valueColumn);
+        deviceOI = primitive(deviceField);
+        timeOI = primitive(timeField);
+        valueOI = primitive(valueField);
+        rows = reader.rows();
+    }
+
+    private PrimitiveObjectInspector primitive(StructField field) throws IOException {
+        ObjectInspector oi = field.getFieldObjectInspector();
+        if (!(oi instanceof PrimitiveObjectInspector)) {
+            throw new IOException(file + ": column " + field.getFieldName() + " must be a primitive type, current is " + oi.getTypeName());
+        }
+        return (PrimitiveObjectInspector) oi;
+    }
+
+    public boolean next() throws IOException {
+        while (rows.hasNext()) {
+            row = rows.next(row);
+            Object d = rowOI.getStructFieldData(row, deviceField);
+            Object t = rowOI.getStructFieldData(row, timeField);
+            Object v = rowOI.getStructFieldData(row, valueField);
+            if (d == null || t == null || v == null) {
+                continue;
+            }
+            device = PrimitiveObjectInspectorUtils.getString(d, deviceOI);
+            time = CalcProdUDAF.readTime(t, timeOI, timeParser);
+            value = PrimitiveObjectInspectorUtils.getDouble(v, valueOI);
+            return true;
+        }
+        return false;
+    }
+
+    public String device() {
+        return device;
+    }
+
+    public long time() {
+        return time;
+    }
+
+    public double value() {
+        return value;
+    }
+
+    public void close() throws IOException {
+        rows.close();
+    }
+}
@@ -0,0 +1,429 @@
+package com.envisioniot.hive.entity;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 有内存上限的点序列缓冲
+ * 内存中的点数达到上限时，排序去重后写入本地临时文件成为一个有序段；读取时对内存映射的各有序段及内存中剩余的点做多路归并。
+ * 有序段过多时先合并为一个，限制归并的路数及同时映射的文件数。
+ * 同一时间的点保留最后写入的值，与PointBuffer.sort()的语义一致。
+ * 内存上限同时计入数组容量及排序时的归并数组：内存中的点数不超过上限的一半对应的点数，数组容量也不超过该点数。
+ * 传入任务的内存预算时，数组容量同样按两倍计入预算；预算用尽后内存中已有至少MIN_MEMORY_POINTS个点的缓冲不再扩容，
+ * 先写入临时文件，使同一任务中大量分组的总内存受限。
+ * 临时文件在clear()时删除，目录由调用方按任务划分并在任务结束时删除。
+ *
+ */
+public class BoundedPointBuffer {
+
+    private static final int POINT_BYTES = 16;
+    // 每次映射的最大点数（映射区不能超过2GB）
+    private static final int MAX_WINDOW_POINTS = Integer.MAX_VALUE / POINT_BYTES;
+    // 内存上限过小时每个有序段至少包含的点数
+    private static final int MIN_MEMORY_POINTS = 1024;
+    private static final int MAX_RUNS = 64;
+    private static final int WRITE_BUFFER_BYTES = 64 * 1024;
+
+    private final PointBuffer memory;
+    private final int maxMemoryPoints;
+    private final File spillDir;
+    private final MemoryBudget budget;
+    // 已计入预算的数组容量（点数）
+    private int reservedCapacity;
+    private List<SpillRun> runs;
+    private long spilledPoints;
+    // 写入临时文件及合并有序段时去掉的重复点数
+    private long duplicates;
+    // 最近一次完整读取时归并去掉的重复点数，每次读取重新计算
+    private long readDuplicates;
+
+    /**
+     * @param memoryLimitBytes 内存中点序列（含排序时的归并数组）的字节上限，小于等于0时不限制
+     * @param spillDir         临时文件目录，不存在时在第一次写入临时文件时创建；为null时使用java.io.tmpdir
+     */
+    public BoundedPointBuffer(long memoryLimitBytes, File spillDir) {
+        this(memoryLimitBytes, spillDir, null);
+    }
+
+    /**
+     * @param memoryLimitBytes 内存中点序列（含排序时的归并数组）的字节上限，小于等于0时不限制
+     * @param spillDir         临时文件目录，不存在时在第一次写入临时文件时创建；为null时使用java.io.tmpdir
+     * @param budget           任务中各缓冲共用的内存预算，为null时不限制
+     */
+    public BoundedPointBuffer(long memoryLimitBytes, File spillDir, MemoryBudget budget) {
+        if (memoryLimitBytes <= 0) {
+            this.maxMemoryPoints = Integer.MAX_VALUE;
+        } else {
+            this.maxMemoryPoints = (int) Math.max(MIN_MEMORY_POINTS, Math.min(Integer.MAX_VALUE, memoryLimitBytes / (2 * POINT_BYTES)));
+        }
+        this.memory = new PointBuffer(maxMemoryPoints);
+        this.spillDir = spillDir;
+        this.budget = budget;
+    }
+
+    public void add(long time, double value) throws IOException {
+        int size = memory.size();
+        if (size >= maxMemoryPoints
+                || (budget != null && size == memory.capacity() && size >= MIN_MEMORY_POINTS && budget.isExhausted())) {
+            spill();
+        }
+        memory.add(time, value);
+        if (budget != null && memory.capacity() != reservedCapacity) {
+            budget.reserve(2L * POINT_BYTES * (memory.capacity() - reservedCapacity));
+            reservedCapacity = memory.capacity();
+        }
+    }
+
+    /**
+     * 把计入的内存归还任务的预算，缓冲不再使用时调用（如输出结果后直接丢弃的缓冲）；之后再写入时重新计入
+     */
+    public void release() {
+        if (budget != null && reservedCapacity != 0) {
+            budget.release(2L * POINT_BYTES * reservedCapacity);
+            reservedCapacity = 0;
+        }
+    }
+
+    /**
+     * write()输出的字节数
+     */
+    public long writeBytes() {
+        return 4 + (long) POINT_BYTES * size();
+    }
+
+    /**
+     * 是否已有点写入临时文件
+     */
+    public boolean isSpilled() {
+        return runs != null;
+    }
+
+    public boolean isEmpty() {
+        return runs == null && memory.isEmpty();
+    }
+
+    /**
+     * 缓冲的点数，含已写入临时文件的点；写入临时文件及读取时去掉的重复时间不再计入
+     */
+    public long size() {
+        return spilledPoints + memory.size();
+    }
+
+    /**
+     * 自上次clear()以来写入、写入临时文件及最近一次完整读取时被覆盖的重复时间的点数，多次读取不重复计入，
+     * 不含直接对inMemory()排序去掉的点
+     */
+    public long getDuplicates() {
+        return duplicates + readDuplicates + memory.getOverwritten();
+    }
+
+    /**
+     * 内存中的点，未写入临时文件时即为全部的点
+     */
+    public PointBuffer inMemory() {
+        return memory;
+    }
+
+    /**
+     * 按时间顺序读取全部的点，读取期间不能再写入
+     */
+    public PointCursor cursor() throws IOException {
+        duplicates += memory.sort();
+        if (runs == null) {
+            return new RunReader(memory);
+        }
+        RunReader[] readers = new RunReader[runs.size() + 1];
+        for (int i = 0; i < runs.size(); i++) {
+            readers[i] = new RunReader(runs.get(i));
+        }
+        readers[runs.size()] = new RunReader(memory);
+        return new MergeCursor(readers, true);
+    }
+
+    /**
+     * 输出格式与PointBuffer.write()相同，按写入顺序输出各有序段及内存中的点
+     */
+    public void write(DataOutput out) throws IOException {
+        long count = memory.size();
+        if (runs != null) {
+            for (SpillRun run : runs) {
+                count += run.size;
+            }
+        }
+        if (count > Integer.MAX_VALUE) {
+            throw new IOException("Too many points to write: " + count);
+        }
+        out.writeInt((int) count);
+        if (runs != null) {
+            for (SpillRun run : runs) {
+                RunReader reader = new RunReader(run);
+                while (reader.next()) {
+                    out.writeLong(reader.time());
+                    out.writeDouble(reader.value());
+                }
+            }
+        }
+        for (int i = 0; i < memory.size(); i++) {
+            out.writeLong(memory.getTime(i));
+            out.writeDouble(memory.getValue(i));
+        }
+    }
+
+    /**
+     * 读取PointBuffer.write()输出的点并追加到末尾
+     */
+    public void readFrom(DataInput in) throws IOException {
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            add(in.readLong(), in.readDouble());
+        }
+    }
+
+    /**
+     * 清空缓冲，删除临时文件并归还计入的内存
+     */
+    public void clear() {
+        release();
+        memory.clear();
+        spilledPoints = 0;
+        duplicates = 0;
+        readDuplicates = 0;
+        if (runs != null) {
+            for (SpillRun run : runs) {
+                run.file.delete();
+            }
+            runs = null;
+        }
+    }
+
+    /**
+     * 把内存中的点排序去重后写入临时文件，内存中没有点时不写入
+     */
+    public void spill() throws IOException {
+        if (memory.isEmpty()) {
+            return;
+        }
+        if (runs == null) {
+            runs = new ArrayList<SpillRun>();
+        } else if (runs.size() >= MAX_RUNS) {
+            compact();
+        }
+        duplicates += memory.sort();
+        SpillRun run = writeRun(new RunReader(memory));
+        runs.add(run);
+        spilledPoints += run.size;
+        memory.clear();
+    }
+
+    // 把已有的有序段归并为一个
+    private void compact() throws IOException {
+        RunReader[] readers = new RunReader[runs.size()];
+        for (int i = 0; i < runs.size(); i++) {
+            readers[i] = new RunReader(runs.get(i));
+        }
+        MergeCursor cursor = new MergeCursor(readers, false);
+        SpillRun merged = writeRun(cursor);
+        duplicates += cursor.merged;
+        for (SpillRun run : runs) {
+            run.file.delete();
+        }
+        spilledPoints = merged.size;
+        runs.clear();
+        runs.add(merged);
+    }
+
+    private SpillRun writeRun(PointCursor cursor) throws IOException {
+        if (spillDir != null && !spillDir.isDirectory() && !spillDir.mkdirs() && !spillDir.isDirectory()) {
+            throw new IOException("Failed to create spill directory " + spillDir);
+        }
+        File file = File.createTempFile("calc_prod-", ".run", spillDir);
+        long size = 0;
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), WRITE_BUFFER_BYTES));
+        try {
+            while (cursor.next()) {
+                out.writeLong(cursor.time());
+                out.writeDouble(cursor.value());
+                size++;
+            }
+        } finally {
+            out.close();
+        }
+        return new SpillRun(file, size);
+    }
+
+    private static final class SpillRun {
+        private final File file;
+        private final long size;
+
+        SpillRun(File file, long size) {
+            this.file = file;
+            this.size = size;
+        }
+    }
+
+    // 读取一个有序段：分窗口内存映射的临时文件或内存中已排序的点
+    private static final class RunReader implements PointCursor {
+        private final SpillRun run;
+        private final PointBuffer points;
+        private final long size;
+        private MappedByteBuffer window;
+        private long index = -1;
+        private long windowEnd;
+        private long time;
+        private double value;
+
+        RunReader(SpillRun run) {
+            this.run = run;
+            this.points = null;
+            this.size = run.size;
+        }
+
+        RunReader(PointBuffer points) {
+            this.run = null;
+            this.points = points;
+            this.size = points.size();
+        }
+
+        public boolean next() {
+            if (++index >= size) {
+                window = null;
+                return false;
+            }
+            if (points != null) {
+                time = points.getTime((int) index);
+                value = points.getValue((int) index);
+                return true;
+            }
+            if (index == windowEnd) {
+                mapWindow();
+            }
+            time = window.getLong();
+            value = window.getDouble();
+            return true;
+        }
+
+        private void mapWindow() {
+            long count = Math.min(MAX_WINDOW_POINTS, size - index);
+            try {
+                RandomAccessFile raf = new RandomAccessFile(run.file, "r");
+                try {
+                    window = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, index * POINT_BYTES, count * POINT_BYTES);
+                } finally {
+                    raf.close();
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException("Failed to map " + run.file, e);
+            }
+            windowEnd = index + count;
+        }
+
+        public long time() {
+            return time;
+        }
+
+        public double value() {
+            return value;
+        }
+    }
+
+    // 多路归并：小顶堆按(时间, 段序号)排序，同一时间依次取出，最后取出的即最后写入的值，其余计为重复
+    private final class MergeCursor implements PointCursor {
+        private final RunReader[] readers;
+        private final int[] heap;
+        // 是否为cursor()的读取，读取完时以本次归并的重复点数替换上一次读取的计数
+        private final boolean read;
+        private int heapSize;
+        private long time;
+        private double value;
+        private long merged;
+
+        MergeCursor(RunReader[] readers, boolean read) {
+            this.readers = readers;
+            this.read = read;
+            this.heap = new int[readers.length];
+            for (int i = 0; i < readers.length; i++) {
+                if (readers[i].next()) {
+                    heap[heapSize++] = i;
+                }
+            }
+            for (int i = heapSize / 2 - 1; i >= 0; i--) {
+                siftDown(i);
+            }
+        }
+
+        public boolean next() {
+            if (heapSize == 0) {
+                if (read) {
+                    readDuplicates = merged;
+                }
+                return false;
+            }
+            time = readers[heap[0]].time();
+            value = readers[heap[0]].value();
+            advanceTop();
+            while (heapSize > 0 && readers[heap[0]].time() == time) {
+                value = readers[heap[0]].value();
+                advanceTop();
+                merged++;
+            }
+            return true;
+        }
+
+        public long time() {
+            return time;
+        }
+
+        public double value() {
+            return value;
+        }
+
+        private void advanceTop() {
+            if (!readers[heap[0]].next()) {
+                heap[0] = heap[--heapSize];
+            }
+            siftDown(0);
+        }
+
+        private void siftDown(int i) {
+            while (true) {
+                int smallest = i;
+                int left = 2 * i + 1;
+                int right = left + 1;
+                if (left < heapSize && less(heap[left], heap[smallest])) {
+                    smallest = left;
+                }
+                if (right < heapSize && less(heap[right], heap[smallest])) {
+                    smallest = right;
+                }
+                if (smallest == i) {
+                    return;
+                }
+                int t = heap[i];
+                heap[i] = heap[smallest];
+                heap[smallest] = t;
+                i = smallest;
+            }
+        }
+
+        private boolean less(int a, int b) {
+            long ta = readers[a].time();
+            long tb = readers[b].time();
+            return ta < tb || (ta == tb && a < b);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "BoundedPointBuffer [memory=" + memory.size() + ", runs=" + (runs == null ? 0 : runs.size()) + "]";
+    }
+}
@@ -0,0 +1,259 @@
+package com.envisioniot.hive.entity;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * 设备到上一个有效点的快照文件，内存映射后按设备编号二分查找，供增量的每日计算直接取得上一天的有效点
+ * 文件格式（大端）：魔数、条目数，按设备编号UTF-8字节序排列的定长条目（编号偏移、编号长度、时间epoch毫秒、电量），
+ * 之后为各设备编号的UTF-8字节。文件不超过2GB。只读，可在多个线程中查找。
+ *
+ */
+public class CarrySnapshot {
+
+    private static final int MAGIC = 0x43505331; // "CPS1"
+    private static final int HEADER_BYTES = 8;
+    private static final int ENTRY_BYTES = 24;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final ByteBuffer buffer;
+    private final int size;
+
+    private CarrySnapshot(ByteBuffer buffer) throws IOException {
+        if (buffer.capacity() < HEADER_BYTES || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a calc_prod carry snapshot");
+        }
+        this.buffer = buffer;
+        this.size = buffer.getInt(4);
+        if (HEADER_BYTES + (long) size * ENTRY_BYTES > buffer.capacity()) {
+            throw new IOException("Truncated calc_prod carry snapshot: " + size + " entries in " + buffer.capacity() + " bytes");
+        }
+    }
+
+    /**
+     * 内存映射一个快照文件
+     */
+    public static CarrySnapshot open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            if (raf.length() > Integer.MAX_VALUE) {
+                throw new IOException("Carry snapshot " + file + " is larger than 2GB");
+            }
+            MappedByteBuffer mapped = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            return new CarrySnapshot(mapped);
+        } finally {
+            raf.close();
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * 查找设备编号的条目下标，不存在时返回-1
+     */
+    public int find(String device) {
+        byte[] key = device.getBytes(UTF8);
+        return find(key, 0, key.length);
+    }
+
+    /**
+     * 查找UTF-8编码的设备编号的条目下标，不存在时返回-1
+     */
+    public int find(byte[] key, int start, int length) {
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int entry = HEADER_BYTES + mid * ENTRY_BYTES;
+            int cmp = compare(buffer.getInt(entry), buffer.getInt(entry + 4), key, start, length);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    public String getDevice(int index) {
+        int entry = HEADER_BYTES + index * ENTRY_BYTES;
+        byte[] key = new byte[buffer.getInt(entry + 4)];
+        for (int i = 0; i < key.length; i++) {
+            key[i] = buffer.get(buffer.getInt(entry) + i);
+        }
+        return new String(key, UTF8);
+    }
+
+    public long getTime(int index) {
+        return buffer.getLong(HEADER_BYTES + index * ENTRY_BYTES + 8);
+    }
+
+    public double getValue(int index) {
+        return buffer.getDouble(HEADER_BYTES + index * ENTRY_BYTES + 16);
+    }
+
+    // 按无符号字节比较文件中的编号与查找的编号
+    private int compare(int offset, int length, byte[] key, int start, int keyLength) {
+        int n = Math.min(length, keyLength);
+        for (int i = 0; i < n; i++) {
+            int a = buffer.get(offset + i) & 0xff;
+            int b = key[start + i] & 0xff;
+            if (a != b) {
+                return a - b;
+            }
+        }
+        return length - keyLength;
+    }
+
+    @Override
+    public String toString() {
+        return "CarrySnapshot [size=" + size + "]";
+    }
+
+    /**
+     * 收集设备的有效点并写出快照文件，同一设备保留时间最晚的有效点。非线程安全。
+     */
+    public static class Writer {
+        private final DeviceTable devices = new DeviceTable(true);
+        private long[] times = new long[16];
+        private double[] values = new double[16];
+
+        public void put(String device, long time, double value) {
+            int count = devices.size();
+            int index = devices.index(device);
+            if (index == times.length) {
+                times = Arrays.copyOf(times, index * 2);
+                values = Arrays.copyOf(values, index * 2);
+            }
+            if (index < count && times[index] > time) {
+                return;
+            }
+            times[index] = time;
+            values[index] = value;
+        }
+
+        /**
+         * 合并一个已有的快照，用于保留当天没有数据的设备
+         */
+        public void putAll(CarrySnapshot snapshot) {
+            for (int i = 0; i < snapshot.size(); i++) {
+                put(snapshot.getDevice(i), snapshot.getTime(i), snapshot.getValue(i));
+            }
+        }
+
+        public int size() {
+            return devices.size();
+        }
+
+        public boolean isEmpty() {
+            return devices.size() == 0;
+        }
+
+        /**
+         * 按设备编号的UTF-8字节序写出快照，不关闭输出流
+         */
+        public void write(OutputStream output) throws IOException {
+            int count = devices.size();
+            final byte[][] keys = new byte[count][];
+            Integer[] order = new Integer[count];
+            long keyBytes = 0;
+            for (int i = 0; i < count; i++) {
+                keys[i] = devices.getString(i).getBytes(UTF8);
+                order[i] = i;
+                keyBytes += keys[i].length;
+            }
+            long total = HEADER_BYTES + (long) count * ENTRY_BYTES + keyBytes;
+            if (total > Integer.MAX_VALUE) {
+                throw new IOException("Carry snapshot would be larger than 2GB: " + total + " bytes");
+            }
+            Arrays.sort(order, new Comparator<Integer>() {
+                public int compare(Integer a, Integer b) {
+                    return compareBytes(keys[a], keys[b]);
+                }
+            });
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(output, 1 << 16));
+            out.writeInt(MAGIC);
+            out.writeInt(count);
+            int offset = HEADER_BYTES + count * ENTRY_BYTES;
+            for (Integer i : order) {
+                out.writeInt(offset);
+                out.writeInt(keys[i].length);
+                out.writeLong(times[i]);
+                out.writeDouble(values[i]);
+                offset += keys[i].length;
+            }
+            for (Integer i : order) {
+                out.write(keys[i]);
+            }
+            out.flush();
+        }
+
+        public void write(File file) throws IOException {
+            OutputStream out = new FileOutputStream(file);
+            try {
+                write(out);
+            } finally {
+                out.close();
+            }
+        }
+
+        private static int compareBytes(byte[] a, byte[] b) {
+            int n = Math.min(a.length, b.length);
+            for (int i = 0; i < n; i++) {
+                int x = a[i] & 0xff;
+                int y = b[i] & 0xff;
+                if (x != y) {
+                    return x - y;
+                }
+            }
+            return a.length - b.length;
+        }
+    }
+
+    /**
+     * 合并多个快照（如上一天的快照及各任务输出的部分快照）为一个，同一设备保留时间最晚的有效点。
+     * 输入为目录时合并其中所有非隐藏的文件。
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: CarrySnapshot <output> <snapshot or dir>...");
+            System.exit(1);
+        }
+        List<File> inputs = new ArrayList<File>();
+        for (int i = 1; i < args.length; i++) {
+            File input = new File(args[i]);
+            File[] files = input.isDirectory() ? input.listFiles() : new File[]{input};
+            if (files == null) {
+                throw new IOException("Cannot list " + input);
+            }
+            for (File file : files) {
+                if (file.isFile() && !file.getName().startsWith(".") && !file.getName().startsWith("_")) {
+                    inputs.add(file);
+                }
+            }
+        }
+        Writer writer = new Writer();
+        for (File input : inputs) {
+            writer.putAll(open(input));
+        }
+        writer.write(new File(args[0]));
+        System.out.println("Wrote " + writer.size() + " devices from " + inputs.size() + " snapshots to " + args[0]);
+    }
+}
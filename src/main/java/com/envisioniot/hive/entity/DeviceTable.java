@@ -0,0 +1,195 @@
+package com.envisioniot.hive.entity;
+
+import org.apache.hadoop.io.WritableComparator;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * 设备编号到连续序号（0, 1, 2...，按首次出现的顺序）的开放寻址哈希表，线性探测
+ * 整数编号直接以long为键，不装箱；字符串编号以UTF-8字节为键（可直接传入Text的字节），只在加入新的编号时复制，
+ * 查找已有编号不分配对象；各键缓存哈希值。同一个表只能使用一种键。非线程安全。
+ *
+ */
+public class DeviceTable {
+
+    private static final int INITIAL_CAPACITY = 16;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final boolean stringKeys;
+    // 按序号存放的键及其哈希值
+    private long[] longKeys;
+    private byte[][] byteKeys;
+    private int[] hashes;
+    private int size;
+    // 哈希槽，存放序号+1，0表示空槽；容量为2的幂，装载因子不超过1/2
+    private int[] slots;
+
+    public DeviceTable(boolean stringKeys) {
+        this.stringKeys = stringKeys;
+        if (stringKeys) {
+            byteKeys = new byte[INITIAL_CAPACITY][];
+        } else {
+            longKeys = new long[INITIAL_CAPACITY];
+        }
+        hashes = new int[INITIAL_CAPACITY];
+        slots = new int[INITIAL_CAPACITY * 2];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * 返回整数编号的序号，不存在时加入
+     */
+    public int index(long key) {
+        int hash = hash(key);
+        int mask = slots.length - 1;
+        for (int pos = hash & mask; ; pos = (pos + 1) & mask) {
+            int slot = slots[pos];
+            if (slot == 0) {
+                return insert(pos, hash, key, null);
+            }
+            if (hashes[slot - 1] == hash && longKeys[slot - 1] == key) {
+                return slot - 1;
+            }
+        }
+    }
+
+    /**
+     * 返回字符串编号的序号，不存在时加入
+     */
+    public int index(String key) {
+        byte[] bytes = key.getBytes(UTF8);
+        return index(bytes, bytes.length);
+    }
+
+    /**
+     * 返回以UTF-8字节bytes[0, length)表示的字符串编号的序号，不存在时复制这些字节后加入
+     */
+    public int index(byte[] bytes, int length) {
+        int hash = hash(bytes, length);
+        int mask = slots.length - 1;
+        for (int pos = hash & mask; ; pos = (pos + 1) & mask) {
+            int slot = slots[pos];
+            if (slot == 0) {
+                return insert(pos, hash, 0L, Arrays.copyOf(bytes, length));
+            }
+            if (hashes[slot - 1] == hash && equals(byteKeys[slot - 1], bytes, length)) {
+                return slot - 1;
+            }
+        }
+    }
+
+    public long getLong(int index) {
+        return longKeys[index];
+    }
+
+    public String getString(int index) {
+        return new String(byteKeys[index], UTF8);
+    }
+
+    /**
+     * 按键排序的序号
+     */
+    public Integer[] sortedIndexes() {
+        Integer[] indexes = new Integer[size];
+        for (int i = 0; i < size; i++) {
+            indexes[i] = i;
+        }
+        Arrays.sort(indexes, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                if (stringKeys) {
+                    // 按无符号字节比较，与Hive对字符串排序的顺序一致
+                    byte[] x = byteKeys[a];
+                    byte[] y = byteKeys[b];
+                    return WritableComparator.compareBytes(x, 0, x.length, y, 0, y.length);
+                }
+                return longKeys[a] < longKeys[b] ? -1 : (longKeys[a] == longKeys[b] ? 0 : 1);
+            }
+        });
+        return indexes;
+    }
+
+    public void clear() {
+        if (stringKeys) {
+            Arrays.fill(byteKeys, 0, size, null);
+        }
+        Arrays.fill(slots, 0);
+        size = 0;
+    }
+
+    private int insert(int pos, int hash, long longKey, byte[] bytesKey) {
+        if (size == hashes.length) {
+            int capacity = hashes.length * 2;
+            hashes = Arrays.copyOf(hashes, capacity);
+            if (stringKeys) {
+                byteKeys = Arrays.copyOf(byteKeys, capacity);
+            } else {
+                longKeys = Arrays.copyOf(longKeys, capacity);
+            }
+        }
+        int index = size++;
+        hashes[index] = hash;
+        if (stringKeys) {
+            byteKeys[index] = bytesKey;
+        } else {
+            longKeys[index] = longKey;
+        }
+        if (size * 2 > slots.length) {
+            rehash(slots.length * 2);
+        } else {
+            slots[pos] = index + 1;
+        }
+        return index;
+    }
+
+    private void rehash(int capacity) {
+        slots = new int[capacity];
+        int mask = capacity - 1;
+        for (int i = 0; i < size; i++) {
+            int pos = hashes[i] & mask;
+            while (slots[pos] != 0) {
+                pos = (pos + 1) & mask;
+            }
+            slots[pos] = i + 1;
+        }
+    }
+
+    private static boolean equals(byte[] key, byte[] bytes, int length) {
+        if (key.length != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (key[i] != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int hash(byte[] bytes, int length) {
+        int h = 1;
+        for (int i = 0; i < length; i++) {
+            h = 31 * h + bytes[i];
+        }
+        return hash(h);
+    }
+
+    private static int hash(long key) {
+        return hash((int) (key ^ (key >>> 32)));
+    }
+
+    // 打散低位，避免连续编号集中在相邻的槽
+    private static int hash(int h) {
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    @Override
+    public String toString() {
+        return "DeviceTable [size=" + size + ", stringKeys=" + stringKeys + "]";
+    }
+}
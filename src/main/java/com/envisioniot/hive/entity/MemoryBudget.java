@@ -0,0 +1,51 @@
+package com.envisioniot.hive.entity;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 同一任务中各点序列缓冲共用的内存预算
+ * 缓冲扩容后计入新增的数组字节数，清空或不再使用时归还；预算用尽后缓冲不再扩容，
+ * 内存中的点写入临时文件后复用已有的数组。扩容前只检查是否已用尽，不检查余量，实际占用可能略高于上限。
+ * 线程安全。
+ *
+ */
+public class MemoryBudget {
+
+    private final long limitBytes;
+    private final AtomicLong usedBytes = new AtomicLong();
+
+    /**
+     * @param limitBytes 任务中各缓冲的数组字节数之和的上限
+     */
+    public MemoryBudget(long limitBytes) {
+        this.limitBytes = limitBytes;
+    }
+
+    public void reserve(long bytes) {
+        usedBytes.addAndGet(bytes);
+    }
+
+    public void release(long bytes) {
+        usedBytes.addAndGet(-bytes);
+    }
+
+    /**
+     * 已计入的字节数是否达到上限
+     */
+    public boolean isExhausted() {
+        return usedBytes.get() >= limitBytes;
+    }
+
+    public long getUsedBytes() {
+        return usedBytes.get();
+    }
+
+    public long getLimitBytes() {
+        return limitBytes;
+    }
+
+    @Override
+    public String toString() {
+        return "MemoryBudget [used=" + usedBytes.get() + ", limit=" + limitBytes + "]";
+    }
+}
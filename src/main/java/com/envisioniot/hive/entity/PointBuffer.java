@@ -0,0 +1,300 @@
+package com.envisioniot.hive.entity;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * 计算发电量时的点序列缓冲
+ * 时间(epoch毫秒)与电量(kWh)分别存放在原始类型数组中，避免每个点的对象与装箱开销
+ * 写入时记录时间严格递增的各段：按时间顺序写入（如SORT BY之后）时只追加，排序时不再移动；
+ * 段数较少（如合并几个已排序的部分聚合结果）时逐对线性归并各段，段数过多时才完整排序。
+ *
+ */
+public class PointBuffer {
+
+    private static final int INITIAL_CAPACITY = 16;
+    private static final long[] EMPTY_TIMES = new long[0];
+    private static final double[] EMPTY_VALUES = new double[0];
+    // 记录的有序段数上限，超出后排序时完整归并排序
+    private static final int MAX_RUNS = 64;
+
+    // 扩容时不超过的容量（点数），需要更多点时仍按需扩容
+    private final int maxCapacity;
+    private long[] times = EMPTY_TIMES;
+    private double[] values = EMPTY_VALUES;
+    private int size;
+    // 时间严格递增的各段的起始下标，runCount超过MAX_RUNS后不再记录
+    private int[] runStarts = new int[4];
+    private int runCount;
+    // 与前一个点时间相同、已直接覆盖的点数
+    private int overwritten;
+
+    public PointBuffer() {
+        this(Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param maxCapacity 按比例扩容时不超过的容量（点数），调用方保证点数不超过它时数组容量即不超过它
+     */
+    public PointBuffer(int maxCapacity) {
+        this.maxCapacity = maxCapacity;
+    }
+
+    public void add(long time, double value) {
+        if (size == times.length) {
+            grow(size + 1);
+        }
+        append(time, value);
+    }
+
+    private void append(long time, double value) {
+        if (size > 0) {
+            long last = times[size - 1];
+            if (time == last) {
+                // 同一时间保留最后写入的值
+                values[size - 1] = value;
+                overwritten++;
+                return;
+            }
+            if (time < last) {
+                startRun();
+            }
+        } else {
+            runCount = 1;
+        }
+        times[size] = time;
+        values[size] = value;
+        size++;
+    }
+
+    private void startRun() {
+        if (runCount <= MAX_RUNS) {
+            if (runCount == runStarts.length) {
+                runStarts = Arrays.copyOf(runStarts, runCount * 2);
+            }
+            runStarts[runCount] = size;
+        }
+        runCount++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public long getTime(int index) {
+        return times[index];
+    }
+
+    public double getValue(int index) {
+        return values[index];
+    }
+
+    /**
+     * 底层时间数组，只有前size()个元素有效
+     */
+    public long[] getTimes() {
+        return times;
+    }
+
+    /**
+     * 底层电量数组，只有前size()个元素有效
+     */
+    public double[] getValues() {
+        return values;
+    }
+
+    /**
+     * 数组容量（点数）
+     */
+    public int capacity() {
+        return times.length;
+    }
+
+    /**
+     * 当前缓冲占用的数组字节数
+     */
+    public long capacityBytes() {
+        return times.length * 8L + values.length * 8L;
+    }
+
+    /**
+     * 写入时已直接覆盖、尚未由sort()返回的重复时间的点数
+     */
+    public int getOverwritten() {
+        return overwritten;
+    }
+
+    /**
+     * 是否已按时间升序且无重复
+     */
+    public boolean isSorted() {
+        return runCount <= 1;
+    }
+
+    /**
+     * 按时间排序并去重，同一时间保留最后写入的值（与原先HashMap覆盖写入的语义一致）
+     * 存在多个有序段时临时分配与点数等长的归并数组，排序期间的峰值为点数的两倍
+     *
+     * @return 自上次排序以来被覆盖的重复时间的点数
+     */
+    public int sort() {
+        int removed = overwritten;
+        overwritten = 0;
+        if (runCount <= 1) {
+            return removed;
+        }
+        if (runCount <= MAX_RUNS) {
+            mergeRuns();
+        } else {
+            mergeSort();
+        }
+        removed += dedup();
+        runCount = size > 0 ? 1 : 0;
+        return removed;
+    }
+
+    /**
+     * 按写入顺序输出所有点：点数，之后依次为时间与电量
+     */
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(size);
+        for (int i = 0; i < size; i++) {
+            out.writeLong(times[i]);
+            out.writeDouble(values[i]);
+        }
+    }
+
+    /**
+     * 读取write()输出的点并追加到末尾
+     */
+    public void readFrom(DataInput in) throws IOException {
+        int count = in.readInt();
+        if (size + count > times.length) {
+            grow(size + count);
+        }
+        for (int i = 0; i < count; i++) {
+            long time = in.readLong();
+            append(time, in.readDouble());
+        }
+    }
+
+    public void clear() {
+        size = 0;
+        runCount = 0;
+        overwritten = 0;
+    }
+
+    private void grow(int minCapacity) {
+        int capacity = (int) Math.min(maxCapacity, Math.max(INITIAL_CAPACITY, times.length + (long) (times.length >> 1)));
+        if (capacity < minCapacity) {
+            capacity = minCapacity;
+        }
+        long[] newTimes = new long[capacity];
+        double[] newValues = new double[capacity];
+        System.arraycopy(times, 0, newTimes, 0, size);
+        System.arraycopy(values, 0, newValues, 0, size);
+        times = newTimes;
+        values = newValues;
+    }
+
+    // 逐对归并写入时记录的有序段，每一轮为线性时间，共log(段数)轮
+    private void mergeRuns() {
+        long[] srcTimes = times;
+        double[] srcValues = values;
+        long[] dstTimes = new long[size];
+        double[] dstValues = new double[size];
+        int[] starts = Arrays.copyOf(runStarts, runCount + 1);
+        starts[runCount] = size;
+        int count = runCount;
+        while (count > 1) {
+            int merged = 0;
+            for (int r = 0; r < count; r += 2) {
+                int lo = starts[r];
+                merge(srcTimes, srcValues, dstTimes, dstValues, lo, starts[Math.min(r + 1, count)], starts[Math.min(r + 2, count)]);
+                starts[merged++] = lo;
+            }
+            starts[merged] = size;
+            count = merged;
+            long[] t = srcTimes;
+            srcTimes = dstTimes;
+            dstTimes = t;
+            double[] v = srcValues;
+            srcValues = dstValues;
+            dstValues = v;
+        }
+        times = srcTimes;
+        values = srcValues;
+    }
+
+    // 自底向上的稳定归并排序，相同时间的点保持写入顺序
+    private void mergeSort() {
+        long[] srcTimes = times;
+        double[] srcValues = values;
+        long[] dstTimes = new long[size];
+        double[] dstValues = new double[size];
+        for (int width = 1; width < size; width <<= 1) {
+            for (int lo = 0; lo < size; lo += width << 1) {
+                merge(srcTimes, srcValues, dstTimes, dstValues, lo, Math.min(lo + width, size), Math.min(lo + (width << 1), size));
+            }
+            long[] t = srcTimes;
+            srcTimes = dstTimes;
+            dstTimes = t;
+            double[] v = srcValues;
+            srcValues = dstValues;
+            dstValues = v;
+        }
+        times = srcTimes;
+        values = srcValues;
+    }
+
+    // 稳定归并src中相邻的[lo, mid)与[mid, hi)到dst的[lo, hi)，相同时间时前一段的点在前
+    private static void merge(long[] srcTimes, double[] srcValues, long[] dstTimes, double[] dstValues, int lo, int mid, int hi) {
+        int i = lo;
+        int j = mid;
+        int k = lo;
+        while (i < mid && j < hi) {
+            if (srcTimes[j] < srcTimes[i]) {
+                dstTimes[k] = srcTimes[j];
+                dstValues[k++] = srcValues[j++];
+            } else {
+                dstTimes[k] = srcTimes[i];
+                dstValues[k++] = srcValues[i++];
+            }
+        }
+        while (i < mid) {
+            dstTimes[k] = srcTimes[i];
+            dstValues[k++] = srcValues[i++];
+        }
+        while (j < hi) {
+            dstTimes[k] = srcTimes[j];
+            dstValues[k++] = srcValues[j++];
+        }
+    }
+
+    private int dedup() {
+        int w = 0;
+        for (int r = 0; r < size; r++) {
+            if (w > 0 && times[w - 1] == times[r]) {
+                values[w - 1] = values[r];
+            } else {
+                times[w] = times[r];
+                values[w] = values[r];
+                w++;
+            }
+        }
+        int removed = size - w;
+        size = w;
+        return removed;
+    }
+
+    @Override
+    public String toString() {
+        return "PointBuffer [size=" + size + "]";
+    }
+}
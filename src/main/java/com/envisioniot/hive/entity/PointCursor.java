@@ -0,0 +1,17 @@
+package com.envisioniot.hive.entity;
+
+/**
+ * 按时间升序、无重复地逐个读取点
+ *
+ */
+public interface PointCursor {
+
+    /**
+     * 移到下一个点，没有更多点时返回false
+     */
+    boolean next();
+
+    long time();
+
+    double value();
+}
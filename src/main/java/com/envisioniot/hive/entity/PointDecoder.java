@@ -0,0 +1,138 @@
+package com.envisioniot.hive.entity;
+
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.WritableUtils;
+
+import java.io.IOException;
+
+/**
+ * 逐个读取PointEncoder编码的点，不生成中间对象
+ * 点的顺序与写入PointEncoder的顺序相同。可重复使用，非线程安全。
+ *
+ */
+public class PointDecoder implements PointCursor {
+
+    // 二阶差分的三档定长位数，超出时写出完整的64位
+    static final int DOD_BITS_1 = 7;
+    static final int DOD_BITS_2 = 12;
+    static final int DOD_BITS_3 = 20;
+
+    private byte[] bytes;
+    private int offset;
+    private int end;
+    // 当前字节中尚未读取的位数
+    private int availableBits;
+    private int remaining;
+    private boolean first;
+    private long time;
+    private long delta;
+    private long valueBits;
+    private int leading;
+    private int trailing;
+
+    /**
+     * 从in的当前位置读取点数，之后由next()逐个解码in中剩余的字节
+     */
+    public void reset(DataInputBuffer in) throws IOException {
+        remaining = WritableUtils.readVInt(in);
+        bytes = in.getData();
+        offset = in.getPosition();
+        end = in.getLength();
+        availableBits = 0;
+        first = true;
+        time = 0L;
+        delta = 0L;
+        valueBits = 0L;
+        leading = 0;
+        trailing = 0;
+    }
+
+    /**
+     * 剩余的点数
+     */
+    public int remaining() {
+        return remaining;
+    }
+
+    public boolean next() {
+        if (remaining == 0) {
+            return false;
+        }
+        remaining--;
+        if (first) {
+            first = false;
+            time = readBits(64);
+            valueBits = readBits(64);
+            return true;
+        }
+        delta += readTime();
+        time += delta;
+        readValue();
+        return true;
+    }
+
+    public long time() {
+        return time;
+    }
+
+    public double value() {
+        return Double.longBitsToDouble(valueBits);
+    }
+
+    private long readTime() {
+        if (readBits(1) == 0L) {
+            return 0L;
+        }
+        if (readBits(1) == 0L) {
+            return signed(readBits(DOD_BITS_1), DOD_BITS_1);
+        }
+        if (readBits(1) == 0L) {
+            return signed(readBits(DOD_BITS_2), DOD_BITS_2);
+        }
+        if (readBits(1) == 0L) {
+            return signed(readBits(DOD_BITS_3), DOD_BITS_3);
+        }
+        return readBits(64);
+    }
+
+    private void readValue() {
+        if (readBits(1) == 0L) {
+            return;
+        }
+        if (readBits(1) == 1L) {
+            leading = (int) readBits(5);
+            int meaningful = (int) readBits(6) + 1;
+            trailing = 64 - leading - meaningful;
+        }
+        valueBits ^= readBits(64 - leading - trailing) << trailing;
+    }
+
+    private static long signed(long value, int bits) {
+        return (value << (64 - bits)) >> (64 - bits);
+    }
+
+    // 从高位到低位读取n位
+    private long readBits(int n) {
+        long value = 0L;
+        while (n > 0) {
+            if (availableBits == 0) {
+                if (offset >= end) {
+                    throw new IllegalStateException("Encoded points are truncated, " + (remaining + 1) + " points unread");
+                }
+                offset++;
+                availableBits = 8;
+            }
+            int take = Math.min(n, availableBits);
+            int current = bytes[offset - 1] & 0xFF;
+            value = (value << take) | ((current >>> (availableBits - take)) & ((1 << take) - 1));
+            availableBits -= take;
+            n -= take;
+        }
+        return value;
+    }
+
+    @Override
+    public String toString() {
+        return "PointDecoder [remaining=" + remaining + "]";
+    }
+}
@@ -0,0 +1,141 @@
+package com.envisioniot.hive.entity;
+
+import org.apache.hadoop.io.WritableUtils;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * 点序列的压缩编码（Gorilla）：时间按二阶差分（delta-of-delta）、电量按与前一个值的XOR按位编码
+ * 固定采集周期的时间每个点只需1位，电量不变时只需1位，变化时只写出XOR中有效的位。
+ * 输出格式：点数（VInt），之后为位流；由PointDecoder读取。按时间升序写入时压缩率最高，乱序也能正确编码。
+ * 可重复使用，非线程安全。
+ *
+ */
+public class PointEncoder {
+
+    private byte[] bytes = new byte[64];
+    private int length;
+    // 最后一个字节中尚未使用的位数
+    private int freeBits;
+    private int count;
+    private long prevTime;
+    private long prevDelta;
+    private long prevValueBits;
+    // 上一次写出的XOR有效位窗口，prevLeading为-1时尚未写出
+    private int prevLeading = -1;
+    private int prevTrailing;
+
+    public void add(long time, double value) {
+        long valueBits = Double.doubleToRawLongBits(value);
+        if (count == 0) {
+            writeBits(time, 64);
+            writeBits(valueBits, 64);
+        } else {
+            long delta = time - prevTime;
+            writeTime(delta - prevDelta);
+            prevDelta = delta;
+            writeValue(valueBits ^ prevValueBits);
+        }
+        prevTime = time;
+        prevValueBits = valueBits;
+        count++;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    /**
+     * 已编码的字节数，不含点数
+     */
+    public int encodedBytes() {
+        return length;
+    }
+
+    public void write(DataOutput out) throws IOException {
+        WritableUtils.writeVInt(out, count);
+        out.write(bytes, 0, length);
+    }
+
+    public void clear() {
+        length = 0;
+        freeBits = 0;
+        count = 0;
+        prevTime = 0L;
+        prevDelta = 0L;
+        prevValueBits = 0L;
+        prevLeading = -1;
+        prevTrailing = 0;
+    }
+
+    // 二阶差分：0为'0'，其余按取值范围写出前缀及定长补码
+    private void writeTime(long dod) {
+        if (dod == 0L) {
+            writeBits(0L, 1);
+        } else if (fits(dod, PointDecoder.DOD_BITS_1)) {
+            writeBits(0x2L, 2);
+            writeBits(dod, PointDecoder.DOD_BITS_1);
+        } else if (fits(dod, PointDecoder.DOD_BITS_2)) {
+            writeBits(0x6L, 3);
+            writeBits(dod, PointDecoder.DOD_BITS_2);
+        } else if (fits(dod, PointDecoder.DOD_BITS_3)) {
+            writeBits(0xEL, 4);
+            writeBits(dod, PointDecoder.DOD_BITS_3);
+        } else {
+            writeBits(0xFL, 4);
+            writeBits(dod, 64);
+        }
+    }
+
+    // XOR：0为'0'；有效位落在上一次的窗口内为'10'加窗口内的位；否则为'11'、前导0个数（5位）、有效位数减1（6位）及有效位
+    private void writeValue(long xor) {
+        if (xor == 0L) {
+            writeBits(0L, 1);
+            return;
+        }
+        int leading = Math.min(Long.numberOfLeadingZeros(xor), 31);
+        int trailing = Long.numberOfTrailingZeros(xor);
+        if (prevLeading >= 0 && leading >= prevLeading && trailing >= prevTrailing) {
+            writeBits(0x2L, 2);
+            writeBits(xor >>> prevTrailing, 64 - prevLeading - prevTrailing);
+            return;
+        }
+        int meaningful = 64 - leading - trailing;
+        writeBits(0x3L, 2);
+        writeBits(leading, 5);
+        writeBits(meaningful - 1, 6);
+        writeBits(xor >>> trailing, meaningful);
+        prevLeading = leading;
+        prevTrailing = trailing;
+    }
+
+    private static boolean fits(long value, int bits) {
+        long bound = 1L << (bits - 1);
+        return value >= -bound && value < bound;
+    }
+
+    // 从高位到低位写出value的低n位
+    private void writeBits(long value, int n) {
+        while (n > 0) {
+            if (freeBits == 0) {
+                if (length == bytes.length) {
+                    bytes = Arrays.copyOf(bytes, length * 2);
+                }
+                bytes[length++] = 0;
+                freeBits = 8;
+            }
+            int take = Math.min(n, freeBits);
+            int chunk = (int) (value >>> (n - take)) & ((1 << take) - 1);
+            bytes[length - 1] |= chunk << (freeBits - take);
+            freeBits -= take;
+            n -= take;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "PointEncoder [points=" + count + ", bytes=" + length + "]";
+    }
+}
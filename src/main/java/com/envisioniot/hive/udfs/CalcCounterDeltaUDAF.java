@@ -0,0 +1,442 @@
+package com.envisioniot.hive.udfs;
+
+import com.envisioniot.hive.algorithm.CounterUnwrapper;
+import com.envisioniot.hive.algorithm.ProdResult;
+import com.envisioniot.hive.algorithm.StreamingProdCalculator;
+import com.envisioniot.hive.entity.BoundedPointBuffer;
+import com.envisioniot.hive.entity.MemoryBudget;
+import com.envisioniot.hive.entity.PointCursor;
+import com.envisioniot.hive.util.TimeGrouper;
+import com.envisioniot.hive.util.TimestampParser;
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.MapredContext;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.parse.SemanticException;
+import org.apache.hadoop.hive.ql.udf.generic.AbstractGenericUDAFResolver;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
+import org.apache.hadoop.hive.serde2.objectinspector.ConstantObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.StructField;
+import org.apache.hadoop.hive.serde2.objectinspector.StructObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.BinaryObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.BooleanObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.DoubleObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.LongObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorUtils;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.StringObjectInspector;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ * 通用的累计量表计（燃气、水量、上网电量等）区间用量
+ * 与calc_prod的斜率、跳变、死数规则相同，另外判断计数器溢出（读数到达寄存器上限后回绕）及表计清零（由参数开启），
+ * 溢出、清零前后的用量接续计算，不再记为跳变而丢失。
+ * 读数与calc_prod一样存放在受solar.calcprod.buffer.memory.bytes及solar.calcprod.task.memory.bytes限制的缓冲中，
+ * 计算时按时间顺序逐点展开读数并流式计算各时间分组。
+ *
+ */
+@Description(name = "calc_counter_delta",
+        value = "_FUNC_(timestamp, value, slope, dateFormat, rollover, detectReset, lastValidTime, lastValidValue) - Returns an "
+                + "array<struct<timeGroup:string, delta:double, lastValidTime:timestamp, lastValidValue:double, rollovers:int, resets:int>> "
+                + "of counter deltas in the aggregation group",
+        extended = "rollover is the reading at which the register wraps to 0, a value <= 0 disables rollover detection; "
+                + "when detectReset is true, a drop to a reading smaller than the drop itself (close to 0) whose rate from 0 "
+                + "stays below slope is taken as a meter reset. "
+                + "lastValidValue is the raw reading of the last valid point and may be passed to the next run"
+)
+public class CalcCounterDeltaUDAF extends AbstractGenericUDAFResolver {
+    public static final Logger LOG = Logger.getLogger(CalcCounterDeltaUDAF.class);
+    public static final String ROLLOVER = "rollover";
+    public static final String DETECT_RESET = "detectReset";
+    public static final String DELTA = "delta";
+    public static final String ROLLOVERS = "rollovers";
+    public static final String RESETS = "resets";
+
+    @Override
+    public GenericUDAFEvaluator getEvaluator(TypeInfo[] parameters)
+            throws SemanticException {
+        return new CalcCounterDeltaUDAFEvaluator();
+    }
+
+    public static class CalcCounterDeltaUDAFEvaluator extends GenericUDAFEvaluator {
+        // For PARTIAL1 and COMPLETE: ObjectInspectors for original data
+        private PrimitiveObjectInspector inputKeyOI;
+        private PrimitiveObjectInspector inputValOI;
+        private DoubleObjectInspector slopeOI;
+        private StringObjectInspector dateFormatOI;
+        private PrimitiveObjectInspector rolloverOI;
+        private BooleanObjectInspector detectResetOI;
+        private PrimitiveObjectInspector lastValidTimeOI;
+        private DoubleObjectInspector lastValidValueOI;
+        // For PARTIAL2 and FINAL: ObjectInspectors for partial aggregations (struct of objs)
+        private StructObjectInspector internalMergeOI;
+        private StructField slopeField;
+        private StructField dateFormatField;
+        private StructField rolloverField;
+        private StructField detectResetField;
+        private StructField lastValidTimeField;
+        private StructField lastValidValueField;
+        private StructField pointsField;
+
+        private boolean constantSlope;
+        private double slope;
+        private String dateFormat;
+
+        private final TimestampParser timeParser = new TimestampParser();
+        private final CalcProdMetrics metrics = new CalcProdMetrics();
+        private final DataInputBuffer partialInput = new DataInputBuffer();
+        private long bufferMemoryBytes = -1L;
+        private MemoryBudget budget;
+        private File spillDir;
+
+        class CounterAggBuffer extends AbstractAggregationBuffer {
+            private final BoundedPointBuffer points = new BoundedPointBuffer(bufferMemoryBytes, spillDir, budget);
+            private double slope;
+            private String dateFormat;
+            private double rollover;
+            private boolean detectReset;
+            private boolean hasLastValid;
+            private long lastValidTime;
+            private double lastValidValue;
+
+            void setLastValid(long time, double value) {
+                hasLastValid = true;
+                lastValidTime = time;
+                lastValidValue = value;
+            }
+
+            public void reset() {
+                points.clear();
+                slope = 0d;
+                dateFormat = null;
+                rollover = 0d;
+                detectReset = false;
+                hasLastValid = false;
+                lastValidTime = 0L;
+                lastValidValue = 0d;
+            }
+        }
+
+        public ObjectInspector init(Mode m, ObjectInspector[] parameters)
+                throws HiveException {
+            super.init(m, parameters);
+            if (LOG.isDebugEnabled()) {
+                LOG.debug(" CalcCounterDeltaUDAF.init() - Mode= " + m.name());
+            }
+            if (m == Mode.PARTIAL1 || m == Mode.COMPLETE) {
+                if (parameters.length != 6 && parameters.length != 8) {
+                    throw new HiveException("6 or 8 parameters required, current is " + parameters.length);
+                }
+                if (!CalcProdUDAF.isTimeInspector(parameters[0])) {
+                    throw new HiveException("Timestamp must be a primitive type, current is " + parameters[0].getTypeName());
+                }
+                inputKeyOI = (PrimitiveObjectInspector) parameters[0];
+                if (!(parameters[1] instanceof PrimitiveObjectInspector)) {
+                    throw new HiveException("Value must be a number, current is " + parameters[1].getTypeName());
+                }
+                inputValOI = (PrimitiveObjectInspector) parameters[1];
+                if (parameters[2] instanceof DoubleObjectInspector) {
+                    slopeOI = (DoubleObjectInspector) parameters[2];
+                    if (parameters[2] instanceof ConstantObjectInspector) {
+                        constantSlope = true;
+                        slope = PrimitiveObjectInspectorUtils.getDouble(
+                                ((ConstantObjectInspector) parameters[2]).getWritableConstantValue(), slopeOI);
+                    }
+                } else {
+                    throw new HiveException("Slope must be a constant double.");
+                }
+                if (parameters[3] instanceof StringObjectInspector) {
+                    dateFormatOI = (StringObjectInspector) parameters[3];
+                    if (parameters[3] instanceof ConstantObjectInspector) {
+                        dateFormat = PrimitiveObjectInspectorUtils.getString(
+                                ((ConstantObjectInspector) parameters[3]).getWritableConstantValue(), dateFormatOI);
+                        try {
+                            new TimeGrouper(dateFormat);
+                        } catch (IllegalArgumentException e) {
+                            throw new HiveException("Invalid dateFormat: " + dateFormat + ", " + e.getMessage());
+                        }
+                    }
+                } else {
+                    throw new HiveException("DateFormat must be a constant string");
+                }
+                if (parameters[4] instanceof PrimitiveObjectInspector) {
+                    rolloverOI = (PrimitiveObjectInspector) parameters[4];
+                } else {
+                    throw new HiveException("Rollover must be a number, current is " + parameters[4].getTypeName());
+                }
+                if (parameters[5] instanceof BooleanObjectInspector) {
+                    detectResetOI = (BooleanObjectInspector) parameters[5];
+                } else {
+                    throw new HiveException("DetectReset must be a boolean, current is " + parameters[5].getTypeName());
+                }
+                if (parameters.length == 8) {
+                    if (CalcProdUDAF.isTimeInspector(parameters[6])) {
+                        lastValidTimeOI = (PrimitiveObjectInspector) parameters[6];
+                    } else {
+                        throw new HiveException("Last valid time must be a string, timestamp or bigint.");
+                    }
+                    if (parameters[7] instanceof DoubleObjectInspector) {
+                        lastValidValueOI = (DoubleObjectInspector) parameters[7];
+                    } else {
+                        throw new HiveException("Last valid value must be a double.");
+                    }
+                }
+            } else {
+                internalMergeOI = (StructObjectInspector) parameters[0];
+                slopeField = internalMergeOI.getStructFieldRef(CalcProdUDAF.SLOPE);
+                dateFormatField = internalMergeOI.getStructFieldRef(CalcProdUDAF.DATEFORMAT);
+                rolloverField = internalMergeOI.getStructFieldRef(ROLLOVER);
+                detectResetField = internalMergeOI.getStructFieldRef(DETECT_RESET);
+                lastValidTimeField = internalMergeOI.getStructFieldRef(CalcProdUDAF.LASTVALIDTIME);
+                lastValidValueField = internalMergeOI.getStructFieldRef(CalcProdUDAF.LASTVALIDVALUE);
+                pointsField = internalMergeOI.getStructFieldRef(CalcProdUDAF.POINTS);
+            }
+
+            if (m == Mode.FINAL || m == Mode.COMPLETE) {
+                return ObjectInspectorFactory.getStandardListObjectInspector(
+                        ObjectInspectorFactory.getStandardStructObjectInspector(
+                                Arrays.asList(CalcProdUDAF.TIMEGROUP, DELTA, CalcProdUDAF.LASTVALIDTIME, CalcProdUDAF.LASTVALIDVALUE,
+                                        ROLLOVERS, RESETS),
+                                Arrays.<ObjectInspector>asList(
+                                        PrimitiveObjectInspectorFactory.javaStringObjectInspector,
+                                        PrimitiveObjectInspectorFactory.javaDoubleObjectInspector,
+                                        PrimitiveObjectInspectorFactory.javaTimestampObjectInspector,
+                                        PrimitiveObjectInspectorFactory.javaDoubleObjectInspector,
+                                        PrimitiveObjectInspectorFactory.javaIntObjectInspector,
+                                        PrimitiveObjectInspectorFactory.javaIntObjectInspector)));
+            }
+
+            // 部分聚合结果：常量参数、上一个有效点及原始读数
+            List<String> fieldNames = Arrays.asList(CalcProdUDAF.SLOPE, CalcProdUDAF.DATEFORMAT, ROLLOVER, DETECT_RESET,
+                    CalcProdUDAF.LASTVALIDTIME, CalcProdUDAF.LASTVALIDVALUE, CalcProdUDAF.POINTS);
+            List<ObjectInspector> fieldOIs = Arrays.<ObjectInspector>asList(
+                    PrimitiveObjectInspectorFactory.javaDoubleObjectInspector,
+                    PrimitiveObjectInspectorFactory.javaStringObjectInspector,
+                    PrimitiveObjectInspectorFactory.javaDoubleObjectInspector,
+                    PrimitiveObjectInspectorFactory.javaBooleanObjectInspector,
+                    PrimitiveObjectInspectorFactory.javaLongObjectInspector,
+                    PrimitiveObjectInspectorFactory.javaDoubleObjectInspector,
+                    PrimitiveObjectInspectorFactory.javaByteArrayObjectInspector);
+            return ObjectInspectorFactory.getStandardStructObjectInspector(fieldNames, fieldOIs);
+        }
+
+        @Override
+        public void configure(MapredContext mapredContext) {
+            metrics.setContext(mapredContext);
+            JobConf jobConf = mapredContext.getJobConf();
+            bufferMemoryBytes = jobConf.getLong(CalcProdUDAF.BUFFER_MEMORY_BYTES, -1L);
+            long taskMemoryBytes = jobConf.getLong(CalcProdUDAF.TASK_MEMORY_BYTES, -1L);
+            budget = taskMemoryBytes > 0 ? CalcProdUDAF.taskBudget(taskMemoryBytes) : null;
+            spillDir = CalcProdUDAF.spillDir(jobConf);
+        }
+
+        /**
+         * 任务结束时由MapredContext调用，发布剩余的计数并删除临时文件目录
+         */
+        @Override
+        public void close() throws IOException {
+            metrics.publish();
+            CalcProdUDAF.deleteSpillDir(spillDir);
+        }
+
+        @Override
+        public AggregationBuffer getNewAggregationBuffer() throws HiveException {
+            CounterAggBuffer buff = new CounterAggBuffer();
+            reset(buff);
+            return buff;
+        }
+
+        @Override
+        public void iterate(AggregationBuffer agg, Object[] parameters)
+                throws HiveException {
+            Object k = parameters[0];
+            Object v = parameters[1];
+            if (k == null || v == null) {
+                throw new HiveException("Key or value is null.  k = " + k + " , v = " + v);
+            }
+
+            CounterAggBuffer myagg = (CounterAggBuffer) agg;
+            if (myagg.dateFormat == null) {
+                myagg.slope = constantSlope ? slope : slopeOI.get(parameters[2]);
+                myagg.dateFormat = dateFormat != null ? dateFormat : dateFormatOI.getPrimitiveJavaObject(parameters[3]);
+                myagg.rollover = parameters[4] == null ? -1d : PrimitiveObjectInspectorUtils.getDouble(parameters[4], rolloverOI);
+                myagg.detectReset = parameters[5] != null && detectResetOI.get(parameters[5]);
+            }
+            if (!myagg.hasLastValid && parameters.length == 8 && parameters[6] != null && parameters[7] != null) {
+                long lastValidTime = CalcProdUDAF.readTime(parameters[6], lastValidTimeOI, timeParser);
+                if (lastValidTime != TimestampParser.INVALID) {
+                    myagg.setLastValid(lastValidTime, lastValidValueOI.get(parameters[7]));
+                }
+            }
+
+            long time = CalcProdUDAF.readTime(k, inputKeyOI, timeParser);
+            if (time != TimestampParser.INVALID) {
+                metrics.addPoint();
+                try {
+                    myagg.points.add(time, PrimitiveObjectInspectorUtils.getDouble(v, inputValOI));
+                } catch (IOException e) {
+                    throw new HiveException("Failed to spill calc_counter_delta points", e);
+                }
+            }
+        }
+
+        private void collectParseFailures() {
+            long failures = timeParser.getFailures();
+            if (failures > 0) {
+                LOG.warn(failures + " timestamps could not be parsed as " + TimestampParser.PATTERN + " and were skipped");
+                metrics.addParseFailures(failures);
+                timeParser.resetFailures();
+            }
+        }
+
+        @Override
+        public Object terminatePartial(AggregationBuffer agg) throws HiveException {
+            CounterAggBuffer myagg = (CounterAggBuffer) agg;
+            Object[] partial = new Object[7];
+            if (myagg.dateFormat != null) {
+                partial[0] = myagg.slope;
+                partial[1] = myagg.dateFormat;
+                partial[2] = myagg.rollover;
+                partial[3] = myagg.detectReset;
+            }
+            if (myagg.hasLastValid) {
+                partial[4] = myagg.lastValidTime;
+                partial[5] = myagg.lastValidValue;
+            }
+            collectParseFailures();
+            metrics.groupPoints(myagg.points.size());
+            long length = myagg.points.writeBytes();
+            if (length > Integer.MAX_VALUE) {
+                throw new HiveException("Too many calc_counter_delta points in one group for a partial aggregation: "
+                        + myagg.points.size());
+            }
+            DataOutputBuffer out = new DataOutputBuffer((int) length);
+            try {
+                myagg.points.write(out);
+            } catch (IOException e) {
+                throw new HiveException("Failed to write partial aggregation", e);
+            }
+            partial[6] = CalcProdUDAF.toBytes(out);
+            metrics.addDuplicates(myagg.points.getDuplicates());
+            metrics.publishIfDue();
+            // map端hash聚合输出后直接丢弃缓冲，不调用reset()
+            myagg.points.release();
+            return partial;
+        }
+
+        @Override
+        public void merge(AggregationBuffer agg, Object partial)
+                throws HiveException {
+            CounterAggBuffer myagg = (CounterAggBuffer) agg;
+            Object slopeObj = internalMergeOI.getStructFieldData(partial, slopeField);
+            Object dateFormatObj = internalMergeOI.getStructFieldData(partial, dateFormatField);
+            Object rolloverObj = internalMergeOI.getStructFieldData(partial, rolloverField);
+            Object detectResetObj = internalMergeOI.getStructFieldData(partial, detectResetField);
+            if (myagg.dateFormat == null && slopeObj != null && dateFormatObj != null) {
+                myagg.slope = ((DoubleObjectInspector) slopeField.getFieldObjectInspector()).get(slopeObj);
+                myagg.dateFormat = ((StringObjectInspector) dateFormatField.getFieldObjectInspector()).getPrimitiveJavaObject(dateFormatObj);
+                myagg.rollover = rolloverObj == null ? -1d : ((DoubleObjectInspector) rolloverField.getFieldObjectInspector()).get(rolloverObj);
+                myagg.detectReset = detectResetObj != null
+                        && ((BooleanObjectInspector) detectResetField.getFieldObjectInspector()).get(detectResetObj);
+            }
+            Object lastValidTimeObj = internalMergeOI.getStructFieldData(partial, lastValidTimeField);
+            Object lastValidValueObj = internalMergeOI.getStructFieldData(partial, lastValidValueField);
+            if (!myagg.hasLastValid && lastValidTimeObj != null && lastValidValueObj != null) {
+                myagg.setLastValid(((LongObjectInspector) lastValidTimeField.getFieldObjectInspector()).get(lastValidTimeObj),
+                        ((DoubleObjectInspector) lastValidValueField.getFieldObjectInspector()).get(lastValidValueObj));
+            }
+            Object pointsObj = internalMergeOI.getStructFieldData(partial, pointsField);
+            if (pointsObj == null) {
+                return;
+            }
+            BytesWritable bytes = ((BinaryObjectInspector) pointsField.getFieldObjectInspector()).getPrimitiveWritableObject(pointsObj);
+            partialInput.reset(bytes.getBytes(), bytes.getLength());
+            try {
+                myagg.points.readFrom(partialInput);
+            } catch (IOException e) {
+                throw new HiveException("Failed to read partial aggregation", e);
+            }
+        }
+
+        @Override
+        public void reset(AggregationBuffer buff) throws HiveException {
+            ((CounterAggBuffer) buff).reset();
+        }
+
+        @Override
+        public Object terminate(AggregationBuffer agg) throws HiveException {
+            long start = System.nanoTime();
+            CounterAggBuffer myagg = (CounterAggBuffer) agg;
+            List<Object[]> calcResult = new ArrayList<Object[]>();
+            if (myagg.dateFormat == null) {
+                return calcResult;
+            }
+            collectParseFailures();
+            metrics.groupPoints(myagg.points.size());
+
+            // 按时间顺序逐点展开读数，上一组的有效点为展开值，与读数相差溢出、清零累计的偏移
+            CounterUnwrapper counter = new CounterUnwrapper(myagg.rollover, myagg.detectReset, myagg.slope);
+            counter.start(myagg.hasLastValid, myagg.lastValidTime, myagg.lastValidValue);
+            StreamingProdCalculator calculator = new StreamingProdCalculator(myagg.dateFormat, myagg.slope);
+            calculator.start(myagg.hasLastValid, myagg.lastValidTime, myagg.lastValidValue);
+            // 当前时间分组开始时已判断出的溢出、清零次数
+            int groupRollovers = 0;
+            int groupResets = 0;
+            try {
+                PointCursor cursor = myagg.points.cursor();
+                while (cursor.next()) {
+                    // 新分组的第一个点结束上一个分组，它的溢出、清零计入新分组
+                    int rollovers = counter.getRollovers();
+                    int resets = counter.getResets();
+                    double value = counter.next(cursor.time(), cursor.value());
+                    if (calculator.add(cursor.time(), value)) {
+                        calcResult.add(toResult(calculator, counter, rollovers - groupRollovers, resets - groupResets));
+                        groupRollovers = rollovers;
+                        groupResets = resets;
+                    }
+                }
+            } catch (IOException e) {
+                throw new HiveException("Failed to read spilled calc_counter_delta points", e);
+            }
+            if (calculator.finish()) {
+                calcResult.add(toResult(calculator, counter, counter.getRollovers() - groupRollovers, counter.getResets() - groupResets));
+            }
+            metrics.addDuplicates(myagg.points.getDuplicates());
+            metrics.addCounterShifts(counter.getRollovers(), counter.getResets());
+            myagg.points.release();
+            metrics.terminated(System.nanoTime() - start);
+            return calcResult;
+        }
+
+        // 最近结束的时间分组的结果，上一个有效点换算回读数
+        private Object[] toResult(StreamingProdCalculator calculator, CounterUnwrapper counter, int rollovers, int resets) {
+            ProdResult prodResult = calculator.result();
+            metrics.addResult(prodResult);
+            Object[] row = new Object[6];
+            row[0] = calculator.closedGroup();
+            row[1] = prodResult.getProduction();
+            if (prodResult.hasLastValid()) {
+                row[2] = new Timestamp(prodResult.getLastValidTime());
+                row[3] = counter.raw(prodResult.getLastValidTime(), prodResult.getLastValidValue());
+            }
+            row[4] = rollovers;
+            row[5] = resets;
+            return row;
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package com.envisioniot.hive.udfs;
+
+import com.envisioniot.hive.algorithm.ProdResult;
+import org.apache.hadoop.hive.ql.exec.MapredContext;
+import org.apache.hadoop.mapred.Reporter;
+
+/**
+ * calc_prod计算过程的计数，通过任务的Reporter发布为Hadoop计数器，用于定位数据倾斜的设备和慢的reduce任务
+ * 各计数先在本地累加，每隔一段时间及任务结束时（evaluator的close()）以增量发布；没有Reporter时（如本地执行）只在本地累加。
+ * 峰值计数发布的是本任务内的最大值，作业级汇总为各任务峰值之和，需按任务查看。
+ * 非线程安全，每个计算实例持有一个。
+ *
+ */
+public class CalcProdMetrics {
+
+    public static final String GROUP = "calc_prod";
+    public static final String LATENCY_GROUP = "calc_prod terminate latency";
+    public static final String POINTS = "points ingested";
+    public static final String DUPLICATES = "duplicate timestamps overwritten";
+    public static final String PARSE_FAILURES = "timestamp parse failures";
+    public static final String JUMP_SEGMENTS = "jump segments";
+    public static final String DEAD_SEGMENTS = "dead-value segments";
+    public static final String COUNTER_ROLLOVERS = "counter rollovers";
+    public static final String COUNTER_RESETS = "counter resets";
+    public static final String GROUPS = "groups terminated";
+    public static final String PEAK_GROUP_POINTS = "peak group points";
+    public static final String TERMINATE_MILLIS = "terminate millis";
+
+    // terminate()耗时直方图各桶的上界（毫秒），最后一个桶没有上界
+    private static final long[] LATENCY_BOUNDS_MILLIS = {1, 10, 100, 1000, 10000};
+    private static final String[] LATENCY_BUCKETS = {"0-1ms", "1-10ms", "10-100ms", "100ms-1s", "1-10s", "10s+"};
+    private static final long PUBLISH_INTERVAL_NANOS = 10 * 1000000000L;
+
+    private MapredContext context;
+
+    // 尚未发布的增量
+    private long points;
+    private long duplicates;
+    private long parseFailures;
+    private long jumpSegments;
+    private long deadSegments;
+    private long rollovers;
+    private long resets;
+    private long groups;
+    private long terminateNanos;
+    private final long[] latency = new long[LATENCY_BUCKETS.length];
+
+    private long peakGroupPoints;
+    private long publishedPeak;
+    private long lastPublish = System.nanoTime();
+
+    public void setContext(MapredContext context) {
+        this.context = context;
+    }
+
+    public void addPoint() {
+        points++;
+    }
+
+    public void addDuplicates(long count) {
+        duplicates += count;
+    }
+
+    public void addParseFailures(long count) {
+        parseFailures += count;
+    }
+
+    /**
+     * 累加一个时间分组计算结果中的跳变、停滞区间个数
+     */
+    public void addResult(ProdResult result) {
+        jumpSegments += result.getJumpCount();
+        deadSegments += result.getDeadCount();
+    }
+
+    /**
+     * 累加累计量表计展开时判断出的溢出、清零次数
+     */
+    public void addCounterShifts(long rolloverCount, long resetCount) {
+        rollovers += rolloverCount;
+        resets += resetCount;
+    }
+
+    /**
+     * 记录一个分组缓冲的点数（含已写入临时文件的点）
+     */
+    public void groupPoints(long count) {
+        if (count > peakGroupPoints) {
+            peakGroupPoints = count;
+        }
+    }
+
+    public long getPeakGroupPoints() {
+        return peakGroupPoints;
+    }
+
+    /**
+     * 记录一次terminate()的耗时，距上次发布超过发布间隔时发布计数
+     */
+    public void terminated(long nanos) {
+        groups++;
+        terminateNanos += nanos;
+        long millis = nanos / 1000000L;
+        int bucket = 0;
+        while (bucket < LATENCY_BOUNDS_MILLIS.length && millis >= LATENCY_BOUNDS_MILLIS[bucket]) {
+            bucket++;
+        }
+        latency[bucket]++;
+        publishIfDue();
+    }
+
+    public void publishIfDue() {
+        if (System.nanoTime() - lastPublish >= PUBLISH_INTERVAL_NANOS) {
+            publish();
+        }
+    }
+
+    /**
+     * 把累加的增量发布到任务的计数器，没有Reporter时保留到下一次发布
+     */
+    public void publish() {
+        lastPublish = System.nanoTime();
+        MapredContext mapredContext = context != null ? context : MapredContext.get();
+        Reporter reporter = mapredContext == null ? null : mapredContext.getReporter();
+        if (reporter == null) {
+            return;
+        }
+        increment(reporter, GROUP, POINTS, points);
+        increment(reporter, GROUP, DUPLICATES, duplicates);
+        increment(reporter, GROUP, PARSE_FAILURES, parseFailures);
+        increment(reporter, GROUP, JUMP_SEGMENTS, jumpSegments);
+        increment(reporter, GROUP, DEAD_SEGMENTS, deadSegments);
+        increment(reporter, GROUP, COUNTER_ROLLOVERS, rollovers);
+        increment(reporter, GROUP, COUNTER_RESETS, resets);
+        increment(reporter, GROUP, GROUPS, groups);
+        increment(reporter, GROUP, TERMINATE_MILLIS, terminateNanos / 1000000L);
+        increment(reporter, GROUP, PEAK_GROUP_POINTS, peakGroupPoints - publishedPeak);
+        for (int i = 0; i < latency.length; i++) {
+            increment(reporter, LATENCY_GROUP, LATENCY_BUCKETS[i], latency[i]);
+            latency[i] = 0;
+        }
+        points = 0;
+        duplicates = 0;
+        parseFailures = 0;
+        jumpSegments = 0;
+        deadSegments = 0;
+        rollovers = 0;
+        resets = 0;
+        groups = 0;
+        // 不足1毫秒的部分留到下一次发布
+        terminateNanos %= 1000000L;
+        publishedPeak = peakGroupPoints;
+    }
+
+    private static void increment(Reporter reporter, String group, String name, long amount) {
+        if (amount != 0) {
+            reporter.incrCounter(group, name, amount);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "CalcProdMetrics [peakGroupPoints=" + peakGroupPoints + ", unpublishedPoints=" + points
+                + ", unpublishedGroups=" + groups + "]";
+    }
+}
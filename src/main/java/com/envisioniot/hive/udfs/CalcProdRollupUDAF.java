@@ -0,0 +1,349 @@
+package com.envisioniot.hive.udfs;
+
+import com.envisioniot.hive.algorithm.ProdResult;
+import com.envisioniot.hive.algorithm.SegmentSummary;
+import com.envisioniot.hive.util.TimeGrouper;
+import com.envisioniot.hive.util.TimestampParser;
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.MapredContext;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.parse.SemanticException;
+import org.apache.hadoop.hive.ql.udf.generic.AbstractGenericUDAFResolver;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
+import org.apache.hadoop.hive.serde2.objectinspector.ConstantObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.StructField;
+import org.apache.hadoop.hive.serde2.objectinspector.StructObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.BinaryObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.DoubleObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.LongObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorUtils;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.StringObjectInspector;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+
+/**
+ * 把calc_prod_summary保存的较细粒度（如按天）的分段摘要按时间顺序合并为较粗粒度（如按月、按年）的发电量
+ * 同一较粗分组内相邻的摘要依次合并，再接入上一组的有效点计算，与calc_prod直接按较粗粒度计算原始点的结果一致
+ * （发电量只有累加顺序上的浮点舍入差别）。输出格式与calc_prod相同。
+ *
+ */
+@Description(name = "calc_prod_rollup",
+        value = "_FUNC_(summary, slope, dateFormat, lastValidTime, lastValidValue) - Returns an map of related production values "
+                + "in the aggregation group, combined from summaries written by calc_prod_summary",
+        extended = "dateFormat must be coarser than the granularity of the summaries, e.g. daily summaries rolled up by 'yyyy-MM' or 'yyyy'; "
+                + "slope must be the one the summaries were written with"
+)
+public class CalcProdRollupUDAF extends AbstractGenericUDAFResolver {
+    public static final Logger LOG = Logger.getLogger(CalcProdRollupUDAF.class);
+
+    @Override
+    public GenericUDAFEvaluator getEvaluator(TypeInfo[] parameters)
+            throws SemanticException {
+        return new CalcProdRollupUDAFEvaluator();
+    }
+
+    public static class CalcProdRollupUDAFEvaluator extends GenericUDAFEvaluator {
+        // For PARTIAL1 and COMPLETE: ObjectInspectors for original data
+        private BinaryObjectInspector summaryOI;
+        private DoubleObjectInspector slopeOI;
+        private StringObjectInspector dateFormatOI;
+        private PrimitiveObjectInspector lastValidTimeOI;
+        private DoubleObjectInspector lastValidValueOI;
+        // For PARTIAL2 and FINAL: ObjectInspectors for partial aggregations (struct of objs)
+        private StructObjectInspector internalMergeOI;
+        private StructField slopeField;
+        private StructField dateFormatField;
+        private StructField lastValidTimeField;
+        private StructField lastValidValueField;
+        private StructField summariesField;
+
+        private boolean constantSlope;
+        private double slope;
+        private String dateFormat;
+
+        private final TimestampParser timeParser = new TimestampParser();
+        private final SimpleDateFormat timeFormatter = new SimpleDateFormat(TimestampParser.PATTERN);
+        private final ProdResult prodResult = new ProdResult();
+        private final CalcProdMetrics metrics = new CalcProdMetrics();
+        private final DataInputBuffer partialInput = new DataInputBuffer();
+
+        class RollupAggBuffer extends AbstractAggregationBuffer {
+            // 输入的摘要，分组标签在terminate()中按dateFormat确定
+            private final List<CalcProdUDAF.GroupSummary> summaries = new ArrayList<CalcProdUDAF.GroupSummary>();
+            private double slope;
+            private String dateFormat;
+            private boolean hasLastValid;
+            private long lastValidTime;
+            private double lastValidValue;
+
+            void setLastValid(long time, double value) {
+                hasLastValid = true;
+                lastValidTime = time;
+                lastValidValue = value;
+            }
+
+            public void reset() {
+                summaries.clear();
+                slope = 0d;
+                dateFormat = null;
+                hasLastValid = false;
+                lastValidTime = 0L;
+                lastValidValue = 0d;
+            }
+        }
+
+        public ObjectInspector init(Mode m, ObjectInspector[] parameters)
+                throws HiveException {
+            super.init(m, parameters);
+            if (LOG.isDebugEnabled()) {
+                LOG.debug(" CalcProdRollupUDAF.init() - Mode= " + m.name());
+            }
+            if (m == Mode.PARTIAL1 || m == Mode.COMPLETE) {
+                if (parameters.length != 3 && parameters.length != 5) {
+                    throw new HiveException("3 or 5 parameters required, current is " + parameters.length);
+                }
+                if (parameters[0] instanceof BinaryObjectInspector) {
+                    summaryOI = (BinaryObjectInspector) parameters[0];
+                } else {
+                    throw new HiveException("Summary must be a binary written by calc_prod_summary, current is " + parameters[0].getTypeName());
+                }
+                if (parameters[1] instanceof DoubleObjectInspector) {
+                    slopeOI = (DoubleObjectInspector) parameters[1];
+                    if (parameters[1] instanceof ConstantObjectInspector) {
+                        constantSlope = true;
+                        slope = PrimitiveObjectInspectorUtils.getDouble(
+                                ((ConstantObjectInspector) parameters[1]).getWritableConstantValue(), slopeOI);
+                    }
+                } else {
+                    throw new HiveException("Slope must be a constant double.");
+                }
+                if (parameters[2] instanceof StringObjectInspector) {
+                    dateFormatOI = (StringObjectInspector) parameters[2];
+                    if (parameters[2] instanceof ConstantObjectInspector) {
+                        dateFormat = PrimitiveObjectInspectorUtils.getString(
+                                ((ConstantObjectInspector) parameters[2]).getWritableConstantValue(), dateFormatOI);
+                        try {
+                            new TimeGrouper(dateFormat);
+                        } catch (IllegalArgumentException e) {
+                            throw new HiveException("Invalid dateFormat: " + dateFormat + ", " + e.getMessage());
+                        }
+                    }
+                } else {
+                    throw new HiveException("DateFormat must be a constant string");
+                }
+                if (parameters.length == 5) {
+                    if (CalcProdUDAF.isTimeInspector(parameters[3])) {
+                        lastValidTimeOI = (PrimitiveObjectInspector) parameters[3];
+                    } else {
+                        throw new HiveException("Last valid time must be a string, timestamp or bigint.");
+                    }
+                    if (parameters[4] instanceof DoubleObjectInspector) {
+                        lastValidValueOI = (DoubleObjectInspector) parameters[4];
+                    } else {
+                        throw new HiveException("Last valid value must be a double.");
+                    }
+                }
+            } else {
+                internalMergeOI = (StructObjectInspector) parameters[0];
+                slopeField = internalMergeOI.getStructFieldRef(CalcProdUDAF.SLOPE);
+                dateFormatField = internalMergeOI.getStructFieldRef(CalcProdUDAF.DATEFORMAT);
+                lastValidTimeField = internalMergeOI.getStructFieldRef(CalcProdUDAF.LASTVALIDTIME);
+                lastValidValueField = internalMergeOI.getStructFieldRef(CalcProdUDAF.LASTVALIDVALUE);
+                summariesField = internalMergeOI.getStructFieldRef(CalcProdUDAF.SUMMARIES);
+            }
+
+            if (m == Mode.FINAL || m == Mode.COMPLETE) {
+                return ObjectInspectorFactory.getStandardListObjectInspector(
+                        ObjectInspectorFactory.getStandardMapObjectInspector(
+                                PrimitiveObjectInspectorFactory.javaStringObjectInspector,
+                                PrimitiveObjectInspectorFactory.javaStringObjectInspector));
+            }
+
+            // 部分聚合结果：常量参数、上一个有效点，以及依次编码的各分段摘要
+            List<String> fieldNames = Arrays.asList(CalcProdUDAF.SLOPE, CalcProdUDAF.DATEFORMAT,
+                    CalcProdUDAF.LASTVALIDTIME, CalcProdUDAF.LASTVALIDVALUE, CalcProdUDAF.SUMMARIES);
+            List<ObjectInspector> fieldOIs = Arrays.<ObjectInspector>asList(
+                    PrimitiveObjectInspectorFactory.javaDoubleObjectInspector,
+                    PrimitiveObjectInspectorFactory.javaStringObjectInspector,
+                    PrimitiveObjectInspectorFactory.javaLongObjectInspector,
+                    PrimitiveObjectInspectorFactory.javaDoubleObjectInspector,
+                    PrimitiveObjectInspectorFactory.javaByteArrayObjectInspector);
+            return ObjectInspectorFactory.getStandardStructObjectInspector(fieldNames, fieldOIs);
+        }
+
+        @Override
+        public void configure(MapredContext mapredContext) {
+            metrics.setContext(mapredContext);
+        }
+
+        @Override
+        public void close() throws IOException {
+            metrics.publish();
+        }
+
+        @Override
+        public AggregationBuffer getNewAggregationBuffer() throws HiveException {
+            RollupAggBuffer buff = new RollupAggBuffer();
+            reset(buff);
+            return buff;
+        }
+
+        @Override
+        public void iterate(AggregationBuffer agg, Object[] parameters)
+                throws HiveException {
+            RollupAggBuffer myagg = (RollupAggBuffer) agg;
+            if (myagg.dateFormat == null) {
+                myagg.slope = constantSlope ? slope : slopeOI.get(parameters[1]);
+                myagg.dateFormat = dateFormat != null ? dateFormat : dateFormatOI.getPrimitiveJavaObject(parameters[2]);
+            }
+            if (!myagg.hasLastValid && parameters.length == 5 && parameters[3] != null && parameters[4] != null) {
+                long lastValidTime = CalcProdUDAF.readTime(parameters[3], lastValidTimeOI, timeParser);
+                if (lastValidTime != TimestampParser.INVALID) {
+                    myagg.setLastValid(lastValidTime, lastValidValueOI.get(parameters[4]));
+                }
+            }
+            // 没有点的时间分组不输出摘要，空值直接跳过
+            if (parameters[0] == null) {
+                return;
+            }
+            BytesWritable bytes = summaryOI.getPrimitiveWritableObject(parameters[0]);
+            partialInput.reset(bytes.getBytes(), bytes.getLength());
+            try {
+                readSummary(myagg);
+            } catch (IOException e) {
+                throw new HiveException("Failed to read calc_prod summary", e);
+            }
+        }
+
+        private void readSummary(RollupAggBuffer myagg) throws IOException {
+            SegmentSummary summary = new SegmentSummary();
+            summary.readFields(partialInput);
+            if (!summary.isEmpty()) {
+                myagg.summaries.add(new CalcProdUDAF.GroupSummary(null, summary));
+            }
+        }
+
+        private void collectParseFailures() {
+            long failures = timeParser.getFailures();
+            if (failures > 0) {
+                LOG.warn(failures + " timestamps could not be parsed as " + TimestampParser.PATTERN + " and were skipped");
+                metrics.addParseFailures(failures);
+                timeParser.resetFailures();
+            }
+        }
+
+        @Override
+        public Object terminatePartial(AggregationBuffer agg) throws HiveException {
+            RollupAggBuffer myagg = (RollupAggBuffer) agg;
+            Object[] partial = new Object[5];
+            if (myagg.dateFormat != null) {
+                partial[0] = myagg.slope;
+                partial[1] = myagg.dateFormat;
+            }
+            if (myagg.hasLastValid) {
+                partial[2] = myagg.lastValidTime;
+                partial[3] = myagg.lastValidValue;
+            }
+            collectParseFailures();
+            DataOutputBuffer out = new DataOutputBuffer();
+            try {
+                WritableUtils.writeVInt(out, myagg.summaries.size());
+                for (CalcProdUDAF.GroupSummary summary : myagg.summaries) {
+                    summary.getSummary().write(out);
+                }
+            } catch (IOException e) {
+                throw new HiveException("Failed to write partial aggregation", e);
+            }
+            partial[4] = CalcProdUDAF.toBytes(out);
+            metrics.publishIfDue();
+            return partial;
+        }
+
+        @Override
+        public void merge(AggregationBuffer agg, Object partial)
+                throws HiveException {
+            RollupAggBuffer myagg = (RollupAggBuffer) agg;
+            Object slopeObj = internalMergeOI.getStructFieldData(partial, slopeField);
+            Object dateFormatObj = internalMergeOI.getStructFieldData(partial, dateFormatField);
+            if (myagg.dateFormat == null && slopeObj != null && dateFormatObj != null) {
+                myagg.slope = ((DoubleObjectInspector) slopeField.getFieldObjectInspector()).get(slopeObj);
+                myagg.dateFormat = ((StringObjectInspector) dateFormatField.getFieldObjectInspector()).getPrimitiveJavaObject(dateFormatObj);
+            }
+            Object lastValidTimeObj = internalMergeOI.getStructFieldData(partial, lastValidTimeField);
+            Object lastValidValueObj = internalMergeOI.getStructFieldData(partial, lastValidValueField);
+            if (!myagg.hasLastValid && lastValidTimeObj != null && lastValidValueObj != null) {
+                myagg.setLastValid(((LongObjectInspector) lastValidTimeField.getFieldObjectInspector()).get(lastValidTimeObj),
+                        ((DoubleObjectInspector) lastValidValueField.getFieldObjectInspector()).get(lastValidValueObj));
+            }
+            Object summariesObj = internalMergeOI.getStructFieldData(partial, summariesField);
+            if (summariesObj == null) {
+                return;
+            }
+            BytesWritable bytes = ((BinaryObjectInspector) summariesField.getFieldObjectInspector()).getPrimitiveWritableObject(summariesObj);
+            partialInput.reset(bytes.getBytes(), bytes.getLength());
+            try {
+                int count = WritableUtils.readVInt(partialInput);
+                for (int i = 0; i < count; i++) {
+                    readSummary(myagg);
+                }
+            } catch (IOException e) {
+                throw new HiveException("Failed to read partial aggregation", e);
+            }
+        }
+
+        @Override
+        public void reset(AggregationBuffer buff) throws HiveException {
+            ((RollupAggBuffer) buff).reset();
+        }
+
+        @Override
+        public Object terminate(AggregationBuffer agg) throws HiveException {
+            long start = System.nanoTime();
+            RollupAggBuffer myagg = (RollupAggBuffer) agg;
+            List<Object> calcResult = new ArrayList<Object>();
+            if (myagg.dateFormat == null) {
+                return calcResult;
+            }
+            collectParseFailures();
+            List<CalcProdUDAF.GroupSummary> summaries = myagg.summaries;
+            Collections.sort(summaries);
+            if (myagg.hasLastValid && !summaries.isEmpty() && myagg.lastValidTime >= summaries.get(0).getSummary().getFirstTime()) {
+                LOG.warn("Last valid time " + timeFormatter.format(new Date(myagg.lastValidTime))
+                        + " is not earlier than the first summary and is ignored");
+            }
+
+            boolean hasCarry = myagg.hasLastValid;
+            long carryTime = myagg.lastValidTime;
+            double carryValue = myagg.lastValidValue;
+            for (CalcProdUDAF.GroupSummary group : CalcProdUDAF.rollUp(summaries, myagg.dateFormat, myagg.slope, timeFormatter)) {
+                group.getSummary().finish(hasCarry, carryTime, carryValue, myagg.slope, prodResult);
+                if (prodResult.hasLastValid()) {
+                    hasCarry = true;
+                    carryTime = prodResult.getLastValidTime();
+                    carryValue = prodResult.getLastValidValue();
+                }
+                metrics.addResult(prodResult);
+                calcResult.add(CalcProdUDAF.resultMap(group.getTimeGroup(), null, prodResult, prodResult.getLastValidValue(), timeFormatter));
+            }
+            metrics.terminated(System.nanoTime() - start);
+            return calcResult;
+        }
+    }
+}
@@ -0,0 +1,526 @@
+package com.envisioniot.hive.udfs;
+
+import com.envisioniot.hive.algorithm.ProdResult;
+import com.envisioniot.hive.algorithm.StreamingProdCalculator;
+import com.envisioniot.hive.entity.BoundedPointBuffer;
+import com.envisioniot.hive.entity.DeviceTable;
+import com.envisioniot.hive.entity.MemoryBudget;
+import com.envisioniot.hive.entity.PointCursor;
+import com.envisioniot.hive.util.TimeGrouper;
+import com.envisioniot.hive.util.TimestampParser;
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.MapredContext;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.parse.SemanticException;
+import org.apache.hadoop.hive.ql.udf.generic.AbstractGenericUDAFResolver;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
+import org.apache.hadoop.hive.serde2.objectinspector.ConstantObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ListObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.StructField;
+import org.apache.hadoop.hive.serde2.objectinspector.StructObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.BinaryObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.DoubleObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorUtils;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.StringObjectInspector;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+
+/**
+ * 在一个聚合分组（如一个电站）内同时计算多个设备的发电量
+ * 各设备的点序列与上一个有效点按设备序号存放在原始类型数组中，设备编号到序号的映射使用开放寻址哈希表，
+ * 代替按设备GROUP BY时每个设备一个聚合缓冲。计算规则与calc_prod一致。
+ * 各设备的点序列与calc_prod一样受solar.calcprod.buffer.memory.bytes（每个设备）及solar.calcprod.task.memory.bytes
+ * （任务中所有缓冲之和）限制，超出后写入本地临时文件，计算时归并读取。
+ *
+ */
+@Description(name = "calc_prod_site",
+        value = "_FUNC_(device, timestamp, kwh, slope, dateFormat, lastValidTime, lastValidValue) - Returns a "
+                + "struct<devices:array<struct<device, timeGroup:string, production:double, lastValidTime:timestamp, lastValidValue:double>>, "
+                + "site:array<struct<timeGroup:string, production:double>>> of per-device and summed production in the aggregation group",
+        extended = "device may be a string or an integral id; lastValidTime and lastValidValue are read per device from its first row"
+)
+public class CalcProdSiteUDAF extends AbstractGenericUDAFResolver {
+    public static final Logger LOG = Logger.getLogger(CalcProdSiteUDAF.class);
+    public static final String DEVICE = "device";
+    public static final String DEVICES = "devices";
+    public static final String SITE = "site";
+    public static final String STATES = "states";
+
+    @Override
+    public GenericUDAFEvaluator getEvaluator(TypeInfo[] parameters)
+            throws SemanticException {
+        return new CalcProdSiteUDAFEvaluator();
+    }
+
+    public static class CalcProdSiteUDAFEvaluator extends GenericUDAFEvaluator {
+        // For PARTIAL1 and COMPLETE: ObjectInspectors for original data
+        private PrimitiveObjectInspector deviceOI;
+        private PrimitiveObjectInspector inputKeyOI;
+        private PrimitiveObjectInspector inputValOI;
+        private DoubleObjectInspector slopeOI;
+        private StringObjectInspector dateFormatOI;
+        private PrimitiveObjectInspector lastValidTimeOI;
+        private DoubleObjectInspector lastValidValueOI;
+        // For PARTIAL2 and FINAL: ObjectInspectors for partial aggregations (struct of objs)
+        private StructObjectInspector internalMergeOI;
+        private StructField slopeField;
+        private StructField dateFormatField;
+        private StructField devicesField;
+        private StructField statesField;
+
+        // 设备编号为字符串或整数
+        private boolean stringDevices;
+        private boolean constantSlope;
+        private double slope;
+        private String dateFormat;
+
+        private final TimestampParser timeParser = new TimestampParser();
+        private final CalcProdMetrics metrics = new CalcProdMetrics();
+        private final DataInputBuffer partialInput = new DataInputBuffer();
+        private long bufferMemoryBytes = -1L;
+        private MemoryBudget budget;
+        private File spillDir;
+
+        class SiteAggBuffer extends AbstractAggregationBuffer {
+            private final DeviceTable devices = new DeviceTable(stringDevices);
+            // 按设备序号存放的点序列及上一个有效点
+            private BoundedPointBuffer[] points = new BoundedPointBuffer[0];
+            private boolean[] hasLastValid = new boolean[0];
+            private long[] lastValidTime = new long[0];
+            private double[] lastValidValue = new double[0];
+            private double slope;
+            private String dateFormat;
+
+            int device(long key) {
+                return ensure(devices.index(key));
+            }
+
+            int device(String key) {
+                return ensure(devices.index(key));
+            }
+
+            int device(byte[] bytes, int length) {
+                return ensure(devices.index(bytes, length));
+            }
+
+            void setLastValid(int device, long time, double value) {
+                hasLastValid[device] = true;
+                lastValidTime[device] = time;
+                lastValidValue[device] = value;
+            }
+
+            private int ensure(int device) {
+                if (device == points.length) {
+                    int capacity = Math.max(16, points.length * 2);
+                    points = Arrays.copyOf(points, capacity);
+                    hasLastValid = Arrays.copyOf(hasLastValid, capacity);
+                    lastValidTime = Arrays.copyOf(lastValidTime, capacity);
+                    lastValidValue = Arrays.copyOf(lastValidValue, capacity);
+                }
+                if (points[device] == null) {
+                    points[device] = new BoundedPointBuffer(bufferMemoryBytes, spillDir, budget);
+                }
+                return device;
+            }
+
+            // 输出结果后把各设备缓冲计入的内存归还任务的预算
+            void release() {
+                for (int i = 0; i < devices.size(); i++) {
+                    points[i].release();
+                }
+            }
+
+            public void reset() {
+                // 保留各设备的点序列数组，供下一个分组复用
+                for (int i = 0; i < devices.size(); i++) {
+                    points[i].clear();
+                    hasLastValid[i] = false;
+                }
+                devices.clear();
+                slope = 0d;
+                dateFormat = null;
+            }
+        }
+
+        public ObjectInspector init(Mode m, ObjectInspector[] parameters)
+                throws HiveException {
+            super.init(m, parameters);
+            if (LOG.isDebugEnabled()) {
+                LOG.debug(" CalcProdSiteUDAF.init() - Mode= " + m.name());
+            }
+            if (m == Mode.PARTIAL1 || m == Mode.COMPLETE) {
+                if (parameters.length != 5 && parameters.length != 7) {
+                    throw new HiveException("5 or 7 parameters required, current is " + parameters.length);
+                }
+                deviceOI = deviceInspector(parameters[0]);
+                stringDevices = isStringDevice(deviceOI);
+                if (!CalcProdUDAF.isTimeInspector(parameters[1])) {
+                    throw new HiveException("Timestamp must be a primitive type, current is " + parameters[1].getTypeName());
+                }
+                inputKeyOI = (PrimitiveObjectInspector) parameters[1];
+                if (!(parameters[2] instanceof PrimitiveObjectInspector)) {
+                    throw new HiveException("Kwh must be a number, current is " + parameters[2].getTypeName());
+                }
+                inputValOI = (PrimitiveObjectInspector) parameters[2];
+                if (parameters[3] instanceof DoubleObjectInspector) {
+                    slopeOI = (DoubleObjectInspector) parameters[3];
+                    if (parameters[3] instanceof ConstantObjectInspector) {
+                        constantSlope = true;
+                        slope = PrimitiveObjectInspectorUtils.getDouble(
+                                ((ConstantObjectInspector) parameters[3]).getWritableConstantValue(), slopeOI);
+                    }
+                } else {
+                    throw new HiveException("Slope must be a constant double.");
+                }
+                if (parameters[4] instanceof StringObjectInspector) {
+                    dateFormatOI = (StringObjectInspector) parameters[4];
+                    if (parameters[4] instanceof ConstantObjectInspector) {
+                        dateFormat = PrimitiveObjectInspectorUtils.getString(
+                                ((ConstantObjectInspector) parameters[4]).getWritableConstantValue(), dateFormatOI);
+                        try {
+                            new TimeGrouper(dateFormat);
+                        } catch (IllegalArgumentException e) {
+                            throw new HiveException("Invalid dateFormat: " + dateFormat + ", " + e.getMessage());
+                        }
+                    }
+                } else {
+                    throw new HiveException("DateFormat must be a constant string");
+                }
+                if (parameters.length == 7) {
+                    if (CalcProdUDAF.isTimeInspector(parameters[5])) {
+                        lastValidTimeOI = (PrimitiveObjectInspector) parameters[5];
+                    } else {
+                        throw new HiveException("Last valid time must be a string, timestamp or bigint.");
+                    }
+                    if (parameters[6] instanceof DoubleObjectInspector) {
+                        lastValidValueOI = (DoubleObjectInspector) parameters[6];
+                    } else {
+                        throw new HiveException("Last valid value must be a double.");
+                    }
+                }
+            } else {
+                internalMergeOI = (StructObjectInspector) parameters[0];
+                slopeField = internalMergeOI.getStructFieldRef(CalcProdUDAF.SLOPE);
+                dateFormatField = internalMergeOI.getStructFieldRef(CalcProdUDAF.DATEFORMAT);
+                devicesField = internalMergeOI.getStructFieldRef(DEVICES);
+                statesField = internalMergeOI.getStructFieldRef(STATES);
+                ListObjectInspector devicesOI = (ListObjectInspector) devicesField.getFieldObjectInspector();
+                deviceOI = (PrimitiveObjectInspector) devicesOI.getListElementObjectInspector();
+                stringDevices = isStringDevice(deviceOI);
+            }
+
+            ObjectInspector deviceKeyOI = stringDevices ? PrimitiveObjectInspectorFactory.javaStringObjectInspector
+                    : PrimitiveObjectInspectorFactory.javaLongObjectInspector;
+            if (m == Mode.FINAL || m == Mode.COMPLETE) {
+                ObjectInspector devicesOI = ObjectInspectorFactory.getStandardListObjectInspector(
+                        ObjectInspectorFactory.getStandardStructObjectInspector(
+                                Arrays.asList(DEVICE, CalcProdUDAF.TIMEGROUP, CalcProdUDAF.PRODUCTION,
+                                        CalcProdUDAF.LASTVALIDTIME, CalcProdUDAF.LASTVALIDVALUE),
+                                Arrays.<ObjectInspector>asList(
+                                        deviceKeyOI,
+                                        PrimitiveObjectInspectorFactory.javaStringObjectInspector,
+                                        PrimitiveObjectInspectorFactory.javaDoubleObjectInspector,
+                                        PrimitiveObjectInspectorFactory.javaTimestampObjectInspector,
+                                        PrimitiveObjectInspectorFactory.javaDoubleObjectInspector)));
+                ObjectInspector siteOI = ObjectInspectorFactory.getStandardListObjectInspector(
+                        ObjectInspectorFactory.getStandardStructObjectInspector(
+                                Arrays.asList(CalcProdUDAF.TIMEGROUP, CalcProdUDAF.PRODUCTION),
+                                Arrays.<ObjectInspector>asList(
+                                        PrimitiveObjectInspectorFactory.javaStringObjectInspector,
+                                        PrimitiveObjectInspectorFactory.javaDoubleObjectInspector)));
+                return ObjectInspectorFactory.getStandardStructObjectInspector(
+                        Arrays.asList(DEVICES, SITE), Arrays.asList(devicesOI, siteOI));
+            }
+
+            // 部分聚合结果：设备编号列表，以及按同样顺序编码的各设备的上一个有效点与点序列
+            List<String> fieldNames = Arrays.asList(CalcProdUDAF.SLOPE, CalcProdUDAF.DATEFORMAT, DEVICES, STATES);
+            List<ObjectInspector> fieldOIs = Arrays.<ObjectInspector>asList(
+                    PrimitiveObjectInspectorFactory.javaDoubleObjectInspector,
+                    PrimitiveObjectInspectorFactory.javaStringObjectInspector,
+                    ObjectInspectorFactory.getStandardListObjectInspector(deviceKeyOI),
+                    PrimitiveObjectInspectorFactory.javaByteArrayObjectInspector);
+            return ObjectInspectorFactory.getStandardStructObjectInspector(fieldNames, fieldOIs);
+        }
+
+        private static PrimitiveObjectInspector deviceInspector(ObjectInspector oi) throws HiveException {
+            if (oi instanceof PrimitiveObjectInspector) {
+                switch (((PrimitiveObjectInspector) oi).getPrimitiveCategory()) {
+                    case STRING:
+                    case VARCHAR:
+                    case CHAR:
+                    case BYTE:
+                    case SHORT:
+                    case INT:
+                    case LONG:
+                        return (PrimitiveObjectInspector) oi;
+                    default:
+                }
+            }
+            throw new HiveException("Device must be a string or an integral id, current is " + oi.getTypeName());
+        }
+
+        private static boolean isStringDevice(PrimitiveObjectInspector oi) {
+            switch (oi.getPrimitiveCategory()) {
+                case STRING:
+                case VARCHAR:
+                case CHAR:
+                    return true;
+                default:
+                    return false;
+            }
+        }
+
+        @Override
+        public void configure(MapredContext mapredContext) {
+            metrics.setContext(mapredContext);
+            JobConf jobConf = mapredContext.getJobConf();
+            bufferMemoryBytes = jobConf.getLong(CalcProdUDAF.BUFFER_MEMORY_BYTES, -1L);
+            long taskMemoryBytes = jobConf.getLong(CalcProdUDAF.TASK_MEMORY_BYTES, -1L);
+            budget = taskMemoryBytes > 0 ? CalcProdUDAF.taskBudget(taskMemoryBytes) : null;
+            spillDir = CalcProdUDAF.spillDir(jobConf);
+        }
+
+        /**
+         * 任务结束时由MapredContext调用，发布剩余的计数并删除临时文件目录
+         */
+        @Override
+        public void close() throws IOException {
+            metrics.publish();
+            CalcProdUDAF.deleteSpillDir(spillDir);
+        }
+
+        @Override
+        public AggregationBuffer getNewAggregationBuffer() throws HiveException {
+            SiteAggBuffer buff = new SiteAggBuffer();
+            reset(buff);
+            return buff;
+        }
+
+        @Override
+        public void iterate(AggregationBuffer agg, Object[] parameters)
+                throws HiveException {
+            Object d = parameters[0];
+            Object k = parameters[1];
+            Object v = parameters[2];
+            if (d == null || k == null || v == null) {
+                throw new HiveException("Device, key or value is null.  device = " + d + " , k = " + k + " , v = " + v);
+            }
+
+            SiteAggBuffer myagg = (SiteAggBuffer) agg;
+            if (myagg.dateFormat == null) {
+                myagg.slope = constantSlope ? slope : slopeOI.get(parameters[3]);
+                myagg.dateFormat = dateFormat != null ? dateFormat : dateFormatOI.getPrimitiveJavaObject(parameters[4]);
+            }
+            int device = device(myagg, d, deviceOI);
+            if (!myagg.hasLastValid[device] && parameters.length == 7 && parameters[5] != null && parameters[6] != null) {
+                long lastValidTime = CalcProdUDAF.readTime(parameters[5], lastValidTimeOI, timeParser);
+                if (lastValidTime != TimestampParser.INVALID) {
+                    myagg.setLastValid(device, lastValidTime, lastValidValueOI.get(parameters[6]));
+                }
+            }
+
+            long time = CalcProdUDAF.readTime(k, inputKeyOI, timeParser);
+            if (time != TimestampParser.INVALID) {
+                metrics.addPoint();
+                try {
+                    myagg.points[device].add(time, PrimitiveObjectInspectorUtils.getDouble(v, inputValOI));
+                } catch (IOException e) {
+                    throw new HiveException("Failed to spill calc_prod_site points", e);
+                }
+            }
+        }
+
+        // 字符串编号按Text的UTF-8字节查找，已有的设备不为每行生成String
+        private static int device(SiteAggBuffer myagg, Object key, PrimitiveObjectInspector oi) {
+            if (!isStringDevice(oi)) {
+                return myagg.device(PrimitiveObjectInspectorUtils.getLong(key, oi));
+            }
+            if (oi instanceof StringObjectInspector) {
+                Text text = ((StringObjectInspector) oi).getPrimitiveWritableObject(key);
+                return myagg.device(text.getBytes(), text.getLength());
+            }
+            return myagg.device(PrimitiveObjectInspectorUtils.getString(key, oi));
+        }
+
+        private void collectParseFailures() {
+            long failures = timeParser.getFailures();
+            if (failures > 0) {
+                LOG.warn(failures + " timestamps could not be parsed as " + TimestampParser.PATTERN + " and were skipped");
+                metrics.addParseFailures(failures);
+                timeParser.resetFailures();
+            }
+        }
+
+        @Override
+        public Object terminatePartial(AggregationBuffer agg) throws HiveException {
+            SiteAggBuffer myagg = (SiteAggBuffer) agg;
+            Object[] partial = new Object[4];
+            if (myagg.dateFormat != null) {
+                partial[0] = myagg.slope;
+                partial[1] = myagg.dateFormat;
+            }
+            collectParseFailures();
+            int count = myagg.devices.size();
+            List<Object> keys = new ArrayList<Object>(count);
+            // 按写入的长度预先分配，输出时不再复制
+            long length = 0;
+            for (int i = 0; i < count; i++) {
+                length += 1 + (myagg.hasLastValid[i] ? 16 : 0) + myagg.points[i].writeBytes();
+            }
+            if (length > Integer.MAX_VALUE) {
+                throw new HiveException("Too many calc_prod_site points in one group for a partial aggregation: " + length + " bytes");
+            }
+            DataOutputBuffer out = new DataOutputBuffer((int) length);
+            try {
+                for (int i = 0; i < count; i++) {
+                    keys.add(stringDevices ? myagg.devices.getString(i) : (Object) myagg.devices.getLong(i));
+                    out.writeBoolean(myagg.hasLastValid[i]);
+                    if (myagg.hasLastValid[i]) {
+                        out.writeLong(myagg.lastValidTime[i]);
+                        out.writeDouble(myagg.lastValidValue[i]);
+                    }
+                    myagg.points[i].write(out);
+                }
+            } catch (IOException e) {
+                throw new HiveException("Failed to write partial aggregation", e);
+            }
+            partial[2] = keys;
+            partial[3] = CalcProdUDAF.toBytes(out);
+            metrics.publishIfDue();
+            // map端hash聚合输出后直接丢弃缓冲，不调用reset()
+            myagg.release();
+            return partial;
+        }
+
+        @Override
+        public void merge(AggregationBuffer agg, Object partial)
+                throws HiveException {
+            SiteAggBuffer myagg = (SiteAggBuffer) agg;
+            Object slopeObj = internalMergeOI.getStructFieldData(partial, slopeField);
+            Object dateFormatObj = internalMergeOI.getStructFieldData(partial, dateFormatField);
+            if (myagg.dateFormat == null && slopeObj != null && dateFormatObj != null) {
+                myagg.slope = ((DoubleObjectInspector) slopeField.getFieldObjectInspector()).get(slopeObj);
+                myagg.dateFormat = ((StringObjectInspector) dateFormatField.getFieldObjectInspector()).getPrimitiveJavaObject(dateFormatObj);
+            }
+            Object devicesObj = internalMergeOI.getStructFieldData(partial, devicesField);
+            Object statesObj = internalMergeOI.getStructFieldData(partial, statesField);
+            if (devicesObj == null || statesObj == null) {
+                return;
+            }
+            ListObjectInspector devicesOI = (ListObjectInspector) devicesField.getFieldObjectInspector();
+            BytesWritable states = ((BinaryObjectInspector) statesField.getFieldObjectInspector()).getPrimitiveWritableObject(statesObj);
+            partialInput.reset(states.getBytes(), states.getLength());
+            try {
+                int count = devicesOI.getListLength(devicesObj);
+                for (int i = 0; i < count; i++) {
+                    int device = device(myagg, devicesOI.getListElement(devicesObj, i), deviceOI);
+                    if (partialInput.readBoolean()) {
+                        long time = partialInput.readLong();
+                        double value = partialInput.readDouble();
+                        if (!myagg.hasLastValid[device]) {
+                            myagg.setLastValid(device, time, value);
+                        }
+                    }
+                    myagg.points[device].readFrom(partialInput);
+                }
+            } catch (IOException e) {
+                throw new HiveException("Failed to read partial aggregation", e);
+            }
+        }
+
+        @Override
+        public void reset(AggregationBuffer buff) throws HiveException {
+            ((SiteAggBuffer) buff).reset();
+        }
+
+        @Override
+        public Object terminate(AggregationBuffer agg) throws HiveException {
+            long start = System.nanoTime();
+            SiteAggBuffer myagg = (SiteAggBuffer) agg;
+            List<Object[]> deviceRows = new ArrayList<Object[]>();
+            List<Object[]> siteRows = new ArrayList<Object[]>();
+            Object[] result = new Object[]{deviceRows, siteRows};
+            if (myagg.dateFormat == null) {
+                return result;
+            }
+            collectParseFailures();
+
+            // 各时间分组的电站发电量：按本地时间算术分组时按分组的数值键（时间顺序）排序，否则按分组标签排序
+            TimeGrouper grouper = new TimeGrouper(myagg.dateFormat);
+            StreamingProdCalculator calculator = new StreamingProdCalculator(myagg.dateFormat, myagg.slope);
+            Map<Object, Object[]> site = new TreeMap<Object, Object[]>();
+            try {
+                for (int device : myagg.devices.sortedIndexes()) {
+                    Object key = stringDevices ? myagg.devices.getString(device) : (Object) myagg.devices.getLong(device);
+                    BoundedPointBuffer points = myagg.points[device];
+                    metrics.groupPoints(points.size());
+                    calculator.start(myagg.hasLastValid[device], myagg.lastValidTime[device], myagg.lastValidValue[device]);
+                    // grouper与calculator按相同的规则切分时间分组，用于取得各分组在电站结果中的键
+                    grouper.reset();
+                    Object siteKey = null;
+                    PointCursor cursor = points.cursor();
+                    while (cursor.next()) {
+                        Object closedKey = siteKey;
+                        if (grouper.startsGroup(cursor.time())) {
+                            siteKey = grouper.isArithmetic() ? (Object) grouper.key() : grouper.label();
+                        }
+                        if (calculator.add(cursor.time(), cursor.value())) {
+                            addRow(key, closedKey, calculator, deviceRows, site);
+                        }
+                    }
+                    if (calculator.finish()) {
+                        addRow(key, siteKey, calculator, deviceRows, site);
+                    }
+                    metrics.addDuplicates(points.getDuplicates());
+                }
+            } catch (IOException e) {
+                throw new HiveException("Failed to read spilled calc_prod_site points", e);
+            }
+            siteRows.addAll(site.values());
+            myagg.release();
+            metrics.terminated(System.nanoTime() - start);
+            return result;
+        }
+
+        // 输出设备最近结束的时间分组，并累加到电站同一分组的发电量
+        private static void addRow(Object device, Object siteKey, StreamingProdCalculator calculator,
+                                   List<Object[]> deviceRows, Map<Object, Object[]> site) {
+            ProdResult prodResult = calculator.result();
+            String timeGroup = calculator.closedGroup();
+            Object[] row = new Object[5];
+            row[0] = device;
+            row[1] = timeGroup;
+            row[2] = prodResult.getProduction();
+            if (prodResult.hasLastValid()) {
+                row[3] = new Timestamp(prodResult.getLastValidTime());
+                row[4] = prodResult.getLastValidValue();
+            }
+            deviceRows.add(row);
+            Object[] siteRow = site.get(siteKey);
+            if (siteRow == null) {
+                site.put(siteKey, new Object[]{timeGroup, prodResult.getProduction()});
+            } else {
+                siteRow[1] = (Double) siteRow[1] + prodResult.getProduction();
+            }
+        }
+    }
+}
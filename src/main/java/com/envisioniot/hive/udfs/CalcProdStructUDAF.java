@@ -0,0 +1,25 @@
+package com.envisioniot.hive.udfs;
+
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.parse.SemanticException;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
+
+/**
+ * 与calc_prod计算相同，结果为强类型的struct数组，下游不需要再做字符串转换
+ *
+ */
+@Description(name = "calc_prod_struct",
+        value = "_FUNC_(timestamp, kwh, slope, dateFormat, lastValidTime, lastValidValue) - Returns an "
+                + "array<struct<timeGroup:string, production:double, lastValidTime:timestamp, lastValidValue:double>> "
+                + "of production values in the aggregation group",
+        extended = "Same arguments and rules as calc_prod; lastValidTime and lastValidValue are null when the group has no valid point"
+)
+public class CalcProdStructUDAF extends CalcProdUDAF {
+
+    @Override
+    public GenericUDAFEvaluator getEvaluator(TypeInfo[] parameters)
+            throws SemanticException {
+        return new CalcProdUDAFEvaluator(true);
+    }
+}
@@ -0,0 +1,25 @@
+package com.envisioniot.hive.udfs;
+
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.parse.SemanticException;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
+
+/**
+ * 与calc_prod的分组规则相同，结果为各时间分组的分段摘要，保存后由calc_prod_rollup合并为更粗的粒度，不必重新读取原始点
+ *
+ */
+@Description(name = "calc_prod_summary",
+        value = "_FUNC_(timestamp, kwh, slope, dateFormat) - Returns an array<struct<timeGroup:string, summary:binary>> "
+                + "of segment summaries of the time groups in the aggregation group",
+        extended = "A summary keeps the boundary points, the open solid/dotted runs at both ends and the production settled inside; "
+                + "it does not depend on the last valid point, which is applied by calc_prod_rollup"
+)
+public class CalcProdSummaryUDAF extends CalcProdUDAF {
+
+    @Override
+    public GenericUDAFEvaluator getEvaluator(TypeInfo[] parameters)
+            throws SemanticException {
+        return new CalcProdUDAFEvaluator(false, true);
+    }
+}
@@ -1,28 +1,80 @@
 package com.envisioniot.hive.udfs;
 
-import com.envisioniot.hive.entity.Line;
-import com.envisioniot.hive.entity.Point;
+import com.envisioniot.hive.algorithm.CounterUnwrapper;
+import com.envisioniot.hive.algorithm.MultiLevelProdCalculator;
+import com.envisioniot.hive.algorithm.ParallelProdCalculator;
+import com.envisioniot.hive.algorithm.ProdKernel;
+import com.envisioniot.hive.algorithm.ProdResult;
+import com.envisioniot.hive.algorithm.SegmentSummary;
+import com.envisioniot.hive.algorithm.StreamingProdCalculator;
+import com.envisioniot.hive.entity.BoundedPointBuffer;
+import com.envisioniot.hive.entity.CarrySnapshot;
+import com.envisioniot.hive.entity.MemoryBudget;
+import com.envisioniot.hive.entity.PointBuffer;
+import com.envisioniot.hive.entity.PointCursor;
+import com.envisioniot.hive.entity.PointDecoder;
+import com.envisioniot.hive.entity.PointEncoder;
+import com.envisioniot.hive.util.TimeGrouper;
+import com.envisioniot.hive.util.TimestampParser;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.MapredContext;
 import org.apache.hadoop.hive.ql.metadata.HiveException;
 import org.apache.hadoop.hive.ql.parse.SemanticException;
+import org.apache.hadoop.hive.ql.parse.WindowingSpec;
+import org.apache.hadoop.hive.ql.plan.ptf.BoundaryDef;
+import org.apache.hadoop.hive.ql.plan.ptf.CurrentRowDef;
+import org.apache.hadoop.hive.ql.plan.ptf.RangeBoundaryDef;
+import org.apache.hadoop.hive.ql.plan.ptf.WindowFrameDef;
 import org.apache.hadoop.hive.ql.udf.generic.AbstractGenericUDAFResolver;
 import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
+import org.apache.hadoop.hive.ql.udf.generic.ISupportStreamingModeForWindowing;
+import org.apache.hadoop.hive.serde2.objectinspector.ConstantObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
 import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
-import org.apache.hadoop.hive.serde2.objectinspector.StandardMapObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.StructField;
+import org.apache.hadoop.hive.serde2.objectinspector.StructObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.BinaryObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.DoubleObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.LongObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorUtils;
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.StringObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.TimestampObjectInspector;
 import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.mapred.JobConf;
 import org.apache.log4j.Logger;
 
-import java.text.ParseException;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.sql.Timestamp;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 @Description(name = "calc_prod",
-        value = "_FUNC_(timestamp, kwh, slope, dateFormat, lastValidTime, lastValidValue) - Returns an map of related production values in the aggregation group "
+        value = "_FUNC_(timestamp, kwh, slope, dateFormat, lastValidTime, lastValidValue) - Returns an map of related production values in the aggregation group ",
+        extended = "timestamp and lastValidTime may be 'yyyy-MM-dd HH:mm:ss' strings, TIMESTAMP or epoch milliseconds BIGINT\n"
+                + "_FUNC_(timestamp, kwh, slope, dateFormat, device) - Incremental mode: the last valid point is looked up by device "
+                + "in the snapshot file named by solar.calcprod.snapshot\n"
+                + "dateFormat may list several granularities separated by '|', e.g. 'yyyy-MM-dd|yyyy-MM|yyyy'; "
+                + "each result map then carries the granularity it belongs to. A literal '|' or ';' inside a pattern must be quoted\n"
+                + "A granularity may append options, e.g. 'yyyy-MM-dd HH:mm;interval=15m' for 15-minute intervals "
+                + "or 'yyyy-MM-dd;tz=Australia/Sydney' for site-local days\n"
+                + "Time groups are runs of consecutive readings with the same label; patterns that do not start from the year "
+                + "(e.g. 'MM', 'HH') yield one group per run rather than merging equal labels across years or days\n"
+                + "Over a window ordered by timestamp with ROWS BETWEEN UNBOUNDED PRECEDING AND CURRENT ROW, "
+                + "each row returns the running production of its own time group"
 )
 public class CalcProdUDAF extends AbstractGenericUDAFResolver {
     public static final Logger LOG = Logger.getLogger(CalcProdUDAF.class);
@@ -32,6 +84,110 @@ public class CalcProdUDAF extends AbstractGenericUDAFResolver {
     public static final String LASTVALIDVALUE = "lastValidValue";
     public static final String PRODUCTION = "production";
     public static final String TIMEGROUP = "timeGroup";
+    public static final String POINTS = "points";
+    public static final String SUMMARIES = "summaries";
+    public static final String SUMMARY = "summary";
+    public static final String ENCODED_POINTS = "encodedPoints";
+    public static final String DEVICE = "device";
+    public static final String GRANULARITY = "granularity";
+    // dateFormat中多个时间粒度的分隔符
+    public static final char LEVEL_SEPARATOR = '|';
+
+    // 部分聚合结果的格式：raw 传输原始点；summary 传输每个时间分组的分段摘要，
+    // 要求各map的数据按时间成段（如按时间排序写入的文件），且传入的上一个有效点早于所有数据：
+    // 不同map同一时间分组的摘要时间范围重叠时reduce端已没有原始点，无法退回raw，terminate()抛出HiveException，需改用raw重新执行；
+    // 上一个有效点不早于第一个点时被忽略（只告警），结果与不传上一个有效点相同；
+    // compressed 排序去重后按Gorilla方式压缩传输原始点，固定采集周期的数据远小于raw；
+    // raw格式下map端写入过临时文件的分组同样压缩传输
+    public static final String PARTIAL_FORMAT = "solar.calcprod.partial.format";
+    public static final String PARTIAL_FORMAT_RAW = "raw";
+    public static final String PARTIAL_FORMAT_SUMMARY = "summary";
+    public static final String PARTIAL_FORMAT_COMPRESSED = "compressed";
+    // 每个分组内存中缓存点序列的字节上限，超出后排序写入本地临时文件，小于等于0时不限制
+    public static final String BUFFER_MEMORY_BYTES = "solar.calcprod.buffer.memory.bytes";
+    // 同一任务中各分组内存中缓存点序列的字节数之和的上限，用尽后各分组不再扩容，先把内存中的点写入本地临时文件，
+    // 使大量中等大小的分组不致耗尽任务的内存；小于等于0时不限制
+    public static final String TASK_MEMORY_BYTES = "solar.calcprod.task.memory.bytes";
+    // 临时文件目录，默认为java.io.tmpdir；各任务尝试在其下使用以尝试编号命名的子目录，任务结束时删除
+    public static final String SPILL_DIR = "solar.calcprod.spill.dir";
+    // 每个分组内存中缓存原始点的上限，达到后map端以summary格式输出时提前把原始点归并为分段摘要，
+    // 其他情况（raw、compressed格式及reduce端）把内存中的点排序写入本地临时文件，小于等于0时不限制。
+    // Hive 0.14的map端hash聚合不按聚合缓冲的大小提前输出（AggregationType注解没有运行时保留，estimate()不会被调用），
+    // 只按固定的每行估计大小及hive.map.aggr.hash.percentmemory估算可容纳的分组数，另在JVM已用内存超过
+    // hive.map.aggr.hash.force.flush.memory.threshold时输出；单个map缓冲的总量约为分组数与本上限之积，
+    // 分组较多时需相应调低这两个参数（如0.3、0.6）使其提前输出，或设置hive.map.aggr=false
+    public static final String GROUP_MAX_POINTS = "solar.calcprod.group.max.points";
+    // reduce端terminate()计算单个分组的线程数，大于1时点数较多的分组先并行分析各时间分组的分段，再顺序接入上一组的有效点，默认为1（顺序计算）
+    public static final String TERMINATE_PARALLELISM = "solar.calcprod.terminate.parallelism";
+    // 累计量表计的寄存器上限，读数超过后回绕为0；大于0时读数下降且按回绕计算的斜率正常的视为溢出，电量接续计算，默认不判断
+    public static final String COUNTER_ROLLOVER = "solar.calcprod.counter.rollover";
+    // 是否判断表计清零：读数下降到不足下降幅度（接近0）且从0开始的斜率不超过上限的视为清零，电量从前值接续计算，默认为false
+    public static final String COUNTER_RESET = "solar.calcprod.counter.reset";
+    // 增量模式（第5个参数为设备编号）读取的上一天有效点快照，本地路径或通过add file分发的文件名，未设置时没有上一天的有效点
+    public static final String SNAPSHOT = "solar.calcprod.snapshot";
+    // 增量模式下各reduce任务结束时把每个设备最后的有效点写为快照文件的目录（Hadoop文件系统），由CarrySnapshot合并为下一天的快照
+    public static final String SNAPSHOT_OUTPUT = "solar.calcprod.snapshot.output";
+    // 同一任务中各evaluator写出的快照文件的序号
+    private static final AtomicInteger SNAPSHOT_SEQUENCE = new AtomicInteger();
+
+    // terminate()并行计算的线程池，按并行度各一个，同一JVM中并行度相同的evaluator共用
+    private static final Map<Integer, ForkJoinPool> TERMINATE_POOLS = new HashMap<Integer, ForkJoinPool>();
+
+    static synchronized ForkJoinPool terminatePool(int parallelism) {
+        ForkJoinPool pool = TERMINATE_POOLS.get(parallelism);
+        if (pool == null) {
+            pool = new ForkJoinPool(parallelism);
+            TERMINATE_POOLS.put(parallelism, pool);
+        }
+        return pool;
+    }
+
+    // 任务的内存预算，按上限各一个，同一JVM中的evaluator共用
+    private static final Map<Long, MemoryBudget> TASK_BUDGETS = new HashMap<Long, MemoryBudget>();
+
+    static synchronized MemoryBudget taskBudget(long limitBytes) {
+        MemoryBudget budget = TASK_BUDGETS.get(limitBytes);
+        if (budget == null) {
+            budget = new MemoryBudget(limitBytes);
+            TASK_BUDGETS.put(limitBytes, budget);
+        }
+        return budget;
+    }
+
+    static String attemptId(JobConf jobConf) {
+        String task = jobConf.get("mapreduce.task.attempt.id", jobConf.get("mapred.task.id"));
+        return task == null ? UUID.randomUUID().toString() : task;
+    }
+
+    // 本任务尝试的临时文件目录
+    static File spillDir(JobConf jobConf) {
+        String dir = jobConf.get(SPILL_DIR, System.getProperty("java.io.tmpdir"));
+        return new File(dir, "calc_prod-" + attemptId(jobConf));
+    }
+
+    // 删除本任务尝试的临时文件目录，其中的文件通常已由各缓冲的clear()删除
+    static void deleteSpillDir(File spillDir) {
+        if (spillDir == null || !spillDir.isDirectory()) {
+            return;
+        }
+        File[] files = spillDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (!file.delete()) {
+                    LOG.warn("Failed to delete calc_prod spill file " + file);
+                }
+            }
+        }
+        if (!spillDir.delete()) {
+            LOG.warn("Failed to delete calc_prod spill directory " + spillDir);
+        }
+    }
+
+    // 输出缓冲按写入的长度预先分配时直接使用其数组，否则复制有效部分
+    static byte[] toBytes(DataOutputBuffer out) {
+        byte[] data = out.getData();
+        return data.length == out.getLength() ? data : Arrays.copyOf(data, out.getLength());
+    }
 
     @Override
     public GenericUDAFEvaluator getEvaluator(TypeInfo[] parameters)
@@ -49,79 +205,186 @@ public class CalcProdUDAF extends AbstractGenericUDAFResolver {
         private DoubleObjectInspector slopeOI;
         // 定义日期分组格式
         private StringObjectInspector dateFormatOI;
-        private StringObjectInspector lastValidTimeOI;
+        private PrimitiveObjectInspector lastValidTimeOI;
         private DoubleObjectInspector lastValidValueOI;
-        private ObjectInspector outputOI;
-        // For PARTIAL2 and FINAL: ObjectInspectors for partial aggregations (list of objs)
-        private StandardMapObjectInspector internalMergeOI;
+        // 增量模式的设备编号
+        private PrimitiveObjectInspector deviceOI;
+        // For PARTIAL2 and FINAL: ObjectInspectors for partial aggregations (struct of objs)
+        private StructObjectInspector internalMergeOI;
+        private StructField slopeField;
+        private StructField dateFormatField;
+        private StructField lastValidTimeField;
+        private StructField lastValidValueField;
+        private StructField pointsField;
+        private StructField summariesField;
+        private StructField deviceField;
+        private StructField encodedPointsField;
+
+        // 常量参数在init()中读取一次；非常量时由每个分组的第一行读取
+        private boolean constantSlope;
+        private double slope;
+        private String dateFormat;
+
+        private final TimestampParser timeParser = new TimestampParser();
+        private final SimpleDateFormat timeFormatter = new SimpleDateFormat(TimestampParser.PATTERN);
+        private final ProdResult prodResult = new ProdResult();
+        private final CalcProdMetrics metrics = new CalcProdMetrics();
+        private final DataInputBuffer partialInput = new DataInputBuffer();
+        private boolean summaryPartial;
+        private boolean compressedPartial;
+        private double counterRollover = -1d;
+        private boolean counterReset;
+        // 计算期间使用的表计展开，输出有效点时换算回读数；不判断溢出及清零时为null
+        private CounterUnwrapper counter;
+        private final PointEncoder pointEncoder = new PointEncoder();
+        private final PointDecoder pointDecoder = new PointDecoder();
+        private long bufferMemoryBytes = -1L;
+        private MemoryBudget budget;
+        private File spillDir;
+        private long groupMaxPoints = -1L;
+        private ForkJoinPool pool;
+        private JobConf jobConf;
+        private String snapshotPath;
+        private CarrySnapshot snapshot;
+        private String snapshotOutput;
+        private final CarrySnapshot.Writer snapshotWriter = new CarrySnapshot.Writer();
+        // 最近一次terminate()中最后一个时间分组的有效点，写入快照
+        private boolean hasFinalCarry;
+        private long finalCarryTime;
+        private double finalCarryValue;
+        // 多粒度的dateFormat没有可生成分段摘要的粒度时只告警一次
+        private boolean warnedNoBaseLevel;
+        // 最近一次判断的多粒度dateFormat及其生成分段摘要的粒度
+        private String baseLevelFormat;
+        private String baseLevel;
+        // 是否输出部分聚合结果（PARTIAL1、PARTIAL2）
+        private boolean partialOutput;
+        // 最终结果为array<struct>而不是array<map<string,string>>
+        private final boolean structOutput;
+        // 最终结果为各时间分组的分段摘要array<struct<timeGroup, summary:binary>>，供calc_prod_rollup合并为更粗的粒度
+        private final boolean summaryOutput;
 
         public CalcProdUDAFEvaluator() {
+            this(false);
         }
 
-        class CalcProdAggBuffer implements AggregationBuffer {
-            private Map<Object, Object> map = new HashMap<Object, Object>();
+        public CalcProdUDAFEvaluator(boolean structOutput) {
+            this(structOutput, false);
+        }
 
-            public void addValue(Object keyObj, Object valObj) {
-                map.put(inputKeyOI.copyObject(keyObj).toString(), inputValOI.copyObject(valObj).toString());
-            }
+        public CalcProdUDAFEvaluator(boolean structOutput, boolean summaryOutput) {
+            this.structOutput = structOutput;
+            this.summaryOutput = summaryOutput;
+        }
 
-            public void addSlope(Object slopeObj) {
-                map.put(SLOPE, slopeOI.copyObject(slopeObj).toString());
-            }
+        boolean isStructOutput() {
+            return structOutput;
+        }
 
-            public void addDateFormat(Object dateFormatObj) {
-                map.put(DATEFORMAT, dateFormatOI.copyObject(dateFormatObj).toString());
-            }
+        class CalcProdAggBuffer extends AbstractAggregationBuffer {
+            private final BoundedPointBuffer points = new BoundedPointBuffer(bufferMemoryBytes, spillDir, budget);
+            // 部分聚合传来的各时间分组的分段摘要
+            private List<GroupSummary> summaries;
+            private double slope;
+            private String dateFormat;
+            // 增量模式的设备编号
+            private String device;
+            // 传入的上一天最后一个有效点
+            private boolean hasLastValid;
+            private long lastValidTime;
+            private double lastValidValue;
 
-            public void addLastValidTime(Object lastValidTimeObj) {
-                if (lastValidTimeObj != null) {
-                    map.put(LASTVALIDTIME, lastValidTimeOI.copyObject(lastValidTimeObj).toString());
-                }
+            public void addValue(long time, double value) throws IOException {
+                points.add(time, value);
             }
 
-            public void addLastValidValue(Object lastValidValueObj) {
-                if (lastValidValueObj != null) {
-                    map.put(LASTVALIDVALUE, lastValidValueOI.copyObject(lastValidValueObj).toString());
-                }
+            public void setLastValid(long time, double value) {
+                hasLastValid = true;
+                lastValidTime = time;
+                lastValidValue = value;
             }
 
+            public BoundedPointBuffer getPoints() {
+                return points;
+            }
 
-            public Map<Object, Object> getValueMap() {
-                return map;
+            public void addSummary(String timeGroup, SegmentSummary summary) {
+                if (summaries == null) {
+                    summaries = new ArrayList<GroupSummary>();
+                }
+                summaries.add(new GroupSummary(timeGroup, summary));
             }
 
             public void reset() {
-                map.clear();
+                points.clear();
+                summaries = null;
+                slope = 0d;
+                dateFormat = null;
+                device = null;
+                hasLastValid = false;
             }
         }
 
         public ObjectInspector init(Mode m, ObjectInspector[] parameters)
                 throws HiveException {
             super.init(m, parameters);
-            LOG.info(" CalcProdUDAF.init() - Mode= " + m.name());
-            for (int i = 0; i < parameters.length; ++i) {
-                LOG.info(" ObjectInspector[ " + i + " ] = " + parameters[i]);
+            partialOutput = m == Mode.PARTIAL1 || m == Mode.PARTIAL2;
+            if (LOG.isDebugEnabled()) {
+                LOG.debug(" CalcProdUDAF.init() - Mode= " + m.name());
+                for (int i = 0; i < parameters.length; ++i) {
+                    LOG.debug(" ObjectInspector[ " + i + " ] = " + parameters[i]);
+                }
             }
-            if (m == Mode.PARTIAL1) {
-                if (parameters.length != 4 && parameters.length != 6) {
-                    throw new HiveException("4 or 6 parameters required, current is " + parameters.length);
+            if (m == Mode.PARTIAL1 || m == Mode.COMPLETE) {
+                if (parameters.length < 4 || parameters.length > 6) {
+                    throw new HiveException("4, 5 or 6 parameters required, current is " + parameters.length);
                 }
                 if (parameters[2] instanceof DoubleObjectInspector) {
                     slopeOI = (DoubleObjectInspector) parameters[2];
+                    if (parameters[2] instanceof ConstantObjectInspector) {
+                        constantSlope = true;
+                        slope = PrimitiveObjectInspectorUtils.getDouble(
+                                ((ConstantObjectInspector) parameters[2]).getWritableConstantValue(), slopeOI);
+                    }
                 } else {
                     throw new HiveException("Slope must be a constant double.");
                 }
                 if (parameters[3] instanceof StringObjectInspector) {
                     //TODO 校验dateFormatOI的格式只能为yyyy-MM-dd 或者yyyy-MM 或者yyyy
                     dateFormatOI = (StringObjectInspector) parameters[3];
+                    if (parameters[3] instanceof ConstantObjectInspector) {
+                        dateFormat = PrimitiveObjectInspectorUtils.getString(
+                                ((ConstantObjectInspector) parameters[3]).getWritableConstantValue(), dateFormatOI);
+                        String[] levels = levels(dateFormat);
+                        for (String level : levels) {
+                            try {
+                                new TimeGrouper(level);
+                            } catch (IllegalArgumentException e) {
+                                throw new HiveException("Invalid dateFormat: " + level + ", " + e.getMessage());
+                            }
+                        }
+                        if (levels.length > 1 && (structOutput || summaryOutput)) {
+                            throw new HiveException("Multiple granularities in dateFormat are only supported by calc_prod");
+                        }
+                    }
                 } else {
                     throw new HiveException("DateFormat must be a constant string");
                 }
+                if (!isTimeInspector(parameters[0])) {
+                    throw new HiveException("Timestamp must be a primitive type, current is " + parameters[0].getTypeName());
+                }
+                if (parameters.length == 5) {
+                    if (parameters[4] instanceof PrimitiveObjectInspector) {
+                        deviceOI = (PrimitiveObjectInspector) parameters[4];
+                    } else {
+                        throw new HiveException("Device must be a primitive type, current is " + parameters[4].getTypeName());
+                    }
+                }
                 if (parameters.length == 6) {
-                    if (parameters[4] instanceof StringObjectInspector) {
-                        lastValidTimeOI = (StringObjectInspector) parameters[4];
+                    if (isTimeInspector(parameters[4])) {
+                        lastValidTimeOI = (PrimitiveObjectInspector) parameters[4];
                     } else {
-                        throw new HiveException("Last valid time must be a constant string.");
+                        throw new HiveException("Last valid time must be a string, timestamp or bigint.");
                     }
                     if (parameters[5] instanceof DoubleObjectInspector) {
                         lastValidValueOI = (DoubleObjectInspector) parameters[5];
@@ -132,16 +395,40 @@ public class CalcProdUDAF extends AbstractGenericUDAFResolver {
             }
 
             // init output object inspectors
-            // The output of a partial aggregation is a map
-            if (!(parameters[0] instanceof StandardMapObjectInspector)) {
+            // The output of a partial aggregation is a struct
+            if (!(parameters[0] instanceof StructObjectInspector)) {
                 inputKeyOI = (PrimitiveObjectInspector) parameters[0];
                 inputValOI = (PrimitiveObjectInspector) parameters[1];
             } else {
-                internalMergeOI = (StandardMapObjectInspector) parameters[0];
-                inputKeyOI = (PrimitiveObjectInspector) internalMergeOI.getMapKeyObjectInspector();
-                inputValOI = (PrimitiveObjectInspector) internalMergeOI.getMapValueObjectInspector();
+                internalMergeOI = (StructObjectInspector) parameters[0];
+                slopeField = internalMergeOI.getStructFieldRef(SLOPE);
+                dateFormatField = internalMergeOI.getStructFieldRef(DATEFORMAT);
+                lastValidTimeField = internalMergeOI.getStructFieldRef(LASTVALIDTIME);
+                lastValidValueField = internalMergeOI.getStructFieldRef(LASTVALIDVALUE);
+                pointsField = internalMergeOI.getStructFieldRef(POINTS);
+                summariesField = internalMergeOI.getStructFieldRef(SUMMARIES);
+                deviceField = internalMergeOI.getStructFieldRef(DEVICE);
+                encodedPointsField = internalMergeOI.getStructFieldRef(ENCODED_POINTS);
+            }
+            if ((m == Mode.FINAL || m == Mode.COMPLETE) && summaryOutput) {
+                return ObjectInspectorFactory.getStandardListObjectInspector(
+                        ObjectInspectorFactory.getStandardStructObjectInspector(
+                                Arrays.asList(TIMEGROUP, SUMMARY),
+                                Arrays.<ObjectInspector>asList(
+                                        PrimitiveObjectInspectorFactory.javaStringObjectInspector,
+                                        PrimitiveObjectInspectorFactory.javaByteArrayObjectInspector)));
+            }
+            if ((m == Mode.FINAL || m == Mode.COMPLETE) && structOutput) {
+                return ObjectInspectorFactory.getStandardListObjectInspector(
+                        ObjectInspectorFactory.getStandardStructObjectInspector(
+                                Arrays.asList(TIMEGROUP, PRODUCTION, LASTVALIDTIME, LASTVALIDVALUE),
+                                Arrays.<ObjectInspector>asList(
+                                        PrimitiveObjectInspectorFactory.javaStringObjectInspector,
+                                        PrimitiveObjectInspectorFactory.javaDoubleObjectInspector,
+                                        PrimitiveObjectInspectorFactory.javaTimestampObjectInspector,
+                                        PrimitiveObjectInspectorFactory.javaDoubleObjectInspector)));
             }
-            if (m == Mode.FINAL) {
+            if (m == Mode.FINAL || m == Mode.COMPLETE) {
                 return ObjectInspectorFactory.getStandardListObjectInspector(
                         ObjectInspectorFactory.getStandardMapObjectInspector(
                                 ObjectInspectorFactory.getReflectionObjectInspector(String.class, ObjectInspectorFactory.ObjectInspectorOptions.JAVA),
@@ -149,10 +436,66 @@ public class CalcProdUDAF extends AbstractGenericUDAFResolver {
 
             }
 
-            return ObjectInspectorFactory.getStandardMapObjectInspector(
-                    ObjectInspectorFactory.getReflectionObjectInspector(String.class, ObjectInspectorFactory.ObjectInspectorOptions.JAVA),
-                    ObjectInspectorFactory.getReflectionObjectInspector(String.class, ObjectInspectorFactory.ObjectInspectorOptions.JAVA));
+            List<String> fieldNames = Arrays.asList(SLOPE, DATEFORMAT, LASTVALIDTIME, LASTVALIDVALUE, POINTS, SUMMARIES, DEVICE, ENCODED_POINTS);
+            List<ObjectInspector> fieldOIs = Arrays.<ObjectInspector>asList(
+                    PrimitiveObjectInspectorFactory.javaDoubleObjectInspector,
+                    PrimitiveObjectInspectorFactory.javaStringObjectInspector,
+                    PrimitiveObjectInspectorFactory.javaLongObjectInspector,
+                    PrimitiveObjectInspectorFactory.javaDoubleObjectInspector,
+                    PrimitiveObjectInspectorFactory.javaByteArrayObjectInspector,
+                    PrimitiveObjectInspectorFactory.javaByteArrayObjectInspector,
+                    PrimitiveObjectInspectorFactory.javaStringObjectInspector,
+                    PrimitiveObjectInspectorFactory.javaByteArrayObjectInspector);
+            return ObjectInspectorFactory.getStandardStructObjectInspector(fieldNames, fieldOIs);
+
+        }
+
+        @Override
+        public void configure(MapredContext mapredContext) {
+            metrics.setContext(mapredContext);
+            jobConf = mapredContext.getJobConf();
+            snapshotPath = jobConf.get(SNAPSHOT);
+            snapshotOutput = jobConf.get(SNAPSHOT_OUTPUT);
+            String format = mapredContext.getJobConf().get(PARTIAL_FORMAT, PARTIAL_FORMAT_RAW);
+            summaryPartial = PARTIAL_FORMAT_SUMMARY.equalsIgnoreCase(format);
+            compressedPartial = PARTIAL_FORMAT_COMPRESSED.equalsIgnoreCase(format);
+            if (!summaryPartial && !compressedPartial && !PARTIAL_FORMAT_RAW.equalsIgnoreCase(format)) {
+                LOG.warn("Unknown " + PARTIAL_FORMAT + " '" + format + "', using " + PARTIAL_FORMAT_RAW);
+            }
+            String rollover = jobConf.get(COUNTER_ROLLOVER);
+            try {
+                counterRollover = rollover == null ? -1d : Double.parseDouble(rollover.trim());
+            } catch (NumberFormatException e) {
+                LOG.warn("Invalid " + COUNTER_ROLLOVER + " '" + rollover + "', counter rollover is not detected");
+                counterRollover = -1d;
+            }
+            counterReset = jobConf.getBoolean(COUNTER_RESET, false);
+            if (summaryPartial && isCounterEnabled()) {
+                // 各map的分段摘要无法接续另一段中的溢出、清零
+                LOG.warn(PARTIAL_FORMAT + "=" + PARTIAL_FORMAT_SUMMARY + " does not support " + COUNTER_ROLLOVER + " or "
+                        + COUNTER_RESET + ", using " + PARTIAL_FORMAT_RAW);
+                summaryPartial = false;
+            }
+            bufferMemoryBytes = mapredContext.getJobConf().getLong(BUFFER_MEMORY_BYTES, -1L);
+            long taskMemoryBytes = mapredContext.getJobConf().getLong(TASK_MEMORY_BYTES, -1L);
+            budget = taskMemoryBytes > 0 ? taskBudget(taskMemoryBytes) : null;
+            groupMaxPoints = mapredContext.getJobConf().getLong(GROUP_MAX_POINTS, -1L);
+            spillDir = spillDir(jobConf);
+            int parallelism = mapredContext.getJobConf().getInt(TERMINATE_PARALLELISM, 1);
+            pool = parallelism > 1 ? terminatePool(parallelism) : null;
+        }
 
+        /**
+         * 任务结束时由MapredContext调用，发布剩余的计数
+         */
+        @Override
+        public void close() throws IOException {
+            if (snapshotOutput != null && !snapshotWriter.isEmpty()) {
+                writeSnapshot();
+            }
+            metrics.publish();
+            LOG.info("calc_prod peak group points: " + metrics.getPeakGroupPoints());
+            deleteSpillDir(spillDir);
         }
 
         @Override
@@ -171,19 +514,50 @@ public class CalcProdUDAF extends AbstractGenericUDAFResolver {
                 throw new HiveException("Key or value is null.  k = " + k + " , v = " + v);
             }
 
-            if (k != null) {
-                CalcProdAggBuffer myagg = (CalcProdAggBuffer) agg;
+            CalcProdAggBuffer myagg = (CalcProdAggBuffer) agg;
+            readParameters(myagg, parameters);
+
+            long time = readTime(k, inputKeyOI, timeParser);
+            if (time != TimestampParser.INVALID) {
+                addValue(myagg, time, PrimitiveObjectInspectorUtils.getDouble(v, inputValOI));
+            }
+        }
 
-                if (parameters.length > 3) {
-                    myagg.addSlope(parameters[2]);
-                    myagg.addDateFormat(parameters[3]);
-                    if (parameters.length == 6) {
-                        myagg.addLastValidTime(parameters[4]);
-                        myagg.addLastValidValue(parameters[5]);
+        // 读取斜率、日期分组格式、设备编号及上一个有效点，每个分组只读取一次
+        private void readParameters(CalcProdAggBuffer myagg, Object[] parameters) throws HiveException {
+            if (myagg.dateFormat == null) {
+                // 每个分组只读取一次常量参数
+                myagg.slope = constantSlope ? slope : slopeOI.get(parameters[2]);
+                myagg.dateFormat = dateFormat != null ? dateFormat : dateFormatOI.getPrimitiveJavaObject(parameters[3]);
+            }
+            if (parameters.length == 5 && myagg.device == null && parameters[4] != null) {
+                myagg.device = PrimitiveObjectInspectorUtils.getString(parameters[4], deviceOI);
+                if (!myagg.hasLastValid) {
+                    // 增量模式：每个分组按设备编号查找一次上一天的有效点
+                    CarrySnapshot carry = snapshot();
+                    int index = carry == null ? -1 : carry.find(myagg.device);
+                    if (index >= 0) {
+                        myagg.setLastValid(carry.getTime(index), carry.getValue(index));
                     }
                 }
+            }
+            if (!myagg.hasLastValid && parameters.length == 6 && parameters[4] != null && parameters[5] != null) {
+                long lastValidTime = readTime(parameters[4], lastValidTimeOI, timeParser);
+                if (lastValidTime != TimestampParser.INVALID) {
+                    myagg.setLastValid(lastValidTime, lastValidValueOI.get(parameters[5]));
+                }
+            }
+        }
 
-                putIntoSet(k, v, myagg);
+        private void addValue(CalcProdAggBuffer myagg, long time, double value) throws HiveException {
+            metrics.addPoint();
+            try {
+                myagg.addValue(time, value);
+            } catch (IOException e) {
+                throw new HiveException("Failed to spill calc_prod points", e);
+            }
+            if (groupMaxPoints > 0 && myagg.getPoints().inMemory().size() >= groupMaxPoints) {
+                flushPoints(myagg);
             }
         }
 
@@ -191,12 +565,74 @@ public class CalcProdUDAF extends AbstractGenericUDAFResolver {
         public void merge(AggregationBuffer agg, Object partial)
                 throws HiveException {
             CalcProdAggBuffer myagg = (CalcProdAggBuffer) agg;
-            Map<Object, Object> partialResult = (Map<Object, Object>) internalMergeOI.getMap(partial);
-            for (Object i : partialResult.keySet()) {
-                putIntoSet(i, partialResult.get(i), myagg);
+            Object slopeObj = internalMergeOI.getStructFieldData(partial, slopeField);
+            Object dateFormatObj = internalMergeOI.getStructFieldData(partial, dateFormatField);
+            if (myagg.dateFormat == null && slopeObj != null && dateFormatObj != null) {
+                myagg.slope = ((DoubleObjectInspector) slopeField.getFieldObjectInspector()).get(slopeObj);
+                myagg.dateFormat = ((StringObjectInspector) dateFormatField.getFieldObjectInspector()).getPrimitiveJavaObject(dateFormatObj);
+            }
+            if (myagg.device == null && deviceField != null) {
+                Object deviceObj = internalMergeOI.getStructFieldData(partial, deviceField);
+                if (deviceObj != null) {
+                    myagg.device = ((StringObjectInspector) deviceField.getFieldObjectInspector()).getPrimitiveJavaObject(deviceObj);
+                }
+            }
+            Object lastValidTimeObj = internalMergeOI.getStructFieldData(partial, lastValidTimeField);
+            Object lastValidValueObj = internalMergeOI.getStructFieldData(partial, lastValidValueField);
+            if (!myagg.hasLastValid && lastValidTimeObj != null && lastValidValueObj != null) {
+                myagg.setLastValid(((LongObjectInspector) lastValidTimeField.getFieldObjectInspector()).get(lastValidTimeObj),
+                        ((DoubleObjectInspector) lastValidValueField.getFieldObjectInspector()).get(lastValidValueObj));
+            }
+            try {
+                if (resetInput(partial, pointsField)) {
+                    int count = partialInput.readInt();
+                    for (int i = 0; i < count; i++) {
+                        addMergedPoint(myagg, partialInput.readLong(), partialInput.readDouble());
+                    }
+                }
+                if (resetInput(partial, encodedPointsField)) {
+                    // 逐点解码追加，不生成中间对象
+                    pointDecoder.reset(partialInput);
+                    while (pointDecoder.next()) {
+                        addMergedPoint(myagg, pointDecoder.time(), pointDecoder.value());
+                    }
+                }
+                if (resetInput(partial, summariesField)) {
+                    int count = WritableUtils.readVInt(partialInput);
+                    for (int i = 0; i < count; i++) {
+                        String timeGroup = Text.readString(partialInput);
+                        SegmentSummary summary = new SegmentSummary();
+                        summary.readFields(partialInput);
+                        myagg.addSummary(timeGroup, summary);
+                    }
+                }
+            } catch (IOException e) {
+                throw new HiveException("Failed to read partial aggregation", e);
+            }
+        }
+
+        // 追加部分聚合结果中的一个点，内存中的点数达到GROUP_MAX_POINTS时提前归并或写入临时文件
+        private void addMergedPoint(CalcProdAggBuffer myagg, long time, double value) throws IOException, HiveException {
+            myagg.getPoints().add(time, value);
+            if (groupMaxPoints > 0 && myagg.getPoints().inMemory().size() >= groupMaxPoints) {
+                flushPoints(myagg);
             }
         }
 
+        // 将部分聚合结果中的二进制字段装入partialInput，字段为空时返回false
+        private boolean resetInput(Object partial, StructField field) {
+            Object obj = internalMergeOI.getStructFieldData(partial, field);
+            if (obj == null) {
+                return false;
+            }
+            BytesWritable bytes = ((BinaryObjectInspector) field.getFieldObjectInspector()).getPrimitiveWritableObject(obj);
+            if (bytes.getLength() == 0) {
+                return false;
+            }
+            partialInput.reset(bytes.getBytes(), bytes.getLength());
+            return true;
+        }
+
         @Override
         public void reset(AggregationBuffer buff) throws HiveException {
             CalcProdAggBuffer arrayBuff = (CalcProdAggBuffer) buff;
@@ -205,198 +641,774 @@ public class CalcProdUDAF extends AbstractGenericUDAFResolver {
 
         @Override
         public Object terminate(AggregationBuffer agg) throws HiveException{
+            long start = System.nanoTime();
             CalcProdAggBuffer myagg = (CalcProdAggBuffer) agg;
-            Map result = myagg.getValueMap();
+            List<Object> calcResult = new ArrayList<Object>(); // 存放最终的每组计算值
+            if (myagg.dateFormat == null) {
+                return calcResult;
+            }
+            collectParseFailures();
+            metrics.groupPoints(myagg.getPoints().size());
+            hasFinalCarry = false;
+            if (summaryOutput) {
+                summarize(myagg, calcResult);
+            } else {
+                counter = newCounter(myagg.slope);
+                try {
+                    calc(myagg, calcResult);
+                } finally {
+                    if (counter != null) {
+                        metrics.addCounterShifts(counter.getRollovers(), counter.getResets());
+                        counter = null;
+                    }
+                }
+            }
+            if (snapshotOutput != null && myagg.device != null && hasFinalCarry) {
+                snapshotWriter.put(myagg.device, finalCarryTime, finalCarryValue);
+            }
+            metrics.addDuplicates(myagg.getPoints().getDuplicates());
+            metrics.terminated(System.nanoTime() - start);
+            myagg.getPoints().release();
+            return calcResult;
+        }
 
-            List<String> otherItems = Arrays.asList(SLOPE, DATEFORMAT, LASTVALIDTIME, LASTVALIDVALUE);
-            Point lastValidPoint = null; // 存放最后一个有效点
+        /**
+         * 输出各时间分组的分段摘要，与上一个有效点无关；上一个有效点在calc_prod_rollup合并时再接入
+         */
+        private void summarize(CalcProdAggBuffer myagg, List<Object> calcResult) throws HiveException {
+            if (levels(myagg.dateFormat).length > 1) {
+                throw new HiveException("Multiple granularities in dateFormat are only supported by calc_prod");
+            }
+            if (isCounterEnabled()) {
+                throw new HiveException("calc_prod_summary does not support " + COUNTER_ROLLOVER + " or " + COUNTER_RESET);
+            }
+            DataOutputBuffer out = new DataOutputBuffer();
+            try {
+                for (GroupSummary group : collectSummaries(myagg)) {
+                    out.reset();
+                    group.summary.write(out);
+                    calcResult.add(new Object[]{group.timeGroup, Arrays.copyOf(out.getData(), out.getLength())});
+                }
+            } catch (IOException e) {
+                throw new HiveException("Failed to write calc_prod summary", e);
+            }
+        }
 
-            Map<String/*format后的时间格式*/, List<Point>> prodGroupMap = new TreeMap<String, List<Point>>(); //记录按时间格式分组后的电量数据 ，TreeMap自动根据字符串字典顺序排序
-            List<Point> preDayList = new ArrayList<Point>(); // 记录最后一个有效点
-            List<Map<String, String>> calcResult = new ArrayList<Map<String, String>>(); // 存放最终的每组计算值
-            String dateFormat = result.get(DATEFORMAT).toString();
-            SimpleDateFormat formatter= new SimpleDateFormat(dateFormat);
-            Double slopeValue = Double.valueOf(result.get(SLOPE).toString());
+        private void calc(CalcProdAggBuffer myagg, List<Object> calcResult) throws HiveException {
+            String[] levels = levels(myagg.dateFormat);
+            if (levels.length > 1) {
+                if (structOutput) {
+                    throw new HiveException("Multiple granularities in dateFormat are only supported by calc_prod");
+                }
+                calcLevels(myagg, levels, calcResult);
+                return;
+            }
+            // 存放最后一个有效点，作为下一个时间分组的第一个有效点
+            boolean hasCarry = myagg.hasLastValid;
+            long carryTime = myagg.lastValidTime;
+            double carryValue = myagg.lastValidValue;
 
-            // 将收集到的数据转换成Point类型并存放到指定的时间格式分组map里
-            for (Object i : result.keySet()) {
-                if (otherItems.contains(i.toString())) {
-                    continue;
+            if (myagg.summaries != null) {
+                // 部分聚合传来的是分段摘要：按时间顺序合并同一分组的摘要后逐组计算
+                List<GroupSummary> groups = collectSummaries(myagg);
+                if (hasCarry && !groups.isEmpty() && carryTime >= groups.get(0).summary.getFirstTime()) {
+                    LOG.warn("Last valid time " + formatTime(carryTime) + " is not earlier than the first point and is ignored with "
+                            + PARTIAL_FORMAT + "=" + PARTIAL_FORMAT_SUMMARY);
                 }
-              // 将字符串类型的时间转换成Date类型
-                Date date = null;
+                for (GroupSummary group : groups) {
+                    group.summary.finish(hasCarry, carryTime, carryValue, myagg.slope, prodResult);
+                    if (prodResult.hasLastValid()) {
+                        hasCarry = true;
+                        carryTime = prodResult.getLastValidTime();
+                        carryValue = prodResult.getLastValidValue();
+                    }
+                    addResult(calcResult, group.timeGroup, null, prodResult);
+                }
+                return;
+            }
+
+            if (myagg.getPoints().isSpilled()) {
+                // 点序列已部分写入临时文件：归并读取，逐组流式计算
                 try {
-                    date = formatter.parse(i.toString());
-                } catch (ParseException e) {
-                    e.printStackTrace();
+                    calcSpilled(myagg, hasCarry, carryTime, carryValue, calcResult);
+                } catch (IOException e) {
+                    throw new HiveException("Failed to read spilled calc_prod points", e);
                 }
+                return;
+            }
 
-                String timeGroup = formatter.format(date);  // 按照传入的指定分组格式，格式化时间
-                Point point = convertPoint(result, i); // 将时间戳-电量数据转换成Point类型
+            // 对所有点按照时间排序，同一时间保留最后写入的值
+            PointBuffer points = myagg.getPoints().inMemory();
+            metrics.addDuplicates(points.sort());
+            long[] times = points.getTimes();
+            double[] values = points.getValues();
+            int size = points.size();
+            if (counter != null) {
+                // 就地展开为单调的累计值，之后与普通电量相同
+                counter.start(hasCarry, carryTime, carryValue);
+                counter.unwrap(times, values, 0, size);
+            }
+            if (pool != null && size >= 2 * ParallelProdCalculator.MIN_TASK_POINTS) {
+                // 并行分析各时间分组的分段，再按顺序接入上一组的有效点
+                ParallelProdCalculator calculator = new ParallelProdCalculator(pool, myagg.dateFormat, myagg.slope);
+                int groups = calculator.analyze(times, values, size);
+                for (int g = 0; g < groups; g++) {
+                    calculator.finish(g, hasCarry, carryTime, carryValue, prodResult);
+                    if (prodResult.hasLastValid()) {
+                        hasCarry = true;
+                        carryTime = prodResult.getLastValidTime();
+                        carryValue = prodResult.getLastValidValue();
+                    }
+                    addResult(calcResult, calculator.label(g), null, prodResult);
+                }
+                return;
+            }
+            TimeGrouper grouper = new TimeGrouper(myagg.dateFormat);
+            // 排序后同一时间分组的点是连续的，按分组依次计算
+            int groupStart = 0;
+            while (groupStart < size) {
+                int groupEnd = grouper.groupEnd(times, groupStart, size);
+                // 计算时间分组的电量值及最后一个有效点
+                ProdKernel.calc(times, values, groupStart, groupEnd, hasCarry, carryTime, carryValue, myagg.slope, prodResult);
+                // 如果存在有效点作为下一组的第一个有效点,没有有效点沿用之前的有效点
+                if (prodResult.hasLastValid()) {
+                    hasCarry = true;
+                    carryTime = prodResult.getLastValidTime();
+                    carryValue = prodResult.getLastValidValue();
+                }
+                addResult(calcResult, grouper.label(), null, prodResult);
+                groupStart = groupEnd;
+            }
+        }
 
-                List<Point> pointList = prodGroupMap.get(timeGroup);
-                if (pointList == null) {
-                    pointList = new ArrayList<Point>();
+        /**
+         * 在同一个点序列上一次计算dateFormat中列出的各个粒度，结果按粒度的顺序依次输出，
+         * 每个粒度都从传入的上一个有效点开始接续，与分别按各粒度计算的结果相同
+         */
+        private void calcLevels(CalcProdAggBuffer myagg, String[] levels, List<Object> calcResult) throws HiveException {
+            if (myagg.summaries != null) {
+                calcLevelSummaries(myagg, levels, calcResult);
+                return;
+            }
+            if (myagg.getPoints().isSpilled()) {
+                try {
+                    calcLevelsSpilled(myagg, levels, calcResult);
+                } catch (IOException e) {
+                    throw new HiveException("Failed to read spilled calc_prod points", e);
                 }
-                if (point != null) {
-                    pointList.add(point);
-                    prodGroupMap.put(timeGroup, pointList);
+                return;
+            }
+            PointBuffer points = myagg.getPoints().inMemory();
+            metrics.addDuplicates(points.sort());
+            if (counter != null) {
+                counter.start(myagg.hasLastValid, myagg.lastValidTime, myagg.lastValidValue);
+                counter.unwrap(points.getTimes(), points.getValues(), 0, points.size());
+            }
+            // 各粒度共用相邻两点的斜率判断，较粗的粒度在较细粒度的分组起点上切分
+            MultiLevelProdCalculator calculator = new MultiLevelProdCalculator(levels, myagg.slope);
+            calculator.start(points.getTimes(), points.getValues(), points.size());
+            for (int level = 0; level < levels.length; level++) {
+                boolean hasCarry = myagg.hasLastValid;
+                long carryTime = myagg.lastValidTime;
+                double carryValue = myagg.lastValidValue;
+                int groups = calculator.groups(level);
+                for (int g = 0; g < groups; g++) {
+                    calculator.finish(g, hasCarry, carryTime, carryValue, prodResult);
+                    if (prodResult.hasLastValid()) {
+                        hasCarry = true;
+                        carryTime = prodResult.getLastValidTime();
+                        carryValue = prodResult.getLastValidValue();
+                    }
+                    addResult(calcResult, calculator.label(g), levels[level], prodResult);
                 }
+            }
+        }
 
+        /**
+         * 多粒度的分段摘要按最细的粒度生成，较粗粒度的分组由相邻的摘要合并得到
+         */
+        private void calcLevelSummaries(CalcProdAggBuffer myagg, String[] levels, List<Object> calcResult) throws HiveException {
+            List<GroupSummary> groups = collectSummaries(myagg);
+            if (myagg.hasLastValid && !groups.isEmpty() && myagg.lastValidTime >= groups.get(0).summary.getFirstTime()) {
+                LOG.warn("Last valid time " + formatTime(myagg.lastValidTime) + " is not earlier than the first point and is ignored with "
+                        + PARTIAL_FORMAT + "=" + PARTIAL_FORMAT_SUMMARY);
             }
+            String base = baseLevel(levels);
+            for (String level : levels) {
+                List<GroupSummary> levelGroups = level.equals(base) ? groups : rollUp(groups, level, myagg.slope, timeFormatter);
+                boolean hasCarry = myagg.hasLastValid;
+                long carryTime = myagg.lastValidTime;
+                double carryValue = myagg.lastValidValue;
+                for (GroupSummary group : levelGroups) {
+                    group.summary.finish(hasCarry, carryTime, carryValue, myagg.slope, prodResult);
+                    if (prodResult.hasLastValid()) {
+                        hasCarry = true;
+                        carryTime = prodResult.getLastValidTime();
+                        carryValue = prodResult.getLastValidValue();
+                    }
+                    addResult(calcResult, group.timeGroup, level, prodResult);
+                }
+            }
+        }
 
+        /**
+         * 归并读取一遍写入临时文件的点，同时流式计算各个粒度，各粒度的结果分别缓存后按粒度的顺序输出
+         */
+        private void calcLevelsSpilled(CalcProdAggBuffer myagg, String[] levels, List<Object> calcResult) throws IOException {
+            StreamingProdCalculator[] calculators = new StreamingProdCalculator[levels.length];
+            List<List<Object>> levelResults = new ArrayList<List<Object>>(levels.length);
+            for (int level = 0; level < levels.length; level++) {
+                calculators[level] = new StreamingProdCalculator(levels[level], myagg.slope);
+                calculators[level].start(myagg.hasLastValid, myagg.lastValidTime, myagg.lastValidValue);
+                levelResults.add(new ArrayList<Object>());
+            }
+            PointCursor cursor = myagg.getPoints().cursor();
+            if (counter != null) {
+                counter.start(myagg.hasLastValid, myagg.lastValidTime, myagg.lastValidValue);
+            }
+            while (cursor.next()) {
+                double value = counter != null ? counter.next(cursor.time(), cursor.value()) : cursor.value();
+                for (int level = 0; level < levels.length; level++) {
+                    if (calculators[level].add(cursor.time(), value)) {
+                        addResult(levelResults.get(level), calculators[level].closedGroup(), levels[level], calculators[level].result());
+                    }
+                }
+            }
+            for (int level = 0; level < levels.length; level++) {
+                if (calculators[level].finish()) {
+                    addResult(levelResults.get(level), calculators[level].closedGroup(), levels[level], calculators[level].result());
+                }
+                calcResult.addAll(levelResults.get(level));
+            }
+        }
 
-            // 如果存在传入的上一天最后一个有效点则转换成Point类型并存放
-            if (result.get(LASTVALIDTIME) != null && result.get(LASTVALIDVALUE) != null) {
-                lastValidPoint = convertPoint(result, null);
+        /**
+         * ROWS BETWEEN UNBOUNDED PRECEDING AND CURRENT ROW的窗口按行流式计算，其他窗口由Hive对每行重新聚合
+         */
+        @Override
+        public GenericUDAFEvaluator getWindowingEvaluator(WindowFrameDef frame) {
+            BoundaryDef start = frame.getStart();
+            BoundaryDef end = frame.getEnd();
+            // 只有ROWS窗口（RangeBoundaryDef）逐行推进；RANGE窗口（ValueBoundaryDef）的当前行包含与之排序值相同的后续行
+            if (start instanceof RangeBoundaryDef && end instanceof CurrentRowDef
+                    && start.getDirection() == WindowingSpec.Direction.PRECEDING
+                    && start.getAmt() == WindowingSpec.BoundarySpec.UNBOUNDED_AMOUNT && !summaryOutput) {
+                return new RunningEvaluator();
             }
+            return super.getWindowingEvaluator(frame);
+        }
 
-            // 对分好组的电量点进行计算，并输出最后一个有效点
-            for (Map.Entry<String, List<Point>> entry : prodGroupMap.entrySet()) {
-                String dateTime = entry.getKey();
-                List<Point> pointList = entry.getValue();
-                Point preDayPoint = null ;
+        /**
+         * 窗口函数的流式计算，要求窗口按时间排序（ORDER BY时间）：每行只更新当前时间分组的线段状态，
+         * 输出已结束的各时间分组及到当前行为止的当前分组，与对窗口内的行调用terminate()的结果相同。
+         * 已结束分组的结果只计算一次，每行复制它们的引用；只支持单个时间粒度。
+         */
+        class RunningEvaluator extends GenericUDAFEvaluator implements ISupportStreamingModeForWindowing {
 
-                // 添加第一个有效点即上天的最后一个有效点
-                if (preDayList != null && !preDayList.isEmpty()) {
-                    preDayPoint = preDayList.get(preDayList.size() - 1); // 取最后一个有效点，list里已经保证时间有序，因为是按时间顺序添加的
-                } else {
-                    preDayList = new ArrayList<Point>();
-                    preDayPoint = lastValidPoint;
+            class RunningBuffer extends AbstractAggregationBuffer {
+                private final CalcProdAggBuffer parameters = new CalcProdAggBuffer();
+                private StreamingProdCalculator calculator;
+                private CounterUnwrapper counter;
+                // 已结束的时间分组的结果
+                private final List<Object> closed = new ArrayList<Object>();
+                // 最近一行的输出，尚未由getNextResult()取走时不为null
+                private Object next;
+                private List<Object> last = new ArrayList<Object>(0);
+            }
+
+            @Override
+            public ObjectInspector init(Mode m, ObjectInspector[] parameters) throws HiveException {
+                return CalcProdUDAFEvaluator.this.init(m, parameters);
+            }
+
+            @Override
+            public AggregationBuffer getNewAggregationBuffer() throws HiveException {
+                return new RunningBuffer();
+            }
+
+            @Override
+            public void reset(AggregationBuffer agg) throws HiveException {
+                RunningBuffer buffer = (RunningBuffer) agg;
+                buffer.parameters.reset();
+                buffer.calculator = null;
+                buffer.counter = null;
+                buffer.closed.clear();
+                buffer.next = null;
+                buffer.last = new ArrayList<Object>(0);
+            }
+
+            @Override
+            public void iterate(AggregationBuffer agg, Object[] parameters) throws HiveException {
+                Object k = parameters[0];
+                Object v = parameters[1];
+                if (k == null || v == null) {
+                    throw new HiveException("Key or value is null.  k = " + k + " , v = " + v);
+                }
+                RunningBuffer buffer = (RunningBuffer) agg;
+                CalcProdAggBuffer myagg = buffer.parameters;
+                readParameters(myagg, parameters);
+                if (buffer.calculator == null) {
+                    if (levels(myagg.dateFormat).length > 1) {
+                        throw new HiveException("Multiple granularities in dateFormat are not supported over a window");
+                    }
+                    buffer.calculator = new StreamingProdCalculator(myagg.dateFormat, myagg.slope);
+                    buffer.calculator.start(myagg.hasLastValid, myagg.lastValidTime, myagg.lastValidValue);
+                    buffer.counter = newCounter(myagg.slope);
+                    if (buffer.counter != null) {
+                        buffer.counter.start(myagg.hasLastValid, myagg.lastValidTime, myagg.lastValidValue);
+                    }
                 }
-                if (preDayPoint != null) {
-                    pointList.add(preDayPoint);
+                long time = readTime(k, inputKeyOI, timeParser);
+                if (time != TimestampParser.INVALID) {
+                    metrics.addPoint();
+                    double value = PrimitiveObjectInspectorUtils.getDouble(v, inputValOI);
+                    try {
+                        if (buffer.calculator.add(time, buffer.counter != null ? buffer.counter.next(time, value) : value)) {
+                            buffer.closed.add(toResult(buffer.calculator.closedGroup(), null, buffer.calculator.result(), buffer.counter));
+                        }
+                    } catch (IllegalArgumentException e) {
+                        throw new HiveException("calc_prod over a window requires the rows ordered by timestamp: " + e.getMessage());
+                    }
+                    if (buffer.calculator.current(prodResult)) {
+                        List<Object> row = new ArrayList<Object>(buffer.closed.size() + 1);
+                        row.addAll(buffer.closed);
+                        row.add(toResult(buffer.calculator.currentGroup(), null, prodResult, buffer.counter));
+                        buffer.last = row;
+                    }
                 }
-                Collections.sort(pointList); // 对所有点按照时间排序
+                // 无法解析时间的行沿用上一行的输出
+                buffer.next = buffer.last;
+            }
 
-                // 计算时间分组的电量值及最后一个有效点
-                Map<String, String> resultMap = calcProdAlgorithm(dateTime, pointList, slopeValue, preDayPoint);
-                // 如果存在有效点加入有效点容器中,没有有效点沿用之前的有效点
-                if (resultMap.get(LASTVALIDTIME) != null && resultMap.get(LASTVALIDVALUE) != null) {
-                    preDayList.add(convertPoint(resultMap, null));
-                }
-                calcResult.add(resultMap);
+            public Object getNextResult(AggregationBuffer agg) throws HiveException {
+                RunningBuffer buffer = (RunningBuffer) agg;
+                Object next = buffer.next;
+                buffer.next = null;
+                return next;
+            }
 
+            public int getRowsRemainingAfterTerminate() throws HiveException {
+                return 0;
             }
-            return calcResult;
 
-        }
+            @Override
+            public Object terminate(AggregationBuffer agg) throws HiveException {
+                collectParseFailures();
+                return ((RunningBuffer) agg).last;
+            }
 
+            @Override
+            public Object terminatePartial(AggregationBuffer agg) throws HiveException {
+                throw new HiveException("calc_prod running evaluator does not support partial aggregation");
+            }
+
+            @Override
+            public void merge(AggregationBuffer agg, Object partial) throws HiveException {
+                throw new HiveException("calc_prod running evaluator does not support partial aggregation");
+            }
+        }
 
-        private void putIntoSet(Object key, Object val, CalcProdAggBuffer myagg) {
-            myagg.addValue(key, val);
+        private void collectParseFailures() {
+            long failures = timeParser.getFailures();
+            if (failures > 0) {
+                LOG.warn(failures + " timestamps could not be parsed as " + TimestampParser.PATTERN + " and were skipped");
+                metrics.addParseFailures(failures);
+                timeParser.resetFailures();
+            }
         }
 
         @Override
         public Object terminatePartial(AggregationBuffer agg) throws HiveException {
             CalcProdAggBuffer myagg = (CalcProdAggBuffer) agg;
-            Map<Object, Object> vals = myagg.getValueMap();
-            return vals;
+            Object[] partial = new Object[8];
+            collectParseFailures();
+            metrics.groupPoints(myagg.getPoints().size());
+            if (myagg.dateFormat != null) {
+                partial[0] = myagg.slope;
+                partial[1] = myagg.dateFormat;
+            }
+            if (myagg.hasLastValid) {
+                partial[2] = myagg.lastValidTime;
+                partial[3] = myagg.lastValidValue;
+            }
+            partial[6] = myagg.device;
+            try {
+                if (myagg.dateFormat != null && ((summaryPartial && summaryFormat(myagg) != null) || myagg.summaries != null)) {
+                    List<GroupSummary> groups = collectSummaries(myagg);
+                    DataOutputBuffer out = new DataOutputBuffer();
+                    WritableUtils.writeVInt(out, groups.size());
+                    for (GroupSummary group : groups) {
+                        Text.writeString(out, group.timeGroup);
+                        group.summary.write(out);
+                    }
+                    partial[5] = toBytes(out);
+                } else if (compressedPartial || myagg.getPoints().isSpilled()) {
+                    // 按时间顺序编码，相邻点的时间差、电量差最小；写入过临时文件的分组点数较多，raw格式下也压缩输出，
+                    // 部分聚合结果一般只有原始点的几分之一
+                    pointEncoder.clear();
+                    PointCursor cursor = myagg.getPoints().cursor();
+                    while (cursor.next()) {
+                        pointEncoder.add(cursor.time(), cursor.value());
+                    }
+                    DataOutputBuffer out = new DataOutputBuffer(
+                            WritableUtils.getVIntSize(pointEncoder.size()) + pointEncoder.encodedBytes());
+                    pointEncoder.write(out);
+                    partial[7] = toBytes(out);
+                } else {
+                    long length = myagg.getPoints().writeBytes();
+                    if (length > Integer.MAX_VALUE) {
+                        throw new HiveException("Too many calc_prod points in one group for a partial aggregation: "
+                                + myagg.getPoints().size() + ", set " + PARTIAL_FORMAT + "=" + PARTIAL_FORMAT_COMPRESSED);
+                    }
+                    DataOutputBuffer out = new DataOutputBuffer((int) length);
+                    myagg.getPoints().write(out);
+                    partial[4] = toBytes(out);
+                }
+            } catch (IOException e) {
+                throw new HiveException("Failed to write partial aggregation", e);
+            }
+            metrics.addDuplicates(myagg.getPoints().getDuplicates());
+            metrics.publishIfDue();
+            // map端hash聚合输出后直接丢弃缓冲，不调用reset()
+            myagg.getPoints().release();
+            return partial;
         }
 
-        private Point convertPoint(Map value, Object flag) {
-            Point point = new Point();
-            if (flag == null) {
-                String dateValue = value.get(LASTVALIDTIME).toString();
-                Double prodValue = Double.valueOf(value.get(LASTVALIDVALUE).toString());
-                point.setDate(dateValue);
-                point.setProd(prodValue);
-            } else {
-                point.setDate(flag.toString());
-                point.setProd(Double.valueOf(value.get(flag).toString()));
-            }
-            return point;
-        }
-
-        private Map<String, String> calcProdAlgorithm(String date, List<Point> pointList, Double slopeValue, Point preDayPoint) {
-            Double prod = 0d;
-            Point lastValidPoint = new Point();
-            if (pointList != null && !pointList.isEmpty()) {
-                List<Line> solid = new ArrayList<Line>();//实线段
-                List<Line> dotted = new ArrayList<Line>();//虚线段
-                Line dottedLine = null;
-                Line solidLine = null;
-                //1. 分出虚实线
-                for (int i = 0; i < pointList.size() - 1; i++) {
-                    Point first = pointList.get(i);
-                    Point second = pointList.get(i + 1);
-                    Line line = new Line(first, second);
-                    double slope = line.getSlope();
-                    if (slope > 0 && slope < slopeValue) {//斜率正常
-                        if (solidLine == null) {
-                            solidLine = new Line();
-                            solidLine.setFirst(first);
-                        }
-                        solidLine.setSecond(second);
-                        if (i == pointList.size() - 2) {
-                            solid.add(solidLine);
-                        }
-                        if (dottedLine != null) {
-                            dotted.add(dottedLine);
-                        }
-                        dottedLine = null;
-                    } else {//斜率不正常
-                        if (dottedLine == null) {
-                            dottedLine = new Line();
-                            dottedLine.setFirst(first);
-                        }
-                        dottedLine.setSecond(second);
-                        if (i == pointList.size() - 2) {
-                            dotted.add(dottedLine);
-                        }
-                        if (solidLine != null) {
-                            solid.add(solidLine);
+        /**
+         * 内存中的点数达到GROUP_MAX_POINTS时释放内存：map端以summary格式输出部分聚合结果时把缓冲中的原始点归并为分段摘要，
+         * 每个分组的内存只与时间分组数有关；其他情况把内存中的点排序写入临时文件，读取时归并
+         */
+        private void flushPoints(CalcProdAggBuffer myagg) throws HiveException {
+            if (!summaryPartial || myagg.dateFormat == null || !partialOutput || summaryFormat(myagg) == null) {
+                try {
+                    myagg.getPoints().spill();
+                } catch (IOException e) {
+                    throw new HiveException("Failed to spill calc_prod points", e);
+                }
+                return;
+            }
+            metrics.groupPoints(myagg.getPoints().size());
+            List<GroupSummary> groups = collectSummaries(myagg);
+            metrics.addDuplicates(myagg.getPoints().getDuplicates());
+            myagg.getPoints().clear();
+            myagg.summaries = groups;
+        }
+
+        /**
+         * 把缓冲中的原始点按时间分组生成分段摘要，与部分聚合传来的摘要一起按时间排序，合并同一分组中相邻的摘要。
+         * 同一分组的摘要时间范围重叠时无法合并，说明map端数据未按时间成段，需改用raw格式。
+         */
+        private List<GroupSummary> collectSummaries(CalcProdAggBuffer myagg) throws HiveException {
+            List<GroupSummary> fragments = new ArrayList<GroupSummary>();
+            if (!myagg.getPoints().isEmpty()) {
+                try {
+                    PointCursor cursor = myagg.getPoints().cursor();
+                    TimeGrouper grouper = new TimeGrouper(summaryFormat(myagg));
+                    SegmentSummary summary = null;
+                    while (cursor.next()) {
+                        if (grouper.startsGroup(cursor.time())) {
+                            summary = new SegmentSummary();
+                            fragments.add(new GroupSummary(grouper.label(), summary));
                         }
-                        solidLine = null;
+                        summary.append(cursor.time(), cursor.value(), myagg.slope);
                     }
+                } catch (IOException e) {
+                    throw new HiveException("Failed to read spilled calc_prod points", e);
                 }
+            }
+            if (myagg.summaries != null) {
+                fragments.addAll(myagg.summaries);
+            }
+            Collections.sort(fragments);
 
-                // 2. 连接每天有效虚线 (判断上步连续跳突连接的首尾虚线斜率是否正常，正常的话标识为实线)
-                int dottedSize = dotted.size();
-                int solidSize = solid.size();
+            List<GroupSummary> groups = new ArrayList<GroupSummary>();
+            GroupSummary current = null;
+            for (GroupSummary fragment : fragments) {
+                if (current != null && current.timeGroup.equals(fragment.timeGroup)) {
+                    if (fragment.summary.getFirstTime() <= current.summary.getLastTime()) {
+                        throw new HiveException("Overlapping partial summaries in time group " + current.timeGroup
+                                + ", input is not clustered by time; set " + PARTIAL_FORMAT + "=" + PARTIAL_FORMAT_RAW);
+                    }
+                    current.summary.merge(fragment.summary, myagg.slope);
+                } else {
+                    current = fragment;
+                    groups.add(current);
+                }
+            }
+            return groups;
+        }
 
-                if (dotted != null && !dotted.isEmpty()) {
-                    for (Line line : dotted) {
-                        double slope = line.getSlope();
-                        if (slope > 0 && slope < slopeValue) {//斜率正常
-                            solid.add(line);
-                        } else if (slope == 0d) {//死数
-                            dottedSize--;
-                        } else {//跳变
+        /**
+         * 归并读取写入临时文件的点，逐组流式计算，内存占用与分组内的点数无关
+         */
+        private void calcSpilled(CalcProdAggBuffer myagg, boolean hasCarry, long carryTime, double carryValue,
+                                 List<Object> calcResult) throws IOException {
+            PointCursor cursor = myagg.getPoints().cursor();
+            StreamingProdCalculator calculator = new StreamingProdCalculator(myagg.dateFormat, myagg.slope);
+            calculator.start(hasCarry, carryTime, carryValue);
+            if (counter != null) {
+                counter.start(hasCarry, carryTime, carryValue);
+            }
+            while (cursor.next()) {
+                double value = counter != null ? counter.next(cursor.time(), cursor.value()) : cursor.value();
+                if (calculator.add(cursor.time(), value)) {
+                    addResult(calcResult, calculator.closedGroup(), null, calculator.result());
+                }
+            }
+            if (calculator.finish()) {
+                addResult(calcResult, calculator.closedGroup(), null, calculator.result());
+            }
+        }
 
-                        }
-                    }
+        /**
+         * 生成分段摘要的时间粒度：单个粒度时即dateFormat，多个粒度时为最细的粒度，
+         * 不存在分组嵌套在其他各粒度中的粒度时返回null，部分聚合改为传输原始点
+         */
+        private String summaryFormat(CalcProdAggBuffer myagg) {
+            String[] levels = levels(myagg.dateFormat);
+            if (levels.length == 1) {
+                return myagg.dateFormat;
+            }
+            if (myagg.dateFormat.equals(baseLevelFormat)) {
+                return baseLevel;
+            }
+            String base = baseLevel(levels);
+            baseLevelFormat = myagg.dateFormat;
+            baseLevel = base;
+            if (base == null && !warnedNoBaseLevel) {
+                LOG.warn("Granularities " + myagg.dateFormat + " do not nest, partial aggregations fall back to "
+                        + PARTIAL_FORMAT_RAW + " points");
+                warnedNoBaseLevel = true;
+            }
+            return base;
+        }
+
+        private void addResult(List<Object> calcResult, String timeGroup, String granularity, ProdResult result) {
+            metrics.addResult(result);
+            hasFinalCarry = result.hasLastValid();
+            finalCarryTime = result.getLastValidTime();
+            finalCarryValue = lastValidReading(result, counter);
+            calcResult.add(toResult(timeGroup, granularity, result, counter));
+        }
+
+        private CarrySnapshot snapshot() throws HiveException {
+            if (snapshot == null && snapshotPath != null) {
+                try {
+                    snapshot = CarrySnapshot.open(new File(snapshotPath));
+                } catch (IOException e) {
+                    throw new HiveException("Failed to open calc_prod snapshot " + snapshotPath, e);
                 }
+                LOG.info("Loaded calc_prod snapshot " + snapshotPath + " with " + snapshot.size() + " devices");
+            }
+            return snapshot;
+        }
 
-                // 3. 计算有效发电量
-                for (Line line : solid) {
-                    prod += line.getProd();
+        // 任务尝试编号，没有时（如本地模式）为随机的编号
+        // 以任务尝试编号及序号命名，各尝试及同一任务中的多个calc_prod互不覆盖；先写入隐藏的临时文件，完整写出后改名提交，
+        // 失败的尝试只留下合并时忽略的隐藏文件。推测执行或重试的尝试输出相同的有效点，合并时同一设备保留时间最晚的有效点
+        private void writeSnapshot() throws IOException {
+            String name = "snapshot-" + attemptId(jobConf) + "-" + SNAPSHOT_SEQUENCE.getAndIncrement();
+            Path file = new Path(snapshotOutput, name);
+            Path temp = new Path(snapshotOutput, "." + name + ".tmp");
+            FileSystem fs = file.getFileSystem(jobConf);
+            boolean committed = false;
+            try {
+                OutputStream out = fs.create(temp, true);
+                try {
+                    snapshotWriter.write(out);
+                } finally {
+                    out.close();
+                }
+                if (!fs.rename(temp, file)) {
+                    throw new IOException("Failed to rename calc_prod snapshot " + temp + " to " + file);
+                }
+                committed = true;
+            } finally {
+                if (!committed) {
+                    fs.delete(temp, false);
                 }
+            }
+            LOG.info("Wrote calc_prod snapshot " + file + " with " + snapshotWriter.size() + " devices");
+        }
 
-                // 4. 存在有效点,输出最后一个有效点，将作为下一天的第一个有效点
-                if (!solid.isEmpty()) {
-                    Collections.sort(solid);
-                    lastValidPoint = solid.get(solid.size() - 1).getSecond();
-                } else {//当天不存在有效点
-                    //沿用前一天的有效点，将作为下一天的第一个有效点
-                    if (preDayPoint != null) {
-                        lastValidPoint = preDayPoint;
-                    }
+        boolean isCounterEnabled() {
+            return counterRollover > 0 || counterReset;
+        }
+
+        private CounterUnwrapper newCounter(double slopeLimit) {
+            return isCounterEnabled() ? new CounterUnwrapper(counterRollover, counterReset, slopeLimit) : null;
+        }
+
+        // 有效点的表计读数：按计算时使用的表计展开把展开后的值换算回原始读数，作为下一组或下一天的上一个有效点
+        private double lastValidReading(ProdResult result, CounterUnwrapper unwrapper) {
+            return unwrapper == null ? result.getLastValidValue()
+                    : unwrapper.raw(result.getLastValidTime(), result.getLastValidValue());
+        }
+
+        private String formatTime(long time) {
+            return timeFormatter.format(new Date(time));
+        }
+
+        // 输出计算结果：struct格式为(timeGroup, production, lastValidTime, lastValidValue)，否则为map<string,string>，
+        // 多个粒度时map中另有granularity；unwrapper为计算时使用的表计展开，没有时为null
+        private Object toResult(String timeGroup, String granularity, ProdResult result, CounterUnwrapper unwrapper) {
+            if (structOutput) {
+                Object[] row = new Object[4];
+                row[0] = timeGroup;
+                row[1] = result.getProduction();
+                if (result.hasLastValid()) {
+                    row[2] = new Timestamp(result.getLastValidTime());
+                    row[3] = lastValidReading(result, unwrapper);
                 }
+                return row;
+            }
+            return resultMap(timeGroup, granularity, result, lastValidReading(result, unwrapper), timeFormatter);
+        }
+    }
 
+    /**
+     * map<string,string>格式的计算结果，granularity不为null时另有granularity；lastValidValue为输出的上一个有效点读数
+     */
+    static Map<String, String> resultMap(String timeGroup, String granularity, ProdResult result, double lastValidValue,
+                                         SimpleDateFormat timeFormatter) {
+        Map<String, String> resultMap = new HashMap<String, String>();
+        resultMap.put(TIMEGROUP, timeGroup);
+        if (granularity != null) {
+            resultMap.put(GRANULARITY, granularity);
+        }
+        resultMap.put(PRODUCTION, Double.toString(result.getProduction()));
+        if (result.hasLastValid()) {
+            resultMap.put(LASTVALIDTIME, timeFormatter.format(new Date(result.getLastValidTime())));
+            resultMap.put(LASTVALIDVALUE, Double.toString(lastValidValue));
+        } else {
+            resultMap.put(LASTVALIDTIME, null);
+            resultMap.put(LASTVALIDVALUE, null);
+        }
+        return resultMap;
+    }
+
+    /**
+     * 把按第一个点的时间排序的较细分组的摘要合并为level的分组，同一分组内相邻的摘要依次合并。
+     * 摘要的时间范围重叠，或一个摘要跨越level的两个分组（level不比摘要的粒度粗）时抛出HiveException
+     */
+    static List<GroupSummary> rollUp(List<GroupSummary> groups, String level, double slope, SimpleDateFormat timeFormatter)
+            throws HiveException {
+        List<GroupSummary> levelGroups = new ArrayList<GroupSummary>();
+        TimeGrouper grouper = new TimeGrouper(level);
+        SegmentSummary merged = null;
+        long previousLast = Long.MIN_VALUE;
+        for (GroupSummary group : groups) {
+            SegmentSummary summary = group.summary;
+            if (merged != null && summary.getFirstTime() <= previousLast) {
+                throw new HiveException("Overlapping calc_prod summaries at " + timeFormatter.format(new Date(summary.getFirstTime()))
+                        + ", each time range must be summarized once");
+            }
+            previousLast = summary.getLastTime();
+            if (grouper.startsGroup(summary.getFirstTime())) {
+                merged = new SegmentSummary();
+                levelGroups.add(new GroupSummary(grouper.label(), merged));
+            }
+            // 摘要的最后一个点必须与第一个点属于同一个较粗的分组
+            if (grouper.startsGroup(summary.getLastTime())) {
+                throw new HiveException("Summary from " + timeFormatter.format(new Date(summary.getFirstTime())) + " to "
+                        + timeFormatter.format(new Date(summary.getLastTime())) + " spans more than one " + level
+                        + " group, dateFormat must be coarser than the summaries");
             }
+            merged.merge(summary, slope);
+        }
+        return levelGroups;
+    }
 
-            // 5. 输出计算结果
-            Map<String, String> resultMap = new HashMap<String, String>();
-            resultMap.put(TIMEGROUP, date);
-            resultMap.put(PRODUCTION, prod.toString());
-            resultMap.put(LASTVALIDTIME, lastValidPoint.getDate());
-            if (lastValidPoint.getProd() == null) {
-                resultMap.put(LASTVALIDVALUE, null);
-            } else {
-                resultMap.put(LASTVALIDVALUE, lastValidPoint.getProd().toString());
+    /**
+     * 拆分以|分隔的多个时间粒度，只有一个粒度时原样返回。格式本身可含逗号（如MMM d, yyyy），
+     * 格式中的|须放在单引号内
+     */
+    public static String[] levels(String dateFormat) {
+        if (dateFormat.indexOf(LEVEL_SEPARATOR) < 0) {
+            return new String[]{dateFormat};
+        }
+        List<String> levels = new ArrayList<String>();
+        for (String level : TimeGrouper.split(dateFormat, LEVEL_SEPARATOR)) {
+            if (!level.trim().isEmpty()) {
+                levels.add(level.trim());
             }
-            return resultMap;
+        }
+        return levels.isEmpty() ? new String[]{dateFormat} : levels.toArray(new String[levels.size()]);
+    }
+
+    /**
+     * 分组嵌套在其他各粒度的分组中的最细粒度，同一分组必然属于其他各粒度的同一分组；不存在时返回null
+     */
+    public static String baseLevel(String[] levels) {
+        for (String base : levels) {
+            boolean nested = true;
+            for (String level : levels) {
+                if (!level.equals(base) && !MultiLevelProdCalculator.nests(level, base)) {
+                    nested = false;
+                    break;
+                }
+            }
+            if (nested) {
+                return base;
+            }
+        }
+        return null;
+    }
+
+    public static boolean isTimeInspector(ObjectInspector oi) {
+        return oi instanceof PrimitiveObjectInspector && oi.getCategory() == ObjectInspector.Category.PRIMITIVE;
+    }
+
+    /**
+     * 读取时间为epoch毫秒：TIMESTAMP直接取值，BIGINT视为epoch毫秒，其他类型按yyyy-MM-dd HH:mm:ss文本解析。
+     * 无法解析的点在原先的斜率计算中同样无效，计数后返回TimestampParser.INVALID
+     */
+    public static long readTime(Object obj, PrimitiveObjectInspector oi, TimestampParser timeParser) {
+        switch (oi.getPrimitiveCategory()) {
+            case TIMESTAMP:
+                TimestampObjectInspector timestampOI = (TimestampObjectInspector) oi;
+                if (oi.preferWritable()) {
+                    return timestampOI.getPrimitiveWritableObject(obj).getTimestamp().getTime();
+                }
+                return timestampOI.getPrimitiveJavaObject(obj).getTime();
+            case LONG:
+                return ((LongObjectInspector) oi).get(obj);
+            case STRING:
+                StringObjectInspector stringOI = (StringObjectInspector) oi;
+                if (oi.preferWritable()) {
+                    Text text = stringOI.getPrimitiveWritableObject(obj);
+                    return timeParser.parse(text.getBytes(), 0, text.getLength());
+                }
+                return timeParser.parse(stringOI.getPrimitiveJavaObject(obj));
+            default:
+                return timeParser.parse(PrimitiveObjectInspectorUtils.getString(obj, oi));
+        }
+    }
+
+    /**
+     * 一个时间分组（或其中一段）的分段摘要，按第一个点的时间排序
+     */
+    static class GroupSummary implements Comparable<GroupSummary> {
+        private final String timeGroup;
+        private final SegmentSummary summary;
+
+        GroupSummary(String timeGroup, SegmentSummary summary) {
+            this.timeGroup = timeGroup;
+            this.summary = summary;
+        }
+
+        String getTimeGroup() {
+            return timeGroup;
+        }
+
+        SegmentSummary getSummary() {
+            return summary;
+        }
+
+        public int compareTo(GroupSummary other) {
+            long t1 = summary.getFirstTime();
+            long t2 = other.summary.getFirstTime();
+            return t1 < t2 ? -1 : (t1 == t2 ? 0 : 1);
         }
     }
 
@@ -0,0 +1,189 @@
+package com.envisioniot.hive.udfs;
+
+import com.envisioniot.hive.algorithm.ProdResult;
+import com.envisioniot.hive.algorithm.StreamingProdCalculator;
+import com.envisioniot.hive.util.TimestampParser;
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDTF;
+import org.apache.hadoop.hive.serde2.objectinspector.ConstantObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorUtils;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.StructField;
+import org.apache.hadoop.hive.serde2.objectinspector.StructObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.DoubleObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorUtils;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.StringObjectInspector;
+import org.apache.log4j.Logger;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * calc_prod的流式版本：输入按设备、时间排序，每个时间分组结束时即输出一行，只保留当前设备当前分组的状态。
+ * 计算规则与CalcProdUDAF一致。设备编号须按升序出现，只需与上一个设备比较即可发现设备切换后再次出现（输入未按设备成段）的情况，
+ * 此时抛出异常，避免该设备的状态被重置后静默输出错误结果；检查所需的内存与设备数无关。
+ *
+ */
+@Description(name = "calc_prod_stream",
+        value = "_FUNC_(device, timestamp, kwh, slope, dateFormat, lastValidTime, lastValidValue) - Returns a row "
+                + "(device, timeGroup, production, lastValidTime, lastValidValue) for every time group of every device",
+        extended = "Input must be sorted by device and timestamp, e.g. DISTRIBUTE BY device SORT BY device, ts. "
+                + "slope and dateFormat must be constants; lastValidTime and lastValidValue are optional and read from the first row of each device"
+)
+public class CalcProdUDTF extends GenericUDTF {
+    public static final Logger LOG = Logger.getLogger(CalcProdUDTF.class);
+    public static final String DEVICE = "device";
+
+    private ObjectInspector deviceOI;
+    private ObjectInspector standardDeviceOI;
+    private PrimitiveObjectInspector timeOI;
+    private PrimitiveObjectInspector kwhOI;
+    private PrimitiveObjectInspector lastValidTimeOI;
+    private DoubleObjectInspector lastValidValueOI;
+
+    private StreamingProdCalculator calculator;
+    private final TimestampParser timeParser = new TimestampParser();
+    private final Object[] forwardRow = new Object[5];
+
+    // 当前设备
+    private boolean started;
+    private Object device;
+
+    @Override
+    public StructObjectInspector initialize(StructObjectInspector argOIs) throws UDFArgumentException {
+        List<? extends StructField> fields = argOIs.getAllStructFieldRefs();
+        if (fields.size() != 5 && fields.size() != 7) {
+            throw new UDFArgumentException("5 or 7 parameters required, current is " + fields.size());
+        }
+        ObjectInspector[] parameters = new ObjectInspector[fields.size()];
+        for (int i = 0; i < parameters.length; i++) {
+            parameters[i] = fields.get(i).getFieldObjectInspector();
+        }
+        deviceOI = parameters[0];
+        standardDeviceOI = ObjectInspectorUtils.getStandardObjectInspector(deviceOI,
+                ObjectInspectorUtils.ObjectInspectorCopyOption.JAVA);
+        if (!CalcProdUDAF.isTimeInspector(parameters[1])) {
+            throw new UDFArgumentException("Timestamp must be a primitive type, current is " + parameters[1].getTypeName());
+        }
+        timeOI = (PrimitiveObjectInspector) parameters[1];
+        if (!(parameters[2] instanceof PrimitiveObjectInspector)) {
+            throw new UDFArgumentException("Kwh must be a number, current is " + parameters[2].getTypeName());
+        }
+        kwhOI = (PrimitiveObjectInspector) parameters[2];
+        if (!(parameters[3] instanceof DoubleObjectInspector && parameters[3] instanceof ConstantObjectInspector)) {
+            throw new UDFArgumentException("Slope must be a constant double.");
+        }
+        double slope = PrimitiveObjectInspectorUtils.getDouble(
+                ((ConstantObjectInspector) parameters[3]).getWritableConstantValue(), (DoubleObjectInspector) parameters[3]);
+        if (!(parameters[4] instanceof StringObjectInspector && parameters[4] instanceof ConstantObjectInspector)) {
+            throw new UDFArgumentException("DateFormat must be a constant string");
+        }
+        String dateFormat = PrimitiveObjectInspectorUtils.getString(
+                ((ConstantObjectInspector) parameters[4]).getWritableConstantValue(), (StringObjectInspector) parameters[4]);
+        try {
+            calculator = new StreamingProdCalculator(dateFormat, slope);
+        } catch (IllegalArgumentException e) {
+            throw new UDFArgumentException("Invalid dateFormat: " + dateFormat);
+        }
+        if (parameters.length == 7) {
+            if (!CalcProdUDAF.isTimeInspector(parameters[5])) {
+                throw new UDFArgumentException("Last valid time must be a string, timestamp or bigint.");
+            }
+            lastValidTimeOI = (PrimitiveObjectInspector) parameters[5];
+            if (!(parameters[6] instanceof DoubleObjectInspector)) {
+                throw new UDFArgumentException("Last valid value must be a double.");
+            }
+            lastValidValueOI = (DoubleObjectInspector) parameters[6];
+        }
+
+        List<String> fieldNames = Arrays.asList(DEVICE, CalcProdUDAF.TIMEGROUP, CalcProdUDAF.PRODUCTION,
+                CalcProdUDAF.LASTVALIDTIME, CalcProdUDAF.LASTVALIDVALUE);
+        List<ObjectInspector> fieldOIs = new ArrayList<ObjectInspector>();
+        fieldOIs.add(standardDeviceOI);
+        fieldOIs.add(PrimitiveObjectInspectorFactory.javaStringObjectInspector);
+        fieldOIs.add(PrimitiveObjectInspectorFactory.javaDoubleObjectInspector);
+        fieldOIs.add(PrimitiveObjectInspectorFactory.javaTimestampObjectInspector);
+        fieldOIs.add(PrimitiveObjectInspectorFactory.javaDoubleObjectInspector);
+        return ObjectInspectorFactory.getStandardStructObjectInspector(fieldNames, fieldOIs);
+    }
+
+    @Override
+    public void process(Object[] args) throws HiveException {
+        Object k = args[1];
+        Object v = args[2];
+        if (k == null || v == null) {
+            throw new HiveException("Key or value is null.  k = " + k + " , v = " + v);
+        }
+        int order = started ? ObjectInspectorUtils.compare(args[0], deviceOI, device, standardDeviceOI) : 1;
+        if (order != 0) {
+            if (order < 0) {
+                // 设备未按升序出现时无法判断是否已经出现过
+                throw new HiveException("Input is not sorted by device: device "
+                        + ObjectInspectorUtils.copyToStandardObject(args[0], deviceOI, ObjectInspectorUtils.ObjectInspectorCopyOption.JAVA)
+                        + " follows device " + device + ", use DISTRIBUTE BY device SORT BY device, timestamp");
+            }
+            // 新的设备：输出上一个设备的最后一个分组，读取本设备的上一个有效点
+            finishDevice();
+            device = ObjectInspectorUtils.copyToStandardObject(args[0], deviceOI, ObjectInspectorUtils.ObjectInspectorCopyOption.JAVA);
+            started = true;
+            long lastValidTime = TimestampParser.INVALID;
+            double lastValidValue = 0d;
+            if (args.length == 7 && args[5] != null && args[6] != null) {
+                lastValidTime = CalcProdUDAF.readTime(args[5], lastValidTimeOI, timeParser);
+                lastValidValue = lastValidValueOI.get(args[6]);
+            }
+            calculator.start(lastValidTime != TimestampParser.INVALID, lastValidTime, lastValidValue);
+        }
+
+        long time = CalcProdUDAF.readTime(k, timeOI, timeParser);
+        if (time == TimestampParser.INVALID) {
+            return;
+        }
+        boolean closed;
+        try {
+            closed = calculator.add(time, PrimitiveObjectInspectorUtils.getDouble(v, kwhOI));
+        } catch (IllegalArgumentException e) {
+            throw new HiveException("Input of device " + device + " is not sorted by timestamp", e);
+        }
+        if (closed) {
+            forwardGroup();
+        }
+    }
+
+    @Override
+    public void close() throws HiveException {
+        finishDevice();
+        if (timeParser.getFailures() > 0) {
+            LOG.warn(timeParser.getFailures() + " timestamps could not be parsed as " + TimestampParser.PATTERN + " and were skipped");
+            timeParser.resetFailures();
+        }
+    }
+
+    private void finishDevice() throws HiveException {
+        if (started && calculator.finish()) {
+            forwardGroup();
+        }
+    }
+
+    private void forwardGroup() throws HiveException {
+        ProdResult result = calculator.result();
+        forwardRow[0] = device;
+        forwardRow[1] = calculator.closedGroup();
+        forwardRow[2] = result.getProduction();
+        if (result.hasLastValid()) {
+            forwardRow[3] = new Timestamp(result.getLastValidTime());
+            forwardRow[4] = result.getLastValidValue();
+        } else {
+            forwardRow[3] = null;
+            forwardRow[4] = null;
+        }
+        forward(forwardRow);
+    }
+}
@@ -0,0 +1,392 @@
+package com.envisioniot.hive.util;
+
+import org.joda.time.DateTimeZone;
+import org.joda.time.chrono.ISOChronology;
+
+import java.text.FieldPosition;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+
+/**
+ * 按日期分组格式（如yyyy-MM-dd、yyyy-MM、yyyy）把按时间排序的点切分为连续的时间分组
+ * 格式由y、M、d、H、m、s、S从年开始连续组成时（如yyyy-MM-dd HH），按时区偏移表把epoch毫秒换算为本地时间后算术取整，
+ * 逐点只比较本地时间是否落在当前分组的区间内；其他格式逐点格式化后比较标签。分组标签格式化到复用的缓冲中，只在分组切换时生成。
+ * 格式之后可用分号附加选项（单引号内的分号属于格式）：
+ * tz=时区（如Asia/Shanghai、GMT+08:00），按该时区的本地时间分组及格式化标签，默认为JVM的时区；
+ * interval=定长区间（如15m、1h、1d，单位s、m、h、d，需整除一天或为整天数），按本地时间对齐的定长区间分组，标签为区间起点，
+ * 格式须能区分不同的区间（区间为格式最小单位的整数倍）。
+ * 例如yyyy-MM-dd HH:mm;interval=15m为15分钟的结算区间，yyyy-MM-dd;tz=Australia/Sydney为电站当地的日。非线程安全。
+ * 标签由各点自身的时间格式化得到，按时间相邻且标签相同的点为一组。与原先按标签归入TreeMap的区别：格式不从年开始连续时
+ * （如MM、HH），原先用分组格式解析完整的时间文本，得到的标签无意义或解析失败；现在不相邻的同名标签（如不同年份的同一月）各自成组，
+ * 需要跨年合并同名标签时应在查询中对结果再聚合。
+ *
+ */
+public class TimeGrouper {
+
+    private static final long MILLIS_PER_DAY = 86400000L;
+    // 可算术取整的格式字母，从大到小；年、月按历法取整，其余为定长
+    private static final String UNITS = "yMdHmsS";
+    private static final long[] UNIT_MILLIS = {0L, 0L, MILLIS_PER_DAY, 3600000L, 60000L, 1000L, 1L};
+    private static final int YEAR = 0;
+    private static final int MONTH = 1;
+
+    private final String pattern;
+    private final TimeZone timeZone;
+    private final SimpleDateFormat formatter;
+    private final Date date = new Date(0L);
+    private final FieldPosition fieldPosition = new FieldPosition(0);
+    private StringBuffer label = new StringBuffer();
+    private StringBuffer nextLabel = new StringBuffer();
+    private boolean started;
+
+    // 算术分组：最小的格式单位（UNITS的下标），不能算术分组时为-1；定长区间的毫秒数，没有时为0
+    private final int unit;
+    private final long interval;
+    private final ZoneOffsets offsets;
+    private final ISOChronology chronology = ISOChronology.getInstanceUTC();
+    // 定长区间的标签按UTC格式化区间起点的本地时间
+    private final SimpleDateFormat intervalFormatter;
+    // 当前分组的本地时间区间[bucketStart, bucketEnd)
+    private long bucketStart = Long.MAX_VALUE;
+    private long bucketEnd = Long.MIN_VALUE;
+
+    /**
+     * @param dateFormat 日期分组格式，可附加选项，格式或选项无效时抛出IllegalArgumentException
+     */
+    public TimeGrouper(String dateFormat) {
+        List<String> parts = split(dateFormat, ';');
+        this.pattern = parts.get(0);
+        String zoneId = null;
+        long intervalMillis = 0L;
+        for (int i = 1; i < parts.size(); i++) {
+            String option = parts.get(i).trim();
+            if (option.isEmpty()) {
+                continue;
+            }
+            int eq = option.indexOf('=');
+            String key = eq < 0 ? option : option.substring(0, eq).trim();
+            String value = eq < 0 ? "" : option.substring(eq + 1).trim();
+            if ("tz".equals(key)) {
+                zoneId = value;
+            } else if ("interval".equals(key)) {
+                intervalMillis = parseInterval(value);
+            } else {
+                throw new IllegalArgumentException("Unknown time group option '" + option + "' in " + dateFormat);
+            }
+        }
+        this.timeZone = zoneId == null ? TimeZone.getDefault() : parseZone(zoneId);
+        this.formatter = new SimpleDateFormat(pattern);
+        this.formatter.setTimeZone(timeZone);
+        this.interval = intervalMillis;
+        int patternUnit = calendarUnit(pattern);
+        if (interval > 0 && (patternUnit <= MONTH || interval % UNIT_MILLIS[patternUnit] != 0)) {
+            // 区间的标签须能区分不同的区间
+            throw new IllegalArgumentException("Interval " + interval + "ms is not a multiple of the smallest unit of " + pattern
+                    + ", expected e.g. yyyy-MM-dd HH:mm;interval=15m");
+        }
+        this.unit = interval > 0 ? -1 : patternUnit;
+        if (interval > 0 || unit >= 0) {
+            this.offsets = new ZoneOffsets(DateTimeZone.forTimeZone(timeZone));
+        } else {
+            this.offsets = null;
+        }
+        if (interval > 0) {
+            this.intervalFormatter = new SimpleDateFormat(pattern);
+            this.intervalFormatter.setTimeZone(TimeZone.getTimeZone("UTC"));
+        } else {
+            this.intervalFormatter = null;
+        }
+    }
+
+    /**
+     * 返回与times[start]同一分组的点的结束下标（不包含），之后可通过label()取得该分组的标签
+     *
+     * @param times 按时间升序排列的时间（epoch毫秒）
+     * @param start 分组起始下标
+     * @param end   可扫描的结束下标（不包含）
+     */
+    public int groupEnd(long[] times, int start, int end) {
+        if (isArithmetic()) {
+            enter(times[start]);
+            int i = start + 1;
+            while (i < end && inBucket(times[i])) {
+                i++;
+            }
+            return i;
+        }
+        label.setLength(0);
+        date.setTime(times[start]);
+        formatter.format(date, label, fieldPosition);
+        int i = start + 1;
+        while (i < end) {
+            nextLabel.setLength(0);
+            date.setTime(times[i]);
+            formatter.format(date, nextLabel, fieldPosition);
+            if (!sameContent(label, nextLabel)) {
+                break;
+            }
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * 逐点判断分组：按时间顺序依次传入每个点的时间，开始新的分组时返回true，之后可通过label()取得新分组的标签
+     */
+    public boolean startsGroup(long time) {
+        if (isArithmetic()) {
+            if (started && inBucket(time)) {
+                return false;
+            }
+            enter(time);
+            started = true;
+            return true;
+        }
+        nextLabel.setLength(0);
+        date.setTime(time);
+        formatter.format(date, nextLabel, fieldPosition);
+        if (started && sameContent(label, nextLabel)) {
+            return false;
+        }
+        StringBuffer t = label;
+        label = nextLabel;
+        nextLabel = t;
+        started = true;
+        return true;
+    }
+
+    /**
+     * 重新开始逐点判断分组，下一次startsGroup()总是返回true
+     */
+    public void reset() {
+        started = false;
+    }
+
+    /**
+     * 最近一次groupEnd()或startsGroup()所在分组的标签
+     */
+    public String label() {
+        return label.toString();
+    }
+
+    /**
+     * 单个时间所在分组的标签
+     */
+    public String label(long time) {
+        if (interval > 0) {
+            date.setTime(floor(local(time)));
+            return intervalFormatter.format(date);
+        }
+        date.setTime(time);
+        return formatter.format(date);
+    }
+
+    /**
+     * 是否按本地时间算术分组，此时key()为分组的数值键
+     */
+    public boolean isArithmetic() {
+        return unit >= 0 || interval > 0;
+    }
+
+    /**
+     * 最近一次groupEnd()或startsGroup()所在分组的数值键：分组起点的本地时间（毫秒），
+     * 与分组标签一一对应，按数值排序即按本地时间排序，只在isArithmetic()时有效
+     */
+    public long key() {
+        return bucketStart;
+    }
+
+    /**
+     * 按分隔符拆分格式文本，单引号内（SimpleDateFormat中的文本）的分隔符不拆分
+     */
+    public static List<String> split(String text, char separator) {
+        List<String> parts = new ArrayList<String>();
+        boolean quoted = false;
+        int start = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '\'') {
+                quoted = !quoted;
+            } else if (c == separator && !quoted) {
+                parts.add(text.substring(start, i));
+                start = i + 1;
+            }
+        }
+        parts.add(text.substring(start));
+        return parts;
+    }
+
+    /**
+     * coarse的同一分组是否必然包含fine的整个分组，即fine的分组嵌套在coarse的分组中
+     */
+    public static boolean nests(String coarse, String fine) {
+        TimeGrouper c = new TimeGrouper(coarse);
+        TimeGrouper f = new TimeGrouper(fine);
+        if (!c.isArithmetic() || !f.isArithmetic()) {
+            // 逐点格式化的格式只能按前缀判断，如yyyy-ww与yyyy-ww-E
+            return c.interval == 0 && f.interval == 0 && c.timeZone.getID().equals(f.timeZone.getID())
+                    && f.pattern.startsWith(c.pattern);
+        }
+        if (!c.timeZone.getID().equals(f.timeZone.getID())) {
+            return false;
+        }
+        if (c.interval > 0) {
+            return (f.interval > 0 || f.unit > MONTH) && c.interval % f.span() == 0;
+        }
+        if (f.interval > 0) {
+            return c.span() % f.interval == 0;
+        }
+        return c.unit <= f.unit;
+    }
+
+    // 本地时间所在区间的起点及终点，并格式化分组标签
+    private void enter(long time) {
+        bucketStart = floor(local(time));
+        bucketEnd = next(bucketStart);
+        label.setLength(0);
+        if (interval > 0) {
+            date.setTime(bucketStart);
+            intervalFormatter.format(date, label, fieldPosition);
+        } else {
+            date.setTime(time);
+            formatter.format(date, label, fieldPosition);
+        }
+    }
+
+    private boolean inBucket(long time) {
+        long local = local(time);
+        return local >= bucketStart && local < bucketEnd;
+    }
+
+    private long local(long time) {
+        return time + offsets.getOffset(time);
+    }
+
+    private long floor(long local) {
+        if (interval > 0) {
+            return floorDiv(local, interval) * interval;
+        }
+        if (unit == YEAR) {
+            return chronology.year().roundFloor(local);
+        }
+        if (unit == MONTH) {
+            return chronology.monthOfYear().roundFloor(local);
+        }
+        return floorDiv(local, UNIT_MILLIS[unit]) * UNIT_MILLIS[unit];
+    }
+
+    private long next(long start) {
+        if (interval > 0) {
+            return start + interval;
+        }
+        if (unit == YEAR) {
+            return chronology.years().add(start, 1);
+        }
+        if (unit == MONTH) {
+            return chronology.months().add(start, 1);
+        }
+        return start + UNIT_MILLIS[unit];
+    }
+
+    // 分组区间的最小长度，年、月按整天计
+    private long span() {
+        if (interval > 0) {
+            return interval;
+        }
+        return unit <= MONTH ? MILLIS_PER_DAY : UNIT_MILLIS[unit];
+    }
+
+    private static long floorDiv(long a, long b) {
+        long q = a / b;
+        return (a % b != 0 && (a < 0) != (b < 0)) ? q - 1 : q;
+    }
+
+    /**
+     * 格式只由从y开始连续的y、M、d、H、m、s、S组成时（引号内的文本除外）返回最小单位的下标，否则返回-1。
+     * 两位年份（yy）不同世纪的标签相同，不能算术分组
+     */
+    private static int calendarUnit(String pattern) {
+        int present = 0;
+        int smallest = -1;
+        int yearLetters = 0;
+        boolean quoted = false;
+        for (int i = 0; i < pattern.length(); i++) {
+            char c = pattern.charAt(i);
+            if (c == '\'') {
+                quoted = !quoted;
+                continue;
+            }
+            if (quoted || !((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z'))) {
+                continue;
+            }
+            int index = UNITS.indexOf(c);
+            if (index < 0) {
+                return -1;
+            }
+            if (index == YEAR) {
+                yearLetters++;
+            }
+            present |= 1 << index;
+            smallest = Math.max(smallest, index);
+        }
+        if (smallest < 0 || present != (1 << (smallest + 1)) - 1 || yearLetters == 2) {
+            return -1;
+        }
+        return smallest;
+    }
+
+    private static long parseInterval(String value) {
+        long millis;
+        try {
+            long amount = Long.parseLong(value.substring(0, value.length() - 1));
+            switch (value.charAt(value.length() - 1)) {
+                case 's':
+                    millis = amount * 1000L;
+                    break;
+                case 'm':
+                    millis = amount * 60000L;
+                    break;
+                case 'h':
+                    millis = amount * 3600000L;
+                    break;
+                case 'd':
+                    millis = amount * MILLIS_PER_DAY;
+                    break;
+                default:
+                    millis = 0L;
+            }
+        } catch (RuntimeException e) {
+            millis = 0L;
+        }
+        if (millis <= 0 || (MILLIS_PER_DAY % millis != 0 && millis % MILLIS_PER_DAY != 0)) {
+            throw new IllegalArgumentException("Invalid time group interval '" + value
+                    + "', expected e.g. 15m, 1h or 1d dividing a day or a whole number of days");
+        }
+        return millis;
+    }
+
+    private static TimeZone parseZone(String id) {
+        TimeZone zone = TimeZone.getTimeZone(id);
+        // 无法识别的时区ID会被当作GMT
+        if ("GMT".equals(zone.getID()) && !"GMT".equals(id) && !"UTC".equals(id)) {
+            throw new IllegalArgumentException("Unknown time zone '" + id + "'");
+        }
+        return zone;
+    }
+
+    private static boolean sameContent(StringBuffer a, StringBuffer b) {
+        int length = a.length();
+        if (length != b.length()) {
+            return false;
+        }
+        for (int i = length - 1; i >= 0; i--) {
+            if (a.charAt(i) != b.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
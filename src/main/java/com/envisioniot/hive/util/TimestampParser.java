@@ -0,0 +1,178 @@
+package com.envisioniot.hive.util;
+
+import java.nio.charset.Charset;
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+import org.joda.time.DateTimeZone;
+import org.joda.time.chrono.ISOChronology;
+
+/**
+ * 解析yyyy-MM-dd HH:mm:ss格式的时间戳为epoch毫秒
+ * 固定格式的文本直接按字符位置解析，并缓存最近出现的日期前缀对应的零点时间；
+ * 不符合固定格式或超出日历范围的文本（如月、日不补零，2017-02-30）交给宽松模式的SimpleDateFormat解析，
+ * 与原先一致地顺延到有效日期（2017-02-30为2017-03-02）。
+ * 与SimpleDateFormat一致，时间之后多余的字符（如毫秒部分）被忽略。
+ * 非线程安全，每个计算实例持有一个。
+ *
+ */
+public class TimestampParser {
+
+    public static final String PATTERN = "yyyy-MM-dd HH:mm:ss";
+    public static final long INVALID = Long.MIN_VALUE;
+
+    private static final int FIXED_LENGTH = 19;
+    private static final long MILLIS_PER_DAY = 86400000L;
+    private static final int CACHE_SIZE = 16;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final DateTimeZone zone;
+    private final ISOChronology utcChronology = ISOChronology.getInstanceUTC();
+    private final SimpleDateFormat fallbackFormatter;
+    private final ParsePosition fallbackPosition = new ParsePosition(0);
+
+    // 日期前缀缓存：yyyyMMdd -> 当天零点的epoch毫秒，当天存在时区偏移变化时不走缓存
+    private final int[] cachedDays = new int[CACHE_SIZE];
+    private final long[] cachedDayStarts = new long[CACHE_SIZE];
+    private final boolean[] cachedTransitions = new boolean[CACHE_SIZE];
+    private final char[] chars = new char[FIXED_LENGTH];
+
+    private long failures;
+
+    public TimestampParser() {
+        this(DateTimeZone.getDefault());
+    }
+
+    public TimestampParser(DateTimeZone zone) {
+        this.zone = zone;
+        this.fallbackFormatter = new SimpleDateFormat(PATTERN);
+        this.fallbackFormatter.setTimeZone(zone.toTimeZone());
+    }
+
+    /**
+     * 解析UTF-8编码的时间文本，无法解析时计数并返回INVALID
+     */
+    public long parse(byte[] bytes, int start, int length) {
+        if (length >= FIXED_LENGTH) {
+            for (int i = 0; i < FIXED_LENGTH; i++) {
+                chars[i] = (char) (bytes[start + i] & 0xff);
+            }
+            long time = parseFixed(chars);
+            if (time != INVALID) {
+                return time;
+            }
+        }
+        return parseFallback(new String(bytes, start, length, UTF8));
+    }
+
+    /**
+     * 解析时间文本，无法解析时计数并返回INVALID
+     */
+    public long parse(CharSequence text) {
+        if (text == null) {
+            failures++;
+            return INVALID;
+        }
+        if (text.length() >= FIXED_LENGTH) {
+            for (int i = 0; i < FIXED_LENGTH; i++) {
+                chars[i] = text.charAt(i);
+            }
+            long time = parseFixed(chars);
+            if (time != INVALID) {
+                return time;
+            }
+        }
+        return parseFallback(text.toString());
+    }
+
+    /**
+     * 无法解析的时间戳个数
+     */
+    public long getFailures() {
+        return failures;
+    }
+
+    public void resetFailures() {
+        failures = 0;
+    }
+
+    public DateTimeZone getZone() {
+        return zone;
+    }
+
+    private long parseFixed(char[] c) {
+        if (c[4] != '-' || c[7] != '-' || c[10] != ' ' || c[13] != ':' || c[16] != ':') {
+            return INVALID;
+        }
+        int year = digits(c, 0, 4);
+        int month = digits(c, 5, 2);
+        int day = digits(c, 8, 2);
+        int hour = digits(c, 11, 2);
+        int minute = digits(c, 14, 2);
+        int second = digits(c, 17, 2);
+        if (year < 0 || month < 1 || month > 12 || day < 1 || day > 31
+                || hour < 0 || hour > 23 || minute < 0 || minute > 59 || second < 0 || second > 59) {
+            return INVALID;
+        }
+        int key = year * 10000 + month * 100 + day;
+        int slot = (key ^ (key >>> 5)) & (CACHE_SIZE - 1);
+        if (cachedDays[slot] != key) {
+            long localDayStart;
+            try {
+                localDayStart = utcChronology.getDateTimeMillis(year, month, day, 0);
+            } catch (IllegalArgumentException e) {
+                return INVALID;
+            }
+            long dayStart = zone.convertLocalToUTC(localDayStart, false);
+            cachedDays[slot] = key;
+            cachedDayStarts[slot] = dayStart;
+            cachedTransitions[slot] = !zone.isFixed() && zone.nextTransition(dayStart) < dayStart + MILLIS_PER_DAY;
+        }
+        long timeOfDay = hour * 3600000L + minute * 60000L + second * 1000L;
+        if (cachedTransitions[slot]) {
+            return convertTransitionDay(utcChronology.getDateTimeMillis(year, month, day, 0) + timeOfDay);
+        }
+        return cachedDayStarts[slot] + timeOfDay;
+    }
+
+    /**
+     * 夏令时切换日按本地时间换算；本地时间重复时与SimpleDateFormat一致取较晚的时刻（标准时间）
+     */
+    private long convertTransitionDay(long localMillis) {
+        long utc = zone.convertLocalToUTC(localMillis, false);
+        long transition = zone.nextTransition(utc);
+        int offsetBefore = zone.getOffset(utc);
+        if (transition > utc && transition - utc <= MILLIS_PER_DAY) {
+            int offsetAfter = zone.getOffset(transition);
+            long later = localMillis - offsetAfter;
+            if (offsetAfter < offsetBefore && later >= transition) {
+                return later;
+            }
+        }
+        return utc;
+    }
+
+    private long parseFallback(String text) {
+        fallbackPosition.setIndex(0);
+        fallbackPosition.setErrorIndex(-1);
+        Date date = fallbackFormatter.parse(text, fallbackPosition);
+        if (date != null) {
+            return date.getTime();
+        }
+        failures++;
+        return INVALID;
+    }
+
+    private static int digits(char[] c, int start, int count) {
+        int value = 0;
+        for (int i = start; i < start + count; i++) {
+            int d = c[i] - '0';
+            if (d < 0 || d > 9) {
+                return -1;
+            }
+            value = value * 10 + d;
+        }
+        return value;
+    }
+}
@@ -0,0 +1,104 @@
+package com.envisioniot.hive.util;
+
+import org.joda.time.DateTimeZone;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * 时区偏移表：预先计算时区在1970年至2100年之间的所有偏移变化，按epoch毫秒查找本地时间的偏移
+ * 各实例共用同一时区的只读表；连续查找相近的时间时直接命中上一次所在的区间，不再二分查找。
+ * 表外的时间直接查询时区。非线程安全，每个分组器持有一个。
+ *
+ */
+public class ZoneOffsets {
+
+    private static final long TABLE_START = 0L;
+    private static final long TABLE_END = 4102444800000L; // 2100-01-01T00:00:00Z
+    private static final ConcurrentMap<String, Table> TABLES = new ConcurrentHashMap<String, Table>();
+
+    private final DateTimeZone zone;
+    private final Table table;
+    // 上一次查找所在的区间
+    private long rangeStart = Long.MAX_VALUE;
+    private long rangeEnd = Long.MIN_VALUE;
+    private int rangeOffset;
+
+    public ZoneOffsets(DateTimeZone zone) {
+        this.zone = zone;
+        Table cached = TABLES.get(zone.getID());
+        if (cached == null) {
+            cached = new Table(zone);
+            TABLES.putIfAbsent(zone.getID(), cached);
+        }
+        this.table = cached;
+    }
+
+    /**
+     * 时间对应的本地时间偏移（毫秒），本地时间 = time + getOffset(time)
+     */
+    public int getOffset(long time) {
+        if (time >= rangeStart && time < rangeEnd) {
+            return rangeOffset;
+        }
+        if (time < TABLE_START || time >= TABLE_END) {
+            return zone.getOffset(time);
+        }
+        long[] transitions = table.transitions;
+        int low = 0;
+        int high = transitions.length - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (transitions[mid] <= time) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        rangeStart = transitions[low];
+        rangeEnd = low + 1 < transitions.length ? transitions[low + 1] : TABLE_END;
+        rangeOffset = table.offsets[low];
+        return rangeOffset;
+    }
+
+    /**
+     * 表中偏移变化的次数，固定偏移的时区为0
+     */
+    public int getTransitionCount() {
+        return table.transitions.length - 1;
+    }
+
+    @Override
+    public String toString() {
+        return "ZoneOffsets [zone=" + zone.getID() + ", transitions=" + getTransitionCount() + "]";
+    }
+
+    // 一个时区的偏移变化：从transitions[i]起偏移为offsets[i]，transitions[0]为表的起点
+    private static final class Table {
+        private final long[] transitions;
+        private final int[] offsets;
+
+        Table(DateTimeZone zone) {
+            long[] times = new long[16];
+            int[] values = new int[16];
+            int count = 0;
+            long time = TABLE_START;
+            while (time < TABLE_END) {
+                if (count == times.length) {
+                    times = Arrays.copyOf(times, count * 2);
+                    values = Arrays.copyOf(values, count * 2);
+                }
+                times[count] = time;
+                values[count++] = zone.getOffset(time);
+                long next = zone.nextTransition(time);
+                if (next <= time) {
+                    break;
+                }
+                time = next;
+            }
+            this.transitions = Arrays.copyOf(times, count);
+            this.offsets = Arrays.copyOf(values, count);
+        }
+    }
+}
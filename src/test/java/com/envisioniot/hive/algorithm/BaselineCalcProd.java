@@ -0,0 +1,198 @@
+package com.envisioniot.hive.algorithm;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * 原先calc_prod的terminate()及calcProdAlgorithm()，作为各计算方式的对照
+ * 按时间文本去重（后写入的覆盖），按分组标签归入TreeMap，逐组排序后按实线、虚线计算，斜率按文本解析的时间计算。
+ *
+ */
+final class BaselineCalcProd {
+
+    static final String PATTERN = "yyyy-MM-dd HH:mm:ss";
+
+    private BaselineCalcProd() {
+    }
+
+    /**
+     * @param timestamps    按写入顺序的时间文本，可重复
+     * @param values        与timestamps对应的电量
+     * @param lastValidTime 上一天最后一个有效点的时间，没有时为null
+     * @return 各时间分组的结果：timeGroup、production、lastValidTime、lastValidValue
+     */
+    static List<Map<String, String>> calc(List<String> timestamps, List<Double> values, double slopeValue, String dateFormat,
+                                          String lastValidTime, Double lastValidValue) {
+        Map<String, Double> readings = new LinkedHashMap<String, Double>();
+        for (int i = 0; i < timestamps.size(); i++) {
+            readings.put(timestamps.get(i), values.get(i));
+        }
+        SimpleDateFormat formatter = new SimpleDateFormat(dateFormat);
+        Map<String, List<Point>> prodGroupMap = new TreeMap<String, List<Point>>();
+        for (Map.Entry<String, Double> reading : readings.entrySet()) {
+            Date date;
+            try {
+                date = formatter.parse(reading.getKey());
+            } catch (ParseException e) {
+                throw new IllegalArgumentException(e);
+            }
+            String timeGroup = formatter.format(date);
+            List<Point> pointList = prodGroupMap.get(timeGroup);
+            if (pointList == null) {
+                pointList = new ArrayList<Point>();
+                prodGroupMap.put(timeGroup, pointList);
+            }
+            pointList.add(new Point(reading.getKey(), reading.getValue()));
+        }
+        Point lastValidPoint = lastValidTime == null ? null : new Point(lastValidTime, lastValidValue);
+
+        List<Point> preDayList = new ArrayList<Point>();
+        List<Map<String, String>> calcResult = new ArrayList<Map<String, String>>();
+        for (Map.Entry<String, List<Point>> entry : prodGroupMap.entrySet()) {
+            List<Point> pointList = entry.getValue();
+            Point preDayPoint = preDayList.isEmpty() ? lastValidPoint : preDayList.get(preDayList.size() - 1);
+            if (preDayPoint != null) {
+                pointList.add(preDayPoint);
+            }
+            Collections.sort(pointList);
+            Map<String, String> resultMap = calcProdAlgorithm(entry.getKey(), pointList, slopeValue, preDayPoint);
+            if (resultMap.get(ProdKernelTest.LASTVALIDTIME) != null && resultMap.get(ProdKernelTest.LASTVALIDVALUE) != null) {
+                preDayList.add(new Point(resultMap.get(ProdKernelTest.LASTVALIDTIME),
+                        Double.valueOf(resultMap.get(ProdKernelTest.LASTVALIDVALUE))));
+            }
+            calcResult.add(resultMap);
+        }
+        return calcResult;
+    }
+
+    private static Map<String, String> calcProdAlgorithm(String date, List<Point> pointList, Double slopeValue, Point preDayPoint) {
+        Double prod = 0d;
+        Point lastValidPoint = new Point();
+        if (pointList != null && !pointList.isEmpty()) {
+            List<Segment> solid = new ArrayList<Segment>();
+            List<Segment> dotted = new ArrayList<Segment>();
+            Segment dottedLine = null;
+            Segment solidLine = null;
+            for (int i = 0; i < pointList.size() - 1; i++) {
+                Point first = pointList.get(i);
+                Point second = pointList.get(i + 1);
+                double slope = new Segment(first, second).getSlope();
+                if (slope > 0 && slope < slopeValue) {
+                    if (solidLine == null) {
+                        solidLine = new Segment(first, null);
+                    }
+                    solidLine.second = second;
+                    if (i == pointList.size() - 2) {
+                        solid.add(solidLine);
+                    }
+                    if (dottedLine != null) {
+                        dotted.add(dottedLine);
+                    }
+                    dottedLine = null;
+                } else {
+                    if (dottedLine == null) {
+                        dottedLine = new Segment(first, null);
+                    }
+                    dottedLine.second = second;
+                    if (i == pointList.size() - 2) {
+                        dotted.add(dottedLine);
+                    }
+                    if (solidLine != null) {
+                        solid.add(solidLine);
+                    }
+                    solidLine = null;
+                }
+            }
+            for (Segment line : dotted) {
+                double slope = line.getSlope();
+                if (slope > 0 && slope < slopeValue) {
+                    solid.add(line);
+                }
+            }
+            for (Segment line : solid) {
+                prod += line.second.getProd() - line.first.getProd();
+            }
+            if (!solid.isEmpty()) {
+                Collections.sort(solid);
+                lastValidPoint = solid.get(solid.size() - 1).second;
+            } else if (preDayPoint != null) {
+                lastValidPoint = preDayPoint;
+            }
+        }
+        Map<String, String> resultMap = new HashMap<String, String>();
+        resultMap.put(ProdKernelTest.TIMEGROUP, date);
+        resultMap.put(ProdKernelTest.PRODUCTION, prod.toString());
+        resultMap.put(ProdKernelTest.LASTVALIDTIME, lastValidPoint.getDate());
+        resultMap.put(ProdKernelTest.LASTVALIDVALUE, lastValidPoint.getProd() == null ? null : lastValidPoint.getProd().toString());
+        return resultMap;
+    }
+
+    // 原先Line的斜率计算：按文本解析两点的时间
+    // 原先的计算实体：时间文本及电量，按时间文本排序
+    private static final class Point implements Comparable<Point> {
+        private final String date;
+        private final Double prod;
+
+        Point() {
+            this(null, null);
+        }
+
+        Point(String date, Double prod) {
+            this.date = date;
+            this.prod = prod;
+        }
+
+        String getDate() {
+            return date;
+        }
+
+        Double getProd() {
+            return prod;
+        }
+
+        public int compareTo(Point other) {
+            if (other != null && date != null) {
+                return date.compareTo(other.getDate());
+            }
+            return 0;
+        }
+    }
+
+    private static final class Segment implements Comparable<Segment> {
+        private final SimpleDateFormat sdf = new SimpleDateFormat(PATTERN);
+        private final Point first;
+        private Point second;
+
+        Segment(Point first, Point second) {
+            this.first = first;
+            this.second = second;
+        }
+
+        double getSlope() {
+            Date x1;
+            Date x2;
+            try {
+                x1 = sdf.parse(first.getDate());
+                x2 = sdf.parse(second.getDate());
+            } catch (ParseException e) {
+                return -1d;
+            }
+            if (x1.getTime() == x2.getTime()) {
+                return -1d;
+            }
+            return (second.getProd() - first.getProd()) / ((x2.getTime() - x1.getTime()) * 1.0 / 3600000);
+        }
+
+        public int compareTo(Segment other) {
+            return first.getDate().compareTo(other.first.getDate());
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package com.envisioniot.hive.algorithm;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * 溢出、清零的判断及展开值换算回读数；小幅下降不视为清零
+ */
+public class CounterUnwrapperTest {
+
+    private static final long HOUR = ProdKernel.MILLIS_PER_HOUR;
+
+    @Test
+    public void rollover() {
+        CounterUnwrapper counter = new CounterUnwrapper(1000d, true, 10d);
+        counter.start(false, 0L, 0d);
+        assertEquals(990d, counter.next(0L, 990d), 0d);
+        assertEquals(995d, counter.next(HOUR, 995d), 0d);
+        // 按回绕计算的斜率为(1000 - 995 + 3) / 1 = 8
+        assertEquals(1003d, counter.next(2 * HOUR, 3d), 0d);
+        assertEquals(1009d, counter.next(3 * HOUR, 9d), 0d);
+        assertEquals(1, counter.getRollovers());
+        assertEquals(0, counter.getResets());
+        assertEquals(995d, counter.raw(HOUR, 995d), 0d);
+        assertEquals(9d, counter.raw(3 * HOUR, 1009d), 0d);
+    }
+
+    @Test
+    public void reset() {
+        CounterUnwrapper counter = new CounterUnwrapper(0d, true, 10d);
+        counter.start(true, 0L, 500d);
+        assertEquals(510d, counter.next(HOUR, 510d), 0d);
+        assertEquals(512d, counter.next(2 * HOUR, 2d), 0d);
+        assertEquals(517d, counter.next(3 * HOUR, 7d), 0d);
+        assertEquals(0, counter.getRollovers());
+        assertEquals(1, counter.getResets());
+        assertEquals(7d, counter.raw(3 * HOUR, 517d), 0d);
+    }
+
+    @Test
+    public void resetDisabled() {
+        CounterUnwrapper counter = new CounterUnwrapper(0d, false, 10d);
+        counter.start(true, 0L, 500d);
+        assertEquals(510d, counter.next(HOUR, 510d), 0d);
+        assertEquals(2d, counter.next(2 * HOUR, 2d), 0d);
+        assertEquals(0, counter.getResets());
+    }
+
+    /**
+     * 间隔较长的小幅下降（200降到199.5，从0开始的斜率远低于上限）不是清零，读数不偏移
+     */
+    @Test
+    public void smallDropIsNotReset() {
+        CounterUnwrapper counter = new CounterUnwrapper(0d, true, 10d);
+        counter.start(true, 0L, 200d);
+        assertEquals(199.5d, counter.next(24 * HOUR, 199.5d), 0d);
+        assertEquals(205d, counter.next(25 * HOUR, 205d), 0d);
+        assertEquals(0, counter.getResets());
+
+        // 同时判断溢出时，回绕后的斜率不正常，也不视为溢出
+        CounterUnwrapper withRollover = new CounterUnwrapper(1000d, true, 10d);
+        withRollover.start(true, 0L, 200d);
+        assertEquals(199.5d, withRollover.next(24 * HOUR, 199.5d), 0d);
+        assertEquals(0, withRollover.getRollovers());
+        assertEquals(0, withRollover.getResets());
+    }
+}
@@ -0,0 +1,359 @@
+package com.envisioniot.hive.algorithm;
+
+import com.envisioniot.hive.entity.PointBuffer;
+import com.envisioniot.hive.util.TimeGrouper;
+import org.junit.AfterClass;
+import org.junit.Test;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * 各计算方式与原先calcProdAlgorithm()的对照：ProdKernel、GroupSegments、ParallelProdCalculator、MultiLevelProdCalculator
+ * 的结果（含发电量的浮点值）须完全一致，SegmentSummary合并只有发电量累加顺序上的舍入差别
+ */
+public class ProdKernelTest {
+
+    static final String TIMEGROUP = "timeGroup";
+    static final String PRODUCTION = "production";
+    static final String LASTVALIDTIME = "lastValidTime";
+    static final String LASTVALIDVALUE = "lastValidValue";
+
+    private static final String[] FORMATS = {"yyyy-MM-dd HH", "yyyy-MM-dd", "yyyy-MM", "yyyy"};
+    private static final long START = 1451577600000L;
+    private static final ForkJoinPool POOL = new ForkJoinPool(4);
+
+    @AfterClass
+    public static void shutdownPool() {
+        POOL.shutdown();
+    }
+
+    /**
+     * 带跳变、负值、死数及重复时间的读数，按写入顺序（打乱）
+     */
+    static Series series(long seed, int n) {
+        Random random = new Random(seed);
+        SimpleDateFormat formatter = new SimpleDateFormat(BaselineCalcProd.PATTERN);
+        Series series = new Series();
+        double value = 1000 + random.nextInt(1000);
+        long time = START + seed * 3600000L;
+        for (int i = 0; i < n; i++) {
+            time += 60000L * (1 + (random.nextInt(10) == 0 ? random.nextInt(120) : 0));
+            int kind = random.nextInt(40);
+            if (kind == 0) {
+                value += 5000;//跳变
+            } else if (kind == 1) {
+                value -= 300;
+            } else if (kind >= 6 || random.nextInt(3) == 0) {
+                value += Math.round(random.nextDouble() * 2000) / 1000.0;
+            }//其余为死数
+            series.add(formatter.format(new Date(time)), value);
+            if (random.nextInt(50) == 0) {
+                series.add(formatter.format(new Date(time)), value + 1);//重复时间
+            }
+        }
+        series.shuffle(random);
+        return series;
+    }
+
+    @Test
+    public void kernelMatchesBaseline() {
+        for (long seed = 1; seed <= 12; seed++) {
+            Series series = series(seed, 3000);
+            for (String format : FORMATS) {
+                for (Carry carry : carries(series)) {
+                    List<Map<String, String>> expected = series.baseline(20, format, carry);
+                    assertResults(expected, kernel(series, 20, format, carry), 0d, seed + " " + format + " " + carry);
+                    assertResults(expected, segments(series, 20, format, carry), 0d, "segments " + seed + " " + format + " " + carry);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void parallelMatchesBaseline() {
+        for (long seed = 1; seed <= 3; seed++) {
+            Series series = series(seed, 50000);
+            for (String format : new String[]{"yyyy-MM-dd", "yyyy-MM"}) {
+                for (Carry carry : carries(series)) {
+                    List<Map<String, String>> expected = series.baseline(20, format, carry);
+                    PointBuffer points = series.sorted();
+                    ParallelProdCalculator calculator = new ParallelProdCalculator(POOL, format, 20);
+                    int groups = calculator.analyze(points.getTimes(), points.getValues(), points.size());
+                    List<Map<String, String>> actual = new ArrayList<Map<String, String>>();
+                    Chain chain = new Chain(carry);
+                    ProdResult result = new ProdResult();
+                    for (int g = 0; g < groups; g++) {
+                        calculator.finish(g, chain.hasCarry, chain.time, chain.value, result);
+                        actual.add(chain.next(calculator.label(g), result));
+                    }
+                    assertResults(expected, actual, 0d, "parallel " + seed + " " + format + " " + carry);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void multiLevelMatchesBaseline() {
+        String[] levels = {"yyyy-MM-dd", "yyyy-MM-dd HH", "yyyy"};
+        for (long seed = 1; seed <= 8; seed++) {
+            Series series = series(seed, 5000);
+            for (Carry carry : carries(series)) {
+                PointBuffer points = series.sorted();
+                MultiLevelProdCalculator calculator = new MultiLevelProdCalculator(levels, 20);
+                calculator.start(points.getTimes(), points.getValues(), points.size());
+                ProdResult result = new ProdResult();
+                for (int level = 0; level < levels.length; level++) {
+                    List<Map<String, String>> actual = new ArrayList<Map<String, String>>();
+                    Chain chain = new Chain(carry);
+                    int groups = calculator.groups(level);
+                    for (int g = 0; g < groups; g++) {
+                        calculator.finish(g, chain.hasCarry, chain.time, chain.value, result);
+                        actual.add(chain.next(calculator.label(g), result));
+                    }
+                    assertResults(series.baseline(20, levels[level], carry), actual, 0d,
+                            "levels " + seed + " " + levels[level] + " " + carry);
+                }
+            }
+        }
+    }
+
+    /**
+     * 按小时生成的分段摘要合并为日、月后计算，与原先直接按日、月计算的结果一致
+     */
+    @Test
+    public void summaryRollupMatchesBaseline() {
+        for (long seed = 1; seed <= 8; seed++) {
+            Series series = series(seed, 5000);
+            PointBuffer points = series.sorted();
+            long[] times = points.getTimes();
+            double[] values = points.getValues();
+            List<SegmentSummary> hours = new ArrayList<SegmentSummary>();
+            TimeGrouper hourGrouper = new TimeGrouper("yyyy-MM-dd HH");
+            int groupStart = 0;
+            while (groupStart < points.size()) {
+                int groupEnd = hourGrouper.groupEnd(times, groupStart, points.size());
+                SegmentSummary summary = new SegmentSummary();
+                summary.append(times, values, groupStart, groupEnd, 20);
+                hours.add(summary);
+                groupStart = groupEnd;
+            }
+            for (String format : new String[]{"yyyy-MM-dd", "yyyy-MM"}) {
+                // 摘要只接入早于第一个点的有效点
+                for (Carry carry : new Carry[]{Carry.NONE, new Carry(times[0] - 600000L, values[0] - 1)}) {
+                    List<Map<String, String>> actual = new ArrayList<Map<String, String>>();
+                    TimeGrouper grouper = new TimeGrouper(format);
+                    List<String> labels = new ArrayList<String>();
+                    List<SegmentSummary> merged = new ArrayList<SegmentSummary>();
+                    for (SegmentSummary hour : hours) {
+                        if (grouper.startsGroup(hour.getFirstTime())) {
+                            labels.add(grouper.label());
+                            merged.add(new SegmentSummary());
+                        }
+                        merged.get(merged.size() - 1).merge(hour, 20);
+                    }
+                    Chain chain = new Chain(carry);
+                    ProdResult result = new ProdResult();
+                    for (int g = 0; g < merged.size(); g++) {
+                        merged.get(g).finish(chain.hasCarry, chain.time, chain.value, 20, result);
+                        actual.add(chain.next(labels.get(g), result));
+                    }
+                    assertResults(series.baseline(20, format, carry), actual, 1e-9, "rollup " + seed + " " + format + " " + carry);
+                }
+            }
+        }
+    }
+
+    /**
+     * 上一个有效点：没有、早于第一个点、与第一个点同时、在点之间、晚于所有点
+     */
+    static Carry[] carries(Series series) {
+        PointBuffer points = series.sorted();
+        long[] times = points.getTimes();
+        double[] values = points.getValues();
+        int last = points.size() - 1;
+        return new Carry[]{
+                Carry.NONE,
+                new Carry(times[0] - 3600000L, values[0] - 2),
+                new Carry(times[0], values[0] - 0.5),
+                new Carry(times[last / 3] + 1000L, values[last / 3] + 0.25),
+                new Carry(times[last] + 60000L, values[last] + 3)
+        };
+    }
+
+    static List<Map<String, String>> kernel(Series series, double slope, String format, Carry carry) {
+        PointBuffer points = series.sorted();
+        List<Map<String, String>> results = new ArrayList<Map<String, String>>();
+        TimeGrouper grouper = new TimeGrouper(format);
+        Chain chain = new Chain(carry);
+        ProdResult result = new ProdResult();
+        int groupStart = 0;
+        while (groupStart < points.size()) {
+            int groupEnd = grouper.groupEnd(points.getTimes(), groupStart, points.size());
+            ProdKernel.calc(points.getTimes(), points.getValues(), groupStart, groupEnd,
+                    chain.hasCarry, chain.time, chain.value, slope, result);
+            results.add(chain.next(grouper.label(), result));
+            groupStart = groupEnd;
+        }
+        return results;
+    }
+
+    // 与ParallelProdCalculator相同：有效点早于分组时由GroupSegments接入，否则逐点计算
+    private static List<Map<String, String>> segments(Series series, double slope, String format, Carry carry) {
+        PointBuffer points = series.sorted();
+        long[] times = points.getTimes();
+        double[] values = points.getValues();
+        List<Map<String, String>> results = new ArrayList<Map<String, String>>();
+        TimeGrouper grouper = new TimeGrouper(format);
+        GroupSegments segments = new GroupSegments();
+        Chain chain = new Chain(carry);
+        ProdResult result = new ProdResult();
+        int groupStart = 0;
+        while (groupStart < points.size()) {
+            int groupEnd = grouper.groupEnd(times, groupStart, points.size());
+            if (chain.hasCarry && chain.time >= times[groupStart]) {
+                ProdKernel.calc(times, values, groupStart, groupEnd, true, chain.time, chain.value, slope, result);
+            } else {
+                segments.analyze(times, values, groupStart, groupEnd, slope);
+                segments.finish(times, values, chain.hasCarry, chain.time, chain.value, slope, result);
+            }
+            results.add(chain.next(grouper.label(), result));
+            groupStart = groupEnd;
+        }
+        return results;
+    }
+
+    static void assertResults(List<Map<String, String>> expected, List<Map<String, String>> actual, double tolerance, String message) {
+        assertEquals(message + " groups", expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            Map<String, String> e = expected.get(i);
+            Map<String, String> a = actual.get(i);
+            String group = message + " " + e.get(TIMEGROUP);
+            assertEquals(group, e.get(TIMEGROUP), a.get(TIMEGROUP));
+            if (tolerance == 0d) {
+                assertEquals(group, e.get(PRODUCTION), a.get(PRODUCTION));
+            } else {
+                double production = Double.parseDouble(e.get(PRODUCTION));
+                assertEquals(group, production, Double.parseDouble(a.get(PRODUCTION)), tolerance * Math.max(1d, Math.abs(production)));
+            }
+            assertEquals(group, e.get(LASTVALIDTIME), a.get(LASTVALIDTIME));
+            assertEquals(group, e.get(LASTVALIDVALUE), a.get(LASTVALIDVALUE));
+        }
+    }
+
+    /**
+     * 写入顺序的读数
+     */
+    static final class Series {
+        final List<String> timestamps = new ArrayList<String>();
+        final List<Double> values = new ArrayList<Double>();
+        private final SimpleDateFormat parser = new SimpleDateFormat(BaselineCalcProd.PATTERN);
+
+        void add(String timestamp, double value) {
+            timestamps.add(timestamp);
+            values.add(value);
+        }
+
+        void shuffle(Random random) {
+            for (int i = timestamps.size() - 1; i > 0; i--) {
+                int j = random.nextInt(i + 1);
+                String t = timestamps.get(i);
+                timestamps.set(i, timestamps.get(j));
+                timestamps.set(j, t);
+                Double v = values.get(i);
+                values.set(i, values.get(j));
+                values.set(j, v);
+            }
+        }
+
+        long time(int i) {
+            try {
+                return parser.parse(timestamps.get(i)).getTime();
+            } catch (java.text.ParseException e) {
+                throw new IllegalArgumentException(e);
+            }
+        }
+
+        PointBuffer sorted() {
+            PointBuffer points = new PointBuffer();
+            for (int i = 0; i < timestamps.size(); i++) {
+                points.add(time(i), values.get(i));
+            }
+            points.sort();
+            return points;
+        }
+
+        List<Map<String, String>> baseline(double slope, String format, Carry carry) {
+            return BaselineCalcProd.calc(timestamps, values, slope, format,
+                    carry.present ? format(carry.time) : null, carry.present ? carry.value : null);
+        }
+    }
+
+    /**
+     * 传入的上一个有效点
+     */
+    static final class Carry {
+        static final Carry NONE = new Carry();
+        final boolean present;
+        final long time;
+        final double value;
+
+        private Carry() {
+            present = false;
+            time = 0L;
+            value = 0d;
+        }
+
+        Carry(long time, double value) {
+            present = true;
+            this.time = time;
+            this.value = value;
+        }
+
+        @Override
+        public String toString() {
+            return present ? "carry " + format(time) + "," + value : "no carry";
+        }
+    }
+
+    /**
+     * 逐组接续上一组的有效点，并把结果转为原先的map格式
+     */
+    static final class Chain {
+        boolean hasCarry;
+        long time;
+        double value;
+
+        Chain(Carry carry) {
+            hasCarry = carry.present;
+            time = carry.time;
+            value = carry.value;
+        }
+
+        Map<String, String> next(String label, ProdResult result) {
+            if (result.hasLastValid()) {
+                hasCarry = true;
+                time = result.getLastValidTime();
+                value = result.getLastValidValue();
+            }
+            Map<String, String> map = new HashMap<String, String>();
+            map.put(TIMEGROUP, label);
+            map.put(PRODUCTION, Double.toString(result.getProduction()));
+            map.put(LASTVALIDTIME, result.hasLastValid() ? format(result.getLastValidTime()) : null);
+            map.put(LASTVALIDVALUE, result.hasLastValid() ? Double.toString(result.getLastValidValue()) : null);
+            return map;
+        }
+    }
+
+    static String format(long time) {
+        return new SimpleDateFormat(BaselineCalcProd.PATTERN).format(new Date(time));
+    }
+}
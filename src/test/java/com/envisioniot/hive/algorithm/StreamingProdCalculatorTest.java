@@ -0,0 +1,102 @@
+package com.envisioniot.hive.algorithm;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 逐点计算与ProdKernel对照：发电量（含浮点舍入）、最后一个有效点完全一致，含与点时间相同的上一个有效点及重复时间
+ */
+public class StreamingProdCalculatorTest {
+
+    private static final String[] FORMATS = {"yyyy-MM-dd HH", "yyyy-MM-dd", "yyyy-MM"};
+
+    @Test
+    public void matchesKernel() {
+        for (long seed = 1; seed <= 12; seed++) {
+            ProdKernelTest.Series series = ProdKernelTest.series(seed, 3000);
+            for (String format : FORMATS) {
+                for (ProdKernelTest.Carry carry : ProdKernelTest.carries(series)) {
+                    List<Map<String, String>> expected = ProdKernelTest.kernel(series, 20, format, carry);
+                    ProdKernelTest.assertResults(expected, streaming(series, 20, format, carry), 0d,
+                            "streaming " + seed + " " + format + " " + carry);
+                    ProdKernelTest.assertResults(series.baseline(20, format, carry), expected, 0d,
+                            "baseline " + seed + " " + format + " " + carry);
+                }
+            }
+        }
+    }
+
+    /**
+     * current()与在当前点结束分组的结果一致，且不影响之后的计算
+     */
+    @Test
+    public void currentMatchesFinish() {
+        ProdKernelTest.Series series = ProdKernelTest.series(7, 300);
+        int[] order = timeOrder(series);
+        for (ProdKernelTest.Carry carry : ProdKernelTest.carries(series)) {
+            StreamingProdCalculator calculator = new StreamingProdCalculator("yyyy-MM-dd HH", 20);
+            calculator.start(carry.present, carry.time, carry.value);
+            ProdResult current = new ProdResult();
+            for (int n = 0; n < order.length; n++) {
+                calculator.add(series.time(order[n]), series.values.get(order[n]));
+                assertTrue(calculator.current(current));
+
+                StreamingProdCalculator prefix = new StreamingProdCalculator("yyyy-MM-dd HH", 20);
+                prefix.start(carry.present, carry.time, carry.value);
+                for (int i = 0; i <= n; i++) {
+                    prefix.add(series.time(order[i]), series.values.get(order[i]));
+                }
+                assertTrue(prefix.finish());
+                String message = carry + " point " + n;
+                assertEquals(message, prefix.closedGroup(), calculator.currentGroup());
+                assertEquals(message, prefix.result().getProduction(), current.getProduction(), 0d);
+                assertEquals(message, prefix.result().hasLastValid(), current.hasLastValid());
+                assertEquals(message, prefix.result().getLastValidTime(), current.getLastValidTime());
+                assertEquals(message, prefix.result().getLastValidValue(), current.getLastValidValue(), 0d);
+            }
+        }
+    }
+
+    private static List<Map<String, String>> streaming(ProdKernelTest.Series series, double slope, String format,
+                                                       ProdKernelTest.Carry carry) {
+        List<Map<String, String>> results = new ArrayList<Map<String, String>>();
+        ProdKernelTest.Chain chain = new ProdKernelTest.Chain(carry);
+        StreamingProdCalculator calculator = new StreamingProdCalculator(format, slope);
+        calculator.start(carry.present, carry.time, carry.value);
+        for (int i : timeOrder(series)) {
+            if (calculator.add(series.time(i), series.values.get(i))) {
+                results.add(chain.next(calculator.closedGroup(), calculator.result()));
+            }
+        }
+        if (calculator.finish()) {
+            results.add(chain.next(calculator.closedGroup(), calculator.result()));
+        }
+        return results;
+    }
+
+    // 按时间稳定排序的下标，同一时间的点保持写入顺序
+    private static int[] timeOrder(final ProdKernelTest.Series series) {
+        Integer[] order = new Integer[series.timestamps.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return series.timestamps.get(a).compareTo(series.timestamps.get(b));
+            }
+        });
+        int[] result = new int[order.length];
+        for (int i = 0; i < order.length; i++) {
+            result[i] = order[i];
+        }
+        return result;
+    }
+}
@@ -0,0 +1,128 @@
+package com.envisioniot.hive.backfill;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 按手工计算的结果核对backfill的输出：上一个有效点接入第一个分组，没有数据的日期不输出，
+ * 空缺之后的第一个点与上一个有效点之间斜率正常时电量计入，首尾斜率正常的跳变计为有效
+ */
+public class BackfillRunnerTest {
+
+    private File base;
+
+    @Before
+    public void createDir() throws IOException {
+        base = File.createTempFile("backfill-", "");
+        assertTrue(base.delete());
+        assertTrue(new File(base, "input/part=1").mkdirs());
+    }
+
+    @After
+    public void deleteDir() {
+        delete(base);
+    }
+
+    @Test
+    public void carryAndGaps() throws IOException {
+        // inv-01带上一个有效点(01-01 23:00, 100)
+        write(new File(base, "lastValid.csv"),
+                "device,lastValidTime,lastValidValue",
+                "inv-01,2016-01-01 23:00:00,100");
+        // 同一文件中设备的行交错，同一设备内乱序
+        write(new File(base, "input/meters.csv"),
+                "device,ts,kwh",
+                "inv-02,2016-01-02 09:00:00,55",
+                "inv-01,2016-01-02 02:00:00,150",
+                "inv-01,2016-01-02 00:00:00,105",
+                "inv-02,2016-01-02 08:00:00,50",
+                "inv-01,2016-01-02 01:00:00,110",
+                "inv-01,2016-01-02 04:00:00,122",
+                "inv-01,2016-01-02 03:00:00,118",
+                "inv-02,2016-01-02 11:00:00,5060",
+                "inv-02,2016-01-02 10:00:00,5055",
+                "inv-01,2016-01-04 13:00:00,135",
+                "inv-01,2016-01-04 10:00:00,130",
+                "inv-01,2016-01-04 11:00:00,130",
+                "inv-02,2016-01-03 12:00:00,5070",
+                "inv-01,2016-01-04 12:00:00,130",
+                "inv-01,not a time,1");
+        write(new File(base, "input/part=1/single.csv"),
+                "inv-03,2016-01-02 12:00:00,7");
+
+        Map<String, BackfillRunner.LastValid> lastValid = BackfillRunner.readLastValid(new File(base, "lastValid.csv"));
+        assertEquals(1, lastValid.size());
+        BackfillRunner runner = new BackfillRunner(10d, "yyyy-MM-dd", lastValid, 2);
+        File output = new File(base, "output");
+        runner.run(new File(base, "input"), output);
+
+        assertEquals(Arrays.asList(
+                "device,timeGroup,production,lastValidTime,lastValidValue",
+                // 100 -> 105 -> 110 正常，跳到150再回落到118，110 -> 118斜率为4，虚线计为有效，共122 - 100
+                "inv-01,2016-01-02,22.0,2016-01-02 04:00:00,122.0",
+                // 01-03没有数据；01-02 04:00的122到10:00的130斜率正常，之后的死数无效
+                "inv-01,2016-01-04,13.0,2016-01-04 13:00:00,135.0",
+                // 跳变5000的虚线段无效，前后两段各5
+                "inv-02,2016-01-02,10.0,2016-01-02 11:00:00,5060.0",
+                "inv-02,2016-01-03,10.0,2016-01-03 12:00:00,5070.0"),
+                read(new File(output, "part-meters.csv")));
+        // 只有一个点、没有上一个有效点：发电量为0，没有有效点
+        assertEquals(Arrays.asList(
+                "device,timeGroup,production,lastValidTime,lastValidValue",
+                "inv-03,2016-01-02,0.0,,"),
+                read(new File(output, "part-single.csv")));
+    }
+
+    private static void write(File file, String... lines) throws IOException {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            for (String line : lines) {
+                writer.write(line);
+                writer.write('\n');
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static List<String> read(File file) throws IOException {
+        List<String> lines = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines.add(line);
+            }
+        } finally {
+            reader.close();
+        }
+        return lines;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
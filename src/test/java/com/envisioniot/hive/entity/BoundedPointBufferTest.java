@@ -0,0 +1,130 @@
+package com.envisioniot.hive.entity;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BoundedPointBufferTest {
+
+    private static final long MEMORY_LIMIT = 64 * 1024;
+
+    private File spillDir;
+
+    @Before
+    public void createDir() throws IOException {
+        File base = File.createTempFile("bounded-", "");
+        assertTrue(base.delete());
+        spillDir = new File(base, "spill");
+    }
+
+    @After
+    public void deleteDir() {
+        File[] files = spillDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        spillDir.delete();
+        spillDir.getParentFile().delete();
+    }
+
+    /**
+     * 超出内存上限后写入临时文件，归并读取的结果与PointBuffer排序去重一致，数组容量及排序的归并数组不超过上限
+     */
+    @Test
+    public void spillsWithinMemoryLimit() throws IOException {
+        BoundedPointBuffer buffer = new BoundedPointBuffer(MEMORY_LIMIT, spillDir);
+        PointBuffer expected = new PointBuffer();
+        Random random = new Random(11);
+        int count = 200000;
+        for (int i = 0; i < count; i++) {
+            long time = random.nextInt(150000) * 1000L;
+            double value = random.nextDouble();
+            buffer.add(time, value);
+            expected.add(time, value);
+            assertTrue(buffer.inMemory().capacityBytes() * 2 <= MEMORY_LIMIT);
+        }
+        assertTrue(buffer.isSpilled());
+        assertTrue(spillDir.isDirectory());
+        int removed = expected.sort();
+
+        for (int pass = 0; pass < 2; pass++) {
+            PointCursor cursor = buffer.cursor();
+            int i = 0;
+            while (cursor.next()) {
+                assertEquals(expected.getTime(i), cursor.time());
+                assertEquals(expected.getValue(i), cursor.value(), 0d);
+                i++;
+            }
+            assertEquals(expected.size(), i);
+            // 重复读取不重复计入
+            assertEquals(removed, buffer.getDuplicates());
+            assertEquals(count, expected.size() + buffer.getDuplicates());
+        }
+
+        buffer.clear();
+        assertTrue(buffer.isEmpty());
+        assertEquals(0, spillDir.list().length);
+    }
+
+    @Test
+    public void staysInMemoryBelowLimit() throws IOException {
+        BoundedPointBuffer buffer = new BoundedPointBuffer(MEMORY_LIMIT, spillDir);
+        for (int i = 0; i < 1000; i++) {
+            buffer.add(i * 1000L, i);
+        }
+        assertFalse(buffer.isSpilled());
+        assertFalse(spillDir.exists());
+        assertEquals(1000, buffer.inMemory().size());
+    }
+
+    /**
+     * 共用任务的内存预算：预算用尽后各缓冲不再扩容而是写入临时文件，读取结果不变；清空或归还后预算恢复为0
+     */
+    @Test
+    public void sharesTaskBudget() throws IOException {
+        MemoryBudget budget = new MemoryBudget(MEMORY_LIMIT);
+        BoundedPointBuffer first = new BoundedPointBuffer(-1L, spillDir, budget);
+        BoundedPointBuffer second = new BoundedPointBuffer(-1L, spillDir, budget);
+        for (int i = 0; i < 5000; i++) {
+            first.add(i * 1000L, i);
+        }
+        assertTrue(first.isSpilled());
+        assertTrue(budget.isExhausted());
+        int firstCapacity = first.inMemory().capacity();
+        for (int i = 0; i < 5000; i++) {
+            second.add((5000 - i) * 1000L, i);
+        }
+        assertTrue(second.isSpilled());
+        assertTrue(second.inMemory().capacity() < 2 * 1024);
+        assertEquals(firstCapacity, first.inMemory().capacity());
+        assertEquals(2L * 16 * (first.inMemory().capacity() + second.inMemory().capacity()), budget.getUsedBytes());
+
+        PointCursor cursor = second.cursor();
+        long expected = 1;
+        while (cursor.next()) {
+            assertEquals(expected * 1000L, cursor.time());
+            assertEquals(5000 - expected, cursor.value(), 0d);
+            expected++;
+        }
+        assertEquals(5001, expected);
+
+        first.clear();
+        second.release();
+        assertEquals(0L, budget.getUsedBytes());
+        // 归还后继续写入时重新计入
+        second.add(0L, 0d);
+        assertEquals(2L * 16 * second.inMemory().capacity(), budget.getUsedBytes());
+        second.clear();
+        assertEquals(0L, budget.getUsedBytes());
+    }
+}
@@ -0,0 +1,87 @@
+package com.envisioniot.hive.entity;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class CarrySnapshotTest {
+
+    private File file;
+
+    @Before
+    public void createFile() throws IOException {
+        file = File.createTempFile("snapshot-", ".cps");
+    }
+
+    @After
+    public void deleteFile() {
+        file.delete();
+    }
+
+    /**
+     * 写出后按设备编号查找，同一设备保留时间最晚的有效点，不存在的编号返回-1
+     */
+    @Test
+    public void writesAndFinds() throws IOException {
+        CarrySnapshot.Writer writer = new CarrySnapshot.Writer();
+        Random random = new Random(5);
+        int count = 1000;
+        for (int i = 0; i < count; i++) {
+            writer.put(device(i), 1000L * i, i + 0.5);
+        }
+        // 较早的有效点被忽略，较晚的覆盖
+        writer.put(device(7), 0L, -1d);
+        writer.put(device(8), 1000L * 8 + 1, 99d);
+        writer.put("设备-电表", 42L, 4.2);
+        writer.write(file);
+
+        CarrySnapshot snapshot = CarrySnapshot.open(file);
+        assertEquals(count + 1, snapshot.size());
+        for (int n = 0; n < 200; n++) {
+            int i = random.nextInt(count);
+            int index = snapshot.find(device(i));
+            assertEquals(device(i), snapshot.getDevice(index));
+            assertEquals(i == 8 ? 8001L : 1000L * i, snapshot.getTime(index));
+            assertEquals(i == 8 ? 99d : i + 0.5, snapshot.getValue(index), 0d);
+        }
+        int index = snapshot.find("设备-电表");
+        assertEquals(42L, snapshot.getTime(index));
+        assertEquals(-1, snapshot.find("missing"));
+        assertEquals(-1, snapshot.find(""));
+        byte[] key = ("xx" + device(3)).getBytes("UTF-8");
+        assertEquals(snapshot.find(device(3)), snapshot.find(key, 2, key.length - 2));
+    }
+
+    /**
+     * 合并多个快照时同一设备保留时间最晚的有效点
+     */
+    @Test
+    public void mergesLatestCarry() throws IOException {
+        CarrySnapshot.Writer previous = new CarrySnapshot.Writer();
+        previous.put("a", 100L, 1d);
+        previous.put("b", 100L, 2d);
+        previous.write(file);
+
+        CarrySnapshot.Writer merged = new CarrySnapshot.Writer();
+        merged.put("b", 200L, 3d);
+        merged.put("c", 50L, 4d);
+        merged.putAll(CarrySnapshot.open(file));
+        merged.write(file);
+
+        CarrySnapshot snapshot = CarrySnapshot.open(file);
+        assertEquals(3, snapshot.size());
+        assertEquals(100L, snapshot.getTime(snapshot.find("a")));
+        assertEquals(3d, snapshot.getValue(snapshot.find("b")), 0d);
+        assertEquals(50L, snapshot.getTime(snapshot.find("c")));
+    }
+
+    private static String device(int i) {
+        return "device-" + Integer.toString(i * 7919, 36);
+    }
+}
@@ -0,0 +1,139 @@
+package com.envisioniot.hive.entity;
+
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * PointEncoder编码后由PointDecoder逐点读出，时间及电量的位完全一致
+ */
+public class PointCodecTest {
+
+    private final PointEncoder encoder = new PointEncoder();
+    private final PointDecoder decoder = new PointDecoder();
+
+    @Test
+    public void emptyStream() throws IOException {
+        DataInputBuffer in = encode(new long[0], new double[0]);
+        decoder.reset(in);
+        assertEquals(0, decoder.remaining());
+        assertFalse(decoder.next());
+    }
+
+    @Test
+    public void identicalValuesAtFixedInterval() throws IOException {
+        long[] times = new long[1000];
+        double[] values = new double[1000];
+        for (int i = 0; i < times.length; i++) {
+            times[i] = 1451577600000L + i * 60000L;
+            values[i] = 1234.5d;
+        }
+        roundTrip(times, values);
+        // 第一个点128位，第二个点的时间差按20位一档写出，之后的点时间与电量各只需1位
+        assertEquals((128 + 4 + 20 + 1 + 2 * (times.length - 2) + 7) / 8, encoder.encodedBytes());
+    }
+
+    @Test
+    public void specialValues() throws IOException {
+        double[] values = {0d, -0d, Double.NaN, Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY,
+                Double.MIN_VALUE, Double.MAX_VALUE, -Double.MAX_VALUE, Double.longBitsToDouble(0x7ff8000000000123L), 1d};
+        long[] times = new long[values.length];
+        for (int i = 0; i < times.length; i++) {
+            times[i] = i * 1000L;
+        }
+        roundTrip(times, values);
+    }
+
+    /**
+     * 时间差跨越各档二阶差分的边界及64位的完整写出，含很大的间隔与时间差减小（负的二阶差分）
+     */
+    @Test
+    public void timestampGaps() throws IOException {
+        long[] times = {
+                0L, 1000L, 2000L, 2063L, 2127L, 4174L, 4175L, 528464L, 528465L,
+                10L * 365 * 86400000L, 10L * 365 * 86400000L + 1, Long.MAX_VALUE / 2, Long.MAX_VALUE / 2 + 60000L,
+                Long.MAX_VALUE / 2 + 60001L, Long.MAX_VALUE / 2 + 60002L
+        };
+        double[] values = new double[times.length];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = i * 0.5d;
+        }
+        roundTrip(times, values);
+    }
+
+    /**
+     * 排序后的真实数据：采集周期抖动使相邻的时间差时大时小，电量有跳变、停滞及回退
+     */
+    @Test
+    public void jitteredSortedSeries() throws IOException {
+        Random random = new Random(7);
+        long[] times = new long[5000];
+        double[] values = new double[times.length];
+        long time = -86400000L;
+        double value = 500d;
+        for (int i = 0; i < times.length; i++) {
+            time += random.nextInt(50) == 0 ? 1 + random.nextInt(3600000) : 60000L + random.nextInt(2001) - 1000;
+            int kind = random.nextInt(20);
+            if (kind == 0) {
+                value = random.nextDouble() * 1e6;
+            } else if (kind < 15) {
+                value += Math.round(random.nextDouble() * 2000) / 1000.0;
+            }
+            times[i] = time;
+            values[i] = value;
+        }
+        roundTrip(times, values);
+    }
+
+    /**
+     * 乱序写入时也能正确编码
+     */
+    @Test
+    public void unsortedTimes() throws IOException {
+        long[] times = {5000L, 1000L, 9000L, 9000L, -3000L, Long.MIN_VALUE, Long.MAX_VALUE, 0L};
+        double[] values = {1d, 2d, 3d, 3d, 4d, 5d, 6d, 7d};
+        roundTrip(times, values);
+    }
+
+    /**
+     * 编码器清空后重复使用，与新的编码器结果相同
+     */
+    @Test
+    public void reuseAfterClear() throws IOException {
+        roundTrip(new long[]{1L, 5L, 2L}, new double[]{Double.NaN, 1d, -1d});
+        roundTrip(new long[]{100L, 200L}, new double[]{3d, 3d});
+    }
+
+    private void roundTrip(long[] times, double[] values) throws IOException {
+        DataInputBuffer in = encode(times, values);
+        decoder.reset(in);
+        assertEquals(times.length, decoder.remaining());
+        for (int i = 0; i < times.length; i++) {
+            assertTrue(decoder.next());
+            assertEquals("time " + i, times[i], decoder.time());
+            assertEquals("value " + i, Double.doubleToRawLongBits(values[i]), Double.doubleToRawLongBits(decoder.value()));
+        }
+        assertFalse(decoder.next());
+        assertEquals(0, decoder.remaining());
+    }
+
+    private DataInputBuffer encode(long[] times, double[] values) throws IOException {
+        encoder.clear();
+        for (int i = 0; i < times.length; i++) {
+            encoder.add(times[i], values[i]);
+        }
+        assertEquals(times.length, encoder.size());
+        DataOutputBuffer out = new DataOutputBuffer();
+        encoder.write(out);
+        DataInputBuffer in = new DataInputBuffer();
+        in.reset(out.getData(), out.getLength());
+        return in;
+    }
+}
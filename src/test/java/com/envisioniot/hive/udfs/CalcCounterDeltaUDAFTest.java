@@ -0,0 +1,214 @@
+package com.envisioniot.hive.udfs;
+
+import org.apache.hadoop.hive.ql.exec.MapredContext;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator.AggregationBuffer;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator.Mode;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
+import org.apache.hadoop.mapred.JobConf;
+import org.junit.After;
+import org.junit.Test;
+
+import java.sql.Timestamp;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * calc_counter_delta的用量与按同样的溢出、清零设置计算的calc_prod一致，溢出、清零次数计入发生时所在的时间分组
+ */
+public class CalcCounterDeltaUDAFTest {
+
+    private static final String CARRY_TIME = "2016-01-01 23:00:00";
+
+    private final ObjectInspector[] inputOIs = {
+            PrimitiveObjectInspectorFactory.javaStringObjectInspector,
+            PrimitiveObjectInspectorFactory.javaDoubleObjectInspector,
+            PrimitiveObjectInspectorFactory.javaDoubleObjectInspector,
+            PrimitiveObjectInspectorFactory.javaStringObjectInspector,
+            PrimitiveObjectInspectorFactory.javaDoubleObjectInspector,
+            PrimitiveObjectInspectorFactory.javaBooleanObjectInspector,
+            PrimitiveObjectInspectorFactory.javaStringObjectInspector,
+            PrimitiveObjectInspectorFactory.javaDoubleObjectInspector
+    };
+
+    @After
+    public void closeContext() {
+        MapredContext.close();
+    }
+
+    /**
+     * 寄存器上限1000、斜率上限10：01-03的第一个点回绕，01-04的第二个点清零，读数乱序
+     */
+    @Test
+    public void handComputedRolloverAndReset() throws Exception {
+        List<Object[]> rows = new ArrayList<Object[]>();
+        rows.add(row("2016-01-04 01:00:00", 2d, 1000d, 10d, 990d));
+        rows.add(row("2016-01-02 01:00:00", 999d, 1000d, 10d, 990d));
+        rows.add(row("2016-01-03 00:00:00", 3d, 1000d, 10d, 990d));
+        rows.add(row("2016-01-04 02:00:00", 7d, 1000d, 10d, 990d));
+        rows.add(row("2016-01-02 00:00:00", 995d, 1000d, 10d, 990d));
+        rows.add(row("2016-01-04 00:00:00", 12d, 1000d, 10d, 990d));
+        rows.add(row("2016-01-03 01:00:00", 8d, 1000d, 10d, 990d));
+
+        List<?> result = (List<?>) complete(evaluator(-1L), rows);
+        assertEquals(3, result.size());
+        // 990 -> 995 -> 999
+        assertRow(result.get(0), "2016-01-02", 9d, "2016-01-02 01:00:00", 999d, 0, 0);
+        // 999 -> 3回绕为1003 -> 1008
+        assertRow(result.get(1), "2016-01-03", 9d, "2016-01-03 01:00:00", 8d, 1, 0);
+        // 1008 -> 1012 -> 2清零后为1014 -> 1019
+        assertRow(result.get(2), "2016-01-04", 11d, "2016-01-04 02:00:00", 7d, 0, 1);
+    }
+
+    /**
+     * 多次回绕及清零的分钟读数，一次完成计算及经两个map部分聚合（缓冲很小，写入临时文件）后合并，结果与calc_prod相同
+     */
+    @Test
+    public void matchesCalcProdWithCounterSettings() throws Exception {
+        List<Object[]> rows = rows(4000);
+        List<?> expected = calcProd(rows);
+        assertTrue(expected.size() > 1);
+
+        List<?> completed = (List<?>) complete(evaluator(-1L), rows);
+        assertMatches(expected, completed);
+        int rollovers = 0;
+        int resets = 0;
+        for (Object row : completed) {
+            rollovers += (Integer) ((Object[]) row)[4];
+            resets += (Integer) ((Object[]) row)[5];
+        }
+        assertEquals(3, rollovers);
+        assertEquals(1, resets);
+
+        List<Object> partials = new ArrayList<Object>();
+        ObjectInspector partialOI = null;
+        for (int m = 0; m < 2; m++) {
+            GenericUDAFEvaluator mapper = evaluator(4096L);
+            partialOI = mapper.init(Mode.PARTIAL1, inputOIs);
+            AggregationBuffer buffer = mapper.getNewAggregationBuffer();
+            for (int i = m; i < rows.size(); i += 2) {
+                mapper.iterate(buffer, rows.get(i));
+            }
+            partials.add(mapper.terminatePartial(buffer));
+            mapper.close();
+        }
+        GenericUDAFEvaluator reducer = evaluator(4096L);
+        reducer.init(Mode.FINAL, new ObjectInspector[]{partialOI});
+        AggregationBuffer buffer = reducer.getNewAggregationBuffer();
+        for (Object partial : partials) {
+            reducer.merge(buffer, partial);
+        }
+        assertEquals(completed.size(), ((List<?>) reducer.terminate(buffer)).size());
+        reducer.reset(buffer);
+        for (Object partial : partials) {
+            reducer.merge(buffer, partial);
+        }
+        List<?> merged = (List<?>) reducer.terminate(buffer);
+        for (int i = 0; i < completed.size(); i++) {
+            assertArrayEquals((Object[]) completed.get(i), (Object[]) merged.get(i));
+        }
+        reducer.close();
+    }
+
+    private static void assertRow(Object result, String timeGroup, double delta, String lastValidTime, double lastValidValue,
+                                  int rollovers, int resets) throws Exception {
+        Object[] row = (Object[]) result;
+        assertEquals(timeGroup, row[0]);
+        assertEquals(delta, (Double) row[1], 1e-9);
+        assertEquals(new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").parse(lastValidTime).getTime(), ((Timestamp) row[2]).getTime());
+        assertEquals(lastValidValue, (Double) row[3], 1e-9);
+        assertEquals(rollovers, row[4]);
+        assertEquals(resets, row[5]);
+    }
+
+    // 前4个字段与calc_prod_struct的结果相同
+    private static void assertMatches(List<?> expected, List<?> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertArrayEquals("group " + i, (Object[]) expected.get(i), Arrays.copyOf((Object[]) actual.get(i), 4));
+        }
+    }
+
+    private List<?> calcProd(List<Object[]> rows) throws Exception {
+        JobConf conf = new JobConf();
+        conf.set(CalcProdUDAF.COUNTER_ROLLOVER, "10000");
+        conf.setBoolean(CalcProdUDAF.COUNTER_RESET, true);
+        MapredContext.init(true, conf);
+        GenericUDAFEvaluator evaluator = new CalcProdStructUDAF().getEvaluator(new TypeInfo[0]);
+        evaluator.configure(MapredContext.get());
+        ObjectInspector[] oIs = {inputOIs[0], inputOIs[1], inputOIs[2], inputOIs[3], inputOIs[6], inputOIs[7]};
+        List<Object[]> input = new ArrayList<Object[]>(rows.size());
+        for (Object[] row : rows) {
+            input.add(new Object[]{row[0], row[1], row[2], row[3], row[6], row[7]});
+        }
+        evaluator.init(Mode.COMPLETE, oIs);
+        AggregationBuffer buffer = evaluator.getNewAggregationBuffer();
+        for (Object[] row : input) {
+            evaluator.iterate(buffer, row);
+        }
+        return (List<?>) evaluator.terminate(buffer);
+    }
+
+    private Object complete(GenericUDAFEvaluator evaluator, List<Object[]> rows) throws Exception {
+        evaluator.init(Mode.COMPLETE, inputOIs);
+        AggregationBuffer buffer = evaluator.getNewAggregationBuffer();
+        for (Object[] row : rows) {
+            evaluator.iterate(buffer, row);
+        }
+        return evaluator.terminate(buffer);
+    }
+
+    private static GenericUDAFEvaluator evaluator(long bufferMemoryBytes) {
+        JobConf conf = new JobConf();
+        conf.setLong(CalcProdUDAF.BUFFER_MEMORY_BYTES, bufferMemoryBytes);
+        MapredContext.init(true, conf);
+        GenericUDAFEvaluator evaluator = new CalcCounterDeltaUDAF.CalcCounterDeltaUDAFEvaluator();
+        evaluator.configure(MapredContext.get());
+        return evaluator;
+    }
+
+    private static Object[] row(String time, double value, double rollover, double slope, double lastValidValue) {
+        return new Object[]{time, value, slope, "yyyy-MM-dd", rollover, true, CARRY_TIME, lastValidValue};
+    }
+
+    // 上一个有效点之后寄存器上限10000的分钟读数，含3次回绕、1次清零、跳变及死数，乱序
+    private static List<Object[]> rows(int count) throws ParseException {
+        Random random = new Random(9);
+        SimpleDateFormat formatter = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+        List<Object[]> rows = new ArrayList<Object[]>();
+        double value = 9000d;
+        long time = formatter.parse("2016-01-02 00:00:00").getTime();
+        for (int i = 0; i < count; i++) {
+            time += 60000L;
+            int kind = random.nextInt(1500);
+            if (kind == 0) {
+                value = Math.round(random.nextDouble() * 100) / 1000.0;
+            } else if (kind < 20) {
+                // 跳变不跨过寄存器上限，回绕都由正常增长引起
+                if (value < 9000d) {
+                    value += 500;
+                }
+            } else if (kind > 150) {
+                value += Math.round(random.nextDouble() * 8000) / 1000.0;
+            }
+            if (value >= 10000d) {
+                value -= 10000d;
+            }
+            rows.add(row(formatter.format(new Date(time)), value, 10000d, 1000d, 8990d));
+        }
+        Collections.shuffle(rows, random);
+        return rows;
+    }
+}
@@ -0,0 +1,216 @@
+package com.envisioniot.hive.udfs;
+
+import org.apache.hadoop.hive.ql.exec.MapredContext;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator.AggregationBuffer;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator.Mode;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
+import org.apache.hadoop.mapred.JobConf;
+import org.junit.After;
+import org.junit.Test;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * 按天保存的分段摘要合并为按月的发电量，与calc_prod直接按月计算原始点的结果一致（发电量只有累加顺序上的舍入差别）
+ */
+public class CalcProdRollupUDAFTest {
+
+    private static final String CARRY_TIME = "2015-12-31 12:00:00";
+    private static final double CARRY_VALUE = 900d;
+
+    private final ObjectInspector[] pointOIs = {
+            PrimitiveObjectInspectorFactory.javaStringObjectInspector,
+            PrimitiveObjectInspectorFactory.javaDoubleObjectInspector,
+            PrimitiveObjectInspectorFactory.javaDoubleObjectInspector,
+            PrimitiveObjectInspectorFactory.javaStringObjectInspector,
+            PrimitiveObjectInspectorFactory.javaStringObjectInspector,
+            PrimitiveObjectInspectorFactory.javaDoubleObjectInspector
+    };
+    private final ObjectInspector[] rollupOIs = {
+            PrimitiveObjectInspectorFactory.javaByteArrayObjectInspector,
+            PrimitiveObjectInspectorFactory.javaDoubleObjectInspector,
+            PrimitiveObjectInspectorFactory.javaStringObjectInspector,
+            PrimitiveObjectInspectorFactory.javaStringObjectInspector,
+            PrimitiveObjectInspectorFactory.javaDoubleObjectInspector
+    };
+
+    @After
+    public void closeContext() {
+        MapredContext.close();
+    }
+
+    /**
+     * 乱序输入的按天摘要接入上一个有效点后按月合并，一次完成计算及经两个map部分聚合后合并的结果相同
+     */
+    @Test
+    public void dailySummariesRollUpToMonthlyCalcProd() throws Exception {
+        List<Object[]> rows = rows(new Random(11));
+        List<Object[]> summaries = summaries(rows, "yyyy-MM-dd");
+        assertEquals(50, summaries.size());
+        Collections.shuffle(summaries, new Random(3));
+        List<?> expected = (List<?>) complete(calcProd(), pointOIs, withCarry(rows, "yyyy-MM"));
+        assertEquals(2, expected.size());
+
+        List<Object[]> inputs = rollupInputs(summaries, "yyyy-MM");
+        assertMatches(expected, (List<?>) complete(rollup(), rollupOIs, inputs));
+
+        List<Object> partials = new ArrayList<Object>();
+        ObjectInspector partialOI = null;
+        for (int m = 0; m < 2; m++) {
+            GenericUDAFEvaluator mapper = rollup();
+            partialOI = mapper.init(Mode.PARTIAL1, rollupOIs);
+            AggregationBuffer buffer = mapper.getNewAggregationBuffer();
+            for (int i = m; i < inputs.size(); i += 2) {
+                mapper.iterate(buffer, inputs.get(i));
+            }
+            partials.add(mapper.terminatePartial(buffer));
+        }
+        GenericUDAFEvaluator reducer = rollup();
+        reducer.init(Mode.FINAL, new ObjectInspector[]{partialOI});
+        AggregationBuffer buffer = reducer.getNewAggregationBuffer();
+        for (Object partial : partials) {
+            reducer.merge(buffer, partial);
+        }
+        assertMatches(expected, (List<?>) reducer.terminate(buffer));
+    }
+
+    /**
+     * 同一天的数据分两次生成摘要，两个摘要的时间范围交错，无法按时间顺序合并
+     */
+    @Test
+    public void rejectsOverlappingSummaries() throws Exception {
+        List<Object[]> rows = rows(new Random(12));
+        List<Object[]> evenRows = new ArrayList<Object[]>();
+        List<Object[]> oddRows = new ArrayList<Object[]>();
+        for (int i = 0; i < rows.size(); i++) {
+            (i % 2 == 0 ? evenRows : oddRows).add(rows.get(i));
+        }
+        List<Object[]> summaries = summaries(evenRows, "yyyy-MM-dd");
+        summaries.addAll(summaries(oddRows, "yyyy-MM-dd"));
+        try {
+            complete(rollup(), rollupOIs, rollupInputs(summaries, "yyyy-MM"));
+            fail("Overlapping summaries must be rejected");
+        } catch (HiveException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Overlapping calc_prod summaries at "));
+        }
+    }
+
+    /**
+     * dateFormat比摘要的粒度细时，一个按天的摘要跨越多个小时分组
+     */
+    @Test
+    public void rejectsSummaryFinerThanDateFormat() throws Exception {
+        List<Object[]> summaries = summaries(rows(new Random(13)), "yyyy-MM-dd");
+        try {
+            complete(rollup(), rollupOIs, rollupInputs(summaries, "yyyy-MM-dd HH"));
+            fail("A summary spanning several groups must be rejected");
+        } catch (HiveException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(" spans more than one yyyy-MM-dd HH group"));
+        }
+    }
+
+    private static void assertMatches(List<?> expected, List<?> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            Map<?, ?> e = (Map<?, ?>) expected.get(i);
+            Map<?, ?> a = (Map<?, ?>) actual.get(i);
+            assertEquals(e.get(CalcProdUDAF.TIMEGROUP), a.get(CalcProdUDAF.TIMEGROUP));
+            assertEquals(Double.parseDouble((String) e.get(CalcProdUDAF.PRODUCTION)),
+                    Double.parseDouble((String) a.get(CalcProdUDAF.PRODUCTION)), 1e-6);
+            assertEquals(e.get(CalcProdUDAF.LASTVALIDTIME), a.get(CalcProdUDAF.LASTVALIDTIME));
+            assertEquals(e.get(CalcProdUDAF.LASTVALIDVALUE), a.get(CalcProdUDAF.LASTVALIDVALUE));
+        }
+    }
+
+    // calc_prod_summary按dateFormat输出的各分组摘要
+    private List<Object[]> summaries(List<Object[]> rows, String dateFormat) throws Exception {
+        List<Object[]> input = new ArrayList<Object[]>(rows.size());
+        for (Object[] row : rows) {
+            input.add(new Object[]{row[0], row[1], row[2], dateFormat});
+        }
+        List<Object[]> summaries = new ArrayList<Object[]>();
+        ObjectInspector[] oIs = {pointOIs[0], pointOIs[1], pointOIs[2], pointOIs[3]};
+        for (Object group : (List<?>) complete(configured(new CalcProdSummaryUDAF().getEvaluator(new TypeInfo[0])), oIs, input)) {
+            summaries.add((Object[]) group);
+        }
+        return summaries;
+    }
+
+    private static List<Object[]> rollupInputs(List<Object[]> summaries, String dateFormat) {
+        List<Object[]> inputs = new ArrayList<Object[]>(summaries.size());
+        for (Object[] summary : summaries) {
+            inputs.add(new Object[]{summary[1], 20d, dateFormat, CARRY_TIME, CARRY_VALUE});
+        }
+        return inputs;
+    }
+
+    private static List<Object[]> withCarry(List<Object[]> rows, String dateFormat) {
+        List<Object[]> input = new ArrayList<Object[]>(rows.size());
+        for (Object[] row : rows) {
+            input.add(new Object[]{row[0], row[1], row[2], dateFormat, CARRY_TIME, CARRY_VALUE});
+        }
+        return input;
+    }
+
+    private static Object complete(GenericUDAFEvaluator evaluator, ObjectInspector[] oIs, List<Object[]> rows) throws Exception {
+        evaluator.init(Mode.COMPLETE, oIs);
+        AggregationBuffer buffer = evaluator.getNewAggregationBuffer();
+        for (Object[] row : rows) {
+            evaluator.iterate(buffer, row);
+        }
+        return evaluator.terminate(buffer);
+    }
+
+    private static GenericUDAFEvaluator calcProd() {
+        return configured(new CalcProdUDAF.CalcProdUDAFEvaluator());
+    }
+
+    private static GenericUDAFEvaluator rollup() {
+        return configured(new CalcProdRollupUDAF.CalcProdRollupUDAFEvaluator());
+    }
+
+    private static GenericUDAFEvaluator configured(GenericUDAFEvaluator evaluator) {
+        MapredContext.init(true, new JobConf());
+        evaluator.configure(MapredContext.get());
+        return evaluator;
+    }
+
+    // 2016年1、2月每10分钟的读数，含跳变、死数及没有数据的日期，乱序
+    private static List<Object[]> rows(Random random) throws ParseException {
+        SimpleDateFormat formatter = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+        List<Object[]> rows = new ArrayList<Object[]>();
+        double value = 1000d;
+        long time = formatter.parse("2016-01-01 00:00:00").getTime();
+        long end = formatter.parse("2016-03-01 00:00:00").getTime() - 600000L;
+        while (time < end) {
+            time += 600000L;
+            if (formatter.format(new Date(time)).startsWith("2016-01-2")) {
+                continue;
+            }
+            int kind = random.nextInt(40);
+            if (kind == 0) {
+                value += 5000;
+            } else if (kind > 4) {
+                value += Math.round(random.nextDouble() * 2000) / 1000.0;
+            }
+            rows.add(new Object[]{formatter.format(new Date(time)), value, 20d});
+        }
+        Collections.shuffle(rows, random);
+        return rows;
+    }
+}
@@ -0,0 +1,190 @@
+package com.envisioniot.hive.udfs;
+
+import org.apache.hadoop.hive.ql.exec.MapredContext;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator.AggregationBuffer;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator.Mode;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
+import org.apache.hadoop.mapred.JobConf;
+import org.junit.After;
+import org.junit.Test;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * calc_prod_site的各设备结果与逐个设备计算calc_prod一致，电站结果为同一时间分组各设备发电量之和
+ */
+public class CalcProdSiteUDAFTest {
+
+    private static final String DATE_FORMAT = "yyyy-MM-dd";
+    private static final String CARRY_DEVICE = "inv-02";
+    private static final String CARRY_TIME = "2015-12-30 12:00:00";
+    private static final double CARRY_VALUE = 800d;
+    // 各设备的编号，含非ASCII字符；第二个设备带上一个有效点，数据从后一天开始
+    private static final String[] DEVICES = {"inv-10", CARRY_DEVICE, "inv-01", "逆变器-3"};
+
+    private final ObjectInspector[] siteOIs = {
+            PrimitiveObjectInspectorFactory.javaStringObjectInspector,
+            PrimitiveObjectInspectorFactory.javaStringObjectInspector,
+            PrimitiveObjectInspectorFactory.javaDoubleObjectInspector,
+            PrimitiveObjectInspectorFactory.javaDoubleObjectInspector,
+            PrimitiveObjectInspectorFactory.javaStringObjectInspector,
+            PrimitiveObjectInspectorFactory.javaStringObjectInspector,
+            PrimitiveObjectInspectorFactory.javaDoubleObjectInspector
+    };
+
+    @After
+    public void closeContext() {
+        MapredContext.close();
+    }
+
+    /**
+     * 各设备的行交错乱序，一次完成计算
+     */
+    @Test
+    public void completeMatchesPerDeviceCalcProd() throws Exception {
+        List<Object[]> rows = rows(2000);
+        CalcProdSiteUDAF.CalcProdSiteUDAFEvaluator evaluator = evaluator(-1L);
+        evaluator.init(Mode.COMPLETE, siteOIs);
+        AggregationBuffer buffer = evaluator.getNewAggregationBuffer();
+        for (Object[] row : rows) {
+            evaluator.iterate(buffer, row);
+        }
+        assertMatches(rows, (Object[]) evaluator.terminate(buffer));
+    }
+
+    /**
+     * 两个map部分聚合后在reduce端合并；各设备的缓冲很小，map端及reduce端都写入临时文件
+     */
+    @Test
+    public void partialsWithSpillMatchPerDeviceCalcProd() throws Exception {
+        List<Object[]> rows = rows(3000);
+        List<Object> partials = new ArrayList<Object>();
+        ObjectInspector partialOI = null;
+        for (int m = 0; m < 2; m++) {
+            CalcProdSiteUDAF.CalcProdSiteUDAFEvaluator mapper = evaluator(4096L);
+            partialOI = mapper.init(Mode.PARTIAL1, siteOIs);
+            AggregationBuffer buffer = mapper.getNewAggregationBuffer();
+            for (int i = m; i < rows.size(); i += 2) {
+                mapper.iterate(buffer, rows.get(i));
+            }
+            partials.add(mapper.terminatePartial(buffer));
+            mapper.close();
+        }
+
+        CalcProdSiteUDAF.CalcProdSiteUDAFEvaluator reducer = evaluator(4096L);
+        reducer.init(Mode.FINAL, new ObjectInspector[]{partialOI});
+        AggregationBuffer buffer = reducer.getNewAggregationBuffer();
+        for (Object partial : partials) {
+            reducer.merge(buffer, partial);
+        }
+        assertMatches(rows, (Object[]) reducer.terminate(buffer));
+        reducer.close();
+    }
+
+    private void assertMatches(List<Object[]> rows, Object[] result) throws Exception {
+        List<?> deviceRows = (List<?>) result[0];
+        List<?> siteRows = (List<?>) result[1];
+
+        Map<String, Double> expectedSite = new LinkedHashMap<String, Double>();
+        int index = 0;
+        List<String> sorted = new ArrayList<String>(Arrays.asList(DEVICES));
+        Collections.sort(sorted);
+        for (String device : sorted) {
+            List<?> expected = calcProd(rows, device);
+            assertTrue(device, expected.size() > 1);
+            for (Object group : expected) {
+                Object[] struct = (Object[]) group;
+                Object[] row = (Object[]) deviceRows.get(index++);
+                assertEquals(device, row[0]);
+                assertArrayEquals(device, struct, Arrays.copyOfRange(row, 1, row.length));
+                Double sum = expectedSite.get((String) struct[0]);
+                expectedSite.put((String) struct[0], (sum == null ? 0d : sum) + (Double) struct[1]);
+            }
+        }
+        assertEquals(index, deviceRows.size());
+
+        List<String> groups = new ArrayList<String>(expectedSite.keySet());
+        Collections.sort(groups);
+        assertEquals(groups.size(), siteRows.size());
+        for (int i = 0; i < groups.size(); i++) {
+            Object[] row = (Object[]) siteRows.get(i);
+            assertEquals(groups.get(i), row[0]);
+            assertEquals(groups.get(i), expectedSite.get(groups.get(i)), (Double) row[1], 1e-6);
+        }
+    }
+
+    // 只取一个设备的行，按calc_prod_struct计算；带上一个有效点的设备使用6个参数
+    private static List<?> calcProd(List<Object[]> rows, String device) throws Exception {
+        MapredContext.init(true, new JobConf());
+        CalcProdUDAF.CalcProdUDAFEvaluator evaluator =
+                (CalcProdUDAF.CalcProdUDAFEvaluator) new CalcProdStructUDAF().getEvaluator(new TypeInfo[0]);
+        evaluator.configure(MapredContext.get());
+        boolean carry = CARRY_DEVICE.equals(device);
+        ObjectInspector[] oIs = {
+                PrimitiveObjectInspectorFactory.javaStringObjectInspector,
+                PrimitiveObjectInspectorFactory.javaDoubleObjectInspector,
+                PrimitiveObjectInspectorFactory.javaDoubleObjectInspector,
+                PrimitiveObjectInspectorFactory.javaStringObjectInspector,
+                PrimitiveObjectInspectorFactory.javaStringObjectInspector,
+                PrimitiveObjectInspectorFactory.javaDoubleObjectInspector
+        };
+        evaluator.init(Mode.COMPLETE, carry ? oIs : Arrays.copyOf(oIs, 4));
+        AggregationBuffer buffer = evaluator.getNewAggregationBuffer();
+        for (Object[] row : rows) {
+            if (device.equals(row[0])) {
+                evaluator.iterate(buffer, Arrays.copyOfRange(row, 1, carry ? 7 : 5));
+            }
+        }
+        List<?> result = (List<?>) evaluator.terminate(buffer);
+        MapredContext.close();
+        return result;
+    }
+
+    private CalcProdSiteUDAF.CalcProdSiteUDAFEvaluator evaluator(long bufferMemoryBytes) {
+        JobConf conf = new JobConf();
+        conf.setLong(CalcProdUDAF.BUFFER_MEMORY_BYTES, bufferMemoryBytes);
+        MapredContext.init(true, conf);
+        CalcProdSiteUDAF.CalcProdSiteUDAFEvaluator evaluator = new CalcProdSiteUDAF.CalcProdSiteUDAFEvaluator();
+        evaluator.configure(MapredContext.get());
+        return evaluator;
+    }
+
+    // 各设备的分钟读数（含跳变与死数）交错乱序，带上一个有效点的设备晚一天开始
+    private static List<Object[]> rows(int count) {
+        Random random = new Random(5);
+        SimpleDateFormat formatter = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+        List<Object[]> rows = new ArrayList<Object[]>();
+        for (String device : DEVICES) {
+            boolean carry = CARRY_DEVICE.equals(device);
+            double value = carry ? CARRY_VALUE + 30d : 1000d;
+            long time = 1451577600000L + (carry ? 86400000L : 0L);
+            for (int i = 0; i < count; i++) {
+                time += 60000L;
+                int kind = random.nextInt(40);
+                if (kind == 0) {
+                    value += 5000;
+                } else if (kind > 4) {
+                    value += Math.round(random.nextDouble() * 2000) / 1000.0;
+                }
+                rows.add(new Object[]{device, formatter.format(new Date(time)), value, 20d, DATE_FORMAT,
+                        carry ? CARRY_TIME : null, carry ? CARRY_VALUE : null});
+            }
+        }
+        Collections.shuffle(rows, random);
+        return rows;
+    }
+}
@@ -0,0 +1,431 @@
+package com.envisioniot.hive.udfs;
+
+import org.apache.hadoop.hive.ql.exec.MapredContext;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.parse.WindowingSpec;
+import org.apache.hadoop.hive.ql.plan.ptf.BoundaryDef;
+import org.apache.hadoop.hive.ql.plan.ptf.CurrentRowDef;
+import org.apache.hadoop.hive.ql.plan.ptf.RangeBoundaryDef;
+import org.apache.hadoop.hive.ql.plan.ptf.ValueBoundaryDef;
+import org.apache.hadoop.hive.ql.plan.ptf.WindowFrameDef;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
+import org.apache.hadoop.hive.ql.udf.generic.ISupportStreamingModeForWindowing;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator.AggregationBuffer;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator.Mode;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
+import com.envisioniot.hive.entity.CarrySnapshot;
+import com.envisioniot.hive.util.TimestampParser;
+import org.apache.hadoop.mapred.JobConf;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.sql.Timestamp;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CalcProdUDAFTest {
+
+    private static final int MAX_POINTS = 100;
+    private static final String DATE_FORMAT = "yyyy-MM-dd";
+
+    private final ObjectInspector[] inputOIs = {
+            PrimitiveObjectInspectorFactory.javaStringObjectInspector,
+            PrimitiveObjectInspectorFactory.javaDoubleObjectInspector,
+            PrimitiveObjectInspectorFactory.javaDoubleObjectInspector,
+            PrimitiveObjectInspectorFactory.javaStringObjectInspector
+    };
+
+    @After
+    public void closeContext() {
+        MapredContext.close();
+    }
+
+    /**
+     * raw、compressed格式下GROUP_MAX_POINTS同样生效：map端及reduce端内存中的点数不超过上限，结果与不限制时一致
+     */
+    @Test
+    public void groupMaxPointsCapsRawAndCompressed() throws Exception {
+        List<Object[]> rows = rows(5000);
+        Object expected = complete(evaluator(null, -1L), rows);
+        for (String format : new String[]{CalcProdUDAF.PARTIAL_FORMAT_RAW, CalcProdUDAF.PARTIAL_FORMAT_COMPRESSED}) {
+            CalcProdUDAF.CalcProdUDAFEvaluator mapper = evaluator(format, MAX_POINTS);
+            ObjectInspector partialOI = mapper.init(Mode.PARTIAL1, inputOIs);
+            AggregationBuffer mapBuffer = mapper.getNewAggregationBuffer();
+            for (Object[] row : rows) {
+                mapper.iterate(mapBuffer, row);
+                assertTrue(format, points(mapBuffer) < MAX_POINTS);
+            }
+            Object partial = mapper.terminatePartial(mapBuffer);
+
+            CalcProdUDAF.CalcProdUDAFEvaluator reducer = evaluator(format, MAX_POINTS);
+            reducer.init(Mode.FINAL, new ObjectInspector[]{partialOI});
+            AggregationBuffer reduceBuffer = reducer.getNewAggregationBuffer();
+            reducer.merge(reduceBuffer, partial);
+            assertTrue(format, points(reduceBuffer) < MAX_POINTS);
+            assertEquals(format, expected, reducer.terminate(reduceBuffer));
+            reducer.reset(reduceBuffer);
+            mapper.reset(mapBuffer);
+            reducer.close();
+            mapper.close();
+        }
+    }
+
+    /**
+     * 任务的内存预算由各分组共用：预算用尽后分组写入临时文件，结果与不限制时一致；输出结果后预算归还
+     */
+    @Test
+    public void taskMemoryBudgetSpillsAcrossGroups() throws Exception {
+        List<Object[]> rows = rows(5000);
+        Object expected = complete(evaluator(null, -1L), rows);
+
+        long limit = 64 * 1024;
+        JobConf conf = new JobConf();
+        conf.setLong(CalcProdUDAF.TASK_MEMORY_BYTES, limit);
+        MapredContext.init(true, conf);
+        CalcProdUDAF.CalcProdUDAFEvaluator mapper = new CalcProdUDAF.CalcProdUDAFEvaluator();
+        mapper.configure(MapredContext.get());
+        ObjectInspector partialOI = mapper.init(Mode.PARTIAL1, inputOIs);
+        AggregationBuffer[] buffers = {mapper.getNewAggregationBuffer(), mapper.getNewAggregationBuffer()};
+        for (Object[] row : rows) {
+            for (AggregationBuffer buffer : buffers) {
+                mapper.iterate(buffer, row);
+            }
+        }
+        assertTrue(CalcProdUDAF.taskBudget(limit).getUsedBytes() > 0);
+        List<Object> partials = new ArrayList<Object>();
+        for (AggregationBuffer buffer : buffers) {
+            assertTrue(((CalcProdUDAF.CalcProdUDAFEvaluator.CalcProdAggBuffer) buffer).getPoints().isSpilled());
+            Object[] partial = (Object[]) mapper.terminatePartial(buffer);
+            // 写入过临时文件的分组压缩输出
+            assertNull(partial[4]);
+            assertTrue(((byte[]) partial[7]).length < 16 * rows.size());
+            partials.add(partial);
+        }
+        assertEquals(0L, CalcProdUDAF.taskBudget(limit).getUsedBytes());
+
+        CalcProdUDAF.CalcProdUDAFEvaluator reducer = new CalcProdUDAF.CalcProdUDAFEvaluator();
+        reducer.configure(MapredContext.get());
+        reducer.init(Mode.FINAL, new ObjectInspector[]{partialOI});
+        for (Object partial : partials) {
+            AggregationBuffer buffer = reducer.getNewAggregationBuffer();
+            reducer.merge(buffer, partial);
+            assertEquals(expected, reducer.terminate(buffer));
+        }
+        assertEquals(0L, CalcProdUDAF.taskBudget(limit).getUsedBytes());
+        reducer.close();
+        mapper.close();
+    }
+
+    /**
+     * summary格式下两个map同一时间分组的数据交错，摘要的时间范围重叠，reduce端无法合并
+     */
+    @Test
+    public void summaryRejectsOverlappingPartials() throws Exception {
+        List<Object[]> rows = rows(200);
+        List<Object> partials = new ArrayList<Object>();
+        ObjectInspector partialOI = null;
+        for (int m = 0; m < 2; m++) {
+            CalcProdUDAF.CalcProdUDAFEvaluator mapper = evaluator(CalcProdUDAF.PARTIAL_FORMAT_SUMMARY, -1L);
+            partialOI = mapper.init(Mode.PARTIAL1, inputOIs);
+            AggregationBuffer buffer = mapper.getNewAggregationBuffer();
+            for (int i = m; i < rows.size(); i += 2) {
+                mapper.iterate(buffer, rows.get(i));
+            }
+            partials.add(mapper.terminatePartial(buffer));
+        }
+        CalcProdUDAF.CalcProdUDAFEvaluator reducer = evaluator(CalcProdUDAF.PARTIAL_FORMAT_SUMMARY, -1L);
+        reducer.init(Mode.FINAL, new ObjectInspector[]{partialOI});
+        AggregationBuffer buffer = reducer.getNewAggregationBuffer();
+        for (Object partial : partials) {
+            reducer.merge(buffer, partial);
+        }
+        try {
+            reducer.terminate(buffer);
+            fail("overlapping summaries must be rejected");
+        } catch (HiveException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Overlapping partial summaries in time group "));
+        }
+    }
+
+    /**
+     * summary格式下早于数据的上一个有效点与raw格式的结果相同；不早于第一个点的上一个有效点被忽略，结果与不传时相同
+     */
+    @Test
+    public void summaryIgnoresCarryNotEarlierThanData() throws Exception {
+        List<Object[]> rows = rows(3000);
+        String early = "2015-12-30 12:00:00";
+        String late = "2016-01-01 12:00:00";
+        assertEquals(complete(evaluator(null, -1L), withCarry(rows, early, 990d), carryOIs()),
+                summary(withCarry(rows, early, 990d)));
+        assertEquals(complete(evaluator(null, -1L), rows),
+                summary(withCarry(rows, late, 990d)));
+    }
+
+    /**
+     * calc_prod_struct与calc_prod的结果逐个分组一致；没有有效点的分组（单个点、死数）上一个有效点的两个字段为null
+     */
+    @Test
+    public void structMatchesMapOutput() throws Exception {
+        List<Object[]> rows = new ArrayList<Object[]>();
+        rows.add(new Object[]{"2015-12-28 12:00:00", 900d, 20d, DATE_FORMAT});
+        rows.add(new Object[]{"2015-12-29 10:00:00", 950d, 20d, DATE_FORMAT});
+        rows.add(new Object[]{"2015-12-29 11:00:00", 950d, 20d, DATE_FORMAT});
+        rows.addAll(rows(3000));
+        JobConf conf = new JobConf();
+        MapredContext.init(true, conf);
+        CalcProdUDAF.CalcProdUDAFEvaluator structEvaluator =
+                (CalcProdUDAF.CalcProdUDAFEvaluator) new CalcProdStructUDAF().getEvaluator(new TypeInfo[0]);
+        structEvaluator.configure(MapredContext.get());
+        List<?> structs = (List<?>) complete(structEvaluator, rows);
+        List<?> maps = (List<?>) complete(evaluator(null, -1L), rows);
+
+        SimpleDateFormat formatter = new SimpleDateFormat(TimestampParser.PATTERN);
+        assertEquals(maps.size(), structs.size());
+        int withoutValid = 0;
+        for (int i = 0; i < maps.size(); i++) {
+            Map<?, ?> map = (Map<?, ?>) maps.get(i);
+            Object[] struct = (Object[]) structs.get(i);
+            assertEquals(map.get(CalcProdUDAF.TIMEGROUP), struct[0]);
+            assertEquals(map.get(CalcProdUDAF.PRODUCTION), Double.toString((Double) struct[1]));
+            if (map.get(CalcProdUDAF.LASTVALIDTIME) == null) {
+                assertNull(map.get(CalcProdUDAF.LASTVALIDVALUE));
+                assertNull(struct[2]);
+                assertNull(struct[3]);
+                withoutValid++;
+            } else {
+                assertEquals(map.get(CalcProdUDAF.LASTVALIDTIME), formatter.format((Timestamp) struct[2]));
+                assertEquals(map.get(CalcProdUDAF.LASTVALIDVALUE), Double.toString((Double) struct[3]));
+            }
+        }
+        assertEquals(2, withoutValid);
+    }
+
+    /**
+     * 同一任务尝试中的多个calc_prod各自提交快照文件，不互相覆盖，也不留下临时文件
+     */
+    @Test
+    public void snapshotsDoNotOverwrite() throws Exception {
+        File output = File.createTempFile("snapshots-", "");
+        assertTrue(output.delete());
+        try {
+            ObjectInspector[] deviceOIs = Arrays.copyOf(inputOIs, 5);
+            deviceOIs[4] = PrimitiveObjectInspectorFactory.javaStringObjectInspector;
+            for (String device : new String[]{"a", "b"}) {
+                JobConf conf = new JobConf();
+                conf.set("mapred.task.id", "attempt_201701010000_0001_r_000000_0");
+                conf.set(CalcProdUDAF.SNAPSHOT_OUTPUT, output.getPath());
+                MapredContext.init(false, conf);
+                CalcProdUDAF.CalcProdUDAFEvaluator evaluator = new CalcProdUDAF.CalcProdUDAFEvaluator();
+                evaluator.configure(MapredContext.get());
+                evaluator.init(Mode.COMPLETE, deviceOIs);
+                AggregationBuffer buffer = evaluator.getNewAggregationBuffer();
+                evaluator.iterate(buffer, new Object[]{"2017-06-01 10:00:00", 100d, 20d, DATE_FORMAT, device});
+                evaluator.iterate(buffer, new Object[]{"2017-06-01 11:00:00", 105d, 20d, DATE_FORMAT, device});
+                evaluator.terminate(buffer);
+                evaluator.close();
+            }
+            // 本地文件系统另有隐藏的校验文件，合并时与临时文件一样被忽略
+            CarrySnapshot.Writer merged = new CarrySnapshot.Writer();
+            int snapshots = 0;
+            for (File file : output.listFiles()) {
+                assertFalse(file.getName(), file.getName().endsWith(".tmp"));
+                if (!file.getName().startsWith(".")) {
+                    assertTrue(file.getName(), file.getName().startsWith("snapshot-attempt_201701010000_0001_r_000000_0-"));
+                    merged.putAll(CarrySnapshot.open(file));
+                    snapshots++;
+                }
+            }
+            assertEquals(2, snapshots);
+            assertEquals(2, merged.size());
+        } finally {
+            File[] files = output.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            output.delete();
+        }
+    }
+
+    /**
+     * 只有ROWS BETWEEN UNBOUNDED PRECEDING AND CURRENT ROW逐行流式计算，RANGE窗口由Hive对每行重新聚合
+     */
+    @Test
+    public void streamsOnlyRowsFrames() {
+        CalcProdUDAF.CalcProdUDAFEvaluator evaluator = new CalcProdUDAF.CalcProdUDAFEvaluator();
+        RangeBoundaryDef rows = new RangeBoundaryDef();
+        rows.setDirection(WindowingSpec.Direction.PRECEDING);
+        rows.setAmt(WindowingSpec.BoundarySpec.UNBOUNDED_AMOUNT);
+        assertTrue(evaluator.getWindowingEvaluator(frame(rows, new CurrentRowDef())) instanceof ISupportStreamingModeForWindowing);
+
+        ValueBoundaryDef range = new ValueBoundaryDef();
+        range.setDirection(WindowingSpec.Direction.PRECEDING);
+        range.setAmt(WindowingSpec.BoundarySpec.UNBOUNDED_AMOUNT);
+        assertNull(evaluator.getWindowingEvaluator(frame(range, new CurrentRowDef())));
+
+        RangeBoundaryDef following = new RangeBoundaryDef();
+        following.setDirection(WindowingSpec.Direction.FOLLOWING);
+        following.setAmt(WindowingSpec.BoundarySpec.UNBOUNDED_AMOUNT);
+        assertNull(evaluator.getWindowingEvaluator(frame(rows, following)));
+    }
+
+    /**
+     * 流式窗口每行的输出与对窗口内的行（含无法解析时间的行）调用terminate()的结果相同，含已结束的时间分组
+     */
+    @Test
+    public void runningMatchesTerminateOnPrefix() throws Exception {
+        List<Object[]> rows = rows(1500);
+        Collections.sort(rows, new Comparator<Object[]>() {
+            public int compare(Object[] a, Object[] b) {
+                return ((String) a[0]).compareTo((String) b[0]);
+            }
+        });
+        rows.add(0, new Object[]{"not a time", 1d, 20d, DATE_FORMAT});
+        rows.add(800, new Object[]{"not a time", 1d, 20d, DATE_FORMAT});
+
+        CalcProdUDAF.CalcProdUDAFEvaluator evaluator = evaluator(null, -1L);
+        RangeBoundaryDef unbounded = new RangeBoundaryDef();
+        unbounded.setDirection(WindowingSpec.Direction.PRECEDING);
+        unbounded.setAmt(WindowingSpec.BoundarySpec.UNBOUNDED_AMOUNT);
+        GenericUDAFEvaluator running = evaluator.getWindowingEvaluator(frame(unbounded, new CurrentRowDef()));
+        running.init(Mode.COMPLETE, inputOIs);
+        AggregationBuffer buffer = running.getNewAggregationBuffer();
+        CalcProdUDAF.CalcProdUDAFEvaluator reference = evaluator(null, -1L);
+        reference.init(Mode.COMPLETE, inputOIs);
+        Object expected = null;
+        for (int i = 0; i < rows.size(); i++) {
+            running.iterate(buffer, rows.get(i));
+            AggregationBuffer prefix = reference.getNewAggregationBuffer();
+            for (Object[] row : rows.subList(0, i + 1)) {
+                reference.iterate(prefix, row);
+            }
+            expected = reference.terminate(prefix);
+            assertEquals("row " + i, expected, ((ISupportStreamingModeForWindowing) running).getNextResult(buffer));
+        }
+        assertEquals(2, ((List<?>) expected).size());
+        assertEquals(expected, running.terminate(buffer));
+    }
+
+    private static WindowFrameDef frame(BoundaryDef start, BoundaryDef end) {
+        WindowFrameDef frame = new WindowFrameDef();
+        frame.setStart(start);
+        frame.setEnd(end);
+        return frame;
+    }
+
+    /**
+     * 多个粒度以|分隔，格式中的逗号不拆分
+     */
+    @Test
+    public void levelsKeepCommasInPatterns() {
+        assertEquals(Arrays.asList("MMM d, yyyy", "yyyy"), Arrays.asList(CalcProdUDAF.levels("MMM d, yyyy | yyyy")));
+        assertEquals(Arrays.asList("yyyy-MM-dd", "yyyy-MM", "yyyy"), Arrays.asList(CalcProdUDAF.levels("yyyy-MM-dd|yyyy-MM|yyyy")));
+        assertEquals(Arrays.asList("yyyy'|'MM"), Arrays.asList(CalcProdUDAF.levels("yyyy'|'MM")));
+    }
+
+    private CalcProdUDAF.CalcProdUDAFEvaluator evaluator(String format, long maxPoints) {
+        JobConf conf = new JobConf();
+        if (format != null) {
+            conf.set(CalcProdUDAF.PARTIAL_FORMAT, format);
+        }
+        conf.setLong(CalcProdUDAF.GROUP_MAX_POINTS, maxPoints);
+        MapredContext.init(true, conf);
+        CalcProdUDAF.CalcProdUDAFEvaluator evaluator = new CalcProdUDAF.CalcProdUDAFEvaluator();
+        evaluator.configure(MapredContext.get());
+        return evaluator;
+    }
+
+    private Object complete(CalcProdUDAF.CalcProdUDAFEvaluator evaluator, List<Object[]> rows) throws Exception {
+        return complete(evaluator, rows, inputOIs);
+    }
+
+    private Object complete(CalcProdUDAF.CalcProdUDAFEvaluator evaluator, List<Object[]> rows, ObjectInspector[] oIs)
+            throws Exception {
+        evaluator.init(Mode.COMPLETE, oIs);
+        AggregationBuffer buffer = evaluator.getNewAggregationBuffer();
+        for (Object[] row : rows) {
+            evaluator.iterate(buffer, row);
+        }
+        return evaluator.terminate(buffer);
+    }
+
+    // 按summary格式经一个map部分聚合后计算
+    private Object summary(List<Object[]> rows) throws Exception {
+        CalcProdUDAF.CalcProdUDAFEvaluator mapper = evaluator(CalcProdUDAF.PARTIAL_FORMAT_SUMMARY, -1L);
+        ObjectInspector partialOI = mapper.init(Mode.PARTIAL1, carryOIs());
+        AggregationBuffer mapBuffer = mapper.getNewAggregationBuffer();
+        for (Object[] row : rows) {
+            mapper.iterate(mapBuffer, row);
+        }
+        CalcProdUDAF.CalcProdUDAFEvaluator reducer = evaluator(CalcProdUDAF.PARTIAL_FORMAT_SUMMARY, -1L);
+        reducer.init(Mode.FINAL, new ObjectInspector[]{partialOI});
+        AggregationBuffer reduceBuffer = reducer.getNewAggregationBuffer();
+        reducer.merge(reduceBuffer, mapper.terminatePartial(mapBuffer));
+        return reducer.terminate(reduceBuffer);
+    }
+
+    private ObjectInspector[] carryOIs() {
+        ObjectInspector[] oIs = Arrays.copyOf(inputOIs, 6);
+        oIs[4] = PrimitiveObjectInspectorFactory.javaStringObjectInspector;
+        oIs[5] = PrimitiveObjectInspectorFactory.javaDoubleObjectInspector;
+        return oIs;
+    }
+
+    private static List<Object[]> withCarry(List<Object[]> rows, String lastValidTime, double lastValidValue) {
+        List<Object[]> result = new ArrayList<Object[]>(rows.size());
+        for (Object[] row : rows) {
+            Object[] carryRow = Arrays.copyOf(row, 6);
+            carryRow[4] = lastValidTime;
+            carryRow[5] = lastValidValue;
+            result.add(carryRow);
+        }
+        return result;
+    }
+
+    private static int points(AggregationBuffer buffer) {
+        return ((CalcProdUDAF.CalcProdUDAFEvaluator.CalcProdAggBuffer) buffer).getPoints().inMemory().size();
+    }
+
+    // 乱序的分钟读数，含跳变与死数
+    private static List<Object[]> rows(int count) {
+        Random random = new Random(3);
+        SimpleDateFormat formatter = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+        List<Object[]> rows = new ArrayList<Object[]>();
+        double value = 1000d;
+        long time = 1451577600000L;
+        for (int i = 0; i < count; i++) {
+            time += 60000L;
+            int kind = random.nextInt(40);
+            if (kind == 0) {
+                value += 5000;
+            } else if (kind > 4) {
+                value += Math.round(random.nextDouble() * 2000) / 1000.0;
+            }
+            rows.add(new Object[]{formatter.format(new Date(time)), value, 20d, DATE_FORMAT});
+        }
+        for (int i = rows.size() - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            Object[] row = rows.get(i);
+            rows.set(i, rows.get(j));
+            rows.set(j, row);
+        }
+        return rows;
+    }
+}
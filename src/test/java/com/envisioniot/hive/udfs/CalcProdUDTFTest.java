@@ -0,0 +1,94 @@
+package com.envisioniot.hive.udfs;
+
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.udf.generic.Collector;
+import org.apache.hadoop.hive.serde2.io.DoubleWritable;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfoFactory;
+import org.apache.hadoop.io.Text;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CalcProdUDTFTest {
+
+    private CalcProdUDTF udtf;
+    private final List<Object[]> rows = new ArrayList<Object[]>();
+
+    @Before
+    public void initialize() throws HiveException {
+        udtf = new CalcProdUDTF();
+        List<ObjectInspector> ois = Arrays.<ObjectInspector>asList(
+                PrimitiveObjectInspectorFactory.javaStringObjectInspector,
+                PrimitiveObjectInspectorFactory.javaStringObjectInspector,
+                PrimitiveObjectInspectorFactory.javaDoubleObjectInspector,
+                PrimitiveObjectInspectorFactory.getPrimitiveWritableConstantObjectInspector(
+                        TypeInfoFactory.doubleTypeInfo, new DoubleWritable(20d)),
+                PrimitiveObjectInspectorFactory.getPrimitiveWritableConstantObjectInspector(
+                        TypeInfoFactory.stringTypeInfo, new Text("yyyy-MM-dd")));
+        udtf.initialize(ObjectInspectorFactory.getStandardStructObjectInspector(
+                Arrays.asList("device", "ts", "kwh", "slope", "dateFormat"), ois));
+        udtf.setCollector(new Collector() {
+            public void collect(Object input) {
+                rows.add(((Object[]) input).clone());
+            }
+        });
+    }
+
+    @Test
+    public void outputsEveryGroupOfEveryDevice() throws HiveException {
+        process("a", "2017-06-01 10:00:00", 100d);
+        process("a", "2017-06-01 11:00:00", 105d);
+        process("a", "2017-06-02 10:00:00", 110d);
+        process("b", "2017-06-01 10:00:00", 50d);
+        process("b", "2017-06-01 11:00:00", 52d);
+        udtf.close();
+        assertEquals(3, rows.size());
+        assertEquals("a", rows.get(0)[0]);
+        assertEquals(5d, (Double) rows.get(0)[2], 0d);
+        assertEquals("b", rows.get(2)[0]);
+        assertEquals(2d, (Double) rows.get(2)[2], 0d);
+    }
+
+    /**
+     * 设备切换后再次出现时不能重置状态后继续计算
+     */
+    @Test
+    public void rejectsDeviceThatReappears() throws HiveException {
+        process("a", "2017-06-01 10:00:00", 100d);
+        process("b", "2017-06-01 10:00:00", 50d);
+        try {
+            process("a", "2017-06-01 11:00:00", 105d);
+            fail("device a is not contiguous");
+        } catch (HiveException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("not sorted by device"));
+        }
+    }
+
+    /**
+     * 只与上一个设备比较：按设备降序的输入即使没有重复出现的设备也被拒绝
+     */
+    @Test
+    public void rejectsDevicesOutOfOrder() throws HiveException {
+        process("b", "2017-06-01 10:00:00", 100d);
+        try {
+            process("a", "2017-06-01 10:00:00", 50d);
+            fail("devices must be ascending");
+        } catch (HiveException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Input is not sorted by device: device a follows device b"));
+        }
+    }
+
+    private void process(String device, String time, double kwh) throws HiveException {
+        udtf.process(new Object[]{device, time, kwh, new DoubleWritable(20d), new Text("yyyy-MM-dd")});
+    }
+}
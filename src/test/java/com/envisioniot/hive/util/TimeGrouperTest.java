@@ -0,0 +1,201 @@
+package com.envisioniot.hive.util;
+
+import org.joda.time.DateTimeZone;
+import org.junit.Test;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 算术分组、定长区间及逐点格式化的分组与按SimpleDateFormat逐点格式化、相邻且标签相同的点为一组的结果一致，
+ * 取样覆盖夏令时切换、月末、年末及半小时时区
+ */
+public class TimeGrouperTest {
+
+    private static final String[] ZONES = {null, "UTC", "Asia/Shanghai", "America/New_York", "Europe/London",
+            "Australia/Sydney", "America/St_Johns", "Australia/Lord_Howe"};
+    private static final String[] ARITHMETIC = {"yyyy", "yyyy-MM", "yyyy-MM-dd", "yyyy-MM-dd HH", "yyyy-MM-dd HH:mm",
+            "MMM d, yyyy"};
+    private static final String[] INTERVALS = {"yyyy-MM-dd HH:mm;interval=15m", "yyyy-MM-dd HH;interval=3h",
+            "yyyy-MM-dd HH:mm:ss;interval=90s", "yyyy-MM-dd;interval=2d"};
+    private static final String[] FALLBACK = {"yyyy-ww", "MM", "yy-MM-dd", "yyyy-MM-dd E", "yyyy-MM-dd hh a"};
+    private static final long FROM = 1420070400000L; // 2015-01-01 00:00:00 UTC
+    private static final long TO = 1514764800000L; // 2018-01-01 00:00:00 UTC
+
+    @Test
+    public void arithmeticMatchesSimpleDateFormat() {
+        for (String zone : ZONES) {
+            long[] times = times(zone);
+            for (String pattern : ARITHMETIC) {
+                String dateFormat = zone == null ? pattern : pattern + ";tz=" + zone;
+                TimeGrouper grouper = new TimeGrouper(dateFormat);
+                assertTrue(dateFormat, grouper.isArithmetic());
+                assertGroups(dateFormat, grouper, times, labels(pattern, zone(zone), 0L, times));
+            }
+        }
+    }
+
+    /**
+     * 定长区间按本地时间对齐，标签为区间起点的本地时间
+     */
+    @Test
+    public void intervalsMatchLocalBuckets() {
+        for (String zone : ZONES) {
+            long[] times = times(zone);
+            for (String option : INTERVALS) {
+                String dateFormat = zone == null ? option : option + ";tz=" + zone;
+                List<String> parts = TimeGrouper.split(option, ';');
+                long interval = interval(parts.get(1).substring("interval=".length()));
+                TimeGrouper grouper = new TimeGrouper(dateFormat);
+                assertTrue(dateFormat, grouper.isArithmetic());
+                assertGroups(dateFormat, grouper, times, labels(parts.get(0), zone(zone), interval, times));
+            }
+        }
+    }
+
+    /**
+     * 不能算术分组的格式逐点格式化
+     */
+    @Test
+    public void fallbackMatchesSimpleDateFormat() {
+        for (String zone : ZONES) {
+            long[] times = times(zone);
+            for (String pattern : FALLBACK) {
+                String dateFormat = zone == null ? pattern : pattern + ";tz=" + zone;
+                TimeGrouper grouper = new TimeGrouper(dateFormat);
+                assertFalse(dateFormat, grouper.isArithmetic());
+                assertGroups(dateFormat, grouper, times, labels(pattern, zone(zone), 0L, times));
+            }
+        }
+    }
+
+    // 按groupEnd()与startsGroup()分别切分，分组边界、标签与逐点的期望一致；算术分组的键随分组切换而改变
+    private static void assertGroups(String dateFormat, TimeGrouper grouper, long[] times, String[] expected) {
+        int start = 0;
+        while (start < times.length) {
+            int end = grouper.groupEnd(times, start, times.length);
+            String message = dateFormat + " " + times[start];
+            assertEquals(message, expected[start], grouper.label());
+            for (int i = start; i < end; i++) {
+                assertEquals(message, expected[start], expected[i]);
+            }
+            if (end < times.length) {
+                assertFalse(message, expected[start].equals(expected[end]));
+            }
+            start = end;
+        }
+
+        grouper.reset();
+        long key = 0L;
+        for (int i = 0; i < times.length; i++) {
+            String message = dateFormat + " " + times[i];
+            boolean starts = i == 0 || !expected[i].equals(expected[i - 1]);
+            assertEquals(message, starts, grouper.startsGroup(times[i]));
+            assertEquals(message, expected[i], grouper.label());
+            assertEquals(message, expected[i], grouper.label(times[i]));
+            if (grouper.isArithmetic()) {
+                if (i > 0) {
+                    assertEquals(message, starts, key != grouper.key());
+                }
+                key = grouper.key();
+            }
+        }
+    }
+
+    private static String[] labels(String pattern, TimeZone zone, long interval, long[] times) {
+        SimpleDateFormat formatter = new SimpleDateFormat(pattern);
+        formatter.setTimeZone(interval > 0 ? TimeZone.getTimeZone("UTC") : zone);
+        String[] labels = new String[times.length];
+        for (int i = 0; i < times.length; i++) {
+            long time = times[i];
+            if (interval > 0) {
+                long local = time + zone.getOffset(time);
+                time = local - ((local % interval) + interval) % interval;
+            }
+            labels[i] = formatter.format(new Date(time));
+        }
+        return labels;
+    }
+
+    /**
+     * 2015至2017年间按5小时17分取样，另在各夏令时切换、本地月末及年末前后3小时内每7分13秒取样，按时间排序
+     */
+    private static long[] times(String zone) {
+        TimeZone timeZone = zone(zone);
+        List<Long> events = new ArrayList<Long>();
+        DateTimeZone dateTimeZone = DateTimeZone.forTimeZone(timeZone);
+        for (long t = dateTimeZone.nextTransition(FROM); t > FROM && t < TO; t = dateTimeZone.nextTransition(t)) {
+            events.add(t);
+        }
+        Calendar calendar = Calendar.getInstance(timeZone);
+        calendar.clear();
+        calendar.set(2015, Calendar.JANUARY, 1);
+        while (calendar.getTimeInMillis() < TO) {
+            events.add(calendar.getTimeInMillis());
+            calendar.add(Calendar.MONTH, 1);
+        }
+
+        List<Long> times = new ArrayList<Long>();
+        for (long t = FROM; t < TO; t += 317 * 60000L) {
+            times.add(t);
+        }
+        long step = 7 * 60000L + 13000L;
+        for (long event : events) {
+            for (long t = event - 3 * 3600000L; t < event + 3 * 3600000L; t += step) {
+                times.add(t);
+            }
+            times.add(event - 1);
+            times.add(event);
+        }
+        Collections.sort(times);
+        long[] result = new long[times.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = times.get(i);
+        }
+        return result;
+    }
+
+    private static TimeZone zone(String zone) {
+        return zone == null ? TimeZone.getDefault() : TimeZone.getTimeZone(zone);
+    }
+
+    private static long interval(String value) {
+        long amount = Long.parseLong(value.substring(0, value.length() - 1));
+        switch (value.charAt(value.length() - 1)) {
+            case 's':
+                return amount * 1000L;
+            case 'm':
+                return amount * 60000L;
+            case 'h':
+                return amount * 3600000L;
+            default:
+                return amount * 86400000L;
+        }
+    }
+
+    @Test
+    public void splitsOutsideQuotes() {
+        assertEquals(Arrays.asList("yyyy-MM-dd", "tz=UTC"), TimeGrouper.split("yyyy-MM-dd;tz=UTC", ';'));
+        assertEquals(Arrays.asList("yyyy';'MM", "tz=UTC"), TimeGrouper.split("yyyy';'MM;tz=UTC", ';'));
+        assertEquals(Arrays.asList("MMM d, yyyy", "yyyy"), TimeGrouper.split("MMM d, yyyy|yyyy", '|'));
+        assertEquals(Arrays.asList("yyyy'|'MM", ""), TimeGrouper.split("yyyy'|'MM|", '|'));
+    }
+
+    @Test
+    public void optionsAfterQuotedSeparator() {
+        TimeGrouper grouper = new TimeGrouper("yyyy';'MM;tz=UTC");
+        long time = 1496275200000L; // 2017-06-01 00:00:00 UTC
+        assertTrue(grouper.startsGroup(time));
+        assertEquals("2017;06", grouper.label());
+    }
+}
@@ -0,0 +1,67 @@
+package com.envisioniot.hive.util;
+
+import org.joda.time.DateTimeZone;
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * 与原先宽松模式的SimpleDateFormat解析结果对照
+ */
+public class TimestampParserTest {
+
+    private static final String[] ZONES = {"Asia/Shanghai", "Europe/Berlin", "America/New_York"};
+    private static final String[] TEXTS = {
+            "2017-06-15 08:30:00",
+            "2017-06-15 08:30:00.0",
+            "2017-02-30 00:00:00",
+            "2016-02-29 23:59:59",
+            "2017-02-29 12:00:00",
+            "2017-04-31 10:00:00",
+            "2017-13-01 00:00:00",
+            "2017-06-15 24:00:00",
+            "2017-06-15 08:60:00",
+            "2017-6-5 8:30:00",
+            "2017-03-26 02:30:00",
+            "2017-03-12 02:30:00",
+            "2017-10-29 02:30:00",
+            "2017-11-05 01:30:00"
+    };
+
+    @Test
+    public void matchesLenientSimpleDateFormat() throws ParseException {
+        for (String zone : ZONES) {
+            SimpleDateFormat formatter = new SimpleDateFormat(TimestampParser.PATTERN);
+            formatter.setTimeZone(TimeZone.getTimeZone(zone));
+            TimestampParser parser = new TimestampParser(DateTimeZone.forID(zone));
+            for (String text : TEXTS) {
+                long expected = formatter.parse(text).getTime();
+                assertEquals(zone + " " + text, expected, parser.parse(text));
+                byte[] bytes = text.getBytes(Charset.forName("UTF-8"));
+                assertEquals(zone + " " + text, expected, parser.parse(bytes, 0, bytes.length));
+            }
+            assertEquals(0L, parser.getFailures());
+        }
+    }
+
+    @Test
+    public void rollsOverOutOfRangeDates() throws ParseException {
+        TimestampParser parser = new TimestampParser(DateTimeZone.forID("Asia/Shanghai"));
+        SimpleDateFormat formatter = new SimpleDateFormat(TimestampParser.PATTERN);
+        formatter.setTimeZone(TimeZone.getTimeZone("Asia/Shanghai"));
+        assertEquals(formatter.parse("2017-03-02 00:00:00").getTime(), parser.parse("2017-02-30 00:00:00"));
+    }
+
+    @Test
+    public void countsFailures() {
+        TimestampParser parser = new TimestampParser(DateTimeZone.forID("Asia/Shanghai"));
+        assertEquals(TimestampParser.INVALID, parser.parse("not a time"));
+        assertEquals(TimestampParser.INVALID, parser.parse((CharSequence) null));
+        assertEquals(2L, parser.getFailures());
+    }
+}